@@ -5,6 +5,7 @@ import com.fasterxml.jackson.core.JsonGenerator;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * A pair of parallel histograms representing how many features are located at each amount of travel time 
@@ -30,6 +31,12 @@ public class Histogram implements Serializable {
      */
     public final int[] sums;
 
+    /** Copy the first nBins bins that have already been filled, for example by a {@link HistogramBuilder}. */
+    Histogram (int[] counts, int[] sums, int nBins) {
+        this.counts = Arrays.copyOf(counts, nBins);
+        this.sums = Arrays.copyOf(sums, nBins);
+    }
+
     /**
 	 * Given parallel arrays of travel times and magnitudes for any number of destination features, construct 
 	 * histograms that represent the distribution of individual features and total opportunities as a function of
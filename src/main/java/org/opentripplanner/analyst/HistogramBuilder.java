@@ -0,0 +1,91 @@
+package org.opentripplanner.analyst;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Folds travel times into one-minute histogram bins for every property of a PointSet as the times are evaluated,
+ * without first materializing an array of travel times to all points. The bin arrays are reused from one result
+ * to the next, so each thread should use its own instance (see {@link #forCurrentThread(PointSet)}).
+ * The histograms produced are identical to those made by {@link Histogram#Histogram(int[], int[])}.
+ */
+public class HistogramBuilder {
+
+    /** Times at or beyond this many minutes are not counted. Matches the array size used by Histogram. */
+    public static final int MAX_MINUTES = 1000;
+
+    private static final ThreadLocal<HistogramBuilder> THREAD_BUILDERS = new ThreadLocal<HistogramBuilder>() {
+        @Override
+        protected HistogramBuilder initialValue() {
+            return new HistogramBuilder();
+        }
+    };
+
+    private String[] properties = new String[0];
+    private int[][] magnitudes = new int[0][];
+
+    /** The number of features reached in each bin (the same for every property). */
+    private int[] counts = new int[MAX_MINUTES];
+
+    /** The weighted sums in each bin, one row per property. */
+    private int[][] sums = new int[0][];
+
+    /** The highest bin that received a time since the last reset. */
+    private int upperBound;
+
+    /** @return the builder belonging to the calling thread, reset for the given PointSet. */
+    public static HistogramBuilder forCurrentThread(PointSet targets) {
+        HistogramBuilder builder = THREAD_BUILDERS.get();
+        builder.reset(targets);
+        return builder;
+    }
+
+    /** Clear all bins and prepare to accumulate times to the points of the given PointSet. */
+    public void reset(PointSet targets) {
+        int nProperties = targets.properties.size();
+        if (properties.length != nProperties) {
+            properties = new String[nProperties];
+            magnitudes = new int[nProperties][];
+            sums = new int[nProperties][];
+        }
+        int p = 0;
+        for (Entry<String, int[]> entry : targets.properties.entrySet()) {
+            properties[p] = entry.getKey();
+            magnitudes[p] = entry.getValue();
+            if (sums[p] == null)
+                sums[p] = new int[MAX_MINUTES];
+            else
+                Arrays.fill(sums[p], 0, upperBound + 1, 0);
+            p++;
+        }
+        Arrays.fill(counts, 0, upperBound + 1, 0);
+        upperBound = 0;
+    }
+
+    /**
+     * Count the feature at the given index of the PointSet as reached after the given number of seconds.
+     * Negative and unreachable (Integer.MAX_VALUE) times are ignored.
+     */
+    public void add(int point, int seconds) {
+        if (seconds < 0)
+            return;
+        int minuteBin = seconds / 60;
+        if (minuteBin >= MAX_MINUTES)
+            return;
+        counts[minuteBin] += 1;
+        for (int p = 0; p < properties.length; p++) {
+            sums[p][minuteBin] += magnitudes[p][point];
+        }
+        if (minuteBin > upperBound)
+            upperBound = minuteBin;
+    }
+
+    /** Store one new Histogram per property in the given map, keyed on the property name. */
+    public void buildHistograms(Map<String, Histogram> histograms) {
+        for (int p = 0; p < properties.length; p++) {
+            histograms.put(properties[p], new Histogram(counts, sums[p], upperBound));
+        }
+    }
+
+}
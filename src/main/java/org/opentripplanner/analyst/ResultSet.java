@@ -11,7 +11,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Map;
-import java.util.Map.Entry;
 
 public class ResultSet implements Serializable{
 
@@ -29,15 +28,16 @@ public class ResultSet implements Serializable{
         // TODO is this ever used?
     }
 
-    /** Build a new ResultSet by evaluating the given TimeSurface at all the given sample points. */
+    /**
+     * Build a new ResultSet by evaluating the given TimeSurface at all the given sample points.
+     * The times are binned as they are evaluated, using the calling thread's reusable HistogramBuilder.
+     */
     public ResultSet(SampleSet samples, TimeSurface surface){
         id = samples.pset.id + "_" + surface.id;
 
-        PointSet targets = samples.pset;
-        // Evaluate the surface at all points in the pointset
-        int[] times = samples.eval(surface);
-        buildHistograms(times, targets);
-
+        HistogramBuilder builder = HistogramBuilder.forCurrentThread(samples.pset);
+        samples.eval(surface, builder);
+        builder.buildHistograms(histograms);
     }
 
     /** 
@@ -46,11 +46,11 @@ public class ResultSet implements Serializable{
      * Each new histogram object will be stored as a part of this result set keyed on its property/category.
      */
     protected void buildHistograms(int[] times, PointSet targets) {
-        for (Entry<String, int[]> entry : targets.properties.entrySet()) {
-            String property = entry.getKey();
-            int[] magnitudes = entry.getValue();
-            this.histograms.put(property, new Histogram(times, magnitudes));
+        HistogramBuilder builder = HistogramBuilder.forCurrentThread(targets);
+        for (int i = 0; i < times.length; i++) {
+            builder.add(i, times[i]);
         }
+        builder.buildHistograms(histograms);
     }
 
     /**
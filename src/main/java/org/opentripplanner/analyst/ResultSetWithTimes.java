@@ -11,10 +11,11 @@ public class ResultSetWithTimes extends ResultSet {
     }
 
     public ResultSetWithTimes(SampleSet samples, TimeSurface surface) {
-        super(samples, surface);
-        
-        // Evaluate the surface at all points in the pointset
+        id = samples.pset.id + "_" + surface.id;
+
+        // Evaluate the surface at all points in the pointset, once for both the times and the histograms
         times = samples.eval(surface);
+        buildHistograms(times, samples.pset);
     }
 
     public Integer minTime() {
@@ -40,26 +40,41 @@ public class SampleSet {
     }
 
     public int[] eval (TimeSurface surf) {
-        final float WALK_SPEED = 1.3f;
         int[] ret = new int[pset.capacity];
         for (int i = 0; i < pset.capacity; i++) {
-            int m0 = Integer.MAX_VALUE;
-            int m1 = Integer.MAX_VALUE;
-            if (v0s[i] != null) {
-                int s0 = surf.getTime(v0s[i]);
-                if (s0 != TimeSurface.UNREACHABLE) {
-                    m0 = (int) (s0 + d0s[i] / WALK_SPEED);
-                }
+            ret[i] = eval(surf, i);
+        }
+        return ret;
+    }
+
+    /**
+     * Evaluate the surface at all sample points, folding the times straight into the histogram bins of the given
+     * builder rather than storing them.
+     */
+    public void eval (TimeSurface surf, HistogramBuilder histograms) {
+        for (int i = 0; i < pset.capacity; i++) {
+            histograms.add(i, eval(surf, i));
+        }
+    }
+
+    /** @return the travel time to the sample point at the given index, or Integer.MAX_VALUE if it is unreachable. */
+    private int eval (TimeSurface surf, int i) {
+        final float WALK_SPEED = 1.3f;
+        int m0 = Integer.MAX_VALUE;
+        int m1 = Integer.MAX_VALUE;
+        if (v0s[i] != null) {
+            int s0 = surf.getTime(v0s[i]);
+            if (s0 != TimeSurface.UNREACHABLE) {
+                m0 = (int) (s0 + d0s[i] / WALK_SPEED);
             }
-            if (v1s[i] != null) {
-                int s1 = surf.getTime(v1s[i]);
-                if (s1 != TimeSurface.UNREACHABLE) {
-                    m1 = (int) (s1 + d1s[i] / WALK_SPEED);
-                }
+        }
+        if (v1s[i] != null) {
+            int s1 = surf.getTime(v1s[i]);
+            if (s1 != TimeSurface.UNREACHABLE) {
+                m1 = (int) (s1 + d1s[i] / WALK_SPEED);
             }
-            ret[i] = (m0 < m1) ? m0 : m1;
         }
-        return ret;
+        return (m0 < m1) ? m0 : m1;
     }
 
 }
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import java.awt.font.NumericShaper;
 import java.io.Serializable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.commons.math3.util.FastMath.max;
 import static org.apache.commons.math3.util.FastMath.min;
@@ -38,7 +39,8 @@ public class TimeSurface implements Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(TimeSurface.class);
     public static final int UNREACHABLE = -1;
-    private static int nextId = 0;
+    /** Shared by all surfaces, so that ids are unique even when surfaces are made on several threads. */
+    private static final AtomicInteger nextId = new AtomicInteger();
 
     public final String routerId;
     public final int id;
@@ -139,12 +141,11 @@ public class TimeSurface implements Serializable {
         return times.get(v);
     }
 
-    private synchronized int makeUniqueId() {
-        int id = nextId++;
-        return id;
+    private static int makeUniqueId() {
+        return nextId.getAndIncrement();
     }
 
-    public int size() { return nextId; }
+    public int size() { return nextId.get(); }
 
     // TODO Lazy-initialize sample grid on demand so initial SPT finishes faster, and only isolines lag behind.
     // however, the existing sampler needs an SPT, not general vertex-time mappings.
@@ -13,6 +13,13 @@
 
 package org.opentripplanner.analyst.batch;
 
+/**
+ * Accumulates a value for each origin into all destinations.
+ * 
+ * The BatchProcessor gives each worker thread its own accumulated ResultSet and sums them when 
+ * the run is complete, so implementations must be additive: accumulating two origins into 
+ * separate result sets and adding them must give the same result as accumulating both into one.
+ */
 public interface Accumulator {
 
     public void accumulate(double amount, ResultSet current, ResultSet accumulated);
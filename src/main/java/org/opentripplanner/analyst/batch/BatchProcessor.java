@@ -13,25 +13,36 @@
 
 package org.opentripplanner.analyst.batch;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.TimeZone;
-import java.util.concurrent.CompletionService;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opentripplanner.analyst.batch.aggregator.Aggregator;
 import org.opentripplanner.analyst.core.Sample;
 import org.opentripplanner.analyst.request.SampleFactory;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.error.VertexNotFoundException;
+import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 public class BatchProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(BatchProcessor.class);
@@ -70,12 +81,136 @@ public class BatchProcessor {
     private long lastLogTime = 0;
     private long lastCheckpointTime = 0;
     private ResultSet aggregateResultSet = null;
+
+    /** Number of consecutive origins claimed by a worker thread at once. */
+    private int chunkSize = 64;
+
+    /** Maximum number of shortest path trees held at once, or 0 to use one per thread. */
+    private int maxConcurrentSearches = 0;
+
+    /** Continue from the progress journal of a previous run if one exists. */
+    private boolean resume = true;
+
+    private List<Individual> originList;
+    private int nChunks;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final AtomicInteger nCompleted = new AtomicInteger();
+    private BitSet resumedChunks;
+    private int nResumed;
+    private Semaphore searchPermits;
+    private List<BatchWorker> workers;
+    private BatchProgressJournal journal;
+
+    /** 
+     * LOCAL runs the whole batch in this process. Otherwise one COORDINATOR process and any number 
+     * of WORKER processes with the same configuration share the work through a queue directory.
+     */
+    enum Role { LOCAL, COORDINATOR, WORKER };
+    private Role role = Role.LOCAL;
+    private String shardDirectory = null;
+    private int shardClaimTimeoutMinutes = 30;
+    private BatchShardQueue shardQueue = null;
     
+    public void setGraphService(GraphService graphService) {
+        this.graphService = graphService;
+    }
+
+    public void setSampleFactory(SampleFactory sampleFactory) {
+        this.sampleFactory = sampleFactory;
+    }
+
+    public void setOrigins(Population origins) {
+        this.origins = origins;
+    }
+
+    public void setDestinations(Population destinations) {
+        this.destinations = destinations;
+    }
+
+    public void setPrototypeRoutingRequest(RoutingRequest prototypeRoutingRequest) {
+        this.prototypeRoutingRequest = prototypeRoutingRequest;
+    }
+
+    public void setAggregator(Aggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public void setAccumulator(Accumulator accumulator) {
+        this.accumulator = accumulator;
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
+    public void setDate(String date) {
+        this.date = date;
+    }
+
+    public void setTime(String time) {
+        this.time = time;
+    }
+
+    public void setTimeZone(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    public void setOutputPath(String outputPath) {
+        this.outputPath = outputPath;
+    }
+
+    public void setCheckpointIntervalMinutes(float checkpointIntervalMinutes) {
+        this.checkpointIntervalMinutes = checkpointIntervalMinutes;
+    }
+
     /** Cut off the search instead of building a full path tree. Can greatly improve run times. */
     public void setSearchCutoffMinutes(int minutes) {
         this.searchCutoffSeconds = minutes * 60;
     }
 
+    /** Larger chunks reduce scheduling overhead, smaller ones balance the load at the end of a run. */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Limit the number of shortest path trees held in memory at once. Allows running more threads 
+     * than searches so that writing output overlaps with searching.
+     */
+    public void setMaxConcurrentSearches(int maxConcurrentSearches) {
+        this.maxConcurrentSearches = maxConcurrentSearches;
+    }
+
+    /** 
+     * When checkpointing is enabled, a progress journal is written next to the output. If this is
+     * true (the default), a run finding a journal of the same batch, on the same graph, with the
+     * same populations and search parameters, will skip the origins it records.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Run as the coordinator or as one of the workers of a batch split across several processes:
+     * LOCAL (the default), COORDINATOR or WORKER. The coordinator does not compute anything 
+     * itself. It splits the origins into chunks and merges the partial results from the workers in
+     * chunk order, so the output does not depend on which worker computed which chunk or in which
+     * order they finished.
+     */
+    public void setShardRole(String role) {
+        this.role = Role.valueOf(role.toUpperCase());
+    }
+
+    /** A directory visible to the coordinator and all workers, used as the work queue. */
+    public void setShardDirectory(String shardDirectory) {
+        this.shardDirectory = shardDirectory;
+    }
+
+    /** Chunks claimed by a worker that has not made progress for this long are given to others. */
+    public void setShardClaimTimeoutMinutes(int minutes) {
+        this.shardClaimTimeoutMinutes = minutes;
+    }
+
     /*
     public static void main(String[] args) throws IOException {
         org.springframework.core.io.Resource appContextResource;
@@ -99,15 +234,25 @@ public class BatchProcessor {
     }
     */
 
-    private void run() {
+    public void run() {
+        if (role != Role.LOCAL) {
+            if (shardDirectory == null) {
+                LOG.error("a shard directory is needed to run as {}.", role);
+                return;
+            }
+            shardQueue = new BatchShardQueue(new File(shardDirectory));
+            if (role == Role.COORDINATOR) {
+                /* Before the populations are loaded, which can take a while. */
+                try {
+                    shardQueue.reset();
+                } catch (IOException e) {
+                    LOG.error("could not reset batch queue: {}", e);
+                    return;
+                }
+            }
+        }
         origins.setup();
         destinations.setup();
-        linkIntoGraph(destinations);
-        // Set up a thread pool to execute searches in parallel
-        LOG.info("Number of threads: {}", nThreads);
-        ExecutorService threadPool = Executors.newFixedThreadPool(nThreads);
-        // ECS enqueues results in the order they complete (unlike invokeAll, which blocks)
-        CompletionService<Void> ecs = new ExecutorCompletionService<Void>(threadPool);
         if (aggregator != null) {
             /* aggregate over destinations and save one value per origin */
             mode = Mode.AGGREGATE;
@@ -125,32 +270,112 @@ public class BatchProcessor {
                 System.exit(-1);
             }
         }
-        startTime = System.currentTimeMillis();
-        int nTasks = 0;
+        originList = new ArrayList<Individual>();
         for (Individual oi : origins) { // using filtered iterator
-            ecs.submit(new BatchAnalystTask(nTasks, oi), null);
-            ++nTasks;
+            originList.add(oi);
         }
-        LOG.info("created {} tasks.", nTasks);
-        int nCompleted = 0;
-        try { // pull Futures off the queue as tasks are finished
-            while (nCompleted < nTasks) {
-                try {
-                    ecs.take().get(); // call get to check for exceptions in the completed task
-                    LOG.debug("got result {}/{}", nCompleted, nTasks);
-                    if (checkpoint()) {
-                        LOG.info("checkpoint written.");
+        nChunks = (originList.size() + chunkSize - 1) / chunkSize;
+        LOG.info("{} origins in {} chunks of {}.", originList.size(), nChunks, chunkSize);
+        String manifest = String.format("%s %d %d %d", mode, originList.size(),
+                destinations.size(), chunkSize);
+        if (role == Role.COORDINATOR) {
+            runCoordinator(manifest);
+            return;
+        }
+        linkIntoGraph(destinations);
+        if (role == Role.WORKER) {
+            try {
+                shardQueue.open(manifest);
+            } catch (Exception e) {
+                LOG.error("could not join batch queue: {}", e);
+                return;
+            }
+            resumedChunks = new BitSet();
+        } else {
+            resumeFromJournal();
+        }
+        int nSearches = maxConcurrentSearches > 0 ? maxConcurrentSearches : nThreads;
+        searchPermits = new Semaphore(nSearches);
+        /*
+         * Each worker claims chunks of consecutive origins from a shared cursor until none are
+         * left, so fast workers naturally take over the work that slow ones have not reached yet.
+         * Only one task per thread is ever queued, however many origins there are.
+         */
+        LOG.info("Number of threads: {}, concurrent searches: {}", nThreads, nSearches);
+        ExecutorService threadPool = Executors.newFixedThreadPool(nThreads);
+        workers = new ArrayList<BatchWorker>();
+        for (int t = 0; t < nThreads; t++) {
+            BatchWorker worker = new BatchWorker();
+            workers.add(worker);
+            threadPool.execute(worker);
+        }
+        threadPool.shutdown();
+        startTime = System.currentTimeMillis();
+        int nRemaining = originList.size() - nResumed;
+        try { // the controller thread only reports progress and writes checkpoints
+            while ( ! threadPool.awaitTermination(logThrottleSeconds, TimeUnit.SECONDS)) {
+                projectRunTime(nCompleted.get(), nRemaining);
+                if (checkpoint()) {
+                    LOG.info("checkpoint written.");
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("run was interrupted after {} origins", nCompleted.get());
+            threadPool.shutdownNow();
+            return;
+        }
+        if (role == Role.WORKER) {
+            LOG.info("worker DONE, computed {} origins.", nCompleted.get());
+            return;
+        }
+        if (mode == Mode.ACCUMULATE) {
+            mergeAccumulations(aggregateResultSet.results);
+        }
+        if (accumulator != null)
+            accumulator.finish();
+        if (aggregateResultSet != null)
+            aggregateResultSet.writeAppropriateFormat(outputPath);
+        if (journal != null)
+            journal.delete();
+        LOG.info("DONE.");
+    }
+
+    /** 
+     * Enqueue all chunks for the workers, then merge their partial results in chunk order as they 
+     * become available.
+     */
+    private void runCoordinator(String manifest) {
+        try {
+            shardQueue.create(nChunks, manifest);
+            startTime = System.currentTimeMillis();
+            int nextMerge = 0;
+            while (nextMerge < nChunks) {
+                double[] partial = shardQueue.take(nextMerge);
+                if (partial == null) {
+                    projectRunTime(nextMerge * chunkSize, originList.size());
+                    shardQueue.requeueStale(shardClaimTimeoutMinutes * 60 * 1000L);
+                    Thread.sleep(1000);
+                    continue;
+                }
+                if (mode == Mode.ACCUMULATE) {
+                    double[] merged = aggregateResultSet.results;
+                    for (int i = 0; i < merged.length; i++) {
+                        merged[i] += partial[i];
                     }
-                } catch (ExecutionException e) {
-                    LOG.error("exception in thread task: {}", e);
+                } else if (mode == Mode.AGGREGATE) {
+                    System.arraycopy(partial, 0, aggregateResultSet.results, nextMerge * chunkSize,
+                            partial.length);
                 }
-                ++nCompleted;
-                projectRunTime(nCompleted, nTasks);
+                nextMerge++;
             }
+            shardQueue.finish();
+        } catch (IOException e) {
+            LOG.error("batch queue failed: {}", e);
+            return;
         } catch (InterruptedException e) {
-            LOG.warn("run was interrupted after {} tasks", nCompleted);
+            LOG.warn("coordinator was interrupted.");
+            return;
         }
-        threadPool.shutdown();
         if (accumulator != null)
             accumulator.finish();
         if (aggregateResultSet != null)
@@ -158,6 +383,99 @@ public class BatchProcessor {
         LOG.info("DONE.");
     }
 
+    /** Load the progress journal if checkpointing is enabled, skipping already completed chunks. */
+    private void resumeFromJournal() {
+        resumedChunks = new BitSet();
+        nResumed = 0;
+        if (checkpointIntervalMinutes < 0) {
+            journal = null;
+            return;
+        }
+        String journalPath = outputPath.replace("{}", "") + ".journal";
+        journal = new BatchProgressJournal(new File(journalPath), mode.ordinal(),
+                originList.size(), chunkSize, inputFingerprint());
+        if ( ! resume || ! journal.load())
+            return;
+        if (aggregateResultSet != null) {
+            if (journal.results == null
+                    || journal.results.length != aggregateResultSet.results.length) {
+                LOG.warn("progress journal results do not match population, starting from scratch.");
+                return;
+            }
+            System.arraycopy(journal.results, 0, aggregateResultSet.results, 0,
+                    journal.results.length);
+        }
+        resumedChunks = journal.completedChunks;
+        for (int c = resumedChunks.nextSetBit(0); c >= 0; c = resumedChunks.nextSetBit(c + 1)) {
+            nResumed += chunkEnd(c) - c * chunkSize;
+        }
+    }
+
+    /**
+     * @return a fingerprint of what the results of a run depend on, so that a progress journal is
+     *         only resumed by a run of the same batch: the graph, identified by its build time and
+     *         size, the origins and destinations, the search parameters and the kind of aggregator
+     *         or accumulator.
+     */
+    private long inputFingerprint() {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        RoutingRequest req = prototypeRoutingRequest.clone();
+        Graph graph = graphService.getRouter(req.routerId).graph;
+        hasher.putLong(graph.buildTime.getTime()).putInt(graph.countVertices())
+                .putInt(graph.countEdges());
+        for (Individual i : originList)
+            putIndividual(hasher, i);
+        for (Individual i : destinations)
+            putIndividual(hasher, i);
+        /* Request hash codes depend on identity hash codes, which change from one process to the next. */
+        req.setDateTime(date, time, timeZone);
+        hasher.putString(String.valueOf(req.routerId)).putLong(req.dateTime)
+                .putInt(searchCutoffSeconds).putBoolean(req.arriveBy)
+                .putString(ContractionHierarchySet.costKey(req))
+                .putDouble(req.maxWalkDistance).putInt(req.maxPreTransitTime)
+                .putInt(req.maxTransfers).putDouble(req.waitReluctance)
+                .putDouble(req.waitAtBeginningFactor).putInt(req.walkBoardCost)
+                .putInt(req.bikeBoardCost).putInt(req.transferPenalty)
+                .putInt(req.transferSlack).putInt(req.boardSlack).putInt(req.alightSlack)
+                .putLong(req.clampInitialWait).putBoolean(req.ignoreRealtimeUpdates)
+                .putString(req.bannedRoutes.asString()).putString(req.bannedTrips.keySet().toString())
+                .putString(req.preferredRoutes.asString()).putString(req.unpreferredRoutes.asString());
+        hasher.putString(aggregator == null ? "-" : aggregator.getClass().getName())
+                .putString(accumulator == null ? "-" : accumulator.getClass().getName());
+        return hasher.hash().asLong();
+    }
+
+    private static void putIndividual(Hasher hasher, Individual i) {
+        hasher.putString(String.valueOf(i.label)).putDouble(i.lon).putDouble(i.lat)
+                .putDouble(i.input);
+    }
+
+    /**
+     * Add the per-thread accumulations of all workers into the given array, which should
+     * already contain any accumulations recovered from the progress journal.
+     * @return the set of chunks whose contributions were added.
+     */
+    private BitSet mergeAccumulations(double[] merged) {
+        BitSet completed = (BitSet) resumedChunks.clone();
+        for (BatchWorker worker : workers) {
+            synchronized (worker) {
+                if (worker.total != null) {
+                    double[] partial = worker.total.results;
+                    for (int i = 0; i < merged.length; i++) {
+                        merged[i] += partial[i];
+                    }
+                }
+                completed.or(worker.completedChunks);
+            }
+        }
+        return completed;
+    }
+
+    /** @return the index one past the last origin in the given chunk. */
+    private int chunkEnd(int chunk) {
+        return Math.min(originList.size(), (chunk + 1) * chunkSize);
+    }
+
     private void projectRunTime(int current, int total) {
         long currentTime = System.currentTimeMillis();
         // not threadsafe, but the worst thing that will happen is a double log message 
@@ -172,14 +490,36 @@ public class BatchProcessor {
     }
     
     private boolean checkpoint() {
-        if (checkpointIntervalMinutes < 0 || aggregateResultSet == null)
+        if (journal == null)
             return false;
         long currentTime = System.currentTimeMillis();
-        // not threadsafe, but the worst thing that will happen is a double checkpoint
-        // anyway, this is being called in the controller thread now
+        // this is only called in the controller thread
         if (currentTime > lastCheckpointTime + checkpointIntervalMinutes * 60 * 1000) {
             lastCheckpointTime = currentTime;
-            aggregateResultSet.writeAppropriateFormat(outputPath);
+            BitSet completed;
+            double[] results = null;
+            if (mode == Mode.ACCUMULATE) {
+                /* Worker totals only include completed chunks, so no origin is saved half done. */
+                results = aggregateResultSet.results.clone();
+                completed = mergeAccumulations(results);
+            } else {
+                completed = (BitSet) resumedChunks.clone();
+                for (BatchWorker worker : workers) {
+                    synchronized (worker) {
+                        completed.or(worker.completedChunks);
+                    }
+                }
+                if (aggregateResultSet != null)
+                    results = aggregateResultSet.results.clone();
+            }
+            if (results != null)
+                new ResultSet(aggregateResultSet.population, results).writeAppropriateFormat(outputPath);
+            try {
+                journal.write(completed, results);
+            } catch (IOException e) {
+                LOG.error("could not write progress journal: {}", e);
+                return false;
+            }
             return true;
         }
         return false;
@@ -225,47 +565,147 @@ public class BatchProcessor {
     }
         
     /** 
-     * A single computation to perform for a single origin.
-     * Runnable, not Callable. We want accumulation to happen in the worker thread. 
-     * Handling all accumulation in the controller thread risks amassing a queue of large 
-     * result sets. 
+     * Claims chunks of origins and performs the computation for each origin in them.
+     * Accumulation happens in the worker thread: handling all accumulation in the controller 
+     * thread risks amassing a queue of large result sets. In ACCUMULATE mode each worker sums 
+     * into its own result set, and these are merged once at the end of the run, so workers never 
+     * wait on each other.
+     * 
+     * The worker's own monitor guards its total and its set of completed chunks, so that the 
+     * controller thread always sees a total that includes exactly the completed chunks.
      */
-    private class BatchAnalystTask implements Runnable {
-        
-        protected final int i;
-        protected final Individual oi;
-        
-        public BatchAnalystTask(int i, Individual oi) {
-            this.i = i;
-            this.oi = oi;
+    private class BatchWorker implements Runnable {
+
+        /** Accumulations of all chunks this worker has completed (ACCUMULATE mode only). */
+        final ResultSet total;
+
+        /** Accumulations of the chunk in progress, added to the total when the chunk is done. */
+        final ResultSet chunkTotal;
+
+        final BitSet completedChunks = new BitSet();
+
+        /** Travel times from the current origin, reused for every origin this worker handles. */
+        final ResultSet travelTimes = new ResultSet(destinations);
+
+        BatchWorker() {
+            if (mode == Mode.ACCUMULATE) {
+                total = new ResultSet(destinations);
+                chunkTotal = new ResultSet(destinations);
+            } else {
+                total = null;
+                chunkTotal = null;
+            }
         }
-        
+
         @Override
         public void run() {
+            int chunk;
+            while ((chunk = claimChunk()) >= 0) {
+                if (chunkTotal != null)
+                    Arrays.fill(chunkTotal.results, 0);
+                int end = chunkEnd(chunk);
+                for (int i = chunk * chunkSize; i < end; i++) {
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    try {
+                        processOrigin(i, originList.get(i));
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        LOG.error("exception processing origin {}: {}", i, e);
+                    }
+                    nCompleted.incrementAndGet();
+                    if (shardQueue != null)
+                        shardQueue.heartbeat(chunk);
+                }
+                if (shardQueue != null) {
+                    publishChunk(chunk);
+                    continue;
+                }
+                synchronized (this) {
+                    if (total != null) {
+                        for (int i = 0; i < total.results.length; i++) {
+                            total.results[i] += chunkTotal.results[i];
+                        }
+                    }
+                    completedChunks.set(chunk);
+                }
+            }
+        }
+
+        /** Hand the partial results of a chunk to the coordinator instead of keeping them. */
+        private void publishChunk(int chunk) {
+            double[] partial = null;
+            if (mode == Mode.ACCUMULATE)
+                partial = chunkTotal.results;
+            else if (mode == Mode.AGGREGATE)
+                partial = Arrays.copyOfRange(aggregateResultSet.results, chunk * chunkSize, 
+                        chunkEnd(chunk));
+            try {
+                shardQueue.complete(chunk, partial);
+            } catch (IOException e) {
+                LOG.error("could not publish results of chunk {}: {}", chunk, e);
+            }
+        }
+
+        /** @return the index of the next chunk that was not completed by a previous run, or -1. */
+        private int claimChunk() {
+            if (shardQueue != null)
+                return claimSharedChunk();
+            while (true) {
+                int chunk = nextChunk.getAndIncrement();
+                if (chunk >= nChunks)
+                    return -1;
+                if ( ! resumedChunks.get(chunk))
+                    return chunk;
+            }
+        }
+
+        /** @return the next chunk from the queue shared with other processes, or -1 when done. */
+        private int claimSharedChunk() {
+            while ( ! shardQueue.isFinished()) {
+                int chunk = shardQueue.claim();
+                if (chunk >= 0)
+                    return chunk;
+                try {
+                    /* Wait in case chunks of a failed worker are put back in the queue. */
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private void processOrigin(int i, Individual oi) throws InterruptedException {
             LOG.debug("calling origin : {}", oi);
             RoutingRequest req = buildRequest(oi);
-            if (req != null) {
+            if (req == null)
+                return;
+            ResultSet results;
+            /* Bound the number of shortest path trees held in memory at any one time. */
+            searchPermits.acquire();
+            try {
                 ShortestPathTree spt = new AStar().getShortestPathTree(req);
-                // ResultSet should be a local to avoid memory leak
-                ResultSet results = ResultSet.forTravelTimes(destinations, spt);
+                // results are only read before the next origin overwrites them, so the buffer is reused
+                results = ResultSet.forTravelTimes(destinations, spt, travelTimes);
+            } finally {
                 req.cleanup();
-                switch (mode) {
-                case ACCUMULATE:
-                    synchronized (aggregateResultSet) {
-                        accumulator.accumulate(oi.input, results, aggregateResultSet);
-                    }
-                    break;
-                case AGGREGATE:
-                    aggregateResultSet.results[i] = aggregator.computeAggregate(results);
-                    break;
-                default:
-                    String subName = outputPath.replace("{}", String.format("%d_%s", i, oi.label));
-                    results.writeAppropriateFormat(subName);
-                }
-                    
+                searchPermits.release();
             }
-        }        
-    }    
-    
+            switch (mode) {
+            case ACCUMULATE:
+                accumulator.accumulate(oi.input, results, chunkTotal);
+                break;
+            case AGGREGATE:
+                aggregateResultSet.results[i] = aggregator.computeAggregate(results);
+                break;
+            default:
+                String subName = outputPath.replace("{}", String.format("%d_%s", i, oi.label));
+                results.writeAppropriateFormat(subName);
+            }
+        }
+    }
+
 }
 
@@ -0,0 +1,155 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records which chunks of origins a batch run has finished, together with the partial results
+ * those chunks contributed, so that a run that crashed or was killed can be resumed without
+ * recomputing the completed origins.
+ *
+ * The journal is rewritten as a whole at each checkpoint. It is written to a temporary file and
+ * then moved over the previous journal, so a crash during a checkpoint leaves the previous
+ * journal intact. A journal is only reused if it was written by a run with the same mode, the
+ * same number of origins, the same chunk size and the same fingerprint of its inputs, so that a
+ * run on another graph, other populations or with other search parameters starts from scratch.
+ */
+public class BatchProgressJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchProgressJournal.class);
+
+    private static final int MAGIC = 0x4F545043; // "OTPC"
+
+    private final File file;
+    private final int mode;
+    private final int nOrigins;
+    private final int chunkSize;
+    private final long fingerprint;
+
+    /** Chunks that were already complete when the journal was loaded. */
+    public BitSet completedChunks = new BitSet();
+
+    /** Partial results that were stored in the journal, or null if there were none. */
+    public double[] results;
+
+    public BatchProgressJournal(File file, int mode, int nOrigins, int chunkSize, long fingerprint) {
+        this.file = file;
+        this.mode = mode;
+        this.nOrigins = nOrigins;
+        this.chunkSize = chunkSize;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Load the completed chunks and partial results from an existing journal file.
+     * @return true if a compatible journal was found and loaded.
+     */
+    public boolean load() {
+        if ( ! file.exists())
+            return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != mode || in.readInt() != nOrigins
+                    || in.readInt() != chunkSize || in.readLong() != fingerprint) {
+                LOG.warn("progress journal {} does not match this batch run, ignoring it.", file);
+                return false;
+            }
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = in.readLong();
+            int nResults = in.readInt();
+            double[] loadedResults = null;
+            if (nResults >= 0) {
+                loadedResults = new double[nResults];
+                for (int i = 0; i < nResults; i++)
+                    loadedResults[i] = in.readDouble();
+            }
+            completedChunks = BitSet.valueOf(words);
+            results = loadedResults;
+            LOG.info("resuming from progress journal {}: {} chunks already complete.",
+                    file, completedChunks.cardinality());
+            return true;
+        } catch (IOException e) {
+            LOG.warn("could not read progress journal {}, starting from scratch: {}", file, e);
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Atomically replace the journal with the given state.
+     * @param results the partial results of the completed chunks, or null if results are not
+     *                kept in memory (e.g. when each origin is written to its own file).
+     */
+    public void write(BitSet completed, double[] results) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(mode);
+            out.writeInt(nOrigins);
+            out.writeInt(chunkSize);
+            out.writeLong(fingerprint);
+            long[] words = completed.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words)
+                out.writeLong(word);
+            if (results == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(results.length);
+                for (double result : results)
+                    out.writeDouble(result);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Remove the journal once the run has completed and its output has been written. */
+    public void delete() {
+        if (file.exists() && ! file.delete())
+            LOG.warn("could not remove progress journal {}", file);
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in == null)
+            return;
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+}
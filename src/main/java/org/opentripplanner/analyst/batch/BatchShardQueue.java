@@ -0,0 +1,277 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A work queue shared by a batch coordinator and any number of worker processes through a
+ * directory on a common filesystem. Each chunk of origins moves through three subdirectories:
+ * todo, claimed and done. Claiming is an atomic rename, so no two workers can hold the same chunk,
+ * and completed partial results are written to a temporary file and then renamed into place, so
+ * the coordinator never reads a partially written result.
+ *
+ * Workers touch their claim after each origin. The coordinator puts claims that have not been
+ * touched for a while back in the todo directory, so the chunks of a worker that died are picked
+ * up by the others. A chunk that ends up being computed twice is harmless: both results are
+ * identical and only the first one is merged.
+ *
+ * A claim is named after its chunk and the worker thread holding it, so that a slow worker whose
+ * chunk was requeued and claimed again does not touch or remove the claim of the new owner.
+ */
+public class BatchShardQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchShardQueue.class);
+
+    private static final String MANIFEST = "manifest";
+    private static final String COMPLETE = "COMPLETE";
+    private static final char CLAIM_SEPARATOR = '@';
+
+    private final File todoDir;
+    private final File claimedDir;
+    private final File doneDir;
+    private final File manifestFile;
+    private final File completeFile;
+
+    /** Identifies this queue instance among all the processes sharing the directory. */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    public BatchShardQueue(File directory) {
+        this.todoDir = new File(directory, "todo");
+        this.claimedDir = new File(directory, "claimed");
+        this.doneDir = new File(directory, "done");
+        this.manifestFile = new File(directory, MANIFEST);
+        this.completeFile = new File(directory, COMPLETE);
+    }
+
+    /**
+     * Coordinator: discard any previous state in the queue directory. Called as soon as a run
+     * starts, so that workers started alongside the coordinator wait for the new queue instead of
+     * joining a previous run, or exiting because it was complete.
+     */
+    public void reset() throws IOException {
+        // Remove the manifest first, workers wait for it before looking at anything else.
+        Files.deleteIfExists(manifestFile.toPath());
+        Files.deleteIfExists(completeFile.toPath());
+        for (File dir : new File[] {todoDir, claimedDir, doneDir}) {
+            if (dir.exists()) {
+                for (File f : dir.listFiles())
+                    Files.delete(f.toPath());
+            } else if ( ! dir.mkdirs()) {
+                throw new IOException("could not create queue directory " + dir);
+            }
+        }
+    }
+
+    /**
+     * Coordinator: discard any previous state in the queue directory and enqueue all chunks.
+     * @param manifest a description of the run (mode, number of origins, chunk size) which the
+     *                 workers check, so that processes configured for different runs cannot
+     *                 exchange results.
+     */
+    public void create(int nChunks, String manifest) throws IOException {
+        reset();
+        for (int c = 0; c < nChunks; c++) {
+            new File(todoDir, Integer.toString(c)).createNewFile();
+        }
+        // Write the manifest last, workers wait for it before claiming anything.
+        writeAtomically(manifestFile, manifest.getBytes(StandardCharsets.UTF_8));
+        LOG.info("enqueued {} chunks in {}", nChunks, todoDir.getParent());
+    }
+
+    /**
+     * Worker: wait until the coordinator has created the queue, then check that it was created
+     * for the same run. A queue left complete by a previous run is not joined.
+     */
+    public void open(String manifest) throws IOException, InterruptedException {
+        while ( ! manifestFile.exists() || completeFile.exists()) {
+            LOG.info("waiting for coordinator to create queue in {}", manifestFile.getParent());
+            Thread.sleep(5000);
+        }
+        String found = new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8);
+        if ( ! found.equals(manifest)) {
+            throw new IllegalStateException(String.format(
+                    "queue was created for a different run (%s, expected %s)", found, manifest));
+        }
+    }
+
+    /**
+     * Worker: claim the lowest numbered chunk that is still waiting.
+     * @return the chunk number, or -1 if no chunk is waiting at the moment.
+     */
+    public int claim() {
+        int[] waiting = listChunks(todoDir);
+        for (int c : waiting) {
+            try {
+                Files.move(new File(todoDir, Integer.toString(c)).toPath(), claimFile(c).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+                return c;
+            } catch (IOException e) {
+                // another worker got there first
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Worker: signal that the given chunk is still being worked on. Must be called from the thread
+     * that claimed the chunk.
+     */
+    public void heartbeat(int chunk) {
+        if ( ! claimFile(chunk).setLastModified(System.currentTimeMillis()))
+            LOG.debug("claim on chunk {} was lost, it may be computed twice.", chunk);
+    }
+
+    /**
+     * Worker: publish the partial results of a chunk and release its claim, if it is still held.
+     * Must be called from the thread that claimed the chunk.
+     * @param partial the chunk's partial results, or null if its output was written elsewhere.
+     */
+    public void complete(int chunk, double[] partial) throws IOException {
+        File tmp = new File(doneDir, chunk + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            if (partial == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(partial.length);
+                for (double d : partial)
+                    out.writeDouble(d);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(doneDir, Integer.toString(chunk)).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(claimFile(chunk).toPath());
+    }
+
+    /**
+     * Coordinator: remove and return the partial results of a chunk if it has been completed.
+     * @return the partial results, an empty array if the chunk had none, or null if the chunk is
+     *         not complete yet.
+     */
+    public double[] take(int chunk) throws IOException {
+        File file = new File(doneDir, Integer.toString(chunk));
+        if ( ! file.exists())
+            return null;
+        double[] partial;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            int n = in.readInt();
+            partial = new double[Math.max(n, 0)];
+            for (int i = 0; i < n; i++)
+                partial[i] = in.readDouble();
+        } finally {
+            in.close();
+        }
+        Files.delete(file.toPath());
+        return partial;
+    }
+
+    /** Coordinator: put claims that have not been touched for the given time back in the queue. */
+    public void requeueStale(long maxAgeMillis) {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        String[] claims = claimedDir.list();
+        if (claims == null)
+            return;
+        for (String name : claims) {
+            int c;
+            try {
+                c = Integer.parseInt(name.substring(0, name.indexOf(CLAIM_SEPARATOR)));
+            } catch (RuntimeException e) {
+                continue; // not a claim
+            }
+            File claim = new File(claimedDir, name);
+            long lastModified = claim.lastModified();
+            if (lastModified == 0 || lastModified > cutoff)
+                continue;
+            try {
+                Files.move(claim.toPath(), new File(todoDir, Integer.toString(c)).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+                LOG.warn("chunk {} was claimed but not completed, putting it back in the queue.", c);
+            } catch (NoSuchFileException e) {
+                // completed in the meantime
+            } catch (IOException e) {
+                LOG.error("could not requeue chunk {}: {}", c, e);
+            }
+        }
+    }
+
+    /** Coordinator: tell the workers that all results have been merged and they can exit. */
+    public void finish() throws IOException {
+        writeAtomically(completeFile, new byte[0]);
+    }
+
+    /** Worker: @return true if the coordinator has merged all results. */
+    public boolean isFinished() {
+        return completeFile.exists();
+    }
+
+    /** @return the claim file of the given chunk held by the current thread of this instance. */
+    private File claimFile(int chunk) {
+        return new File(claimedDir, Integer.toString(chunk) + CLAIM_SEPARATOR + instanceId + '-'
+                + Thread.currentThread().getId());
+    }
+
+    private static int[] listChunks(File dir) {
+        String[] names = dir.list();
+        if (names == null)
+            return new int[0];
+        int[] chunks = new int[names.length];
+        int n = 0;
+        for (String name : names) {
+            try {
+                chunks[n] = Integer.parseInt(name);
+                n++;
+            } catch (NumberFormatException e) {
+                // temporary file
+            }
+        }
+        chunks = Arrays.copyOf(chunks, n);
+        Arrays.sort(chunks);
+        return chunks;
+    }
+
+    private static void writeAtomically(File file, byte[] bytes) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), bytes);
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
@@ -27,7 +27,15 @@ public class ResultSet {
     public double[] results;
     
     public static ResultSet forTravelTimes(Population population, ShortestPathTree spt) {
-        double[] results = new double[population.size()];
+        return forTravelTimes(population, spt, new ResultSet(population));
+    }
+
+    /**
+     * Evaluate travel times to all individuals in the population, overwriting the results of an existing ResultSet
+     * for the same population. This allows a worker thread to reuse one buffer for all of its origins.
+     */
+    public static ResultSet forTravelTimes(Population population, ShortestPathTree spt, ResultSet reuse) {
+        double[] results = reuse.results;
         int i = 0;
         for (Individual indiv : population) {
             Sample s = indiv.sample;
@@ -41,7 +49,7 @@ public class ResultSet {
             results[i] = t;
             i++;
         }
-        return new ResultSet(population, results);
+        return reuse;
     }
     
     public ResultSet(Population population, double[] results) {
@@ -20,11 +20,14 @@ import org.opentripplanner.analyst.core.IsochroneData;
 import org.opentripplanner.analyst.request.SampleGridRenderer.WTWD;
 import org.opentripplanner.common.geometry.DelaunayIsolineBuilder;
 import org.opentripplanner.common.geometry.IsolineBuilder.ZMetric;
+import org.opentripplanner.common.geometry.MarchingSquaresIsolineBuilder;
 import org.opentripplanner.common.geometry.ZSampleGrid;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 /**
  * Compute isochrones out of a shortest path tree request (AccSampling isoline algorithm).
  * 
@@ -61,6 +64,22 @@ public class IsoChroneSPTRendererAccSampling implements IsoChroneSPTRenderer {
 
         // 2. Compute isolines
         long t0 = System.currentTimeMillis();
+        List<IsochroneData> isochrones = new ArrayList<IsochroneData>();
+        if (!isoChroneRequest.includeDebugGeometry) {
+            // Compute all cutoffs in parallel on a dense copy of the grid.
+            MarchingSquaresIsolineBuilder isolineBuilder = new MarchingSquaresIsolineBuilder(
+                    SampleGridRenderer.toDenseGrid(sampleGrid));
+            double[] z0s = new double[isoChroneRequest.cutoffSecList.size()];
+            for (int i = 0; i < z0s.length; i++)
+                z0s[i] = isoChroneRequest.cutoffSecList.get(i);
+            List<Geometry> isolines = isolineBuilder.computeIsolines(z0s, D0);
+            for (int i = 0; i < z0s.length; i++)
+                isochrones.add(new IsochroneData(isoChroneRequest.cutoffSecList.get(i), isolines.get(i)));
+            long t1 = System.currentTimeMillis();
+            LOG.info("Computed {} isochrones in {}msec", isochrones.size(), (int) (t1 - t0));
+            return isochrones;
+        }
+        // The Delaunay builder is kept for debugging, as it can output its triangulation.
         ZMetric<WTWD> zMetric = new ZMetric<WTWD>() {
             @Override
             public int cut(WTWD zA, WTWD zB, WTWD z0) {
@@ -94,9 +113,8 @@ public class IsoChroneSPTRendererAccSampling implements IsoChroneSPTRenderer {
         };
         DelaunayIsolineBuilder<WTWD> isolineBuilder = new DelaunayIsolineBuilder<WTWD>(
                 sampleGrid.delaunayTriangulate(), zMetric);
-        isolineBuilder.setDebug(isoChroneRequest.includeDebugGeometry);
+        isolineBuilder.setDebug(true);
 
-        List<IsochroneData> isochrones = new ArrayList<IsochroneData>();
         for (Integer cutoffSec : isoChroneRequest.cutoffSecList) {
             WTWD z0 = new WTWD();
             z0.w = 1.0;
@@ -104,8 +122,7 @@ public class IsoChroneSPTRendererAccSampling implements IsoChroneSPTRenderer {
             z0.d = D0;
             IsochroneData isochrone = new IsochroneData(cutoffSec,
                     isolineBuilder.computeIsoline(z0));
-            if (isoChroneRequest.includeDebugGeometry)
-                isochrone.debugGeometry = isolineBuilder.getDebugGeometry();
+            isochrone.debugGeometry = isolineBuilder.getDebugGeometry();
             isochrones.add(isochrone);
         }
 
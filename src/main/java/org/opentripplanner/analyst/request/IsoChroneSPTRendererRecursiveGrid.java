@@ -19,6 +19,8 @@ import java.util.List;
 import org.opentripplanner.analyst.core.IsochroneData;
 import org.opentripplanner.analyst.core.Sample;
 import org.opentripplanner.analyst.core.SampleSource;
+import org.opentripplanner.common.geometry.DenseZGrid;
+import org.opentripplanner.common.geometry.MarchingSquaresIsolineBuilder;
 import org.opentripplanner.common.geometry.RecursiveGridIsolineBuilder;
 import org.opentripplanner.common.geometry.RecursiveGridIsolineBuilder.ZFunc;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
@@ -33,6 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * Compute isochrones out of a shortest path tree request (RecursiveGrid isoline algorithm).
@@ -97,17 +100,29 @@ public class IsoChroneSPTRendererRecursiveGrid implements IsoChroneSPTRenderer {
         double dY = Math.toDegrees(gridSizeMeters / SphericalDistanceLibrary.RADIUS_OF_EARTH_IN_M);
         double dX = dY / Math.cos(Math.toRadians(center.x));
         LOG.info("dX={}, dY={}", dX, dY);
-        RecursiveGridIsolineBuilder isolineBuilder = new RecursiveGridIsolineBuilder(dX, dY,
-                center, timeFunc, initialPoints);
-        isolineBuilder.setDebugCrossingEdges(isoChroneRequest.includeDebugGeometry);
-        isolineBuilder.setDebugSeedGrid(isoChroneRequest.includeDebugGeometry);
         List<IsochroneData> isochrones = new ArrayList<IsochroneData>();
-        for (Integer cutoffSec : isoChroneRequest.cutoffSecList) {
-            IsochroneData isochrone = new IsochroneData(cutoffSec,
-                    isolineBuilder.computeIsoline(cutoffSec));
-            if (isoChroneRequest.includeDebugGeometry)
+        if (!isoChroneRequest.includeDebugGeometry) {
+            // Compute all cutoffs in parallel on a dense grid sampled around the initial points.
+            MarchingSquaresIsolineBuilder isolineBuilder = new MarchingSquaresIsolineBuilder(
+                    sampleGrid(initialPoints, center, dX, dY, timeFunc));
+            double[] z0s = new double[isoChroneRequest.cutoffSecList.size()];
+            for (int i = 0; i < z0s.length; i++)
+                z0s[i] = isoChroneRequest.cutoffSecList.get(i);
+            List<Geometry> isolines = isolineBuilder.computeIsolines(z0s, 0.0);
+            for (int i = 0; i < z0s.length; i++)
+                isochrones.add(new IsochroneData(isoChroneRequest.cutoffSecList.get(i), isolines.get(i)));
+        } else {
+            // The recursive grid builder is kept for debugging, as it can output its seed grid and crossing edges.
+            RecursiveGridIsolineBuilder isolineBuilder = new RecursiveGridIsolineBuilder(dX, dY,
+                    center, timeFunc, initialPoints);
+            isolineBuilder.setDebugCrossingEdges(true);
+            isolineBuilder.setDebugSeedGrid(true);
+            for (Integer cutoffSec : isoChroneRequest.cutoffSecList) {
+                IsochroneData isochrone = new IsochroneData(cutoffSec,
+                        isolineBuilder.computeIsoline(cutoffSec));
                 isochrone.debugGeometry = isolineBuilder.getDebugGeometry();
-            isochrones.add(isochrone);
+                isochrones.add(isochrone);
+            }
         }
         long t2 = System.currentTimeMillis();
         LOG.info("Computed SPT in {}msec, {} isochrones in {}msec", (int) (t1 - t0),
@@ -116,6 +131,54 @@ public class IsoChroneSPTRendererRecursiveGrid implements IsoChroneSPTRenderer {
         return isochrones;
     }
 
+    /**
+     * Sample the time function on the corners of every grid cell containing an initial point, as the recursive grid
+     * builder seeds its grid. Samples that are missing or not reached are left out of the grid, so they count as
+     * outside of every isoline.
+     */
+    private DenseZGrid sampleGrid(List<Coordinate> initialPoints, Coordinate center, double dX,
+            double dY, ZFunc timeFunc) {
+        int n = initialPoints.size();
+        int[] xs = new int[n], ys = new int[n];
+        int xMin = 0, xMax = 0, yMin = 0, yMax = 0;
+        for (int i = 0; i < n; i++) {
+            Coordinate c = initialPoints.get(i);
+            xs[i] = (int) Math.floor((c.x - center.x) / dX);
+            ys[i] = (int) Math.floor((c.y - center.y) / dY);
+            if (i == 0 || xs[i] < xMin)
+                xMin = xs[i];
+            if (i == 0 || xs[i] > xMax)
+                xMax = xs[i];
+            if (i == 0 || ys[i] < yMin)
+                yMin = ys[i];
+            if (i == 0 || ys[i] > yMax)
+                yMax = ys[i];
+        }
+        DenseZGrid grid = new DenseZGrid(xMin, xMax + 1, yMin, yMax + 1, center, dX, dY);
+        int width = xMax - xMin + 2;
+        boolean[] sampled = new boolean[width * (yMax - yMin + 2)];
+        Coordinate c = new Coordinate();
+        int nSamples = 0;
+        for (int i = 0; i < n; i++) {
+            for (int y = ys[i]; y <= ys[i] + 1; y++) {
+                for (int x = xs[i]; x <= xs[i] + 1; x++) {
+                    int k = (y - yMin) * width + (x - xMin);
+                    if (sampled[k])
+                        continue;
+                    sampled[k] = true;
+                    nSamples++;
+                    c.x = grid.getLon(x);
+                    c.y = grid.getLat(y);
+                    long z = timeFunc.z(c);
+                    if (z != Long.MAX_VALUE)
+                        grid.set(x, y, z, 0.0);
+                }
+            }
+        }
+        LOG.debug("Sampled {} grid dots around {} initial points.", nSamples, n);
+        return grid;
+    }
+
     /**
      * Compute a set of initial coordinates for the given SPT
      * 
@@ -0,0 +1,109 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.request;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * An LRU cache of encoded tile images, keyed on the surfaces they were rendered from, the tile and the way they
+ * were rendered. Time surfaces never change once created and their IDs are never reused, so cached tiles never
+ * need to be invalidated. Entries are weighed by their size in bytes.
+ *
+ * Concurrent requests for a tile that is not yet cached are coalesced: one thread renders it while the others
+ * wait for its result.
+ */
+public class RenderedTileCache implements Weigher<RenderedTileCache.Key, byte[]> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RenderedTileCache.class);
+
+    private final Cache<Key, byte[]> cache;
+
+    public RenderedTileCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(16)
+                .maximumWeight(maxBytes)
+                .weigher(this)
+                .build();
+    }
+
+    /** @return the cached encoded image for the given key, calling the renderer only if it is not cached. */
+    public byte[] get(Key key, Callable<byte[]> renderer) throws Exception {
+        try {
+            return cache.get(key, renderer);
+        } catch (ExecutionException e) {
+            LOG.debug("failed to render tile {}", key);
+            throw (Exception) e.getCause();
+        }
+    }
+
+    @Override
+    public int weigh(Key key, byte[] image) {
+        return image.length;
+    }
+
+    /** Identifies a rendered tile. Style, layer and format are compared by name. */
+    public static class Key {
+
+        public final TileRequest tile;
+        public final int surfaceA;
+        public final int surfaceB;
+        public final String layer;
+        public final String style;
+        public final String format;
+        public final boolean transparent;
+
+        public Key(TileRequest tile, int surfaceA, int surfaceB, RenderRequest renderRequest) {
+            this.tile = tile;
+            this.surfaceA = surfaceA;
+            this.surfaceB = surfaceB;
+            this.layer = renderRequest.layer.toString();
+            this.style = renderRequest.style.toString();
+            this.format = renderRequest.format.toString();
+            this.transparent = renderRequest.transparent;
+        }
+
+        public int hashCode() {
+            return Objects.hashCode(tile, surfaceA, surfaceB, layer, style, format, transparent);
+        }
+
+        public boolean equals(Object other) {
+            if (other instanceof Key) {
+                Key that = (Key) other;
+                return this.surfaceA == that.surfaceA &&
+                       this.surfaceB == that.surfaceB &&
+                       this.transparent == that.transparent &&
+                       this.tile.equals(that.tile) &&
+                       this.layer.equals(that.layer) &&
+                       this.style.equals(that.style) &&
+                       this.format.equals(that.format);
+            }
+            return false;
+        }
+
+        public String toString() {
+            return String.format("<rendered tile %s surfaces=%d,%d %s %s %s>",
+                    tile, surfaceA, surfaceB, layer, style, format);
+        }
+    }
+
+}
@@ -6,10 +6,12 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 import javax.imageio.ImageIO;
 import javax.ws.rs.WebApplicationException;
@@ -38,16 +40,51 @@ public class Renderer {
 
     private TileCache tileCache;
 
+    /** Encoded images of recently rendered tiles. */
+    private RenderedTileCache renderedTileCache;
+
     public Renderer(TileCache tileCache) {
+        this(tileCache, new RenderedTileCache(64 * 1024 * 1024));
+    }
+
+    public Renderer(TileCache tileCache, RenderedTileCache renderedTileCache) {
         this.tileCache = tileCache;
+        this.renderedTileCache = renderedTileCache;
     }
 
     public Response getResponse (
-            TileRequest tileRequest,
-            TimeSurface surfA, TimeSurface surfB,
-            RenderRequest renderRequest) throws Exception {
+            final TileRequest tileRequest,
+            final TimeSurface surfA, final TimeSurface surfB,
+            final RenderRequest renderRequest) throws Exception {
 
-        Tile tile = tileCache.get(tileRequest);
+        // geotiff kludge
+        if (renderRequest.format.toString().equals("image/geotiff")) {
+            Tile tile = tileCache.get(tileRequest);
+            BufferedImage image = renderImage(tile, surfA, surfB, renderRequest);
+            GridCoverage2D gc = tile.getGridCoverage2D(image);
+            return generateStreamingGeotiffResponse(gc);
+        }
+        // Timestamped images are only used for animations, and would just crowd out the other tiles.
+        if (renderRequest.timestamp) {
+            return generateStreamingImageResponse(renderImage(tileCache.get(tileRequest),
+                    surfA, surfB, renderRequest), renderRequest.format);
+        }
+        RenderedTileCache.Key key = new RenderedTileCache.Key(tileRequest,
+                surfA.id, surfB == null ? -1 : surfB.id, renderRequest);
+        byte[] encoded = renderedTileCache.get(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                BufferedImage image = renderImage(tileCache.get(tileRequest), surfA, surfB, renderRequest);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, renderRequest.format.type, out);
+                return out.toByteArray();
+            }
+        });
+        return generateImageResponse(encoded, renderRequest.format);
+    }
+
+    private BufferedImage renderImage(Tile tile, TimeSurface surfA, TimeSurface surfB,
+            RenderRequest renderRequest) {
         BufferedImage image;
         switch (renderRequest.layer) {
         case DIFFERENCE :
@@ -75,14 +112,7 @@ public class Renderer {
             g2d.drawImage(legend, 0, image.getHeight()-50, null);
             g2d.dispose();
         }
-                
-        // geotiff kludge
-        if (renderRequest.format.toString().equals("image/geotiff")) {
-            GridCoverage2D gc = tile.getGridCoverage2D(image);
-            return generateStreamingGeotiffResponse(gc);
-        } else {
-            return generateStreamingImageResponse(image, renderRequest.format);
-        }
+        return image;
     }
     
     private void shadowWrite(BufferedImage image, String... strings) {
@@ -141,6 +171,17 @@ public class Renderer {
     }
     
     
+    /** Make a response from an image that has already been encoded. */
+    private static Response generateImageResponse(byte[] encoded, MIMEImageFormat format) {
+        CacheControl cc = new CacheControl();
+        cc.setMaxAge(3600);
+        cc.setNoCache(false);
+        return Response.ok(encoded)
+                       .type(format.toString())
+                       .cacheControl(cc)
+                       .build();
+    }
+
     private static Response generateStreamingGeotiffResponse(final GridCoverage2D coverage) {
         
         StreamingOutput streamingOutput = new StreamingOutput() {
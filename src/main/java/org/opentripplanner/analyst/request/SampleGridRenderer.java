@@ -18,10 +18,12 @@ import static org.apache.commons.math3.util.FastMath.toRadians;
 import org.apache.commons.math3.util.FastMath;
 import org.opentripplanner.common.geometry.AccumulativeGridSampler;
 import org.opentripplanner.common.geometry.AccumulativeGridSampler.AccumulativeMetric;
+import org.opentripplanner.common.geometry.DenseZGrid;
 import org.opentripplanner.common.geometry.IsolineBuilder;
 import org.opentripplanner.common.geometry.SparseMatrixZSampleGrid;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.geometry.ZSampleGrid;
+import org.opentripplanner.common.geometry.ZSampleGrid.ZSamplePoint;
 import org.opentripplanner.routing.algorithm.AStar;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
@@ -159,6 +161,21 @@ public class SampleGridRenderer {
         return 0.8 * precisionMeters;
     }
 
+    /**
+     * Copy a sample grid into a dense grid suitable for the MarchingSquaresIsolineBuilder, with the mean time (in
+     * seconds) of each sample as z value.
+     */
+    public static DenseZGrid toDenseGrid(ZSampleGrid<WTWD> sampleGrid) {
+        DenseZGrid denseGrid = new DenseZGrid(sampleGrid.getXMin(), sampleGrid.getXMax(),
+                sampleGrid.getYMin(), sampleGrid.getYMax(), sampleGrid.getCenter(),
+                sampleGrid.getCellSize().x, sampleGrid.getCellSize().y);
+        for (ZSamplePoint<WTWD> point : sampleGrid) {
+            WTWD z = point.getZ();
+            denseGrid.set(point.getX(), point.getY(), z.wTime / z.w, z.d);
+        }
+        return denseGrid;
+    }
+
     /**
      * The default TZ data we keep for each sample: Weighted Time and Walk Distance
      * 
@@ -35,10 +35,19 @@ public class TileCache extends CacheLoader<TileRequest, Tile>
         this.graph = graph;
         this.tileCache = CacheBuilder.newBuilder()
                 .concurrencyLevel(concurrency)
-                .maximumSize(size)
+                .maximumWeight(size * SAMPLES_PER_TILE)
+                .weigher(this)
                 .build(this);
     }
 
+    /** The weight of a typical 256x256 pixel tile, used to express the cache size as a number of tiles. */
+    private static final long SAMPLES_PER_TILE = 256 * 256;
+
+    /*
+     * Tile templates depend only on the graph and the tile, not on any surface, so they are shared by all surfaces.
+     * A template holds one sample per pixel, so the cache is bounded by the number of samples, the size being
+     * expressed in typical tiles.
+     */
     private LoadingCache<TileRequest, Tile> tileCache;
     public int size = 200;
     public int concurrency = 16;
@@ -50,6 +50,16 @@ public class DebugOutput {
     public long totalTime;
     public boolean timedOut;
 
+    /* Search statistics, summed over all the searches made for this request */
+    public long statesCreated;
+    public long statesVisited;
+    public int queuePeakSize;
+
+    /* Time spent in goal direction heuristics, linking the endpoints and resolving realtime timetables, in ms */
+    public double heuristicTime;
+    public double linkingTime;
+    public double snapshotResolveTime;
+
     /**
      * Record the time when we first began calculating a path for this request
      * (before any heuristic pre-calculation). Note that timings will not
@@ -82,6 +92,32 @@ public class DebugOutput {
         computeSummary();
     }
 
+    /** Record the work done by one search, of which there may be several for a request. */
+    public void addSearch(long statesCreated, long statesVisited, int queuePeakSize, long heuristicNanos) {
+        this.statesCreated += statesCreated;
+        this.statesVisited += statesVisited;
+        this.queuePeakSize = Math.max(this.queuePeakSize, queuePeakSize);
+        this.heuristicTime += heuristicNanos / 1e6;
+    }
+
+    public void addLinkingTime(long nanos) {
+        linkingTime += nanos / 1e6;
+    }
+
+    public void addSnapshotResolveTime(long nanos) {
+        snapshotResolveTime += nanos / 1e6;
+    }
+
+    /**
+     * @return the time since calculation started, in milliseconds: the total time once rendering has finished, and
+     *         up to now for requests which failed before that.
+     */
+    public long elapsedTime() {
+        if (finishedRendering != 0)
+            return totalTime;
+        return startedCalculating == 0 ? 0 : System.currentTimeMillis() - startedCalculating;
+    }
+
     /** Summarize and calculate elapsed times. */
     private void computeSummary() {
         precalculationTime = finishedPrecalculating - startedCalculating;
@@ -13,16 +13,18 @@
 
 package org.opentripplanner.api.resource;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import org.onebusaway.gtfs.model.Agency;
 import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.api.model.*;
 import org.opentripplanner.common.geometry.DirectionUtils;
-import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.profile.BikeRentalStationInfo;
@@ -42,9 +44,11 @@ import org.opentripplanner.routing.vertextype.ExitVertex;
 import org.opentripplanner.routing.vertextype.OnboardDepartVertex;
 import org.opentripplanner.routing.vertextype.TransitVertex;
 import org.opentripplanner.util.PolylineEncoder;
+import org.opentripplanner.util.model.EncodedPolylineBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -61,7 +65,60 @@ public abstract class GraphPathToTripPlanConverter {
      * Generates a TripPlan from a set of paths
      */
     public static TripPlan generatePlan(List<GraphPath> paths, RoutingRequest request) {
+        TripPlan plan = makeEmptyPlan(paths, request);
+        for (GraphPath path : paths) {
+            plan.addItinerary(generateItinerary(path, request, plan));
+        }
+        request.rctx.debugOutput.finishedRendering();
+        return plan;
+    }
+
+    /**
+     * Write the JSON of the TripPlan for a set of paths to a generator, as generatePlan would produce it. Each
+     * itinerary is written as soon as it has been converted, and is not retained, so that long itineraries with many
+     * walk steps and elevation profiles do not all have to be held in memory before the first bytes go out.
+     *
+     * @param generator A generator whose codec is the ObjectMapper of the web service
+     */
+    public static void writePlan(List<GraphPath> paths, RoutingRequest request, JsonGenerator generator)
+            throws IOException {
+        TripPlan plan = makeEmptyPlan(paths, request);
+        generator.writeStartObject();
+        generator.writeObjectField("date", plan.date);
+        generator.writeObjectField("from", plan.from);
+        generator.writeObjectField("to", plan.to);
+        generator.writeArrayFieldStart("itineraries");
+        for (GraphPath path : paths) {
+            generator.writeObject(generateItinerary(path, request, plan));
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        request.rctx.debugOutput.finishedRendering();
+    }
+
+    /**
+     * Generate an itinerary for a plan and set the fields that depend on the request, and on the origin and
+     * destination of the plan.
+     */
+    private static Itinerary generateItinerary(GraphPath path, RoutingRequest request, TripPlan plan) {
+        Itinerary itinerary = generateItinerary(path, request.showIntermediateStops);
+        itinerary = adjustItinerary(request, itinerary);
+        /* Communicate the fact that the only way we were able to get a response was by removing a slope limit. */
+        itinerary.tooSloped = request.rctx.slopeRestrictionRemoved;
+        /* fix up from/to on first/last legs */
+        if (itinerary.legs.size() == 0) {
+            LOG.warn("itinerary has no legs");
+            return itinerary;
+        }
+        Leg firstLeg = itinerary.legs.get(0);
+        firstLeg.from.orig = plan.from.orig;
+        Leg lastLeg = itinerary.legs.get(itinerary.legs.size() - 1);
+        lastLeg.to.orig = plan.to.orig;
+        return itinerary;
+    }
 
+    /** @return a TripPlan with the origin and destination of the paths, and no itineraries yet. */
+    private static TripPlan makeEmptyPlan(List<GraphPath> paths, RoutingRequest request) {
         GraphPath exemplar = paths.get(0);
         Vertex tripStartVertex = exemplar.getStartVertex();
         Vertex tripEndVertex = exemplar.getEndVertex();
@@ -81,30 +138,7 @@ public abstract class GraphPathToTripPlanConverter {
         from.orig = request.from.name;
         to.orig = request.to.name;
 
-        TripPlan plan = new TripPlan(from, to, request.getDateTime());
-
-        for (GraphPath path : paths) {
-            Itinerary itinerary = generateItinerary(path, request.showIntermediateStops);
-            itinerary = adjustItinerary(request, itinerary);
-            plan.addItinerary(itinerary);
-        }
-        if (plan != null) {
-            for (Itinerary i : plan.itinerary) {
-                /* Communicate the fact that the only way we were able to get a response was by removing a slope limit. */
-                i.tooSloped = request.rctx.slopeRestrictionRemoved;
-                /* fix up from/to on first/last legs */
-                if (i.legs.size() == 0) {
-                    LOG.warn("itinerary has no legs");
-                    continue;
-                }
-                Leg firstLeg = i.legs.get(0);
-                firstLeg.from.orig = plan.from.orig;
-                Leg lastLeg = i.legs.get(i.legs.size() - 1);
-                lastLeg.to.orig = plan.to.orig;
-            }
-        }
-        request.rctx.debugOutput.finishedRendering();
-        return plan;
+        return new TripPlan(from, to, request.getDateTime());
     }
 
     /**
@@ -125,7 +159,8 @@ public abstract class GraphPathToTripPlanConverter {
     /**
      * Generate an itinerary from a {@link GraphPath}. This method first slices the list of states
      * at the leg boundaries. These smaller state arrays are then used to generate legs. Finally the
-     * rest of the itinerary is generated based on the complete state array.
+     * rest of the itinerary is generated based on the complete state array. The states are copied out of the path
+     * once, and everything else works on that array and on slices of it.
      *
      * @param path The graph path to base the itinerary on
      * @param showIntermediateStops Whether to include intermediate stops in the itinerary or not
@@ -138,12 +173,8 @@ public abstract class GraphPathToTripPlanConverter {
 
         Itinerary itinerary = new Itinerary();
 
-        State[] states = new State[path.states.size()];
-        State lastState = path.states.getLast();
-        states = path.states.toArray(states);
-
-        Edge[] edges = new Edge[path.edges.size()];
-        edges = path.edges.toArray(edges);
+        State[] states = path.states.toArray(new State[path.states.size()]);
+        State lastState = states[states.length - 1];
 
         Graph graph = path.getRoutingContext().graph;
 
@@ -155,8 +186,10 @@ public abstract class GraphPathToTripPlanConverter {
             itinerary.fare = fareService.getCost(path);
         }
 
+        PolylineEncoder.Builder geometry = new PolylineEncoder.Builder();
+        TDoubleArrayList coordinates = new TDoubleArrayList();
         for (State[] legStates : legsStates) {
-            itinerary.addLeg(generateLeg(graph, legStates, showIntermediateStops));
+            itinerary.addLeg(generateLeg(graph, legStates, showIntermediateStops, geometry, coordinates));
         }
 
         addWalkSteps(graph, itinerary.legs, legsStates);
@@ -169,7 +202,7 @@ public abstract class GraphPathToTripPlanConverter {
 
         calculateTimes(itinerary, states);
 
-        calculateElevations(itinerary, edges);
+        calculateElevations(itinerary, states);
 
         itinerary.walkDistance = lastState.getWalkDistance();
 
@@ -190,27 +223,33 @@ public abstract class GraphPathToTripPlanConverter {
     }
 
     /**
-     * Generate a {@link CoordinateArrayListSequence} based on an {@link Edge} array.
+     * Encode the geometry of an {@link Edge} array as a single polyline. Hops with shapes have their polyline
+     * encoded in advance, and the coordinates of other edges are read into a buffer without creating geometries
+     * where the edge allows it.
      *
      * @param edges The array of input edges
-     * @return The coordinates of the points on the edges
+     * @param builder The builder to encode the polyline with, which is reused for all the legs of an itinerary
+     * @param coordinates The buffer for the coordinates of one edge, also reused
+     * @return The encoded points on the edges
      */
-    private static CoordinateArrayListSequence makeCoordinates(Edge[] edges) {
-        CoordinateArrayListSequence coordinates = new CoordinateArrayListSequence();
-
+    private static EncodedPolylineBean encodeGeometry(Edge[] edges, PolylineEncoder.Builder builder,
+            TDoubleArrayList coordinates) {
         for (Edge edge : edges) {
-            LineString geometry = edge.getGeometry();
+            boolean skipFirst = builder.size() > 0; // Avoid duplications
+            EncodedPolylineBean encoded = edge instanceof PatternHop ?
+                    ((PatternHop) edge).getEncodedGeometry() : null;
 
-            if (geometry != null) {
-                if (coordinates.size() == 0) {
-                    coordinates.extend(geometry.getCoordinates());
-                } else {
-                    coordinates.extend(geometry.getCoordinates(), 1); // Avoid duplications
+            if (encoded != null) {
+                builder.add(encoded, skipFirst);
+            } else {
+                coordinates.resetQuick();
+                if (edge.appendCoordinates(coordinates)) {
+                    builder.add(coordinates, skipFirst ? 1 : 0);
                 }
             }
         }
 
-        return coordinates;
+        return builder.build();
     }
 
     /**
@@ -224,7 +263,8 @@ public abstract class GraphPathToTripPlanConverter {
      */
     private static State[][] sliceStates(State[] states) {
         int[] legIndexPairs = {0, states.length - 1};
-        List<int[]> legsIndexes = new ArrayList<int[]>();
+        // The first and last index of each leg, one pair after the other
+        TIntArrayList legsIndexes = new TIntArrayList();
 
         for (int i = 1; i < states.length - 1; i++) {
             TraverseMode backMode = states[i].getBackMode();
@@ -241,31 +281,30 @@ public abstract class GraphPathToTripPlanConverter {
                     if (legIndexPairs[1] != states.length - 1) {
                         legsIndexes.add(legIndexPairs);
                     }
-                    legIndexPairs = new int[] {i, states.length - 1};
+                    legIndexPairs[0] = i;
+                    legIndexPairs[1] = states.length - 1;
                 }
             } else if (backMode != forwardMode) {                       // Mode change => leg switch
                 legIndexPairs[1] = i;
                 legsIndexes.add(legIndexPairs);
-                legIndexPairs = new int[] {i, states.length - 1};
+                legIndexPairs[0] = i;
+                legIndexPairs[1] = states.length - 1;
             } else if (edge instanceof PatternInterlineDwell) {         // Interlining => leg switch
                 legIndexPairs[1] = i;
                 legsIndexes.add(legIndexPairs);
-                legIndexPairs = new int[] {i + 1, states.length - 1};
+                legIndexPairs[0] = i + 1;
+                legIndexPairs[1] = states.length - 1;
             }
         }
 
         // Final leg
         legsIndexes.add(legIndexPairs);
 
-        State[][] legsStates = new State[legsIndexes.size()][];
+        State[][] legsStates = new State[legsIndexes.size() / 2][];
 
         // Fill the two-dimensional array with states
         for (int i = 0; i < legsStates.length; i++) {
-            legIndexPairs = legsIndexes.get(i);
-            legsStates[i] = new State[legIndexPairs[1] - legIndexPairs[0] + 1];
-            for (int j = 0; j <= legIndexPairs[1] - legIndexPairs[0]; j++) {
-                legsStates[i][j] = states[legIndexPairs[0] + j];
-            }
+            legsStates[i] = Arrays.copyOfRange(states, legsIndexes.get(2 * i), legsIndexes.get(2 * i + 1) + 1);
         }
 
         return legsStates;
@@ -276,9 +315,12 @@ public abstract class GraphPathToTripPlanConverter {
      *
      * @param states The array of states to base the leg on
      * @param showIntermediateStops Whether to include intermediate stops in the leg or not
+     * @param geometry The builder to encode the leg geometry with
+     * @param coordinates The buffer for edge coordinates while encoding the leg geometry
      * @return The generated leg
      */
-    private static Leg generateLeg(Graph graph, State[] states, boolean showIntermediateStops) {
+    private static Leg generateLeg(Graph graph, State[] states, boolean showIntermediateStops,
+            PolylineEncoder.Builder geometry, TDoubleArrayList coordinates) {
         Leg leg = new Leg();
 
         Edge[] edges = new Edge[states.length - 1];
@@ -304,10 +346,7 @@ public abstract class GraphPathToTripPlanConverter {
 
         if (leg.isTransitLeg()) addRealTimeData(leg, states);
 
-        CoordinateArrayListSequence coordinates = makeCoordinates(edges);
-        Geometry geometry = GeometryUtils.getGeometryFactory().createLineString(coordinates);
-
-        leg.legGeometry = PolylineEncoder.createEncodings(geometry);
+        leg.legGeometry = encodeGeometry(edges, geometry, coordinates);
 
         leg.interlineWithPreviousLeg = states[0].getBackEdge() instanceof PatternInterlineDwell;
 
@@ -510,10 +549,11 @@ public abstract class GraphPathToTripPlanConverter {
      * Calculate the elevationGained and elevationLost fields of an {@link Itinerary}.
      *
      * @param itinerary The itinerary to calculate the elevation changes for
-     * @param edges The edges that go with the itinerary
+     * @param states The states that go with the itinerary
      */
-    private static void calculateElevations(Itinerary itinerary, Edge[] edges) {
-        for (Edge edge : edges) {
+    private static void calculateElevations(Itinerary itinerary, State[] states) {
+        for (State state : states) {
+            Edge edge = state.getBackEdge();
             if (!(edge instanceof StreetEdge)) continue;
 
             StreetEdge edgeWithElevation = (StreetEdge) edge;
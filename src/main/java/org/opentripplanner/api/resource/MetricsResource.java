@@ -0,0 +1,59 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.resource;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.opentripplanner.standalone.OTPServer;
+import org.opentripplanner.standalone.Router;
+import org.opentripplanner.standalone.RouterMetrics;
+
+/**
+ * Report the latency histograms and mean search statistics of the requests to a router, by endpoint, since it was
+ * started.
+ */
+@Path("/routers/{routerId}/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+
+    Router router;
+
+    public MetricsResource (@Context OTPServer otpServer, @PathParam("routerId") String routerId) {
+        router = otpServer.getRouter(routerId);
+    }
+
+    /** Return the metrics of all endpoints. */
+    @GET
+    public Response getMetrics () {
+        return Response.status(Response.Status.OK).entity(router.metrics.getEndpoints()).build();
+    }
+
+    /** Return the metrics of one endpoint, such as "plan". */
+    @GET
+    @Path("/{endpoint: .+}")
+    public Response getMetrics (@PathParam("endpoint") String endpoint) {
+        RouterMetrics.EndpointMetrics metrics = router.metrics.getEndpoint(endpoint);
+        if (metrics == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity("No requests to that endpoint.").build();
+        }
+        return Response.status(Response.Status.OK).entity(metrics).build();
+    }
+
+}
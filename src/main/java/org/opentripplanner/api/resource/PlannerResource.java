@@ -14,12 +14,17 @@ package org.opentripplanner.api.resource;
 
 import static org.opentripplanner.api.resource.ServerInfo.Q;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.Providers;
 
 import org.opentripplanner.api.common.RoutingResource;
 import org.opentripplanner.api.model.TripPlan;
@@ -29,9 +34,13 @@ import org.opentripplanner.routing.impl.GraphPathFinder;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.standalone.OTPServer;
 import org.opentripplanner.standalone.Router;
+import org.opentripplanner.standalone.RouterMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import java.util.*;
 
 /**
@@ -65,13 +74,15 @@ public class PlannerResource extends RoutingResource {
         // Create response object, containing a copy of all request parameters. Maybe they should be in the debug section of the response.
         Response response = new Response(uriInfo);
         RoutingRequest request = null;
+        Router router = null;
         try {
 
             /* Fill in request fields from query parameters via shared superclass method, catching any errors. */
             request = super.buildRequest();
 
             /* Find some good GraphPaths through the OTP Graph. */
-            Router router = otpServer.getRouter(request.routerId);
+            router = otpServer.getRouterForRequest(request.routerId);
+            router.recentRequests.record(request);
             GraphPathFinder gpFinder = new GraphPathFinder(router); // we could also get a persistent router-scoped GraphPathFinder but there's no setup cost here
             List<GraphPath> paths = gpFinder.graphPathFinderEntryPoint(request);
 
@@ -85,14 +96,129 @@ public class PlannerResource extends RoutingResource {
                 LOG.warn("Error while planning path: ", e);
             response.setError(error);
         } finally {
-            if (request != null) {
-                if (request.rctx != null) {
-                    response.debugOutput = request.rctx.debugOutput;
+            try {
+                if (request != null) {
+                    if (request.rctx != null) {
+                        response.debugOutput = request.rctx.debugOutput;
+                        if (router != null)
+                            router.metrics.record(RouterMetrics.PLAN, request.rctx.debugOutput,
+                                    response.getError() != null);
+                    }
+                    request.cleanup(); // TODO verify that this cleanup step is being done on Analyst web services
                 }
-                request.cleanup(); // TODO verify that this cleanup step is being done on Analyst web services
-            }       
+            } finally {
+                if (router != null)
+                    router.requestFinished();
+            }
         }
         return response;
     }
 
+    /**
+     * The same as plan(), except that the response is JSON only and each itinerary is written out as soon as it has
+     * been converted, rather than after the whole TripPlan has been built. Errors in the search are reported as by
+     * plan(), and errors while converting the paths end the itineraries and are reported after the plan.
+     */
+    @GET
+    @Path("stream")
+    @Produces(MediaType.APPLICATION_JSON)
+    public javax.ws.rs.core.Response planStream(@Context OTPServer otpServer, @Context UriInfo uriInfo,
+            @Context Providers providers) {
+
+        final Response response = new Response(uriInfo);
+        final ObjectMapper mapper = providers.getContextResolver(ObjectMapper.class,
+                MediaType.APPLICATION_JSON_TYPE).getContext(Response.class);
+        RoutingRequest request = null;
+        Router router = null;
+        List<GraphPath> paths = null;
+        try {
+            request = super.buildRequest();
+            router = otpServer.getRouterForRequest(request.routerId);
+            router.recentRequests.record(request);
+            paths = new GraphPathFinder(router).graphPathFinderEntryPoint(request);
+        } catch (Exception e) {
+            PlannerError error = new PlannerError(e);
+            if(!PlannerError.isPlanningError(e.getClass()))
+                LOG.warn("Error while planning path: ", e);
+            response.setError(error);
+            try {
+                if (request != null) {
+                    if (request.rctx != null) {
+                        response.debugOutput = request.rctx.debugOutput;
+                        if (router != null)
+                            router.metrics.record(RouterMetrics.PLAN_STREAM, request.rctx.debugOutput, true);
+                    }
+                    request.cleanup();
+                }
+            } finally {
+                if (router != null)
+                    router.requestFinished();
+            }
+            return javax.ws.rs.core.Response.ok().entity(response).build();
+        }
+
+        final Router finalRouter = router;
+        final RoutingRequest finalRequest = request;
+        final List<GraphPath> finalPaths = paths;
+        return javax.ws.rs.core.Response.ok().entity(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                JsonGenerator generator = mapper.getFactory().createGenerator(output);
+                boolean failed = true;
+                try {
+                    failed = !writeResponse(generator, response.requestParameters, finalPaths, finalRequest);
+                } finally {
+                    // Closing throws if the client went away, which must not leave the request in flight
+                    try {
+                        generator.close();
+                    } finally {
+                        try {
+                            if (finalRequest.rctx != null)
+                                finalRouter.metrics.record(RouterMetrics.PLAN_STREAM,
+                                        finalRequest.rctx.debugOutput, failed);
+                            finalRequest.cleanup();
+                        } finally {
+                            finalRouter.requestFinished();
+                        }
+                    }
+                }
+            }
+        }).build();
+    }
+
+    /**
+     * Write the response of planStream: the request parameters, the plan, written itinerary by itinerary, and the
+     * debug output. If converting the paths fails midway, the itineraries and the plan are closed where they stopped
+     * and the error is written after the plan.
+     * @return false if converting the paths failed.
+     */
+    static boolean writeResponse(JsonGenerator generator, Map<String, String> requestParameters,
+            List<GraphPath> paths, RoutingRequest request) throws IOException {
+        boolean converted = false;
+        generator.writeStartObject();
+        generator.writeObjectField("requestParameters", requestParameters);
+        generator.writeFieldName("plan");
+        try {
+            GraphPathToTripPlanConverter.writePlan(paths, request, generator);
+            converted = true;
+        } catch (RuntimeException e) {
+            LOG.warn("Error while converting paths: ", e);
+            // Close the itineraries and the plan, if they were started before the error
+            if (generator.getOutputContext().getParent().inRoot())
+                generator.writeNull();
+            while (!generator.getOutputContext().getParent().inRoot()) {
+                if (generator.getOutputContext().inArray())
+                    generator.writeEndArray();
+                else
+                    generator.writeEndObject();
+            }
+            generator.writeObjectField("error", new PlannerError(e));
+        }
+        if (request.rctx != null) {
+            generator.writeObjectField("debugOutput", request.rctx.debugOutput);
+        }
+        generator.writeEndObject();
+        return converted;
+    }
+
 }
@@ -1,6 +1,7 @@
 package org.opentripplanner.api.resource;
 
 import com.google.common.collect.Maps;
+import com.vividsolutions.jts.geom.Geometry;
 
 import org.geotools.feature.FeatureCollection;
 import org.geotools.geojson.feature.FeatureJSON;
@@ -13,6 +14,7 @@ import org.opentripplanner.analyst.TimeSurface;
 import org.opentripplanner.analyst.core.IsochroneData;
 import org.opentripplanner.analyst.core.SlippyTile;
 import org.opentripplanner.analyst.request.RenderRequest;
+import org.opentripplanner.analyst.request.SampleGridRenderer;
 import org.opentripplanner.analyst.request.TileRequest;
 import org.opentripplanner.api.common.ParameterException;
 import org.opentripplanner.api.common.RoutingResource;
@@ -20,14 +22,13 @@ import org.opentripplanner.api.model.TimeSurfaceShort;
 import org.opentripplanner.api.parameter.Layer;
 import org.opentripplanner.api.parameter.MIMEImageFormat;
 import org.opentripplanner.api.parameter.Style;
-import org.opentripplanner.common.geometry.DelaunayIsolineBuilder;
+import org.opentripplanner.common.geometry.MarchingSquaresIsolineBuilder;
 import org.opentripplanner.routing.algorithm.EarliestArrivalSearch;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.opentripplanner.standalone.Router;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.opentripplanner.analyst.request.SampleGridRenderer.WTWD;
 
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
@@ -227,7 +228,7 @@ public class SurfaceResource extends RoutingResource {
 
     /**
      * Use Laurent's accumulative grid sampler. Cutoffs in minutes.
-     * The grid and Delaunay triangulation are cached, so subsequent requests are very fast.
+     * The sample grid is cached, and isolines for all cutoffs are computed in parallel by marching squares.
      *
      * @param spacing the number of minutes between isochrones
      * @return a list of evenly-spaced isochrones up to the timesurface's cutoff point
@@ -239,18 +240,19 @@ public class SurfaceResource extends RoutingResource {
             // The sample grid was not built from the SPT; make a minimal one including only time from the vertices in this timesurface
             surf.makeSampleGridWithoutSPT();
         }
-        DelaunayIsolineBuilder<WTWD> isolineBuilder = new DelaunayIsolineBuilder<WTWD>(
-                surf.sampleGrid.delaunayTriangulate(), new WTWD.IsolineMetric());
+        MarchingSquaresIsolineBuilder isolineBuilder = new MarchingSquaresIsolineBuilder(
+                SampleGridRenderer.toDenseGrid(surf.sampleGrid));
 
+        int nCutoffs = surf.cutoffMinutes / spacing;
+        double[] z0s = new double[nCutoffs];
+        for (int i = 0; i < nCutoffs; i++) {
+            z0s[i] = (i + 1) * spacing * 60;
+        }
+        // d0 in meters. TODO set dynamically / properly, make sure it matches grid cell size?
+        List<Geometry> isolines = isolineBuilder.computeIsolines(z0s, 300);
         List<IsochroneData> isochrones = new ArrayList<IsochroneData>();
-        for (int minutes = spacing; minutes <= surf.cutoffMinutes; minutes += spacing) {
-            int seconds = minutes * 60;
-            WTWD z0 = new WTWD();
-            z0.w = 1.0;
-            z0.wTime = seconds;
-            z0.d = 300; // meters. TODO set dynamically / properly, make sure it matches grid cell size?
-            IsochroneData isochrone = new IsochroneData(seconds, isolineBuilder.computeIsoline(z0));
-            isochrones.add(isochrone);
+        for (int i = 0; i < nCutoffs; i++) {
+            isochrones.add(new IsochroneData((int) z0s[i], isolines.get(i)));
         }
 
         long t1 = System.currentTimeMillis();
@@ -68,6 +68,11 @@ public class LuceneIndex {
         }
     }
 
+    /** @return the filesystem location under which this index is saved. */
+    public File getBasePath() {
+        return basePath;
+    }
+
     /**
      * Index stations, stops, intersections, streets, and addresses by name and location.
      */
@@ -0,0 +1,140 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs tasks on a pool of threads and hands their results back in the order the tasks were submitted, so that the
+ * caller can apply them on its own thread and get the same result whatever the number of threads. A few tasks per
+ * thread are kept in flight: the caller should take a result whenever the pipeline is full, which bounds the memory
+ * held by results waiting to be applied.
+ *
+ * Typical use:
+ * <pre>
+ * OrderedTaskPipeline&lt;R&gt; pipeline = new OrderedTaskPipeline&lt;R&gt;(nThreads, "name-%d");
+ * try {
+ *     for (...) {
+ *         if (pipeline.isFull())
+ *             apply(pipeline.next());
+ *         pipeline.submit(task);
+ *     }
+ *     while (!pipeline.isEmpty())
+ *         apply(pipeline.next());
+ * } finally {
+ *     pipeline.close();
+ * }
+ * </pre>
+ */
+public class OrderedTaskPipeline<T> {
+
+    /* Enough tasks per thread that the threads do not wait while the caller applies a result. */
+    private static final int TASKS_PER_THREAD = 4;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final int maxInFlight;
+
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<Future<T>>();
+
+    /** Run the tasks on a new pool of daemon threads, which is shut down by close(). */
+    public OrderedTaskPipeline(int nThreads, String nameFormat) {
+        this(newThreadPool(nThreads, nameFormat), nThreads, true);
+    }
+
+    /** Run the tasks on an existing pool of nThreads threads, which is left running by close(). */
+    public OrderedTaskPipeline(ExecutorService executor, int nThreads) {
+        this(executor, nThreads, false);
+    }
+
+    private OrderedTaskPipeline(ExecutorService executor, int nThreads, boolean ownExecutor) {
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxInFlight = nThreads * TASKS_PER_THREAD;
+    }
+
+    /** @return a pool of daemon threads, named after the given format, for use by several pipelines in turn. */
+    public static ExecutorService newThreadPool(int nThreads, String nameFormat) {
+        return Executors.newFixedThreadPool(nThreads, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(nameFormat).build());
+    }
+
+    public void submit(Callable<T> task) {
+        pending.add(executor.submit(task));
+    }
+
+    /** Queue a result that needs no computation, to be handed back in order with the others. */
+    public void submitResult(T result) {
+        pending.add(Futures.immediateFuture(result));
+    }
+
+    /** @return true if the caller should take a result before submitting more tasks. */
+    public boolean isFull() {
+        return pending.size() >= maxInFlight;
+    }
+
+    /** @return true if all results have been taken. */
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Wait for the result of the oldest task. An unchecked exception thrown by the task is rethrown as is, a checked
+     * one wrapped in a RuntimeException.
+     */
+    public T next() {
+        return next(RuntimeException.class);
+    }
+
+    /**
+     * Wait for the result of the oldest task, rethrowing the exceptions of the given type thrown by the task as is.
+     */
+    public <X extends Exception> T next(Class<X> exceptionClass) throws X {
+        try {
+            return pending.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (exceptionClass.isInstance(cause))
+                throw exceptionClass.cast(cause);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /** Cancel the tasks whose results were not taken, and shut down the pool if it was created by this pipeline. */
+    public void close() {
+        for (Future<T> future : pending)
+            future.cancel(true);
+        pending.clear();
+        if (ownExecutor)
+            executor.shutdown();
+    }
+
+}
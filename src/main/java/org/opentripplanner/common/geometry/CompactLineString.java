@@ -13,6 +13,8 @@
 
 package org.opentripplanner.common.geometry;
 
+import gnu.trove.list.array.TDoubleArrayList;
+
 import java.io.Serializable;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -174,6 +176,48 @@ public final class CompactLineString implements Serializable {
         return out;
     }
 
+    /**
+     * Append the coordinates of a compacted line string to a buffer as x, y pairs, from A to B, without creating
+     * the Coordinates and the LineString of uncompactLineString. The coordinates are exactly the ones it would give.
+     * 
+     * @param xa X coordinate of end point A
+     * @param ya Y coordinate of end point A
+     * @param xb X coordinate of end point B
+     * @param yb Y coordinate of end point B
+     * @param coords Compact version of coordinates
+     * @param reverse True if A and B and the compacted geometry is reversed.
+     * @param buffer The buffer to append to
+     */
+    public static void appendCoordinates(double xa, double ya, double xb, double yb, int[] coords,
+            boolean reverse, TDoubleArrayList buffer) {
+        buffer.add(xa);
+        buffer.add(ya);
+        if (coords != null && coords.length > 0) {
+            int start = buffer.size();
+            int oix = (int) Math.round((reverse ? xb : xa) * FIXED_FLOAT_MULT);
+            int oiy = (int) Math.round((reverse ? yb : ya) * FIXED_FLOAT_MULT);
+            for (int i = 0; i < coords.length; i += 2) {
+                oix += coords[i];
+                oiy += coords[i + 1];
+                buffer.add(oix / FIXED_FLOAT_MULT);
+                buffer.add(oiy / FIXED_FLOAT_MULT);
+            }
+            if (reverse) {
+                // The compacted points run from B to A, swap them pair by pair
+                for (int i = start, j = buffer.size() - 2; i < j; i += 2, j -= 2) {
+                    double x = buffer.get(i);
+                    double y = buffer.get(i + 1);
+                    buffer.set(i, buffer.get(j));
+                    buffer.set(i + 1, buffer.get(j + 1));
+                    buffer.set(j, x);
+                    buffer.set(j + 1, y);
+                }
+            }
+        }
+        buffer.add(xb);
+        buffer.add(yb);
+    }
+
     /**
      * Same as the other version, but in a var-len int packed form (Dlugosz coding).
      * 
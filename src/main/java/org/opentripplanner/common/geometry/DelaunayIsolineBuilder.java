@@ -137,7 +137,7 @@ public class DelaunayIsolineBuilder<TZ> implements IsolineBuilder<TZ> {
                 rings.add(ring);
             }
         }
-        List<Polygon> retval = punchHoles(rings);
+        List<Polygon> retval = punchHoles(geometryFactory, rings);
         return geometryFactory
                 .createGeometryCollection(retval.toArray(new Geometry[retval.size()]));
     }
@@ -162,8 +162,12 @@ public class DelaunayIsolineBuilder<TZ> implements IsolineBuilder<TZ> {
                 .size()]));
     }
 
+    /**
+     * Assemble closed rings into polygons: CCW rings are shells, CW rings are holes punched into the shell that
+     * contains them. Also used by the MarchingSquaresIsolineBuilder, which traces rings with the same orientation.
+     */
     @SuppressWarnings("unchecked")
-    private final List<Polygon> punchHoles(List<LinearRing> rings) {
+    static final List<Polygon> punchHoles(GeometryFactory geometryFactory, List<LinearRing> rings) {
         List<Polygon> shells = new ArrayList<Polygon>(rings.size());
         List<LinearRing> holes = new ArrayList<LinearRing>(rings.size() / 2);
         // 1. Split the polygon list in two: shells and holes (CCW and CW)
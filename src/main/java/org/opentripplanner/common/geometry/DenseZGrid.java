@@ -0,0 +1,103 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A regular grid of samples stored in flat primitive arrays covering a rectangular range of indexes. Each sample has
+ * a z value (for example a travel time) and an off-road distance d to the nearest real sample. Missing samples have
+ * infinite z and d.
+ *
+ * Uses the same index to coordinate convention as ZSampleGrid: lon = lon0 + x.dLon, lat = lat0 + y.dLat. A
+ * DenseZGrid is not modified once filled, so it can safely be read by several threads at once.
+ *
+ * @author laurent
+ */
+public final class DenseZGrid {
+
+    /** Lowest x and y index in this grid. */
+    public final int xMin, yMin;
+
+    /** Number of samples along x and y. */
+    public final int width, height;
+
+    private final Coordinate center;
+
+    private final double dX, dY;
+
+    private final double[] z;
+
+    private final double[] d;
+
+    /**
+     * Create an empty grid covering the given index range (inclusive), in which every sample is missing.
+     */
+    public DenseZGrid(int xMin, int xMax, int yMin, int yMax, Coordinate center, double dX, double dY) {
+        this.xMin = xMin;
+        this.yMin = yMin;
+        this.width = xMax - xMin + 1;
+        this.height = yMax - yMin + 1;
+        this.center = center;
+        this.dX = dX;
+        this.dY = dY;
+        z = new double[width * height];
+        d = new double[width * height];
+        Arrays.fill(z, Double.POSITIVE_INFINITY);
+        Arrays.fill(d, Double.POSITIVE_INFINITY);
+    }
+
+    public final void set(int x, int y, double zValue, double dValue) {
+        int i = (y - yMin) * width + (x - xMin);
+        z[i] = zValue;
+        d[i] = dValue;
+    }
+
+    /** @return the z value at the given index, or +Infinity outside the grid or for missing samples. */
+    public final double getZ(int x, int y) {
+        x -= xMin;
+        y -= yMin;
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return Double.POSITIVE_INFINITY;
+        return z[y * width + x];
+    }
+
+    /** @return the off-road distance at the given index, or +Infinity outside the grid or for missing samples. */
+    public final double getD(int x, int y) {
+        x -= xMin;
+        y -= yMin;
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return Double.POSITIVE_INFINITY;
+        return d[y * width + x];
+    }
+
+    public final int getXMax() {
+        return xMin + width - 1;
+    }
+
+    public final int getYMax() {
+        return yMin + height - 1;
+    }
+
+    public final double getLon(double x) {
+        return x * dX + center.x;
+    }
+
+    public final double getLat(double y) {
+        return y * dY + center.y;
+    }
+
+}
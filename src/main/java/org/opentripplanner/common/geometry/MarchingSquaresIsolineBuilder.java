@@ -0,0 +1,215 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Compute isolines on a DenseZGrid using marching squares.
+ *
+ * A sample is "inside" the isoline (z0, d0) if its off-road distance is at most d0 and its z value is below z0, which
+ * is the same criterion as the WTWD isoline metric used with the DelaunayIsolineBuilder. Each grid cell with both
+ * inside and outside corners gets one or two contour segments joining the crossing points on its sides. Segments are
+ * oriented with the inside on their left, so following them from cell to cell yields CCW shells and CW holes. Saddle
+ * cells are resolved using the mean z value of their four corners.
+ *
+ * The grid is only read, never modified, so isolines for several z0 values are computed in parallel.
+ *
+ * @author laurent
+ */
+public class MarchingSquaresIsolineBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MarchingSquaresIsolineBuilder.class);
+
+    private static final ExecutorService threadPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("isoline-%d").build());
+
+    private final DenseZGrid grid;
+
+    /* Dimensions of the grid padded by one missing sample on each side, so that all contours are closed. */
+    private final int xMin, yMin, paddedWidth, paddedHeight;
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    public MarchingSquaresIsolineBuilder(DenseZGrid grid) {
+        this.grid = grid;
+        this.xMin = grid.xMin - 1;
+        this.yMin = grid.yMin - 1;
+        this.paddedWidth = grid.width + 2;
+        this.paddedHeight = grid.height + 2;
+    }
+
+    /**
+     * Compute one isoline per z0 value, in parallel. The result list is in the same order as the z0 values.
+     */
+    public List<Geometry> computeIsolines(double[] z0s, final double d0) {
+        List<Future<Geometry>> futures = new ArrayList<Future<Geometry>>(z0s.length);
+        for (final double z0 : z0s) {
+            futures.add(threadPool.submit(new Callable<Geometry>() {
+                @Override
+                public Geometry call() {
+                    return computeIsoline(z0, d0);
+                }
+            }));
+        }
+        List<Geometry> isolines = new ArrayList<Geometry>(z0s.length);
+        try {
+            for (Future<Geometry> future : futures) {
+                isolines.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return isolines;
+    }
+
+    /**
+     * @return The isoline separating samples with z < z0 and off-road distance <= d0 from the others, as a
+     *         collection of polygons.
+     */
+    public Geometry computeIsoline(double z0, double d0) {
+        boolean[] inside = new boolean[paddedWidth * paddedHeight];
+        for (int py = 1; py < paddedHeight - 1; py++) {
+            for (int px = 1; px < paddedWidth - 1; px++) {
+                int x = px + xMin, y = py + yMin;
+                inside[py * paddedWidth + px] = grid.getD(x, y) <= d0 && grid.getZ(x, y) < z0;
+            }
+        }
+
+        /* Link each crossed cell side to the next one along the contour, keeping the inside on the left. */
+        TIntIntMap next = new TIntIntHashMap(1024, 0.5f, -1, -1);
+        boolean[] corner = new boolean[4];
+        int[] side = new int[4];
+        int[] crossings = new int[4];
+        for (int py = 0; py < paddedHeight - 1; py++) {
+            for (int px = 0; px < paddedWidth - 1; px++) {
+                int i = py * paddedWidth + px;
+                // Corners and sides in CCW order, side k joins corner k to corner k+1.
+                corner[0] = inside[i];
+                corner[1] = inside[i + 1];
+                corner[2] = inside[i + paddedWidth + 1];
+                corner[3] = inside[i + paddedWidth];
+                if (corner[0] == corner[1] && corner[1] == corner[2] && corner[2] == corner[3])
+                    continue;
+                side[0] = horizontalSide(px, py);
+                side[1] = verticalSide(px + 1, py);
+                side[2] = horizontalSide(px, py + 1);
+                side[3] = verticalSide(px, py);
+                int n = 0;
+                for (int k = 0; k < 4; k++) {
+                    if (corner[k] != corner[(k + 1) % 4])
+                        crossings[n++] = k;
+                }
+                boolean connected = n == 4 && centerInside(px + xMin, py + yMin, z0);
+                for (int c = 0; c < n; c++) {
+                    int k = crossings[c];
+                    if ( ! corner[k])
+                        continue; // not an exit from the inside
+                    int entry = n == 2 ? crossings[(c + 1) % 2]
+                            : crossings[(c + (connected ? 1 : 3)) % 4];
+                    next.put(side[k], side[entry]);
+                }
+            }
+        }
+
+        /* Follow the links to build closed rings. */
+        List<LinearRing> rings = new ArrayList<LinearRing>();
+        for (int start : next.keys()) {
+            if ( ! next.containsKey(start))
+                continue; // already part of a ring
+            List<Coordinate> polyPoints = new ArrayList<Coordinate>();
+            int e = start;
+            do {
+                polyPoints.add(crossingPoint(e, z0, d0));
+                e = next.remove(e);
+            } while (e != start && e != -1);
+            if (e == -1) {
+                LOG.warn("Open contour in marching squares, this should not happen.");
+                continue;
+            }
+            // Close the polyline
+            polyPoints.add(polyPoints.get(0));
+            if (polyPoints.size() > 5) {
+                // As in the DelaunayIsolineBuilder, drop rings of 4 points or less (tiny islands or holes).
+                rings.add(geometryFactory.createLinearRing(polyPoints
+                        .toArray(new Coordinate[polyPoints.size()])));
+            }
+        }
+        List<Polygon> polygons = DelaunayIsolineBuilder.punchHoles(geometryFactory, rings);
+        return geometryFactory.createGeometryCollection(polygons.toArray(new Geometry[polygons
+                .size()]));
+    }
+
+    /** Side from padded index (px, py) to (px + 1, py). */
+    private int horizontalSide(int px, int py) {
+        return (py * paddedWidth + px) << 1;
+    }
+
+    /** Side from padded index (px, py) to (px, py + 1). */
+    private int verticalSide(int px, int py) {
+        return ((py * paddedWidth + px) << 1) | 1;
+    }
+
+    private boolean centerInside(int x, int y, double z0) {
+        double zMean = (grid.getZ(x, y) + grid.getZ(x + 1, y) + grid.getZ(x + 1, y + 1)
+                + grid.getZ(x, y + 1)) / 4;
+        return zMean < z0;
+    }
+
+    /** Interpolate the point where the contour crosses the given side, as the WTWD isoline metric does. */
+    private Coordinate crossingPoint(int side, double z0, double d0) {
+        int i = side >> 1;
+        int xA = i % paddedWidth + xMin;
+        int yA = i / paddedWidth + yMin;
+        int xB = (side & 1) == 0 ? xA + 1 : xA;
+        int yB = (side & 1) == 0 ? yA : yA + 1;
+        double zA = grid.getZ(xA, yA), zB = grid.getZ(xB, yB);
+        double dA = grid.getD(xA, yA), dB = grid.getD(xB, yB);
+        double k;
+        if (Double.isInfinite(dA) || Double.isInfinite(dB)) {
+            // Missing neighbor sample
+            k = 0.5;
+        } else if (dA > d0 || dB > d0) {
+            // Interpolate on d
+            k = dA == dB ? 0.5 : (d0 - dA) / (dB - dA);
+        } else {
+            // Interpolate on z
+            k = zA == zB ? 0.5 : (z0 - zA) / (zB - zA);
+        }
+        return new Coordinate(grid.getLon(xA + k * (xB - xA)), grid.getLat(yA + k * (yB - yA)));
+    }
+
+}
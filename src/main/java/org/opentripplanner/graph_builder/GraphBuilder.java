@@ -13,16 +13,29 @@
 
 package org.opentripplanner.graph_builder;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.opentripplanner.common.MavenVersion;
 import org.opentripplanner.graph_builder.model.GtfsBundle;
 import org.opentripplanner.graph_builder.module.*;
 import org.opentripplanner.graph_builder.module.map.BusRouteStreetMatcher;
@@ -36,6 +49,7 @@ import org.opentripplanner.graph_builder.services.GraphBuilderModule;
 import org.opentripplanner.graph_builder.services.ned.ElevationGridCoverageFactory;
 import org.opentripplanner.openstreetmap.impl.AnyFileBasedOpenStreetMapProviderImpl;
 import org.opentripplanner.openstreetmap.services.OpenStreetMapProvider;
+import org.opentripplanner.osm.CachedOpenStreetMapProviderImpl;
 import org.opentripplanner.reflect.ReflectionLibrary;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.graph.Graph;
@@ -59,6 +73,12 @@ public class GraphBuilder implements Runnable {
 
     private List<GraphBuilderModule> _graphBuilderModules = new ArrayList<GraphBuilderModule>();
 
+    /* The input keys of the modules, null for modules whose changes to the graph cannot be reused. */
+    private List<String> _inputKeys = new ArrayList<String>();
+
+    /* Where the graph built by the leading modules with input keys is kept, if anywhere. */
+    private File checkpointFile = null;
+
     private File graphFile;
     
     private boolean _alwaysRebuild = true;
@@ -76,11 +96,28 @@ public class GraphBuilder implements Runnable {
     public boolean serializeGraph = true;
 
     public void addGraphBuilder(GraphBuilderModule loader) {
+        addGraphBuilder(loader, null);
+    }
+
+    /**
+     * Add a module whose changes to the graph only depend on the graph it starts from and on the given key, which
+     * must describe all inputs and configuration of the module (for instance the checksums of its input files).
+     * When a checkpoint file is set, the graph built by the leading modules that have such keys is saved, and later
+     * builds where the same modules have the same keys start from it rather than running these modules again.
+     */
+    public void addGraphBuilder(GraphBuilderModule loader, String inputKey) {
         _graphBuilderModules.add(loader);
+        _inputKeys.add(inputKey);
     }
 
     public void setGraphBuilders(List<GraphBuilderModule> graphLoaders) {
         _graphBuilderModules = graphLoaders;
+        _inputKeys = new ArrayList<String>(Collections.<String>nCopies(graphLoaders.size(), null));
+    }
+
+    /** Keep the graph built by the leading modules with input keys in the given file, see addGraphBuilder. */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
     }
 
     public void setAlwaysRebuild(boolean alwaysRebuild) {
@@ -149,8 +186,28 @@ public class GraphBuilder implements Runnable {
         }
         
         HashMap<Class<?>, Object> extra = new HashMap<Class<?>, Object>();
-        for (GraphBuilderModule load : _graphBuilderModules)
-            load.buildGraph(graph, extra);
+        int nCheckpointModules = 0;
+        String checkpointKey = null;
+        if (checkpointFile != null && _baseGraph == null) {
+            Hasher hasher = Hashing.sha1().newHasher();
+            hasher.putString(MavenVersion.VERSION.toString());
+            while (nCheckpointModules < _graphBuilderModules.size() && _inputKeys.get(nCheckpointModules) != null) {
+                hasher.putString(_graphBuilderModules.get(nCheckpointModules).getClass().getName());
+                hasher.putString(_inputKeys.get(nCheckpointModules));
+                nCheckpointModules++;
+            }
+            checkpointKey = hasher.hash().toString();
+        }
+        int firstModule = 0;
+        if (nCheckpointModules > 0 && restoreCheckpoint(checkpointKey, extra)) {
+            firstModule = nCheckpointModules;
+        }
+        for (int i = firstModule; i < _graphBuilderModules.size(); i++) {
+            _graphBuilderModules.get(i).buildGraph(graph, extra);
+            if (i + 1 == nCheckpointModules) {
+                saveCheckpoint(checkpointKey, extra);
+            }
+        }
 
         graph.summarizeBuilderAnnotations();
         if (serializeGraph) {
@@ -168,6 +225,63 @@ public class GraphBuilder implements Runnable {
     }
 
 
+    /**
+     * Replace the graph with the one in the checkpoint file if it was saved with the given key. The transient parts of
+     * the graph are left out, as if the graph had just been built by the same modules.
+     * @return whether the graph was restored.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean restoreCheckpoint(String key, Map<Class<?>, Object> extra) {
+        File keyFile = new File(checkpointFile.getPath() + ".key");
+        try {
+            if (!(checkpointFile.isFile() && keyFile.isFile() && Files.toString(keyFile, Charsets.UTF_8).equals(key))) {
+                LOG.info("No graph in {} for the current inputs, running all graph builder modules.", checkpointFile);
+                return false;
+            }
+            LOG.info("Starting from the graph in {}, its inputs are unchanged.", checkpointFile);
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+            try {
+                /* Read in the same stream as the graph, so that they refer to the same vertices. */
+                Map<Class<?>, Object> checkpointExtra = (Map<Class<?>, Object>) in.readObject();
+                Graph checkpointGraph = Graph.load(in, LoadLevel.DEBUG);
+                checkpointGraph.index = null;
+                checkpointGraph.streetIndex = null;
+                graph = checkpointGraph;
+                extra.putAll(checkpointExtra);
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not read the graph in {}, running all graph builder modules: {}", checkpointFile, e.toString());
+            return false;
+        }
+    }
+
+    /** Save the graph and the extra objects passed between modules to the checkpoint file, with the given key. */
+    private void saveCheckpoint(String key, HashMap<Class<?>, Object> extra) {
+        File keyFile = new File(checkpointFile.getPath() + ".key");
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try {
+            keyFile.delete();
+            checkpointFile.getAbsoluteFile().getParentFile().mkdirs();
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeObject(extra);
+                graph.save(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp, checkpointFile);
+            // Written last, so that an interrupted save is never reused.
+            Files.write(key, keyFile, Charsets.UTF_8);
+            LOG.info("Saved the graph to {} for later builds.", checkpointFile);
+        } catch (Exception e) {
+            tmp.delete();
+            LOG.warn("Could not save the graph to {}: {}", checkpointFile, e.toString());
+        }
+    }
+
     /**
      * Factory method to create and configure a GraphBuilder with all the appropriate modules to build a graph from
      * the files in the given directory, accounting for any configuration files located there.
@@ -226,7 +340,13 @@ public class GraphBuilder implements Runnable {
         if ( hasOSM ) {
             List<OpenStreetMapProvider> osmProviders = Lists.newArrayList();
             for (File osmFile : osmFiles) {
-                OpenStreetMapProvider osmProvider = new AnyFileBasedOpenStreetMapProviderImpl(osmFile);
+                OpenStreetMapProvider osmProvider;
+                if (builderParams.cacheOsm && osmFile.getName().endsWith(".pbf")) {
+                    osmProvider = new CachedOpenStreetMapProviderImpl(osmFile,
+                            new File(osmFile.getPath() + ".osmdb"));
+                } else {
+                    osmProvider = new AnyFileBasedOpenStreetMapProviderImpl(osmFile);
+                }
                 osmProviders.add(osmProvider);
             }
             OpenStreetMapModule osmBuilder = new OpenStreetMapModule(osmProviders);
@@ -236,8 +356,22 @@ public class GraphBuilder implements Runnable {
             DefaultWayPropertySetSource defaultWayPropertySetSource = new DefaultWayPropertySetSource();
             osmBuilder.setDefaultWayPropertySetSource(defaultWayPropertySetSource);
             osmBuilder.skipVisibility = !builderParams.areaVisibility;
-            graphBuilder.addGraphBuilder(osmBuilder);
-            graphBuilder.addGraphBuilder(new PruneFloatingIslands());
+            osmBuilder.maxAreaNodes = builderParams.maxAreaNodes;
+            if (builderParams.cacheStreetGraph) {
+                /* The whole builder config is part of the key, which is simpler and safer than picking parameters. */
+                StringBuilder streetKey = new StringBuilder(builderConfig.toString());
+                streetKey.append(" elevation=").append(streetEdgeFactory.useElevationData);
+                for (File osmFile : osmFiles) {
+                    streetKey.append(' ').append(osmFile.getName()).append('=').append(checksum(osmFile));
+                }
+                graphBuilder.addGraphBuilder(osmBuilder, streetKey.toString());
+                graphBuilder.addGraphBuilder(new PruneFloatingIslands(), "");
+                graphBuilder.setCheckpointFile(new File(params.cacheDirectory,
+                        "graphs" + File.separator + dir.getName() + File.separator + "Streets.obj"));
+            } else {
+                graphBuilder.addGraphBuilder(osmBuilder);
+                graphBuilder.addGraphBuilder(new PruneFloatingIslands());
+            }
         }
         if ( hasGTFS ) {
             List<GtfsBundle> gtfsBundles = Lists.newArrayList();
@@ -263,7 +397,11 @@ public class GraphBuilder implements Runnable {
             // The stops can be linked to each other once they are already linked to the street network.
             if ( ! builderParams.useTransfersTxt) {
                 // This module will use streets or straight line distance depending on whether OSM data is found in the graph.
-                graphBuilder.addGraphBuilder(new DirectTransferGenerator());
+                DirectTransferGenerator transferGenerator = new DirectTransferGenerator();
+                if (builderParams.cacheTransfers) {
+                    transferGenerator.setCacheFile(new File(dir, "transfers.cache"));
+                }
+                graphBuilder.addGraphBuilder(transferGenerator);
             }
             gtfsBuilder.setFareServiceFactory(builderParams.fareServiceFactory);
         }
@@ -277,6 +415,12 @@ public class GraphBuilder implements Runnable {
             GraphBuilderModule elevationBuilder = new ElevationModule(gcf);
             graphBuilder.addGraphBuilder(elevationBuilder);
         }
+        if (hasOSM && builderParams.landmarks > 0) {
+            graphBuilder.addGraphBuilder(new LandmarkModule(builderParams.landmarks));
+        }
+        if (hasOSM && builderParams.contractionHierarchies) {
+            graphBuilder.addGraphBuilder(new ContractionHierarchyModule(graphBuilder.routerConfig));
+        }
         graphBuilder.addGraphBuilder(new EmbedConfig(builderConfig, routerConfig));
         if (builderParams.htmlAnnotations) {
             graphBuilder.addGraphBuilder(new AnnotationsToHTML(new File(params.build, "report.html")));
@@ -285,6 +429,15 @@ public class GraphBuilder implements Runnable {
         return graphBuilder;
     }
 
+    /** @return the SHA-1 checksum of the contents of the file. */
+    private static String checksum(File file) {
+        try {
+            return Files.hash(file, Hashing.sha1()).toString();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file, e);
+        }
+    }
+
     /**
      * Represents the different types of files that might be present in a router / graph build directory.
      * We want to detect even those that are not graph builder inputs so we can effectively warn when unrecognized file
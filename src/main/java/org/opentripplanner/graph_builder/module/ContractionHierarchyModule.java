@@ -0,0 +1,88 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.reflect.ReflectiveInitializer;
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.graph.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Builds contraction hierarchies over the street network for car, bicycle and walk requests, and keeps them in the
+ * graph as a ContractionHierarchySet service. The profiles start from the default routing parameters of the router
+ * config, as the Router will, so that requests which do not override them are answered from the hierarchies.
+ */
+public class ContractionHierarchyModule implements GraphBuilderModule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchyModule.class);
+
+    private final JsonNode routerConfig;
+
+    public ContractionHierarchyModule(JsonNode routerConfig) {
+        this.routerConfig = routerConfig;
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        long start = System.currentTimeMillis();
+        ContractionHierarchySet set = ContractionHierarchySet.build(graph, getProfiles());
+        graph.putService(ContractionHierarchySet.class, set);
+        LOG.info("Built {} contraction hierarchies in {} s", set.getHierarchies().size(),
+                (System.currentTimeMillis() - start) / 1000);
+    }
+
+    /** @return the car, bicycle and walk requests to build hierarchies for. */
+    public List<RoutingRequest> getProfiles() {
+        RoutingRequest defaults = defaultRoutingRequest(routerConfig);
+        List<RoutingRequest> profiles = new ArrayList<RoutingRequest>();
+        RoutingRequest car = defaults.clone();
+        car.setMode(TraverseMode.CAR);
+        profiles.add(car);
+        RoutingRequest bicycle = defaults.clone();
+        bicycle.setMode(TraverseMode.BICYCLE);
+        bicycle.setOptimize(OptimizeType.QUICK);
+        profiles.add(bicycle);
+        RoutingRequest walk = defaults.clone();
+        walk.setMode(TraverseMode.WALK);
+        profiles.add(walk);
+        return profiles;
+    }
+
+    /** The same default request as the Router makes from its config. */
+    @SuppressWarnings("unchecked")
+    private static RoutingRequest defaultRoutingRequest(JsonNode routerConfig) {
+        JsonNode routingDefaultsNode = routerConfig == null ? null : routerConfig.get("routingDefaults");
+        if (routingDefaultsNode != null) {
+            ReflectiveInitializer<RoutingRequest> scraper = new ReflectiveInitializer(RoutingRequest.class);
+            return scraper.scrape(routingDefaultsNode);
+        }
+        return new RoutingRequest();
+    }
+
+    @Override
+    public void checkInputs() {
+        // nothing to do
+    }
+}
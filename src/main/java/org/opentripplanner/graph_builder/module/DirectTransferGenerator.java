@@ -13,11 +13,15 @@
 
 package org.opentripplanner.graph_builder.module;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import com.google.common.collect.Iterables;
+import org.opentripplanner.common.OrderedTaskPipeline;
 import org.opentripplanner.graph_builder.annotation.StopNotLinkedForTransfers;
 import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.edgetype.*;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
@@ -33,14 +37,43 @@ import org.slf4j.LoggerFactory;
  * It will use the street network if OSM data has already been loaded into the graph.
  * Otherwise it will use straight-line distance between stops.
  *
+ * Stops are searched from in parallel, and the transfers are made in the order of the stops in the graph. When a
+ * cache file is set, stops whose surroundings did not change since the previous build reuse the stops found then.
+ *
  * TODO make tests for this that are sensitive to the presence of trip patterns
  */
 public class DirectTransferGenerator implements GraphBuilderModule {
 
     private static Logger LOG = LoggerFactory.getLogger(DirectTransferGenerator.class);
 
+    private static final int BATCH_SIZE = 20;
+
     int maxDuration = 60 * 10;
 
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private File cacheFile = null;
+
+    private int reusedCount = 0;
+
+    /** Set the number of threads searching for nearby stops. */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Keep the nearby stops of each stop in the given file, and reuse them in the next build for the stops whose
+     * surrounding streets, stops and patterns did not change.
+     */
+    public void setCacheFile(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /** @return the number of stops whose nearby stops were taken from the cache file in the last build. */
+    public int getReusedCount() {
+        return reusedCount;
+    }
+
     public List<String> provides() {
         return Arrays.asList("linking");
     }
@@ -60,50 +93,166 @@ public class DirectTransferGenerator implements GraphBuilderModule {
         /* The linker will use streets if they are available, or straight-line distance otherwise. */
         NearbyStopFinder nearbyStopFinder = new NearbyStopFinder(graph, maxDuration);
         if (nearbyStopFinder.useStreets) {
+            /* Initialized lazily, and shared by the routing contexts of the searches. */
+            graph.getCalendarService();
+            graph.getTimeZone();
             LOG.info("Creating direct transfer edges between stops using the street network from OSM...");
         } else {
             LOG.info("Creating direct transfer edges between stops using straight line distance (not streets)...");
         }
 
-        int nTransfersTotal = 0;
-        int nLinkableStops = 0;
+        TransferCache cache = null;
+        if (cacheFile != null) {
+            boolean useStreets = nearbyStopFinder.useStreets;
+            cache = new TransferCache(cacheFile, graph, useStreets, getReach(useStreets));
+            LOG.info("Found nearby stops of {} stops in {}", cache.size(), cacheFile);
+        }
 
+        List<TransitStop> linkableStops = new ArrayList<TransitStop>();
         for (TransitStop ts0 : Iterables.filter(graph.getVertices(), TransitStop.class)) {
-
             /* Skip stops that are entrances to stations or whose entrances are coded separately */
-            if (!ts0.isStreetLinkable()) continue;
-            nLinkableStops += 1;
-            LOG.debug("Linking stop '{}' {}", ts0.getStop(), ts0);
-
-            /* Determine the set of stops that are already reachable via other pathways or transfers */
-            Set<TransitStop> pathwayDestinations = new HashSet<TransitStop>();
-            for (Edge e : ts0.getOutgoing()) {
-                if (e instanceof PathwayEdge || e instanceof SimpleTransfer) {
-                    if (e.getToVertex() instanceof TransitStop) {
-                        TransitStop to = (TransitStop) e.getToVertex();
-                        pathwayDestinations.add(to);
+            if (ts0.isStreetLinkable()) linkableStops.add(ts0);
+        }
+
+        /*
+         * The nearby stop finder keeps no state between searches, each search has its own request, queue and tree.
+         * Transfers are not traversed by the searches, so they can be created while other stops are still searched.
+         */
+        int nTransfersTotal = 0;
+        int nReused = 0;
+        OrderedTaskPipeline<List<NearbyStops>> pipeline = new OrderedTaskPipeline<List<NearbyStops>>(threadCount,
+                "transfers-%d");
+        try {
+            for (int i = 0; i < linkableStops.size() || !pipeline.isEmpty(); ) {
+                while (i < linkableStops.size() && !pipeline.isFull()) {
+                    List<TransitStop> batch = linkableStops.subList(i, Math.min(i + BATCH_SIZE, linkableStops.size()));
+                    pipeline.submit(new NearbyStopsTask(batch, nearbyStopFinder, cache));
+                    i += batch.size();
+                }
+                for (NearbyStops nearby : pipeline.next()) {
+                    if (cache != null) {
+                        cache.put(nearby.origin, nearby.fingerprint, nearby.stops);
                     }
+                    if (nearby.reused) nReused += 1;
+                    nTransfersTotal += makeTransfers(graph, nearby.origin, nearby.stops);
                 }
             }
+        } finally {
+            pipeline.close();
+        }
+        if (cache != null) {
+            LOG.info("Reused nearby stops of {} stops out of {}.", nReused, linkableStops.size());
+            cache.save();
+        }
+        reusedCount = nReused;
+        LOG.info("Done connecting stops to one another. Created a total of {} transfers from {} stops.", nTransfersTotal, linkableStops.size());
+        graph.hasDirectTransfers = true;
+    }
+
+    /**
+     * @return the distance in meters beyond which the searches from a stop find nothing. Searches along the streets
+     *         are limited in time, and no walk along the streets, uphill or downhill, is faster than the straight line
+     *         at the default walk speed.
+     */
+    double getReach(boolean useStreets) {
+        return useStreets ? maxDuration * new RoutingRequest().walkSpeed : maxDuration;
+    }
+
+    /** Make transfers from the origin stop to the given nearby stops, in order. Returns the number of transfers. */
+    private int makeTransfers(Graph graph, TransitStop ts0, List<NearbyStopFinder.StopAtDistance> nearbyStops) {
+        LOG.debug("Linking stop '{}' {}", ts0.getStop(), ts0);
 
-            /* Make transfers to each nearby stop that is the closest stop on some trip pattern. */
-            int n = 0;
-            for (NearbyStopFinder.StopAtDistance sd : nearbyStopFinder.findNearbyStopsConsideringPatterns(ts0)) {
-                /* Skip the origin stop, loop transfers are not needed. */
-                if (sd.tstop == ts0 || pathwayDestinations.contains(sd.tstop)) continue;
-                new SimpleTransfer(ts0, sd.tstop, sd.dist, sd.geom);
-                n += 1;
+        /* Determine the set of stops that are already reachable via other pathways or transfers */
+        Set<TransitStop> pathwayDestinations = new HashSet<TransitStop>();
+        for (Edge e : ts0.getOutgoing()) {
+            if (e instanceof PathwayEdge || e instanceof SimpleTransfer) {
+                if (e.getToVertex() instanceof TransitStop) {
+                    TransitStop to = (TransitStop) e.getToVertex();
+                    pathwayDestinations.add(to);
+                }
             }
-            LOG.debug("Linked stop {} to {} nearby stops on other patterns.", ts0.getStop(), n);
-            if (n == 0) {
-                LOG.debug(graph.addBuilderAnnotation(new StopNotLinkedForTransfers(ts0)));
+        }
+
+        /* Make transfers to each nearby stop that is the closest stop on some trip pattern. */
+        int n = 0;
+        for (NearbyStopFinder.StopAtDistance sd : nearbyStops) {
+            /* Skip the origin stop, loop transfers are not needed. */
+            if (sd.tstop == ts0 || pathwayDestinations.contains(sd.tstop)) continue;
+            new SimpleTransfer(ts0, sd.tstop, sd.dist, sd.geom);
+            n += 1;
+        }
+        LOG.debug("Linked stop {} to {} nearby stops on other patterns.", ts0.getStop(), n);
+        if (n == 0) {
+            LOG.debug(graph.addBuilderAnnotation(new StopNotLinkedForTransfers(ts0)));
+        }
+        return n;
+    }
+
+    /** The stops to make transfers to from one stop, sorted by distance then label so that edges are made in a stable order. */
+    private static class NearbyStops {
+
+        final TransitStop origin;
+
+        final long fingerprint;
+
+        final List<NearbyStopFinder.StopAtDistance> stops;
+
+        final boolean reused;
+
+        NearbyStops(TransitStop origin, long fingerprint, List<NearbyStopFinder.StopAtDistance> stops, boolean reused) {
+            this.origin = origin;
+            this.fingerprint = fingerprint;
+            this.stops = stops;
+            this.reused = reused;
+        }
+    }
+
+    /** Finds the nearby stops of a batch of stops, from the cache when their surroundings did not change. */
+    private static class NearbyStopsTask implements Callable<List<NearbyStops>> {
+
+        private final List<TransitStop> stops;
+
+        private final NearbyStopFinder nearbyStopFinder;
+
+        private final TransferCache cache;
+
+        NearbyStopsTask(List<TransitStop> stops, NearbyStopFinder nearbyStopFinder, TransferCache cache) {
+            this.stops = stops;
+            this.nearbyStopFinder = nearbyStopFinder;
+            this.cache = cache;
+        }
+
+        @Override
+        public List<NearbyStops> call() {
+            List<NearbyStops> result = new ArrayList<NearbyStops>(stops.size());
+            for (TransitStop ts0 : stops) {
+                long fingerprint = 0;
+                List<NearbyStopFinder.StopAtDistance> nearby = null;
+                if (cache != null) {
+                    fingerprint = cache.fingerprint(ts0);
+                    nearby = cache.get(ts0, fingerprint);
+                }
+                boolean reused = nearby != null;
+                if (!reused) {
+                    nearby = new ArrayList<NearbyStopFinder.StopAtDistance>(
+                            nearbyStopFinder.findNearbyStopsConsideringPatterns(ts0));
+                    Collections.sort(nearby, STOP_ORDER);
+                }
+                result.add(new NearbyStops(ts0, fingerprint, nearby, reused));
             }
-            nTransfersTotal += n;
+            return result;
         }
-        LOG.info("Done connecting stops to one another. Created a total of {} transfers from {} stops.", nTransfersTotal, nLinkableStops);
-        graph.hasDirectTransfers = true;
     }
 
+    private static final Comparator<NearbyStopFinder.StopAtDistance> STOP_ORDER =
+            new Comparator<NearbyStopFinder.StopAtDistance>() {
+        @Override
+        public int compare(NearbyStopFinder.StopAtDistance a, NearbyStopFinder.StopAtDistance b) {
+            int c = Double.compare(a.dist, b.dist);
+            return c != 0 ? c : a.tstop.getLabel().compareTo(b.tstop.getLabel());
+        }
+    };
+
     @Override
     public void checkInputs() {
         // No inputs
@@ -0,0 +1,52 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.util.HashMap;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkSet;
+import org.opentripplanner.routing.graph.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the street distances between every vertex and a few landmarks, and keeps them in the graph as a
+ * LandmarkSet service, which street searches then use for their remaining weight estimates.
+ */
+public class LandmarkModule implements GraphBuilderModule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LandmarkModule.class);
+
+    private final int nLandmarks;
+
+    public LandmarkModule(int nLandmarks) {
+        this.nLandmarks = nLandmarks;
+    }
+
+    public LandmarkModule() {
+        this(LandmarkSet.DEFAULT_LANDMARKS);
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        LOG.info("Computing distances to and from {} landmarks", nLandmarks);
+        graph.putService(LandmarkSet.class, LandmarkSet.build(graph, nLandmarks));
+    }
+
+    @Override
+    public void checkInputs() {
+        // nothing to do
+    }
+}
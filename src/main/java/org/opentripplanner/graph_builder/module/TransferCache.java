@@ -0,0 +1,284 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.HashGridSpatialIndex;
+import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTransitLink;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TransitStop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * The nearby stops found from each stop in an earlier graph build, kept in a file in the graph directory so that a
+ * rebuild only searches again from the stops whose surroundings changed.
+ *
+ * Each stop is keyed on a fingerprint of everything its search may look at: its own location, and every vertex
+ * within reach together with its outgoing street edges and transit links, the stops among these vertices and the
+ * sequences of stops of the patterns passing through them. Reach is bounded by the search radius, because no path
+ * along the streets is shorter than the straight line. A stop whose fingerprint is unchanged gets the stops found in
+ * the earlier build, any other stop is searched again.
+ *
+ * Fingerprints and lookups are thread-safe, put() and save() must be called from a single thread.
+ */
+public class TransferCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransferCache.class);
+
+    /** Change this whenever the fingerprint or the entries change, so that existing caches are discarded. */
+    private static final int CACHE_VERSION = 1;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final File file;
+
+    private final Graph graph;
+
+    private final boolean useStreets;
+
+    private final double radius;
+
+    private final Map<AgencyAndId, Entry> previous;
+
+    private final Map<AgencyAndId, Entry> current = new HashMap<AgencyAndId, Entry>();
+
+    private final HashGridSpatialIndex<Vertex> vertexIndex = new HashGridSpatialIndex<Vertex>();
+
+    /** The hashes of the indexed vertices, by vertex index. Neighbouring stops share most of their vertices. */
+    private final long[] vertexHashes = new long[Vertex.getMaxIndex()];
+
+    /**
+     * The graph index must already be built, and the graph must not change while the cache is in use.
+     *
+     * @param radius The distance in meters beyond which the search from a stop cannot see any change.
+     */
+    public TransferCache(File file, Graph graph, boolean useStreets, double radius) {
+        this.file = file;
+        this.graph = graph;
+        this.useStreets = useStreets;
+        this.radius = radius;
+        this.previous = read();
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof TransitStop || (useStreets && hasStreetEdges(v))) {
+                vertexIndex.insert(new Envelope(v.getCoordinate()), v);
+                vertexHashes[v.getIndex()] = hashVertex(v);
+            }
+        }
+    }
+
+    private static boolean hasStreetEdges(Vertex v) {
+        for (Edge e : v.getOutgoing()) {
+            if (e instanceof StreetEdge || e instanceof StreetTransitLink)
+                return true;
+        }
+        return false;
+    }
+
+    /** @return the number of stops found in the cache file. */
+    public int size() {
+        return previous.size();
+    }
+
+    /** @return a fingerprint of the stop and of everything within reach of it. */
+    public long fingerprint(TransitStop stop) {
+        Coordinate c = stop.getCoordinate();
+        Envelope env = new Envelope(c);
+        env.expandBy(SphericalDistanceLibrary.metersToLonDegrees(radius, c.y),
+                SphericalDistanceLibrary.metersToDegrees(radius));
+        /* The index returns vertices in no particular order, so their hashes are combined by a sum. */
+        long sum = 0;
+        int n = 0;
+        for (Vertex v : vertexIndex.query(env)) {
+            sum += vertexHashes[v.getIndex()];
+            n++;
+        }
+        return HASH.newHasher().putString(stop.getLabel()).putDouble(c.x).putDouble(c.y)
+                .putLong(sum).putInt(n).hash().asLong();
+    }
+
+    private long hashVertex(Vertex v) {
+        Hasher hasher = HASH.newHasher();
+        hasher.putString(v.getLabel()).putDouble(v.getX()).putDouble(v.getY());
+        if (v instanceof TransitStop) {
+            TransitStop ts = (TransitStop) v;
+            hasher.putBoolean(ts.isStreetLinkable());
+            long patterns = 0;
+            for (TripPattern pattern : graph.index.patternsForStop.get(ts.getStop())) {
+                Hasher patternHasher = HASH.newHasher();
+                for (Stop s : pattern.getStops()) {
+                    patternHasher.putString(s.getId().toString());
+                }
+                patterns += patternHasher.hash().asLong();
+            }
+            hasher.putLong(patterns);
+        }
+        if (useStreets) {
+            /* Outgoing edges are in the order they were created in, which is the same from one build to the next. */
+            for (Edge e : v.getOutgoing()) {
+                if (e instanceof StreetEdge) {
+                    StreetEdge se = (StreetEdge) e;
+                    hasher.putChar('S').putString(e.getToVertex().getLabel()).putDouble(se.getDistance())
+                            .putInt(se.getPermission().code).putBoolean(se.isWheelchairAccessible());
+                    LineString geometry = se.getGeometry();
+                    if (geometry != null) {
+                        for (Coordinate gc : geometry.getCoordinates()) {
+                            hasher.putDouble(gc.x).putDouble(gc.y);
+                        }
+                    }
+                } else if (e instanceof StreetTransitLink) {
+                    hasher.putChar('L').putString(e.getToVertex().getLabel());
+                }
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * @return the stops found from the given stop in the earlier build, or null if its fingerprint changed or one of
+     *         these stops is no longer in the graph.
+     */
+    public List<NearbyStopFinder.StopAtDistance> get(TransitStop stop, long fingerprint) {
+        Entry entry = previous.get(stop.getStopId());
+        if (entry == null || entry.fingerprint != fingerprint)
+            return null;
+        List<NearbyStopFinder.StopAtDistance> stops = new ArrayList<NearbyStopFinder.StopAtDistance>(
+                entry.stopIds.length);
+        for (int i = 0; i < entry.stopIds.length; i++) {
+            Stop s = graph.index.stopForId.get(entry.stopIds[i]);
+            TransitStop tstop = s == null ? null : graph.index.stopVertexForStop.get(s);
+            if (tstop == null)
+                return null;
+            NearbyStopFinder.StopAtDistance sd = new NearbyStopFinder.StopAtDistance(tstop, entry.distances[i]);
+            double[] coords = entry.geometries[i];
+            if (coords != null) {
+                sd.geom = GeometryUtils.getGeometryFactory().createLineString(
+                        new PackedCoordinateSequence.Double(coords, 2));
+            }
+            stops.add(sd);
+        }
+        return stops;
+    }
+
+    /** Record the stops found from the given stop, to be saved for the next build. */
+    public void put(TransitStop stop, long fingerprint, Collection<NearbyStopFinder.StopAtDistance> stops) {
+        Entry entry = new Entry();
+        entry.fingerprint = fingerprint;
+        entry.stopIds = new AgencyAndId[stops.size()];
+        entry.distances = new double[stops.size()];
+        entry.geometries = new double[stops.size()][];
+        int i = 0;
+        for (NearbyStopFinder.StopAtDistance sd : stops) {
+            entry.stopIds[i] = sd.tstop.getStopId();
+            entry.distances[i] = sd.dist;
+            if (sd.geom != null) {
+                Coordinate[] coordinates = sd.geom.getCoordinates();
+                double[] coords = new double[coordinates.length * 2];
+                for (int j = 0; j < coordinates.length; j++) {
+                    coords[j * 2] = coordinates[j].x;
+                    coords[j * 2 + 1] = coordinates[j].y;
+                }
+                entry.geometries[i] = coords;
+            }
+            i++;
+        }
+        current.put(stop.getStopId(), entry);
+    }
+
+    /** Replace the cache file with the stops recorded in this build. */
+    public void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(CACHE_VERSION);
+                out.writeBoolean(useStreets);
+                out.writeDouble(radius);
+                out.writeObject(current);
+            } finally {
+                out.close();
+            }
+            // Moved in place last, so that an interrupted build never leaves a partial cache.
+            Files.move(tmp, file);
+            LOG.info("Saved nearby stops of {} stops to {}", current.size(), file);
+        } catch (IOException e) {
+            LOG.warn("Could not save nearby stops to {}: {}", file, e.toString());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<AgencyAndId, Entry> read() {
+        if (!file.isFile())
+            return new HashMap<AgencyAndId, Entry>();
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() == CACHE_VERSION && in.readBoolean() == useStreets && in.readDouble() == radius) {
+                    return (Map<AgencyAndId, Entry>) in.readObject();
+                }
+                LOG.info("Nearby stops in {} were found with other settings, not reusing them.", file);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            LOG.warn("Could not read nearby stops from {}: {}", file, e.toString());
+        }
+        return new HashMap<AgencyAndId, Entry>();
+    }
+
+    /** The nearby stops of one stop, with the geometries as x, y pairs. */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        long fingerprint;
+
+        AgencyAndId[] stopIds;
+
+        double[] distances;
+
+        double[][] geometries;
+    }
+}
@@ -15,10 +15,12 @@ package org.opentripplanner.graph_builder.module.ned;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.media.jai.InterpolationBilinear;
 
@@ -26,6 +28,7 @@ import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.Interpolator2D;
 import org.geotools.geometry.DirectPosition2D;
 import org.opengis.coverage.Coverage;
+import org.opentripplanner.common.OrderedTaskPipeline;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.pqueue.BinHeap;
@@ -33,6 +36,7 @@ import org.opentripplanner.graph_builder.annotation.ElevationFlattened;
 import org.opentripplanner.graph_builder.module.extra_elevation_data.ElevationPoint;
 import org.opentripplanner.graph_builder.services.GraphBuilderModule;
 import org.opentripplanner.graph_builder.services.ned.ElevationGridCoverageFactory;
+import org.opentripplanner.routing.core.MortonVertexComparator;
 import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.StreetWithElevationEdge;
 import org.opentripplanner.routing.graph.Edge;
@@ -53,14 +57,27 @@ import com.vividsolutions.jts.geom.Geometry;
  * where each (x,y) pair represents one sample, with the x-coord representing the distance along
  * the edge measured from the start, and the y-coord representing the sampled elevation at that
  * point (both in meters).
+ *
+ * When the coverage is made of affine grids, as NED and GeoTIFF data are, edges are sampled in parallel through a
+ * {@link TiledCoverageSampler}, in spatial order so that neighboring edges read the same raster tiles. Profiles are
+ * then applied to the edges in graph order on the calling thread.
  */
 public class ElevationModule implements GraphBuilderModule {
     private static final Logger log = LoggerFactory.getLogger(ElevationModule.class);
 
     private ElevationGridCoverageFactory gridCoverageFactory;
 
+    private static final int EDGE_BATCH_SIZE = 1000;
+
     private Coverage coverage;
 
+    /* Null when the coverage must be sampled point by point through GeoTools. */
+    private TiledCoverageSampler sampler;
+
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private int maxTiles = TiledCoverageSampler.DEFAULT_MAX_TILES;
+
     /**
      * The distance between samples in meters. Defaults to 10m, the approximate resolution of 1/3
      * arc-second NED data.
@@ -89,6 +106,16 @@ public class ElevationModule implements GraphBuilderModule {
         distanceBetweenSamplesM = distance;
     }
 
+    /** The number of threads sampling edges, when the coverage can be read by tiles. */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /** The maximum number of raster tiles kept in memory. */
+    public void setMaxTiles(int maxTiles) {
+        this.maxTiles = maxTiles;
+    }
+
     @Override
     public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
         gridCoverageFactory.setGraph(graph);
@@ -99,24 +126,29 @@ public class ElevationModule implements GraphBuilderModule {
         // interpolation internally)
         coverage = (gridCov instanceof GridCoverage2D) ? Interpolator2D.create(
                 (GridCoverage2D) gridCov, new InterpolationBilinear()) : gridCov;
+        sampler = TiledCoverageSampler.create(gridCov, maxTiles);
         log.info("setting street elevation profiles from NED data...");
-        List<StreetEdge> edgesWithElevation = new ArrayList<StreetEdge>();
-        int nProcessed = 0;
-        int nTotal = graph.countEdges();
+        List<StreetWithElevationEdge> edges = new ArrayList<StreetWithElevationEdge>();
         for (Vertex gv : graph.getVertices()) {
             for (Edge ee : gv.getOutgoing()) {
                 if (ee instanceof StreetWithElevationEdge) {
-                    StreetWithElevationEdge edgeWithElevation = (StreetWithElevationEdge) ee;
-                    processEdge(graph, edgeWithElevation);
-                    if (edgeWithElevation.getElevationProfile() != null && !edgeWithElevation.isElevationFlattened()) {
-                        edgesWithElevation.add(edgeWithElevation);
-                    }
-                    nProcessed += 1;
-                    if (nProcessed % 50000 == 0)
-                        log.info("set elevation on {}/{} edges", nProcessed, nTotal);
+                    edges.add((StreetWithElevationEdge) ee);
                 }
             }
         }
+        PackedCoordinateSequence[] profiles = (sampler == null || threadCount <= 1) ? computeProfiles(edges)
+                : computeProfilesInParallel(edges);
+
+        List<StreetEdge> edgesWithElevation = new ArrayList<StreetEdge>();
+        for (int i = 0; i < edges.size(); i++) {
+            StreetWithElevationEdge edgeWithElevation = edges.get(i);
+            if (profiles[i] != null && edgeWithElevation.setElevationProfile(profiles[i], false)) {
+                log.trace(graph.addBuilderAnnotation(new ElevationFlattened(edgeWithElevation)));
+            }
+            if (edgeWithElevation.getElevationProfile() != null && !edgeWithElevation.isElevationFlattened()) {
+                edgesWithElevation.add(edgeWithElevation);
+            }
+        }
 
         @SuppressWarnings("unchecked")
         HashMap<Vertex, Double> extraElevation = (HashMap<Vertex, Double>) extra.get(ElevationPoint.class);
@@ -318,15 +350,80 @@ public class ElevationModule implements GraphBuilderModule {
         }
     }
 
+    /** Compute the elevation profiles of the edges one after the other. */
+    private PackedCoordinateSequence[] computeProfiles(List<StreetWithElevationEdge> edges) {
+        PackedCoordinateSequence[] profiles = new PackedCoordinateSequence[edges.size()];
+        for (int i = 0; i < edges.size(); i++) {
+            profiles[i] = computeProfile(edges.get(i));
+            if ((i + 1) % 50000 == 0)
+                log.info("set elevation on {}/{} edges", i + 1, edges.size());
+        }
+        return profiles;
+    }
+
+    /**
+     * Compute the elevation profiles of the edges in batches of nearby edges, on a pool of threads. Each batch fills
+     * its own slots of the result array.
+     */
+    private PackedCoordinateSequence[] computeProfilesInParallel(final List<StreetWithElevationEdge> edges) {
+        final PackedCoordinateSequence[] profiles = new PackedCoordinateSequence[edges.size()];
+        if (edges.isEmpty())
+            return profiles;
+        List<Vertex> fromVertices = new ArrayList<Vertex>(edges.size());
+        Integer[] order = new Integer[edges.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            fromVertices.add(edges.get(i).getFromVertex());
+        }
+        final MortonVertexComparator mortonComparator = new MortonVertexComparator(fromVertices);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i0, Integer i1) {
+                return mortonComparator.compare(edges.get(i0).getFromVertex(), edges.get(i1).getFromVertex());
+            }
+        });
+
+        OrderedTaskPipeline<Integer> pipeline = new OrderedTaskPipeline<Integer>(threadCount, "elevation-%d");
+        int nProcessed = 0;
+        try {
+            for (int start = 0; start < order.length; start += EDGE_BATCH_SIZE) {
+                if (pipeline.isFull())
+                    nProcessed = logProgress(pipeline.next(), nProcessed, edges.size());
+                final Integer[] batch = Arrays.copyOfRange(order, start,
+                        Math.min(start + EDGE_BATCH_SIZE, order.length));
+                pipeline.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        for (int i : batch)
+                            profiles[i] = computeProfile(edges.get(i));
+                        return batch.length;
+                    }
+                });
+            }
+            while (!pipeline.isEmpty())
+                nProcessed = logProgress(pipeline.next(), nProcessed, edges.size());
+        } finally {
+            pipeline.close();
+        }
+        return profiles;
+    }
+
+    private int logProgress(int n, int nProcessed, int nTotal) {
+        if ((nProcessed + n) / 50000 > nProcessed / 50000)
+            log.info("set elevation on {}/{} edges", nProcessed + n, nTotal);
+        return nProcessed + n;
+    }
+
     /**
-     * Processes a single street edge, creating and assigning the elevation profile.
+     * Computes the elevation profile of a single street edge, without assigning it. Called on several threads when
+     * sampling through tiles.
      * 
      * @param ee the street edge
-     * @param graph the graph (used only for error handling)
+     * @return the profile, or null if the edge already has one
      */
-    private void processEdge(Graph graph, StreetWithElevationEdge ee) {
+    private PackedCoordinateSequence computeProfile(StreetWithElevationEdge ee) {
         if (ee.getElevationProfile() != null) {
-            return; /* already set up */
+            return null; /* already set up */
         }
         Geometry g = ee.getGeometry();
         Coordinate[] coords = g.getCoordinates();
@@ -359,12 +456,7 @@ public class ElevationModule implements GraphBuilderModule {
 
         // construct the PCS
         Coordinate coordArr[] = new Coordinate[coordList.size()];
-        PackedCoordinateSequence elevPCS = new PackedCoordinateSequence.Double(
-                coordList.toArray(coordArr));
-
-        if(ee.setElevationProfile(elevPCS, false)) {
-            log.trace(graph.addBuilderAnnotation(new ElevationFlattened(ee)));
-        }
+        return new PackedCoordinateSequence.Double(coordList.toArray(coordArr));
     }
 
     /**
@@ -430,6 +522,9 @@ public class ElevationModule implements GraphBuilderModule {
      * @return elevation in meters
      */
     private double getElevation(double x, double y) {
+        if (sampler != null) {
+            return sampler.getElevation(x, y);
+        }
         double values[] = new double[1];
         try {
             coverage.evaluate(new DirectPosition2D(x, y), values);
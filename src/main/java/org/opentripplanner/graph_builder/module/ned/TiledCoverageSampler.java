@@ -0,0 +1,262 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.ned;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.coverage.Coverage;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Samples elevation rasters without going through GridCoverage2D.evaluate for each point. The rasters are read in
+ * square tiles of float samples, which are kept in a shared LRU cache, and interpolated bilinearly between pixel
+ * centers, as Interpolator2D does with InterpolationBilinear. Streets close to each other use the same few tiles, so
+ * when edges are sampled in spatial order most samples are read from a tile already in memory.
+ *
+ * Both plain grid coverages (GeoTIFF) and the UnifiedGridCoverage of NED regions are supported. As in
+ * UnifiedGridCoverage, the first region containing a point is used, and the first vertical datum covering it is
+ * applied. Samples are only supported for grids whose transform to world coordinates is affine, which is the case
+ * for the NED and GeoTIFF files we read; create() returns null for other coverages.
+ *
+ * Sampling is thread-safe.
+ */
+public class TiledCoverageSampler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TiledCoverageSampler.class);
+
+    /** Width and height of the tiles in pixels. */
+    public static final int TILE_SIZE = 256;
+
+    /** 256 tiles of 256x256 floats take 64MB. */
+    public static final int DEFAULT_MAX_TILES = 256;
+
+    private final List<Region> regions;
+
+    /* Null when no datum shift is applied (plain grid coverages). */
+    private final List<VerticalDatum> datums;
+
+    private final LoadingCache<Long, float[]> tiles;
+
+    private TiledCoverageSampler(List<Region> regions, List<VerticalDatum> datums, int maxTiles) {
+        this.regions = regions;
+        this.datums = datums;
+        this.tiles = CacheBuilder.newBuilder().maximumSize(maxTiles).build(new CacheLoader<Long, float[]>() {
+            @Override
+            public float[] load(Long key) {
+                long k = key;
+                return TiledCoverageSampler.this.regions.get((int) (k >>> 48)).loadTile(
+                        (int) (k & 0xFFFFFF), (int) ((k >>> 24) & 0xFFFFFF));
+            }
+        });
+    }
+
+    /**
+     * @param maxTiles The maximum number of tiles kept in memory.
+     * @return a sampler for the coverage, or null if the coverage is not made of grids with an affine transform.
+     */
+    public static TiledCoverageSampler create(Coverage coverage, int maxTiles) {
+        List<Coverage> coverages;
+        List<VerticalDatum> datums = null;
+        if (coverage instanceof UnifiedGridCoverage) {
+            coverages = ((UnifiedGridCoverage) coverage).getRegions();
+            datums = ((UnifiedGridCoverage) coverage).getDatums();
+        } else {
+            coverages = Collections.singletonList(coverage);
+        }
+        List<Region> regions = new ArrayList<Region>();
+        for (Coverage c : coverages) {
+            if (!(c instanceof GridCoverage2D))
+                return null;
+            Region region = Region.forCoverage((GridCoverage2D) c, regions.size());
+            if (region == null)
+                return null;
+            regions.add(region);
+        }
+        return new TiledCoverageSampler(regions, datums, maxTiles);
+    }
+
+    /**
+     * @param x the query longitude (NAD83)
+     * @param y the query latitude (NAD83)
+     * @return elevation in meters, or 0 if the point is outside the coverage.
+     */
+    public double getElevation(double x, double y) {
+        for (Region region : regions) {
+            if (!region.contains(x, y))
+                continue;
+            double elevation = interpolate(region, x, y);
+            if (Double.isNaN(elevation))
+                continue;
+            if (datums == null)
+                return elevation;
+            for (VerticalDatum datum : datums) {
+                if (datum.covers(x, y))
+                    return elevation + datum.interpolatedHeight(x, y);
+            }
+            LOG.error("Failed to convert elevation at {}, {} from NAVD88 to NAD83", y, x);
+            return elevation;
+        }
+        if (datums != null)
+            LOG.warn("Point not found: {}, {}", y, x);
+        return 0;
+    }
+
+    /**
+     * Bilinear interpolation between the four pixel centers around the point, clamped to the edges of the grid. Pixels
+     * without data are left out, and NaN is returned if none of the four has data.
+     */
+    private double interpolate(Region region, double x, double y) {
+        Point2D grid = region.worldToGrid.transform(new Point2D.Double(x, y), null);
+        double gx = grid.getX() - region.minX;
+        double gy = grid.getY() - region.minY;
+        int col0 = (int) Math.floor(gx);
+        int row0 = (int) Math.floor(gy);
+        double fx = gx - col0;
+        double fy = gy - row0;
+        int col1 = clamp(col0 + 1, region.width);
+        int row1 = clamp(row0 + 1, region.height);
+        col0 = clamp(col0, region.width);
+        row0 = clamp(row0, region.height);
+
+        double sum = 0, weights = 0;
+        float[] tile = null;
+        long tileKey = -1;
+        for (int i = 0; i < 4; i++) {
+            int col = (i & 1) == 0 ? col0 : col1;
+            int row = (i & 2) == 0 ? row0 : row1;
+            double weight = ((i & 1) == 0 ? 1 - fx : fx) * ((i & 2) == 0 ? 1 - fy : fy);
+            if (weight == 0)
+                continue;
+            int tx = col / TILE_SIZE, ty = row / TILE_SIZE;
+            long key = ((long) region.index << 48) | ((long) ty << 24) | tx;
+            if (key != tileKey) {
+                tile = tiles.getUnchecked(key);
+                tileKey = key;
+            }
+            float sample = tile[(row - ty * TILE_SIZE) * region.tileWidth(tx) + (col - tx * TILE_SIZE)];
+            if (region.isNoData(sample))
+                continue;
+            sum += weight * sample;
+            weights += weight;
+        }
+        return weights == 0 ? Double.NaN : sum / weights;
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    /** One grid coverage, with what is needed to read its samples. */
+    private static class Region {
+
+        final int index;
+
+        final RenderedImage image;
+
+        /* From world coordinates to grid coordinates, with integer coordinates at pixel centers. */
+        final AffineTransform worldToGrid;
+
+        final double minLon, minLat, maxLon, maxLat;
+
+        /* The grid coordinates of the upper left pixel, and the size of the grid. */
+        final int minX, minY, width, height;
+
+        final double[] noDataValues;
+
+        private Region(int index, RenderedImage image, AffineTransform worldToGrid, Envelope2D envelope,
+                double[] noDataValues) {
+            this.index = index;
+            this.image = image;
+            this.worldToGrid = worldToGrid;
+            this.minLon = envelope.getMinX();
+            this.minLat = envelope.getMinY();
+            this.maxLon = envelope.getMaxX();
+            this.maxLat = envelope.getMaxY();
+            this.minX = image.getMinX();
+            this.minY = image.getMinY();
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.noDataValues = noDataValues;
+        }
+
+        static Region forCoverage(GridCoverage2D coverage, int index) {
+            MathTransform2D transform = coverage.getGridGeometry().getCRSToGrid2D(PixelOrientation.CENTER);
+            if (!(transform instanceof AffineTransform)) {
+                LOG.info("Grid of {} is not affine, elevation will be sampled point by point.", coverage.getName());
+                return null;
+            }
+            double[] noDataValues = null;
+            try {
+                GridSampleDimension sampleDimension = coverage.getSampleDimension(0);
+                noDataValues = sampleDimension.getNoDataValues();
+            } catch (IllegalStateException e) {
+                LOG.warn("Could not read no-data values of {}, using all samples.", coverage.getName());
+            }
+            return new Region(index, coverage.getRenderedImage(), (AffineTransform) transform,
+                    coverage.getEnvelope2D(), noDataValues);
+        }
+
+        boolean contains(double lon, double lat) {
+            return lon >= minLon && lon <= maxLon && lat >= minLat && lat <= maxLat;
+        }
+
+        boolean isNoData(float sample) {
+            if (Float.isNaN(sample))
+                return true;
+            if (noDataValues != null) {
+                for (double noData : noDataValues) {
+                    if (sample == (float) noData)
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        int tileWidth(int tx) {
+            return Math.min(TILE_SIZE, width - tx * TILE_SIZE);
+        }
+
+        /**
+         * Read the samples of one tile, row by row. Image implementations are not all safe for concurrent reads,
+         * so reads from the same image are serialized; they are rare compared to samples.
+         */
+        float[] loadTile(int tx, int ty) {
+            int x = minX + tx * TILE_SIZE;
+            int y = minY + ty * TILE_SIZE;
+            int w = tileWidth(tx);
+            int h = Math.min(TILE_SIZE, height - ty * TILE_SIZE);
+            java.awt.image.Raster data;
+            synchronized (this) {
+                data = image.getData(new Rectangle(x, y, w, h));
+            }
+            return data.getSamples(x, y, w, h, 0, new float[w * h]);
+        }
+    }
+}
@@ -105,4 +105,13 @@ public class UnifiedGridCoverage extends AbstractCoverage {
         regions.add(regionCoverage);
     }
 
+    /** The coverages stitched together, in the order they are searched. */
+    List<Coverage> getRegions() {
+        return regions;
+    }
+
+    List<VerticalDatum> getDatums() {
+        return datums;
+    }
+
 }
@@ -0,0 +1,110 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.osm;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.openstreetmap.model.OSMNode;
+
+/**
+ * Compact storage for the OSM nodes of an OSMDatabase. Rather than keeping one OSMNode object (with its own tag map)
+ * per node, the OSM IDs are mapped to an index in parallel primitive arrays holding the coordinates, in fixed-point
+ * 1e-7 degrees as in the OSM database itself, and the index of the node's tag set. Most tagged nodes share a handful
+ * of tag combinations (crossings, traffic signals...), so each distinct tag set is stored only once.
+ *
+ * OSMNode objects are created on demand by get(), and are not kept. Nodes are immutable once stored. Reading from
+ * several threads is safe once all nodes are stored.
+ */
+public class OSMNodeStore {
+
+    private static final double FIXED_PRECISION = 1e7;
+
+    private static final int NO_TAGS = -1;
+
+    private final TLongIntMap indexForId = new TLongIntHashMap(100000, 0.5f, Long.MIN_VALUE, -1);
+
+    private int[] fixedLats = new int[1024];
+
+    private int[] fixedLons = new int[1024];
+
+    private int[] tagSets = new int[1024];
+
+    private int size = 0;
+
+    /* The distinct tag sets, read-only, and the index of each of them in this list. */
+    private final List<Map<String, String>> tagSetDictionary = new ArrayList<Map<String, String>>();
+
+    private final Map<Map<String, String>, Integer> tagSetIndexes = new HashMap<Map<String, String>, Integer>();
+
+    /** Store a node, unless a node with the same ID is already stored. */
+    public void put(OSMNode node) {
+        if (indexForId.containsKey(node.getId()))
+            return;
+        if (size == fixedLats.length) {
+            int capacity = size * 3 / 2;
+            fixedLats = Arrays.copyOf(fixedLats, capacity);
+            fixedLons = Arrays.copyOf(fixedLons, capacity);
+            tagSets = Arrays.copyOf(tagSets, capacity);
+        }
+        fixedLats[size] = (int) Math.round(node.lat * FIXED_PRECISION);
+        fixedLons[size] = (int) Math.round(node.lon * FIXED_PRECISION);
+        tagSets[size] = internTags(node.getTags());
+        indexForId.put(node.getId(), size);
+        size++;
+    }
+
+    /** @return a new OSMNode for the given ID, or null if no such node is stored. */
+    public OSMNode get(long id) {
+        int i = indexForId.get(id);
+        if (i == -1)
+            return null;
+        OSMNode node = new OSMNode();
+        node.setId(id);
+        node.lat = fixedLats[i] / FIXED_PRECISION;
+        node.lon = fixedLons[i] / FIXED_PRECISION;
+        if (tagSets[i] != NO_TAGS)
+            node.setTags(tagSetDictionary.get(tagSets[i]));
+        return node;
+    }
+
+    public boolean contains(long id) {
+        return indexForId.containsKey(id);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int internTags(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty())
+            return NO_TAGS;
+        Integer index = tagSetIndexes.get(tags);
+        if (index == null) {
+            // Shared between nodes, so it must not be modified through any of them.
+            Map<String, String> tagSet = Collections.unmodifiableMap(new HashMap<String, String>(tags));
+            index = tagSetDictionary.size();
+            tagSetDictionary.add(tagSet);
+            tagSetIndexes.put(tagSet, index);
+        }
+        return index;
+    }
+}
@@ -13,16 +13,23 @@
 
 package org.opentripplanner.graph_builder.module.osm;
 
+import gnu.trove.TCollections;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
+import org.opentripplanner.common.OrderedTaskPipeline;
 import org.opentripplanner.common.TurnRestriction;
 import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
@@ -92,6 +99,9 @@ public class OpenStreetMapModule implements GraphBuilderModule {
 
     private static Logger LOG = LoggerFactory.getLogger(OpenStreetMapModule.class);
 
+    /** The number of ways handed over to a thread at once when building the street graph. */
+    private static final int WAY_BATCH_SIZE = 1000;
+
     // Private members that are only read or written internally.
 
     private Set<Object> _uniques = new HashSet<Object>();
@@ -100,6 +110,11 @@ public class OpenStreetMapModule implements GraphBuilderModule {
 
     public boolean skipVisibility = false;
 
+    /**
+     * The maximum number of visibility points in a walkable area, see WalkableAreaBuilder.
+     */
+    public int maxAreaNodes = WalkableAreaBuilder.DEFAULT_MAX_AREA_NODES;
+
     // Members that can be set by clients.
 
     /**
@@ -143,6 +158,11 @@ public class OpenStreetMapModule implements GraphBuilderModule {
      */
     public boolean staticBikeParkAndRide = false;
 
+    /**
+     * The number of threads used to split ways into street segments and to compute area visibility.
+     */
+    public int threadCount = Runtime.getRuntime().availableProcessors();
+
     public List<String> provides() {
         return Arrays.asList("streets", "turns");
     }
@@ -233,6 +253,10 @@ public class OpenStreetMapModule implements GraphBuilderModule {
         // track OSM nodes that will become graph vertices because they appear in multiple OSM ways
         private Map<Long, IntersectionVertex> intersectionNodes = new HashMap<Long, IntersectionVertex>();
 
+        // the ids of the nodes found by initIntersectionNodes, frozen before the ways are split on worker threads
+        // while intersectionNodes keeps growing on the building thread
+        private TLongSet intersectionNodeIds;
+
         // track vertices to be removed in the turn-graph conversion.
         // this is a superset of intersectionNodes.values, which contains
         // a null vertex reference for multilevel nodes. the individual vertices
@@ -409,10 +433,8 @@ public class OpenStreetMapModule implements GraphBuilderModule {
             LOG.info("Building visibility graphs for walkable areas.");
             List<AreaGroup> areaGroups = groupAreas(osmdb.getWalkableAreas());
             WalkableAreaBuilder walkableAreaBuilder = new WalkableAreaBuilder(graph, osmdb,
-                    wayPropertySet, edgeFactory, this);
-            for (AreaGroup group : areaGroups) {
-                walkableAreaBuilder.build(group);
-            }
+                    wayPropertySet, edgeFactory, this, maxAreaNodes);
+            walkableAreaBuilder.buildAll(areaGroups, threadCount);
             
             // running a request caches the timezone; we need to clear it now so that when agencies are loaded
             // the graph time zone is set to the agency time zone.
@@ -514,155 +536,195 @@ public class OpenStreetMapModule implements GraphBuilderModule {
             return AreaGroup.groupAreas(areasLevels);
         }
 
+        /**
+         * Build the street segment graph from OSM ways, in two phases. Splitting the ways into segments and matching
+         * their tags against the way property set is done on a pool of threads, a batch of ways at a time. The
+         * vertices and edges are then created on this thread, in the order of the ways, so that the graph does not
+         * depend on the number of threads.
+         */
         private void buildBasicGraph() {
-
-            /* build the street segment graph from OSM ways */
             long wayIndex = 0;
             long wayCount = osmdb.getWays().size();
 
-            WAY:
-            for (OSMWay way : osmdb.getWays()) {
-
-                if (wayIndex % 10000 == 0)
-                    LOG.debug("ways=" + wayIndex + "/" + wayCount);
-                wayIndex++;
-
-                WayProperties wayData = wayPropertySet.getDataForWay(way);
-
-                setWayName(way);
-
-                StreetTraversalPermission permissions = OSMFilter.getPermissionsForWay(way,
-                        wayData.getPermission(), graph);
-                if (!OSMFilter.isWayRoutable(way) || permissions.allowsNothing())
-                    continue;
-
-                // handle duplicate nodes in OSM ways
-                // this is a workaround for crappy OSM data quality
-                ArrayList<Long> nodes = new ArrayList<Long>(way.getNodeRefs().size());
-                long last = -1;
-                double lastLat = -1, lastLon = -1;
-                String lastLevel = null;
-                for (long nodeId : way.getNodeRefs()) {
-                    OSMNode node = osmdb.getNode(nodeId);
-                    if (node == null)
-                        continue WAY;
-                    boolean levelsDiffer = false;
-                    String level = node.getTag("level");
-                    if (lastLevel == null) {
-                        if (level != null) {
-                            levelsDiffer = true;
-                        }
-                    } else {
-                        if (!lastLevel.equals(level)) {
-                            levelsDiffer = true;
-                        }
+            OrderedTaskPipeline<List<PreparedWay>> pipeline = new OrderedTaskPipeline<List<PreparedWay>>(
+                    threadCount, "osm-ways-%d");
+            try {
+                Iterator<OSMWay> ways = osmdb.getWays().iterator();
+                while (ways.hasNext() || !pipeline.isEmpty()) {
+                    // Keep a bounded number of batches ahead of the graph construction
+                    while (ways.hasNext() && !pipeline.isFull()) {
+                        final List<OSMWay> batch = new ArrayList<OSMWay>(WAY_BATCH_SIZE);
+                        while (ways.hasNext() && batch.size() < WAY_BATCH_SIZE)
+                            batch.add(ways.next());
+                        pipeline.submit(new Callable<List<PreparedWay>>() {
+                            @Override
+                            public List<PreparedWay> call() {
+                                List<PreparedWay> prepared = new ArrayList<PreparedWay>(batch.size());
+                                for (OSMWay way : batch)
+                                    prepared.add(prepareWay(way));
+                                return prepared;
+                            }
+                        });
+                    }
+                    for (PreparedWay prepared : pipeline.next()) {
+                        if (wayIndex % 10000 == 0)
+                            LOG.debug("ways=" + wayIndex + "/" + wayCount);
+                        wayIndex++;
+                        buildStreets(prepared);
                     }
-                    if (nodeId != last
-                            && (node.lat != lastLat || node.lon != lastLon || levelsDiffer))
-                        nodes.add(nodeId);
-                    last = nodeId;
-                    lastLon = node.lon;
-                    lastLat = node.lat;
-                    lastLevel = level;
                 }
+            } finally {
+                pipeline.close();
+            }
+        }
 
-                IntersectionVertex startEndpoint = null, endEndpoint = null;
-
-                ArrayList<Coordinate> segmentCoordinates = new ArrayList<Coordinate>();
-
-                /*
-                 * Traverse through all the nodes of this edge. For nodes which are not shared with any other edge, do not create endpoints -- just
-                 * accumulate them for geometry and ele tags. For nodes which are shared, create endpoints and StreetVertex instances. One exception:
-                 * if the next vertex also appears earlier in the way, we need to split the way, because otherwise we have a way that loops from a
-                 * vertex to itself, which could cause issues with splitting.
-                 */
-                Long startNode = null;
-                // where the current edge should start
-                OSMNode osmStartNode = null;
-
-                for (int i = 0; i < nodes.size() - 1; i++) {
-                    OSMNode segmentStartOSMNode = osmdb.getNode(nodes.get(i));
-                    if (segmentStartOSMNode == null) {
-                        continue;
+        /**
+         * First phase of the street graph construction, called on the worker threads. Only reads shared state that
+         * is not modified while the pool runs: the intersection nodes are read from the intersectionNodeIds snapshot,
+         * never from intersectionNodes, which grows on the building thread. The nodes it gains while building the
+         * streets already belong to several ways, or are split at because of their tags, so the snapshot is enough.
+         */
+        private PreparedWay prepareWay(OSMWay way) {
+            PreparedWay prepared = new PreparedWay(way);
+            prepared.wayData = wayPropertySet.getDataForWay(way);
+
+            setWayName(way);
+
+            if (!OSMFilter.isWayRoutable(way))
+                return prepared;
+
+            // handle duplicate nodes in OSM ways
+            // this is a workaround for crappy OSM data quality
+            List<OSMNode> nodes = new ArrayList<OSMNode>(way.getNodeRefs().size());
+            long last = -1;
+            double lastLat = -1, lastLon = -1;
+            String lastLevel = null;
+            for (long nodeId : way.getNodeRefs()) {
+                OSMNode node = osmdb.getNode(nodeId);
+                if (node == null)
+                    return prepared;
+                boolean levelsDiffer = false;
+                String level = node.getTag("level");
+                if (lastLevel == null) {
+                    if (level != null) {
+                        levelsDiffer = true;
                     }
-                    Long endNode = nodes.get(i + 1);
-                    if (osmStartNode == null) {
-                        startNode = nodes.get(i);
-                        osmStartNode = segmentStartOSMNode;
+                } else {
+                    if (!lastLevel.equals(level)) {
+                        levelsDiffer = true;
                     }
-                    // where the current edge might end
-                    OSMNode osmEndNode = osmdb.getNode(endNode);
+                }
+                if (nodeId != last
+                        && (node.lat != lastLat || node.lon != lastLon || levelsDiffer))
+                    nodes.add(node);
+                last = nodeId;
+                lastLon = node.lon;
+                lastLat = node.lat;
+                lastLevel = level;
+            }
 
-                    if (osmStartNode == null || osmEndNode == null)
-                        continue;
+            prepared.segments = new ArrayList<Segment>();
+            prepared.notes = wayPropertySet.getNoteForWay(way);
 
-                    LineString geometry;
+            ArrayList<Coordinate> segmentCoordinates = new ArrayList<Coordinate>();
+            TLongSet previousNodes = new TLongHashSet();
 
-                    /*
-                     * We split segments at intersections, self-intersections, nodes with ele tags, and transit stops;
-                     * the only processing we do on other nodes is to accumulate their geometry
-                     */
-                    if (segmentCoordinates.size() == 0) {
-                        segmentCoordinates.add(getCoordinate(osmStartNode));
-                    }
+            /*
+             * Traverse through all the nodes of this edge. For nodes which are not shared with any other edge, do not create endpoints -- just
+             * accumulate them for geometry and ele tags. For nodes which are shared, create endpoints and StreetVertex instances. One exception:
+             * if the next vertex also appears earlier in the way, we need to split the way, because otherwise we have a way that loops from a
+             * vertex to itself, which could cause issues with splitting.
+             */
+            // where the current edge should start
+            OSMNode osmStartNode = null;
 
-                    if (intersectionNodes.containsKey(endNode) || i == nodes.size() - 2
-                            || nodes.subList(0, i).contains(nodes.get(i))
-                            || osmEndNode.hasTag("ele")
-                            || osmEndNode.isStop()) {
-                        segmentCoordinates.add(getCoordinate(osmEndNode));
+            for (int i = 0; i < nodes.size() - 1; i++) {
+                if (osmStartNode == null) {
+                    osmStartNode = nodes.get(i);
+                }
+                boolean seenBefore = !previousNodes.add(nodes.get(i).getId());
+                // where the current edge might end
+                OSMNode osmEndNode = nodes.get(i + 1);
 
-                        geometry = GeometryUtils.getGeometryFactory().createLineString(
-                                segmentCoordinates.toArray(new Coordinate[0]));
-                        segmentCoordinates.clear();
-                    } else {
-                        segmentCoordinates.add(getCoordinate(osmEndNode));
-                        continue;
-                    }
+                /*
+                 * We split segments at intersections, self-intersections, nodes with ele tags, and transit stops;
+                 * the only processing we do on other nodes is to accumulate their geometry
+                 */
+                if (segmentCoordinates.size() == 0) {
+                    segmentCoordinates.add(getCoordinate(osmStartNode));
+                }
+                segmentCoordinates.add(getCoordinate(osmEndNode));
+
+                if (intersectionNodeIds.contains(osmEndNode.getId()) || i == nodes.size() - 2
+                        || seenBefore
+                        || osmEndNode.hasTag("ele")
+                        || osmEndNode.isStop()) {
+                    LineString geometry = GeometryUtils.getGeometryFactory().createLineString(
+                            segmentCoordinates.toArray(new Coordinate[0]));
+                    segmentCoordinates.clear();
+                    prepared.segments.add(new Segment(i, osmStartNode, osmEndNode, geometry));
+                    osmStartNode = osmEndNode;
+                }
+            }
+            return prepared;
+        }
 
-                    /* generate endpoints */
-                    if (startEndpoint == null) { // first iteration on this way
-                        // make or get a shared vertex for flat intersections,
-                        // one vertex per level for multilevel nodes like elevators
-                        startEndpoint = getVertexForOsmNode(osmStartNode, way);
-                        String ele = segmentStartOSMNode.getTag("ele");
-                        if (ele != null) {
-                            Double elevation = ElevationUtils.parseEleTag(ele);
-                            if (elevation != null) {
-                                elevationData.put(startEndpoint, elevation);
-                            }
-                        }
-                    } else { // subsequent iterations
-                        startEndpoint = endEndpoint;
-                    }
+        /** Second phase of the street graph construction: create the vertices and edges of one way. */
+        private void buildStreets(PreparedWay prepared) {
+            OSMWay way = prepared.way;
+            WayProperties wayData = prepared.wayData;
+
+            StreetTraversalPermission permissions = OSMFilter.getPermissionsForWay(way,
+                    wayData.getPermission(), graph);
+            if (!OSMFilter.isWayRoutable(way) || permissions.allowsNothing()
+                    || prepared.segments == null)
+                return;
+
+            IntersectionVertex startEndpoint = null, endEndpoint = null;
+            for (Segment segment : prepared.segments) {
+                /* generate endpoints */
+                if (startEndpoint == null) { // first iteration on this way
+                    // make or get a shared vertex for flat intersections,
+                    // one vertex per level for multilevel nodes like elevators
+                    startEndpoint = getVertexForOsmNode(segment.startNode, way);
+                    recordElevation(startEndpoint, segment.startNode);
+                } else { // subsequent iterations
+                    startEndpoint = endEndpoint;
+                }
 
-                    endEndpoint = getVertexForOsmNode(osmEndNode, way);
-                    String ele = osmEndNode.getTag("ele");
-                    if (ele != null) {
-                        Double elevation = ElevationUtils.parseEleTag(ele);
-                        if (elevation != null) {
-                            elevationData.put(endEndpoint, elevation);
-                        }
-                    }
-                    P2<StreetEdge> streets = getEdgesForStreet(startEndpoint, endEndpoint,
-                            way, i, osmStartNode.getId(), osmEndNode.getId(), permissions, geometry);
+                endEndpoint = getVertexForOsmNode(segment.endNode, way);
+                recordElevation(endEndpoint, segment.endNode);
+
+                long startNode = segment.startNode.getId(), endNode = segment.endNode.getId();
+                P2<StreetEdge> streets = getEdgesForStreet(startEndpoint, endEndpoint,
+                        way, segment.index, startNode, endNode, permissions, segment.geometry);
 
-                    StreetEdge street = streets.first;
-                    StreetEdge backStreet = streets.second;
-                    applyWayProperties(street, backStreet, wayData, way);
+                StreetEdge street = streets.first;
+                StreetEdge backStreet = streets.second;
+                applyWayProperties(street, backStreet, wayData, way, prepared.notes);
 
-                    applyEdgesToTurnRestrictions(way, startNode, endNode, street, backStreet);
-                    startNode = endNode;
-                    osmStartNode = osmdb.getNode(startNode);
+                applyEdgesToTurnRestrictions(way, startNode, endNode, street, backStreet);
+            }
+        }
+
+        private void recordElevation(IntersectionVertex vertex, OSMNode node) {
+            String ele = node.getTag("ele");
+            if (ele != null) {
+                Double elevation = ElevationUtils.parseEleTag(ele);
+                if (elevation != null) {
+                    elevationData.put(vertex, elevation);
                 }
-            } // END loop over OSM ways
+            }
         }
 
         // TODO Set this to private once WalkableAreaBuilder is gone
         protected void applyWayProperties(StreetEdge street, StreetEdge backStreet,
                                         WayProperties wayData, OSMWithTags way) {
+            applyWayProperties(street, backStreet, wayData, way, wayPropertySet.getNoteForWay(way));
+        }
 
-            Set<T2<Alert, NoteMatcher>> notes = wayPropertySet.getNoteForWay(way);
+        private void applyWayProperties(StreetEdge street, StreetEdge backStreet,
+                WayProperties wayData, OSMWithTags way, Set<T2<Alert, NoteMatcher>> notes) {
             boolean noThruTraffic = way.isThroughTrafficExplicitlyDisallowed();
 
             if (street != null) {
@@ -890,6 +952,11 @@ public class OpenStreetMapModule implements GraphBuilderModule {
                     }
                 }
             }
+            TLongSet ids = new TLongHashSet(intersectionNodes.size());
+            for (long nodeId : intersectionNodes.keySet()) {
+                ids.add(nodeId);
+            }
+            intersectionNodeIds = TCollections.unmodifiableSet(ids);
         }
 
         /**
@@ -1186,4 +1253,41 @@ public class OpenStreetMapModule implements GraphBuilderModule {
             provider.checkInputs();
         }
     }
+
+    /** A way split into street segments, before its vertices and edges are created. */
+    private static class PreparedWay {
+
+        final OSMWay way;
+
+        WayProperties wayData;
+
+        Set<T2<Alert, NoteMatcher>> notes;
+
+        /** Null if the way is not routable or refers to missing nodes. */
+        List<Segment> segments;
+
+        PreparedWay(OSMWay way) {
+            this.way = way;
+        }
+    }
+
+    /** The part of a way between two nodes that will become graph vertices. */
+    private static class Segment {
+
+        /** The index of the last node before the end node in the way, used in edge labels. */
+        final int index;
+
+        final OSMNode startNode;
+
+        final OSMNode endNode;
+
+        final LineString geometry;
+
+        Segment(int index, OSMNode startNode, OSMNode endNode, LineString geometry) {
+            this.index = index;
+            this.startNode = startNode;
+            this.endNode = endNode;
+            this.geometry = geometry;
+        }
+    }
 }
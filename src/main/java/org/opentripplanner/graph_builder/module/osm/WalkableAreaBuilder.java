@@ -13,14 +13,22 @@
 
 package org.opentripplanner.graph_builder.module.osm;
 
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
+import org.opentripplanner.common.OrderedTaskPipeline;
 import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.model.P2;
@@ -53,7 +61,9 @@ import org.opentripplanner.visibility.VisibilityPolygon;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
@@ -62,6 +72,9 @@ import com.vividsolutions.jts.geom.MultiLineString;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 /**
  * Theoretically, it is not correct to build the visibility graph on the joined polygon of areas
@@ -81,10 +94,14 @@ public class WalkableAreaBuilder {
 
     private static Logger LOG = LoggerFactory.getLogger(WalkableAreaBuilder.class);
 
-    private final int MAX_AREA_NODES = 500;
+    /** The default maximum number of visibility points of an area ring, see maxAreaNodes. */
+    public static final int DEFAULT_MAX_AREA_NODES = 500;
 
     private static final double VISIBILITY_EPSILON = 0.000000001;
 
+    /** Lines intersecting an area over a shorter length than this, in degrees, are not considered to be in it. */
+    private static final double MIN_INTERSECTION_LENGTH = 0.000001;
+
     private Graph graph;
 
     private OSMDatabase osmdb;
@@ -96,66 +113,107 @@ public class WalkableAreaBuilder {
     // This is an awful hack, but this class (WalkableAreaBuilder) ought to be rewritten.
     private Handler __handler;
 
+    /**
+     * Visibility graphs are quadratic in the number of visibility points. When a ring has more, the concave corners
+     * that matter least are dropped until there are this many left; rings with more points linked to ways than this
+     * get no visibility edges.
+     */
+    private final int maxAreaNodes;
+
+    private HashMap<Area, PreparedGeometry> preparedAreas = new HashMap<Area, PreparedGeometry>();
+
     private HashMap<Coordinate, IntersectionVertex> areaBoundaryVertexForCoordinate = new HashMap<Coordinate, IntersectionVertex>();
 
     public WalkableAreaBuilder(Graph graph, OSMDatabase osmdb, WayPropertySet wayPropertySet,
             StreetEdgeFactory edgeFactory, Handler __handler) {
+        this(graph, osmdb, wayPropertySet, edgeFactory, __handler, DEFAULT_MAX_AREA_NODES);
+    }
+
+    public WalkableAreaBuilder(Graph graph, OSMDatabase osmdb, WayPropertySet wayPropertySet,
+            StreetEdgeFactory edgeFactory, Handler __handler, int maxAreaNodes) {
         this.graph = graph;
         this.osmdb = osmdb;
         this.wayPropertySet = wayPropertySet;
         this.edgeFactory = edgeFactory;
         this.__handler = __handler;
+        this.maxAreaNodes = maxAreaNodes;
     }
 
     public void build(AreaGroup group) {
+        build(group, computeVisibility(group));
+    }
+
+    /**
+     * Build the visibility graphs of several area groups. Which visibility points see each other only depends on the
+     * OSM data, so this is computed on a pool of threads. The edges are then created on this thread, in the order of
+     * the groups, so that the graph does not depend on the number of threads.
+     */
+    public void buildAll(List<AreaGroup> groups, int nThreads) {
+        OrderedTaskPipeline<List<RingVisibility>> pipeline = new OrderedTaskPipeline<List<RingVisibility>>(
+                nThreads, "visibility-%d");
+        try {
+            Iterator<AreaGroup> toCompute = groups.iterator();
+            for (AreaGroup group : groups) {
+                // Keep a bounded number of groups ahead of the graph construction
+                while (toCompute.hasNext() && !pipeline.isFull()) {
+                    final AreaGroup next = toCompute.next();
+                    pipeline.submit(new Callable<List<RingVisibility>>() {
+                        @Override
+                        public List<RingVisibility> call() {
+                            return computeVisibility(next);
+                        }
+                    });
+                }
+                build(group, pipeline.next());
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * First phase of the construction: find the visibility points of each outermost ring of the group and the pairs
+     * of them which see each other. Does not modify the graph, and can be called on several groups at once.
+     */
+    private List<RingVisibility> computeVisibility(AreaGroup group) {
+        List<RingVisibility> result = new ArrayList<RingVisibility>(group.outermostRings.size());
         Set<OSMNode> startingNodes = new HashSet<OSMNode>();
-        Set<Vertex> startingVertices = new HashSet<Vertex>();
-        Set<Edge> edges = new HashSet<Edge>();
 
         // create polygon and accumulate nodes for area
         for (Ring ring : group.outermostRings) {
+            RingVisibility visibility = new RingVisibility(ring);
+            result.add(visibility);
 
-            AreaEdgeList edgeList = new AreaEdgeList();
             // the points corresponding to concave or hole vertices
             // or those linked to ways
-            ArrayList<VLPoint> visibilityPoints = new ArrayList<VLPoint>();
-            ArrayList<OSMNode> visibilityNodes = new ArrayList<OSMNode>();
+            VisibilityPoints points = new VisibilityPoints();
             HashSet<P2<OSMNode>> alreadyAddedEdges = new HashSet<P2<OSMNode>>();
             // we need to accumulate visibility points from all contained areas
             // inside this ring, but only for shared nodes; we don't care about
             // convexity, which we'll handle for the grouped area only.
-
-            // we also want to fill in the edges of this area anyway, because we can,
-            // and to avoid the numerical problems that they tend to cause
             for (Area area : group.areas) {
                 if (!ring.toJtsPolygon().contains(area.toJTSMultiPolygon())) {
                     continue;
                 }
+                visibility.areas.add(area);
 
                 // Add stops from public transit relations into the area
                 Collection<OSMNode> nodes = osmdb.getStopsInArea(area.parent);
                 if (nodes != null) {
                     for (OSMNode node : nodes) {
-                        addtoVisibilityAndStartSets(startingNodes, visibilityPoints,
-                                visibilityNodes, node);
+                        addtoVisibilityAndStartSets(startingNodes, points, node);
                     }
                 }
 
                 for (Ring outerRing : area.outermostRings) {
-                    for (int i = 0; i < outerRing.nodes.size(); ++i) {
-                        OSMNode node = outerRing.nodes.get(i);
-                        createEdgesForRingSegment(edges, edgeList, area, outerRing, i,
-                                alreadyAddedEdges);
-                        addtoVisibilityAndStartSets(startingNodes, visibilityPoints,
-                                visibilityNodes, node);
+                    addRingSegments(outerRing, alreadyAddedEdges);
+                    for (OSMNode node : outerRing.nodes) {
+                        addtoVisibilityAndStartSets(startingNodes, points, node);
                     }
                     for (Ring innerRing : outerRing.holes) {
-                        for (int j = 0; j < innerRing.nodes.size(); ++j) {
-                            OSMNode node = innerRing.nodes.get(j);
-                            createEdgesForRingSegment(edges, edgeList, area, innerRing, j,
-                                    alreadyAddedEdges);
-                            addtoVisibilityAndStartSets(startingNodes, visibilityPoints,
-                                    visibilityNodes, node);
+                        addRingSegments(innerRing, alreadyAddedEdges);
+                        for (OSMNode node : innerRing.nodes) {
+                            addtoVisibilityAndStartSets(startingNodes, points, node);
                         }
                     }
                 }
@@ -164,8 +222,7 @@ public class WalkableAreaBuilder {
             List<VLPoint> vertices = new ArrayList<VLPoint>();
             accumulateRingNodes(ring, nodes, vertices);
             VLPolygon polygon = makeStandardizedVLPolygon(vertices, nodes, false);
-            accumulateVisibilityPoints(ring.nodes, polygon, visibilityPoints, visibilityNodes,
-                    false);
+            accumulateVisibilityPoints(ring.nodes, polygon, points, false);
 
             ArrayList<VLPolygon> polygons = new ArrayList<VLPolygon>();
             polygons.add(polygon);
@@ -175,19 +232,21 @@ public class WalkableAreaBuilder {
                 vertices = new ArrayList<VLPoint>();
                 accumulateRingNodes(innerRing, holeNodes, vertices);
                 VLPolygon hole = makeStandardizedVLPolygon(vertices, holeNodes, true);
-                accumulateVisibilityPoints(innerRing.nodes, hole, visibilityPoints,
-                        visibilityNodes, true);
+                accumulateVisibilityPoints(innerRing.nodes, hole, points, true);
                 nodes.addAll(holeNodes);
                 polygons.add(hole);
             }
 
             Environment areaEnv = new Environment(polygons);
-            // FIXME: temporary hard limit on size of
-            // areas to prevent way explosion
-            if (visibilityPoints.size() > MAX_AREA_NODES) {
-                LOG.warn("Area " + group.getSomeOSMObject() + " is too complicated ("
-                        + visibilityPoints.size() + " > " + MAX_AREA_NODES);
-                continue;
+            if (points.size() > maxAreaNodes) {
+                int nPoints = points.size();
+                if (!points.simplify(maxAreaNodes)) {
+                    LOG.warn("Area " + group.getSomeOSMObject() + " is too complicated ("
+                            + nPoints + " > " + maxAreaNodes + ")");
+                    continue;
+                }
+                LOG.info("Area " + group.getSomeOSMObject() + " is complicated, kept " + maxAreaNodes
+                        + " of its " + nPoints + " visibility points");
             }
 
             if (!areaEnv.is_valid(VISIBILITY_EPSILON)) {
@@ -196,45 +255,137 @@ public class WalkableAreaBuilder {
                 continue;
             }
 
-            edgeList.setOriginalEdges(ring.toJtsPolygon());
+            visibility.valid = true;
+            visibility.nodes = points.nodes;
+            visibility.starting = new boolean[points.size()];
+            for (int i = 0; i < points.size(); ++i) {
+                visibility.starting[i] = startingNodes.contains(points.nodes.get(i));
+            }
+            findVisiblePairs(visibility, points.points, areaEnv, polygons, alreadyAddedEdges);
+        }
+        return result;
+    }
 
-            createNamedAreas(edgeList, ring, group.areas);
+    /**
+     * A pair of points sees each other when the segment between them is inside the visibility polygon of the first
+     * point. Computing a visibility polygon is linear in the size of the environment, and checking each segment
+     * against it is too, so segments crossing the boundary of the area are pruned first using a spatial index of the
+     * boundary segments, and visibility polygons are only computed for points which have candidate segments left.
+     */
+    private void findVisiblePairs(RingVisibility visibility, List<VLPoint> points,
+            Environment areaEnv, List<VLPolygon> polygons, Set<P2<OSMNode>> alreadyAddedEdges) {
+        GeometryFactory geometryFactory = GeometryUtils.getGeometryFactory();
+        STRtree boundaryIndex = new STRtree();
+        for (VLPolygon polygon : polygons) {
+            for (int k = 0; k < polygon.n(); ++k) {
+                VLPoint a = polygon.get(k), b = polygon.get(k + 1);
+                com.vividsolutions.jts.geom.LineSegment segment = new com.vividsolutions.jts.geom.LineSegment(
+                        a.x, a.y, b.x, b.y);
+                boundaryIndex.insert(new Envelope(a.x, b.x, a.y, b.y), segment);
+            }
+        }
+        RobustLineIntersector intersector = new RobustLineIntersector();
+        List<OSMNode> nodes = visibility.nodes;
+        int n = nodes.size();
+        TIntArrayList candidates = new TIntArrayList();
+        for (int i = 0; i < n; ++i) {
+            OSMNode nodeI = nodes.get(i);
+            VLPoint pointI = points.get(i);
+            candidates.resetQuick();
+            for (int j = 0; j < n; ++j) {
+                if (alreadyAddedEdges.contains(new P2<OSMNode>(nodeI, nodes.get(j))))
+                    continue;
+                if (crossesBoundary(pointI, points.get(j), boundaryIndex, intersector))
+                    continue;
+                candidates.add(j);
+            }
+            if (candidates.isEmpty())
+                continue;
+            VisibilityPolygon visibilityPolygon = new VisibilityPolygon(pointI, areaEnv,
+                    VISIBILITY_EPSILON);
+            PreparedGeometry poly = PreparedGeometryFactory.prepare(toJTSPolygon(visibilityPolygon));
+            for (int c = 0; c < candidates.size(); ++c) {
+                int j = candidates.get(c);
+                Coordinate[] coordinates = new Coordinate[] { getCoordinate(nodeI),
+                        getCoordinate(nodes.get(j)) };
+                LineString line = geometryFactory.createLineString(coordinates);
+                if (poly.contains(line)) {
+                    visibility.visiblePairs.add(i);
+                    visibility.visiblePairs.add(j);
+                }
+            }
+        }
+    }
 
-            OSMWithTags areaEntity = group.getSomeOSMObject();
+    /**
+     * @return true if the segment between the two points properly crosses a segment of the area boundary, in which
+     *         case it leaves the area and the two points do not see each other.
+     */
+    private static boolean crossesBoundary(VLPoint from, VLPoint to, STRtree boundaryIndex,
+            RobustLineIntersector intersector) {
+        Coordinate p1 = new Coordinate(from.x, from.y), p2 = new Coordinate(to.x, to.y);
+        for (Object item : boundaryIndex.query(new Envelope(p1, p2))) {
+            com.vividsolutions.jts.geom.LineSegment segment = (com.vividsolutions.jts.geom.LineSegment) item;
+            intersector.computeIntersection(p1, p2, segment.p0, segment.p1);
+            if (intersector.isProper())
+                return true;
+        }
+        return false;
+    }
 
-            for (int i = 0; i < visibilityNodes.size(); ++i) {
-                OSMNode nodeI = visibilityNodes.get(i);
-                VisibilityPolygon visibilityPolygon = new VisibilityPolygon(
-                        visibilityPoints.get(i), areaEnv, VISIBILITY_EPSILON);
-                Polygon poly = toJTSPolygon(visibilityPolygon);
-                for (int j = 0; j < visibilityNodes.size(); ++j) {
-                    OSMNode nodeJ = visibilityNodes.get(j);
-                    P2<OSMNode> nodePair = new P2<OSMNode>(nodeI, nodeJ);
-                    if (alreadyAddedEdges.contains(nodePair))
-                        continue;
+    /**
+     * Second phase of the construction: create the edges of the area group, and prune those which are not needed.
+     */
+    private void build(AreaGroup group, List<RingVisibility> visibilities) {
+        Set<Vertex> startingVertices = new HashSet<Vertex>();
+        Set<Edge> edges = new HashSet<Edge>();
 
-                    IntersectionVertex startEndpoint = __handler.getVertexForOsmNode(nodeI,
-                            areaEntity);
-                    IntersectionVertex endEndpoint = __handler.getVertexForOsmNode(nodeJ,
-                            areaEntity);
-
-                    Coordinate[] coordinates = new Coordinate[] { startEndpoint.getCoordinate(),
-                            endEndpoint.getCoordinate() };
-                    GeometryFactory geometryFactory = GeometryUtils.getGeometryFactory();
-                    LineString line = geometryFactory.createLineString(coordinates);
-                    if (poly.contains(line)) {
-
-                        createSegments(nodeI, nodeJ, startEndpoint, endEndpoint, group.areas,
-                                edgeList, edges);
-                        if (startingNodes.contains(nodeI)) {
-                            startingVertices.add(startEndpoint);
-                        }
-                        if (startingNodes.contains(nodeJ)) {
-                            startingVertices.add(endEndpoint);
+        for (RingVisibility visibility : visibilities) {
+            Ring ring = visibility.ring;
+            AreaEdgeList edgeList = new AreaEdgeList();
+            HashSet<P2<OSMNode>> alreadyAddedEdges = new HashSet<P2<OSMNode>>();
+
+            // we also want to fill in the edges of this area anyway, because we can,
+            // and to avoid the numerical problems that they tend to cause
+            for (Area area : visibility.areas) {
+                for (Ring outerRing : area.outermostRings) {
+                    for (int i = 0; i < outerRing.nodes.size(); ++i) {
+                        createEdgesForRingSegment(edges, edgeList, area, outerRing, i,
+                                alreadyAddedEdges, true);
+                    }
+                    for (Ring innerRing : outerRing.holes) {
+                        for (int j = 0; j < innerRing.nodes.size(); ++j) {
+                            createEdgesForRingSegment(edges, edgeList, area, innerRing, j,
+                                    alreadyAddedEdges, false);
                         }
                     }
                 }
             }
+            if (!visibility.valid)
+                continue;
+
+            edgeList.setOriginalEdges(ring.toJtsPolygon());
+
+            createNamedAreas(edgeList, ring, group.areas);
+
+            OSMWithTags areaEntity = group.getSomeOSMObject();
+
+            TIntList pairs = visibility.visiblePairs;
+            for (int k = 0; k < pairs.size(); k += 2) {
+                int i = pairs.get(k), j = pairs.get(k + 1);
+                OSMNode nodeI = visibility.nodes.get(i);
+                OSMNode nodeJ = visibility.nodes.get(j);
+                IntersectionVertex startEndpoint = __handler.getVertexForOsmNode(nodeI, areaEntity);
+                IntersectionVertex endEndpoint = __handler.getVertexForOsmNode(nodeJ, areaEntity);
+                createSegments(nodeI, nodeJ, startEndpoint, endEndpoint, group.areas, edgeList,
+                        edges);
+                if (visibility.starting[i]) {
+                    startingVertices.add(startEndpoint);
+                }
+                if (visibility.starting[j]) {
+                    startingVertices.add(endEndpoint);
+                }
+            }
         }
         pruneAreaEdges(startingVertices, edges);
     }
@@ -298,19 +449,28 @@ public class WalkableAreaBuilder {
         }
     }
 
-    private void addtoVisibilityAndStartSets(Set<OSMNode> startingNodes,
-            ArrayList<VLPoint> visibilityPoints, ArrayList<OSMNode> visibilityNodes, OSMNode node) {
+    private void addtoVisibilityAndStartSets(Set<OSMNode> startingNodes, VisibilityPoints points,
+            OSMNode node) {
         if (osmdb.isNodeBelongsToWay(node.getId())
                 || osmdb.isNodeSharedByMultipleAreas(node.getId()) || node.isStop()) {
             startingNodes.add(node);
-            VLPoint point = new VLPoint(node.lon, node.lat);
-            if (!visibilityPoints.contains(point)) {
-                visibilityPoints.add(point);
-                visibilityNodes.add(node);
-            }
+            points.addIfAbsent(new VLPoint(node.lon, node.lat), node, Double.POSITIVE_INFINITY);
         }
     }
 
+    /** Record the segments of a ring, which are always turned into edges. */
+    private void addRingSegments(Ring ring, Set<P2<OSMNode>> alreadyAddedEdges) {
+        for (int i = 0; i < ring.nodes.size(); ++i) {
+            OSMNode node = ring.nodes.get(i);
+            OSMNode nextNode = ring.nodes.get((i + 1) % ring.nodes.size());
+            alreadyAddedEdges.add(new P2<OSMNode>(node, nextNode));
+        }
+    }
+
+    private static Coordinate getCoordinate(OSMNode node) {
+        return new Coordinate(node.lon, node.lat);
+    }
+
     private Polygon toJTSPolygon(VLPolygon visibilityPolygon) {
         // incomprehensibly, visilibity's routines for figuring out point-polygon containment are
         // too broken
@@ -326,8 +486,12 @@ public class WalkableAreaBuilder {
         return poly;
     }
 
+    /**
+     * @param outerRing true if the ring is an outer ring of the area. Holes may be merged when building the area
+     *        polygon, so only the segments of outer rings are known to be on its boundary.
+     */
     private void createEdgesForRingSegment(Set<Edge> edges, AreaEdgeList edgeList, Area area,
-            Ring ring, int i, HashSet<P2<OSMNode>> alreadyAddedEdges) {
+            Ring ring, int i, HashSet<P2<OSMNode>> alreadyAddedEdges, boolean outerRing) {
         OSMNode node = ring.nodes.get(i);
         OSMNode nextNode = ring.nodes.get((i + 1) % ring.nodes.size());
         P2<OSMNode> nodePair = new P2<OSMNode>(node, nextNode);
@@ -339,12 +503,22 @@ public class WalkableAreaBuilder {
         IntersectionVertex endEndpoint = __handler.getVertexForOsmNode(nextNode, area.parent);
 
         createSegments(node, nextNode, startEndpoint, endEndpoint, Arrays.asList(area), edgeList,
-                edges);
+                edges, outerRing);
     }
 
     private void createSegments(OSMNode fromNode, OSMNode toNode, IntersectionVertex startEndpoint,
             IntersectionVertex endEndpoint, Collection<Area> areas, AreaEdgeList edgeList,
             Set<Edge> edges) {
+        createSegments(fromNode, toNode, startEndpoint, endEndpoint, areas, edgeList, edges, false);
+    }
+
+    /**
+     * @param onBoundary true if the segment is known to be on the boundary of the only area given, in which case it
+     *        does not need to be intersected with it.
+     */
+    private void createSegments(OSMNode fromNode, OSMNode toNode, IntersectionVertex startEndpoint,
+            IntersectionVertex endEndpoint, Collection<Area> areas, AreaEdgeList edgeList,
+            Set<Edge> edges, boolean onBoundary) {
 
         List<Area> intersects = new ArrayList<Area>();
 
@@ -352,11 +526,14 @@ public class WalkableAreaBuilder {
                 endEndpoint.getCoordinate() };
         GeometryFactory geometryFactory = GeometryUtils.getGeometryFactory();
         LineString line = geometryFactory.createLineString(coordinates);
-        for (Area area : areas) {
-            MultiPolygon polygon = area.toJTSMultiPolygon();
-            Geometry intersection = polygon.intersection(line);
-            if (intersection.getLength() > 0.000001) {
-                intersects.add(area);
+        if (onBoundary) {
+            if (line.getLength() > MIN_INTERSECTION_LENGTH)
+                intersects.addAll(areas);
+        } else {
+            for (Area area : areas) {
+                if (intersectsOverSomeLength(area, line)) {
+                    intersects.add(area);
+                }
             }
         }
         if (intersects.size() == 0) {
@@ -430,7 +607,7 @@ public class WalkableAreaBuilder {
                         .intersects(startPoint)))
                     continue;
                 Geometry lineParts = line.intersection(polygon);
-                if (lineParts.getLength() > 0.000001) {
+                if (lineParts.getLength() > MIN_INTERSECTION_LENGTH) {
                     Coordinate edgeCoordinate = null;
                     // this is either a LineString or a MultiLineString (we hope)
                     if (lineParts instanceof MultiLineString) {
@@ -474,6 +651,24 @@ public class WalkableAreaBuilder {
         }
     }
 
+    /**
+     * @return true if a part of the line longer than MIN_INTERSECTION_LENGTH is in the area. Most lines are either
+     *         entirely in the area (or on its boundary) or outside of it, which is quick to check with a prepared
+     *         geometry; the others need to compute the intersection.
+     */
+    private boolean intersectsOverSomeLength(Area area, LineString line) {
+        PreparedGeometry prepared = preparedAreas.get(area);
+        if (prepared == null) {
+            prepared = PreparedGeometryFactory.prepare(area.toJTSMultiPolygon());
+            preparedAreas.put(area, prepared);
+        }
+        if (!prepared.intersects(line))
+            return false;
+        if (line.getLength() > 2 * MIN_INTERSECTION_LENGTH && prepared.covers(line))
+            return true;
+        return area.toJTSMultiPolygon().intersection(line).getLength() > MIN_INTERSECTION_LENGTH;
+    }
+
     private void createNamedAreas(AreaEdgeList edgeList, Ring ring, Collection<Area> areas) {
         Polygon containingArea = ring.toJtsPolygon();
         for (Area area : areas) {
@@ -519,23 +714,23 @@ public class WalkableAreaBuilder {
     }
 
     private void accumulateVisibilityPoints(List<OSMNode> nodes, VLPolygon polygon,
-            List<VLPoint> visibilityPoints, List<OSMNode> visibilityNodes, boolean hole) {
+            VisibilityPoints points, boolean hole) {
         int n = polygon.vertices.size();
         for (int i = 0; i < n; ++i) {
             OSMNode curNode = nodes.get(i);
             VLPoint cur = polygon.vertices.get(i);
             VLPoint prev = polygon.vertices.get((i + n - 1) % n);
             VLPoint next = polygon.vertices.get((i + 1) % n);
-            if (hole
-                    || (cur.x - prev.x) * (next.y - cur.y) - (cur.y - prev.y) * (next.x - cur.x) > 0) {
+            double cross = (cur.x - prev.x) * (next.y - cur.y) - (cur.y - prev.y) * (next.x - cur.x);
+            if (hole || cross > 0) {
                 // that math up there is a cross product to check
                 // if the point is concave. Note that the sign is reversed because
                 // visilibity is either ccw or latitude-major
 
-                if (!visibilityNodes.contains(curNode)) {
-                    visibilityPoints.add(cur);
-                    visibilityNodes.add(curNode);
-                }
+                // Paths only turn around concave points, so the sharper the turn, the more a point matters.
+                double dot = (cur.x - prev.x) * (next.x - cur.x) + (cur.y - prev.y) * (next.y - cur.y);
+                double priority = cross > 0 ? Math.atan2(cross, dot) : 0;
+                points.addIfNodeAbsent(cur, curNode, priority);
             }
         }
     }
@@ -594,4 +789,102 @@ public class WalkableAreaBuilder {
             nodes.set(opposite, tmp);
         }
     }
+
+    /** The visibility graph of one outermost ring of an area group, before its edges are created. */
+    private static class RingVisibility {
+
+        final Ring ring;
+
+        /** The areas of the group inside this ring. */
+        final List<Area> areas = new ArrayList<Area>();
+
+        /** False if the ring is too complicated or invalid, in which case only the ring edges are created. */
+        boolean valid = false;
+
+        List<OSMNode> nodes;
+
+        /** Whether each visibility node is linked to a way or a stop. */
+        boolean[] starting;
+
+        /** Indexes of the visibility nodes which see each other, two by two. */
+        final TIntList visiblePairs = new TIntArrayList();
+
+        RingVisibility(Ring ring) {
+            this.ring = ring;
+        }
+    }
+
+    /** The visibility points of a ring and their nodes, with a priority used to simplify complicated rings. */
+    private static class VisibilityPoints {
+
+        final List<VLPoint> points = new ArrayList<VLPoint>();
+
+        final List<OSMNode> nodes = new ArrayList<OSMNode>();
+
+        final TDoubleList priorities = new TDoubleArrayList();
+
+        /* For quick lookups, the lists above can be long */
+        final Set<VLPoint> pointSet = new HashSet<VLPoint>();
+
+        final Set<OSMNode> nodeSet = new HashSet<OSMNode>();
+
+        int size() {
+            return points.size();
+        }
+
+        void addIfAbsent(VLPoint point, OSMNode node, double priority) {
+            if (!pointSet.contains(point))
+                add(point, node, priority);
+        }
+
+        void addIfNodeAbsent(VLPoint point, OSMNode node, double priority) {
+            if (!nodeSet.contains(node))
+                add(point, node, priority);
+        }
+
+        private void add(VLPoint point, OSMNode node, double priority) {
+            points.add(point);
+            nodes.add(node);
+            priorities.add(priority);
+            pointSet.add(point);
+            nodeSet.add(node);
+        }
+
+        /**
+         * Keep the given number of points with the highest priority, in their original order.
+         * @return false if there are more points linked to ways or stops than that.
+         */
+        boolean simplify(int maxPoints) {
+            double[] sorted = priorities.toArray();
+            Arrays.sort(sorted);
+            double threshold = sorted[sorted.length - maxPoints];
+            if (threshold == Double.POSITIVE_INFINITY && sorted[sorted.length - maxPoints - 1] == threshold)
+                return false;
+            // Points with the threshold priority are kept in order until there are enough of them
+            int nAboveThreshold = 0;
+            for (double priority : sorted) {
+                if (priority > threshold)
+                    nAboveThreshold++;
+            }
+            int nAtThreshold = maxPoints - nAboveThreshold;
+            List<VLPoint> keptPoints = new ArrayList<VLPoint>(maxPoints);
+            List<OSMNode> keptNodes = new ArrayList<OSMNode>(maxPoints);
+            TDoubleList keptPriorities = new TDoubleArrayList(maxPoints);
+            for (int i = 0; i < points.size(); ++i) {
+                double priority = priorities.get(i);
+                if (priority < threshold || (priority == threshold && nAtThreshold-- <= 0))
+                    continue;
+                keptPoints.add(points.get(i));
+                keptNodes.add(nodes.get(i));
+                keptPriorities.add(priority);
+            }
+            points.clear();
+            points.addAll(keptPoints);
+            nodes.clear();
+            nodes.addAll(keptNodes);
+            priorities.clear();
+            priorities.addAll(keptPriorities);
+            return true;
+        }
+    }
 }
@@ -14,11 +14,14 @@
 package org.opentripplanner.graph_builder.module.osm;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,6 +34,8 @@ import org.opentripplanner.routing.services.notes.NoteMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Optional;
+
 /**
  * Information given to the GraphBuilder about how to assign permissions, safety values, names, etc. to edges based on OSM tags.
  * TODO rename so that the connection with OSM tags is obvious
@@ -38,6 +43,10 @@ import org.slf4j.LoggerFactory;
  * WayPropertyPickers, CreativeNamePickers, SlopeOverridePickers, and SpeedPickers are applied to ways based on how well
  * their OSMSpecifiers match a given OSM way. Generally one OSMSpecifier will win out over all the others based on the
  * number of exact, partial, and wildcard tag matches. See OSMSpecifier for more details on the matching process.
+ *
+ * All these results only depend on the tags of the way, and the ways of a city share a small number of distinct tag
+ * sets, so the results are cached per tag set. Lookups are thread-safe, but the pickers must not be changed while
+ * lookups are being done.
  */
 public class WayPropertySet {
     private static Logger LOG = LoggerFactory.getLogger(WayPropertySet.class);
@@ -64,6 +73,25 @@ public class WayPropertySet {
 
     public WayPropertySetSource base;
 
+    /* Results of the pickers, by tag set. Values are shared, so callers must not modify them. */
+    private final Map<Map<String, String>, WayProperties> dataCache =
+            new ConcurrentHashMap<Map<String, String>, WayProperties>();
+
+    private final Map<Map<String, String>, Optional<String>> creativeNameCache =
+            new ConcurrentHashMap<Map<String, String>, Optional<String>>();
+
+    private final Map<Map<String, String>, Optional<Set<T2<Alert, NoteMatcher>>>> noteCache =
+            new ConcurrentHashMap<Map<String, String>, Optional<Set<T2<Alert, NoteMatcher>>>>();
+
+    private final Map<Map<String, String>, Float> forwardSpeedCache =
+            new ConcurrentHashMap<Map<String, String>, Float>();
+
+    private final Map<Map<String, String>, Float> backSpeedCache =
+            new ConcurrentHashMap<Map<String, String>, Float>();
+
+    private final Map<Map<String, String>, Boolean> slopeOverrideCache =
+            new ConcurrentHashMap<Map<String, String>, Boolean>();
+
     public WayPropertySet() {
         /* sensible defaults */
         defaultProperties = new WayProperties();
@@ -88,6 +116,7 @@ public class WayPropertySet {
        notes = props.notes;
        slopeOverrides = props.slopeOverrides;
        wayProperties = props.wayProperties;
+       clearCaches();
     }
 
     /**
@@ -95,6 +124,15 @@ public class WayPropertySet {
      * will have their safety values applied if they match at all.
      */
     public WayProperties getDataForWay(OSMWithTags way) {
+        WayProperties result = dataCache.get(cacheKey(way));
+        if (result == null) {
+            result = computeDataForWay(way);
+            dataCache.put(copyOfTags(way), result);
+        }
+        return result;
+    }
+
+    private WayProperties computeDataForWay(OSMWithTags way) {
         WayProperties leftResult = defaultProperties;
         WayProperties rightResult = defaultProperties;
         int bestLeftScore = 0;
@@ -178,6 +216,15 @@ public class WayPropertySet {
     }
 
     public String getCreativeNameForWay(OSMWithTags way) {
+        Optional<String> result = creativeNameCache.get(cacheKey(way));
+        if (result == null) {
+            result = Optional.fromNullable(computeCreativeNameForWay(way));
+            creativeNameCache.put(copyOfTags(way), result);
+        }
+        return result.orNull();
+    }
+
+    private String computeCreativeNameForWay(OSMWithTags way) {
         CreativeNamer bestNamer = null;
         int bestScore = 0;
         for (CreativeNamerPicker picker : creativeNamers) {
@@ -199,6 +246,16 @@ public class WayPropertySet {
      * Calculate the automobile speed, in meters per second, for this way.
      */
     public float getCarSpeedForWay(OSMWithTags way, boolean back) {
+        Map<Map<String, String>, Float> cache = back ? backSpeedCache : forwardSpeedCache;
+        Float result = cache.get(cacheKey(way));
+        if (result == null) {
+            result = computeCarSpeedForWay(way, back);
+            cache.put(copyOfTags(way), result);
+        }
+        return result;
+    }
+
+    private float computeCarSpeedForWay(OSMWithTags way, boolean back) {
         // first, check for maxspeed tags
         Float speed = null;
         Float currentSpeed;
@@ -258,7 +315,19 @@ public class WayPropertySet {
             return this.defaultSpeed;
     }
 
+    /**
+     * @return the notes for this way, or null if there are none. The set is shared by all ways with the same tags.
+     */
     public Set<T2<Alert, NoteMatcher>> getNoteForWay(OSMWithTags way) {
+        Optional<Set<T2<Alert, NoteMatcher>>> result = noteCache.get(cacheKey(way));
+        if (result == null) {
+            result = Optional.fromNullable(computeNoteForWay(way));
+            noteCache.put(copyOfTags(way), result);
+        }
+        return result.orNull();
+    }
+
+    private Set<T2<Alert, NoteMatcher>> computeNoteForWay(OSMWithTags way) {
         HashSet<T2<Alert, NoteMatcher>> out = new HashSet<>();
         for (NotePicker picker : notes) {
             OSMSpecifier specifier = picker.specifier;
@@ -270,10 +339,19 @@ public class WayPropertySet {
         if (out.size() == 0) {
             return null;
         }
-        return out;
+        return Collections.unmodifiableSet(out);
     }
 
     public boolean getSlopeOverride(OSMWithTags way) {
+        Boolean result = slopeOverrideCache.get(cacheKey(way));
+        if (result == null) {
+            result = computeSlopeOverride(way);
+            slopeOverrideCache.put(copyOfTags(way), result);
+        }
+        return result;
+    }
+
+    private boolean computeSlopeOverride(OSMWithTags way) {
         boolean result = false;
         int bestScore = 0;
         for (SlopeOverridePicker picker : slopeOverrides) {
@@ -289,22 +367,27 @@ public class WayPropertySet {
 
     public void addProperties(OSMSpecifier spec, WayProperties properties, boolean mixin) {
         wayProperties.add(new WayPropertyPicker(spec, properties, mixin));
+        clearCaches();
     }
 
     public void addProperties(OSMSpecifier spec, WayProperties properties) {
         wayProperties.add(new WayPropertyPicker(spec, properties, false));
+        clearCaches();
     }
 
     public void addCreativeNamer(OSMSpecifier spec, CreativeNamer namer) {
         creativeNamers.add(new CreativeNamerPicker(spec, namer));
+        clearCaches();
     }
 
     public void addNote(OSMSpecifier osmSpecifier, NoteProperties properties) {
         notes.add(new NotePicker(osmSpecifier, properties));
+        clearCaches();
     }
 
     public void setSlopeOverride(OSMSpecifier spec, boolean override) {
         slopeOverrides.add(new SlopeOverridePicker(spec, override));
+        clearCaches();
     }
 
     public boolean equals(Object o) {
@@ -325,6 +408,28 @@ public class WayPropertySet {
 
     public void addSpeedPicker(SpeedPicker picker) {
         this.speedPickers.add(picker);
+        clearCaches();
+    }
+
+    /** The tags of a way, as a key to look up the caches. */
+    private static Map<String, String> cacheKey(OSMWithTags way) {
+        Map<String, String> tags = way.getTags();
+        return tags == null ? Collections.<String, String> emptyMap() : tags;
+    }
+
+    /** The tags of a way, as a key to add to the caches. The tags of the way itself can still change later. */
+    private static Map<String, String> copyOfTags(OSMWithTags way) {
+        Map<String, String> tags = way.getTags();
+        return tags == null ? Collections.<String, String> emptyMap() : new HashMap<String, String>(tags);
+    }
+
+    private void clearCaches() {
+        dataCache.clear();
+        creativeNameCache.clear();
+        noteCache.clear();
+        forwardSpeedCache.clear();
+        backSpeedCache.clear();
+        slopeOverrideCache.clear();
     }
     
     public Float getMetersSecondFromSpeed(String speed) {
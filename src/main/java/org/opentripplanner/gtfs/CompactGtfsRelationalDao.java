@@ -0,0 +1,421 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.gtfs;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ShapePoint;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+
+/**
+ * A GTFS DAO keeping stop times and shape points in columns of primitives rather than as one object per row, which
+ * is most of the memory used by a large feed. As the GtfsReader saves each stop time or shape point, its fields are
+ * appended to the columns and the object itself is dropped. The rows are grouped by trip or by shape (and ordered by
+ * sequence) the first time they are queried, and StopTime and ShapePoint objects are created again on demand, one
+ * trip or one shape at a time, so that the graph builder only holds the objects of the trip it is working on.
+ *
+ * All other entities are stored as in GtfsRelationalDaoImpl. Stop times and shape points returned by this DAO are
+ * copies: modifying them does not modify the stored rows.
+ */
+public class CompactGtfsRelationalDao extends GtfsRelationalDaoImpl {
+
+    private PackedStopTimes stopTimes = new PackedStopTimes();
+
+    private PackedShapePoints shapePoints = new PackedShapePoints();
+
+    @Override
+    public void saveEntity(Object entity) {
+        if (entity.getClass() == StopTime.class) {
+            stopTimes.add((StopTime) entity);
+        } else if (entity.getClass() == ShapePoint.class) {
+            shapePoints.add((ShapePoint) entity);
+        } else {
+            super.saveEntity(entity);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Collection<T> getAllEntitiesForType(Class<T> type) {
+        if (type == StopTime.class)
+            return (Collection<T>) getAllStopTimes();
+        if (type == ShapePoint.class)
+            return (Collection<T>) getAllShapePoints();
+        return super.getAllEntitiesForType(type);
+    }
+
+    @Override
+    public <T> void clearAllEntitiesForType(Class<T> type) {
+        if (type == StopTime.class) {
+            stopTimes = new PackedStopTimes();
+        } else if (type == ShapePoint.class) {
+            shapePoints = new PackedShapePoints();
+        } else {
+            super.clearAllEntitiesForType(type);
+        }
+    }
+
+    /** @return all the stop times, in the order they were read, created one by one as the collection is iterated. */
+    @Override
+    public Collection<StopTime> getAllStopTimes() {
+        return new AbstractList<StopTime>() {
+            @Override
+            public StopTime get(int index) {
+                return stopTimes.get(index);
+            }
+
+            @Override
+            public int size() {
+                return stopTimes.size();
+            }
+        };
+    }
+
+    @Override
+    public StopTime getStopTimeForId(int id) {
+        return id >= 0 && id < stopTimes.size() ? stopTimes.get(id) : null;
+    }
+
+    @Override
+    public List<StopTime> getStopTimesForTrip(Trip trip) {
+        return stopTimes.forTrip(trip);
+    }
+
+    @Override
+    public List<StopTime> getStopTimesForStop(Stop stop) {
+        return stopTimes.forStop(stop);
+    }
+
+    /** @return all the shape points, in the order they were read, created one by one as the collection is iterated. */
+    @Override
+    public Collection<ShapePoint> getAllShapePoints() {
+        return new AbstractList<ShapePoint>() {
+            @Override
+            public ShapePoint get(int index) {
+                return shapePoints.get(index, shapePoints.shapeId(index));
+            }
+
+            @Override
+            public int size() {
+                return shapePoints.size();
+            }
+        };
+    }
+
+    @Override
+    public ShapePoint getShapePointForId(int id) {
+        return id >= 0 && id < shapePoints.size() ? shapePoints.get(id, shapePoints.shapeId(id)) : null;
+    }
+
+    @Override
+    public List<AgencyAndId> getAllShapeIds() {
+        return shapePoints.shapeIds();
+    }
+
+    @Override
+    public List<ShapePoint> getShapePointsForShapeId(AgencyAndId shapeId) {
+        return shapePoints.forShape(shapeId);
+    }
+
+    /**
+     * Set the agency of all the shape IDs. Shape points cannot be modified through the objects returned by this DAO,
+     * so this replaces setting the agency on each of them.
+     */
+    public void setShapeAgencyId(String agencyId) {
+        shapePoints.setAgencyId(agencyId);
+    }
+
+    /**
+     * The fields of all the stop times, one column per field. Trips, stops and strings are stored as an index into a
+     * table of distinct values. Trips and stops are compared by identity while reading, since their IDs can still be
+     * changed after the stop times are read.
+     */
+    private static class PackedStopTimes {
+
+        private static final int NO_STRING = -1;
+
+        private final List<Trip> trips = new ArrayList<Trip>();
+
+        private final Map<Trip, Integer> tripIndexes = new IdentityHashMap<Trip, Integer>();
+
+        private final List<Stop> stops = new ArrayList<Stop>();
+
+        private final Map<Stop, Integer> stopIndexes = new IdentityHashMap<Stop, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+
+        private final TIntArrayList trip = new TIntArrayList();
+
+        private final TIntArrayList stop = new TIntArrayList();
+
+        private final TIntArrayList sequence = new TIntArrayList();
+
+        private final TIntArrayList arrival = new TIntArrayList();
+
+        private final TIntArrayList departure = new TIntArrayList();
+
+        private final TIntArrayList timepoint = new TIntArrayList();
+
+        private final TIntArrayList headsign = new TIntArrayList();
+
+        private final TIntArrayList routeShortName = new TIntArrayList();
+
+        private final TByteArrayList pickupType = new TByteArrayList();
+
+        private final TByteArrayList dropOffType = new TByteArrayList();
+
+        private final TDoubleArrayList shapeDistTraveled = new TDoubleArrayList();
+
+        /* Row indexes ordered by trip and sequence, and where the rows of each trip start. Null until queried. */
+        private int[] order;
+
+        private int[] tripStart;
+
+        /* Trip lookup by equality, built when the rows are grouped by trip. */
+        private Map<Trip, Integer> tripIndexesByValue;
+
+        void add(StopTime stopTime) {
+            trip.add(index(stopTime.getTrip(), trips, tripIndexes));
+            stop.add(index(stopTime.getStop(), stops, stopIndexes));
+            sequence.add(stopTime.getStopSequence());
+            arrival.add(stopTime.getArrivalTime());
+            departure.add(stopTime.getDepartureTime());
+            timepoint.add(stopTime.getTimepoint());
+            headsign.add(stringIndex(stopTime.getStopHeadsign()));
+            routeShortName.add(stringIndex(stopTime.getRouteShortName()));
+            pickupType.add((byte) stopTime.getPickupType());
+            dropOffType.add((byte) stopTime.getDropOffType());
+            shapeDistTraveled.add(stopTime.getShapeDistTraveled());
+            order = null;
+        }
+
+        int size() {
+            return trip.size();
+        }
+
+        StopTime get(int row) {
+            StopTime stopTime = new StopTime();
+            stopTime.setId(row);
+            stopTime.setTrip(trips.get(trip.get(row)));
+            stopTime.setStop(stops.get(stop.get(row)));
+            stopTime.setStopSequence(sequence.get(row));
+            stopTime.setArrivalTime(arrival.get(row));
+            stopTime.setDepartureTime(departure.get(row));
+            stopTime.setTimepoint(timepoint.get(row));
+            stopTime.setStopHeadsign(string(headsign.get(row)));
+            stopTime.setRouteShortName(string(routeShortName.get(row)));
+            stopTime.setPickupType(pickupType.get(row));
+            stopTime.setDropOffType(dropOffType.get(row));
+            stopTime.setShapeDistTraveled(shapeDistTraveled.get(row));
+            return stopTime;
+        }
+
+        List<StopTime> forTrip(Trip t) {
+            if (order == null)
+                groupByTrip();
+            Integer tripIndex = tripIndexes.get(t);
+            if (tripIndex == null)
+                tripIndex = tripIndexesByValue.get(t);
+            if (tripIndex == null)
+                return Collections.emptyList();
+            List<StopTime> result = new ArrayList<StopTime>(tripStart[tripIndex + 1] - tripStart[tripIndex]);
+            for (int i = tripStart[tripIndex]; i < tripStart[tripIndex + 1]; i++)
+                result.add(get(order[i]));
+            return result;
+        }
+
+        List<StopTime> forStop(Stop s) {
+            List<StopTime> result = new ArrayList<StopTime>();
+            for (int row = 0; row < size(); row++) {
+                if (stops.get(stop.get(row)).equals(s))
+                    result.add(get(row));
+            }
+            Collections.sort(result);
+            return result;
+        }
+
+        private void groupByTrip() {
+            tripStart = new int[trips.size() + 1];
+            order = groupRows(trip, sequence, tripStart);
+            tripIndexesByValue = new HashMap<Trip, Integer>();
+            for (int t = 0; t < trips.size(); t++)
+                tripIndexesByValue.put(trips.get(t), t);
+        }
+
+        private int stringIndex(String s) {
+            if (s == null)
+                return NO_STRING;
+            return index(s, strings, stringIndexes);
+        }
+
+        private String string(int index) {
+            return index == NO_STRING ? null : strings.get(index);
+        }
+    }
+
+    /** The fields of all the shape points, one column per field. Shape IDs are stored once per shape. */
+    private static class PackedShapePoints {
+
+        private final List<AgencyAndId> shapeIds = new ArrayList<AgencyAndId>();
+
+        /* Keyed by copies of the shape IDs, so that the keys cannot be modified from outside. */
+        private final Map<AgencyAndId, Integer> shapeIndexes = new HashMap<AgencyAndId, Integer>();
+
+        private final TIntArrayList shape = new TIntArrayList();
+
+        private final TIntArrayList sequence = new TIntArrayList();
+
+        private final TDoubleArrayList lat = new TDoubleArrayList();
+
+        private final TDoubleArrayList lon = new TDoubleArrayList();
+
+        private final TDoubleArrayList distTraveled = new TDoubleArrayList();
+
+        /* Row indexes ordered by shape and sequence, and where the rows of each shape start. Null until queried. */
+        private int[] order;
+
+        private int[] shapeStart;
+
+        void add(ShapePoint point) {
+            AgencyAndId id = point.getShapeId();
+            Integer shapeIndex = shapeIndexes.get(id);
+            if (shapeIndex == null) {
+                shapeIndex = shapeIds.size();
+                shapeIds.add(new AgencyAndId(id.getAgencyId(), id.getId()));
+                shapeIndexes.put(new AgencyAndId(id.getAgencyId(), id.getId()), shapeIndex);
+            }
+            shape.add(shapeIndex);
+            sequence.add(point.getSequence());
+            lat.add(point.getLat());
+            lon.add(point.getLon());
+            distTraveled.add(point.getDistTraveled());
+            order = null;
+        }
+
+        int size() {
+            return shape.size();
+        }
+
+        AgencyAndId shapeId(int row) {
+            AgencyAndId id = shapeIds.get(shape.get(row));
+            return new AgencyAndId(id.getAgencyId(), id.getId());
+        }
+
+        ShapePoint get(int row, AgencyAndId shapeId) {
+            ShapePoint point = new ShapePoint();
+            point.setId(row);
+            point.setShapeId(shapeId);
+            point.setSequence(sequence.get(row));
+            point.setLat(lat.get(row));
+            point.setLon(lon.get(row));
+            point.setDistTraveled(distTraveled.get(row));
+            return point;
+        }
+
+        List<AgencyAndId> shapeIds() {
+            List<AgencyAndId> result = new ArrayList<AgencyAndId>(shapeIds.size());
+            for (AgencyAndId id : shapeIds)
+                result.add(new AgencyAndId(id.getAgencyId(), id.getId()));
+            return result;
+        }
+
+        List<ShapePoint> forShape(AgencyAndId shapeId) {
+            Integer shapeIndex = shapeIndexes.get(shapeId);
+            if (shapeIndex == null)
+                return Collections.emptyList();
+            if (order == null) {
+                shapeStart = new int[shapeIds.size() + 1];
+                order = groupRows(shape, sequence, shapeStart);
+            }
+            // All the points of a shape share one copy of its ID.
+            AgencyAndId id = new AgencyAndId(shapeId.getAgencyId(), shapeId.getId());
+            List<ShapePoint> result = new ArrayList<ShapePoint>(shapeStart[shapeIndex + 1] - shapeStart[shapeIndex]);
+            for (int i = shapeStart[shapeIndex]; i < shapeStart[shapeIndex + 1]; i++)
+                result.add(get(order[i], id));
+            return result;
+        }
+
+        void setAgencyId(String agencyId) {
+            shapeIndexes.clear();
+            for (int i = 0; i < shapeIds.size(); i++) {
+                shapeIds.get(i).setAgencyId(agencyId);
+                shapeIndexes.put(new AgencyAndId(agencyId, shapeIds.get(i).getId()), i);
+            }
+        }
+    }
+
+    /**
+     * Counting sort of the rows by group (trip or shape), then sort of the rows of each group by sequence. Rows with
+     * the same sequence keep the order they were read in, as with a stable sort of the row objects.
+     *
+     * @param start filled with the position of the first row of each group in the result, and the number of rows.
+     * @return the row indexes in group and sequence order.
+     */
+    private static int[] groupRows(TIntArrayList group, TIntArrayList sequence, int[] start) {
+        int nRows = group.size();
+        int nGroups = start.length - 1;
+        for (int row = 0; row < nRows; row++)
+            start[group.get(row) + 1]++;
+        for (int g = 0; g < nGroups; g++)
+            start[g + 1] += start[g];
+        int[] next = Arrays.copyOf(start, nGroups);
+        int[] order = new int[nRows];
+        for (int row = 0; row < nRows; row++)
+            order[next[group.get(row)]++] = row;
+        for (int g = 0; g < nGroups; g++) {
+            int from = start[g], to = start[g + 1];
+            boolean sorted = true;
+            for (int i = from + 1; i < to && sorted; i++)
+                sorted = sequence.get(order[i - 1]) <= sequence.get(order[i]);
+            if (sorted)
+                continue;
+            // Rows are increasing within a group, so adding them to the keys keeps rows with equal sequences in order.
+            long[] keys = new long[to - from];
+            for (int i = from; i < to; i++)
+                keys[i - from] = ((long) sequence.get(order[i]) << 32) | order[i];
+            Arrays.sort(keys);
+            for (int i = from; i < to; i++)
+                order[i] = (int) keys[i - from];
+        }
+        return order;
+    }
+
+    private static <T> int index(T value, List<T> values, Map<T, Integer> indexes) {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = values.size();
+            values.add(value);
+            indexes.put(value, index);
+        }
+        return index;
+    }
+}
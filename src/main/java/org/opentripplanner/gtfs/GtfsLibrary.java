@@ -17,7 +17,6 @@ package org.opentripplanner.gtfs;
 import java.io.File;
 import java.io.IOException;
 
-import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
 import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
 import org.onebusaway.gtfs.impl.calendar.CalendarServiceImpl;
 import org.onebusaway.gtfs.model.AgencyAndId;
@@ -47,7 +46,7 @@ public class GtfsLibrary {
 
     public static GtfsContext readGtfs(File path, String defaultAgencyId) throws IOException {
 
-        GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+        CompactGtfsRelationalDao dao = new CompactGtfsRelationalDao();
 
         GtfsReader reader = new GtfsReader();
         reader.setInputLocation(path);
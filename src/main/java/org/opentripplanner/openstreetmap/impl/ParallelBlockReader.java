@@ -0,0 +1,271 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.openstreetmap.impl;
+
+import gnu.trove.list.TByteList;
+import gnu.trove.list.array.TByteArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.opentripplanner.common.OrderedTaskPipeline;
+import org.opentripplanner.openstreetmap.model.OSMNode;
+import org.opentripplanner.openstreetmap.model.OSMRelation;
+import org.opentripplanner.openstreetmap.model.OSMWay;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+
+/**
+ * Reads a PBF file with one thread reading the blobs from disk and a pool of threads inflating and decoding them.
+ * Decoded entities are handed over to the content handler on the calling thread, in file order, so handlers do not
+ * need to be thread-safe.
+ *
+ * PBF blobs do not tell which entity types they contain before being inflated. The reader records the types found in
+ * each data block during the first pass over the file, and later passes skip the blocks containing none of the types
+ * they need without inflating them. Since PBF files are usually sorted (nodes, then ways, then relations), this means
+ * the way and node passes only inflate their own part of the file.
+ *
+ * @see http://wiki.openstreetmap.org/wiki/PBF_Format
+ */
+public class ParallelBlockReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelBlockReader.class);
+
+    /* Bit masks for the entity types found in a data block. */
+    public static final byte NODES = 1, WAYS = 2, RELATIONS = 4;
+
+    /* Same limits as the reference implementation. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private static final int MAX_BODY_SIZE = 32 * 1024 * 1024;
+
+    private final File path;
+
+    private final ExecutorService threadPool;
+
+    /* Bounds the number of blocks decoded ahead of the handler, and so the memory used by decoded entities. */
+    private final int nThreads;
+
+    /* Shared by all the parsers, the same strings are found in many blocks. */
+    private final Map<String, String> stringTable = new ConcurrentHashMap<String, String>();
+
+    /* The entity types found in each data block, in file order. Null until a pass has read all the blocks. */
+    private TByteList blockTypes = null;
+
+    public ParallelBlockReader(File path, int nThreads) {
+        this.path = path;
+        this.threadPool = OrderedTaskPipeline.newThreadPool(nThreads, "pbf-decoder-%d");
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Read the whole file once, handing the entities of the given types (a combination of NODES, WAYS and RELATIONS)
+     * over to the handler.
+     */
+    public void read(OpenStreetMapContentHandler handler, byte types) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(path),
+                1024 * 1024));
+        boolean recordTypes = blockTypes == null;
+        TByteList foundTypes = new TByteArrayList();
+        OrderedTaskPipeline<DecodedBlock> pipeline = new OrderedTaskPipeline<DecodedBlock>(threadPool, nThreads);
+        int nBlocks = 0, nSkipped = 0;
+        try {
+            while (true) {
+                Fileformat.BlobHeader header = readHeader(input);
+                if (header == null)
+                    break;
+                if (header.getType().equals("OSMHeader")) {
+                    Osmformat.HeaderBlock headerBlock = Osmformat.HeaderBlock.parseFrom(inflate(readBlob(
+                            input, header)));
+                    new BinaryOpenStreetMapParser(handler, stringTable).parse(headerBlock);
+                } else if (header.getType().equals("OSMData")) {
+                    int blockIndex = nBlocks++;
+                    if (!recordTypes && (blockTypes.get(blockIndex) & types) == 0) {
+                        skipFully(input, header.getDatasize());
+                        nSkipped++;
+                        continue;
+                    }
+                    if (pipeline.isFull())
+                        deliver(pipeline.next(IOException.class), handler, foundTypes);
+                    final Fileformat.Blob blob = readBlob(input, header);
+                    final byte parsedTypes = types;
+                    pipeline.submit(new Callable<DecodedBlock>() {
+                        @Override
+                        public DecodedBlock call() throws Exception {
+                            return decode(blob, parsedTypes);
+                        }
+                    });
+                } else {
+                    // Unknown blob types must be skipped
+                    skipFully(input, header.getDatasize());
+                }
+            }
+            while (!pipeline.isEmpty())
+                deliver(pipeline.next(IOException.class), handler, foundTypes);
+        } finally {
+            pipeline.close();
+            input.close();
+        }
+        if (recordTypes)
+            blockTypes = foundTypes;
+        LOG.debug("Read {} blocks from {}, skipped {}", nBlocks, path, nSkipped);
+    }
+
+    /** Stop the decoding threads. */
+    public void close() {
+        threadPool.shutdown();
+    }
+
+    private void deliver(DecodedBlock block, OpenStreetMapContentHandler handler, TByteList foundTypes) {
+        foundTypes.add(block.types);
+        for (OSMNode node : block.nodes)
+            handler.addNode(node);
+        for (OSMWay way : block.ways)
+            handler.addWay(way);
+        for (OSMRelation relation : block.relations)
+            handler.addRelation(relation);
+    }
+
+    /** Called on the decoding threads. */
+    private DecodedBlock decode(Fileformat.Blob blob, byte types) throws IOException {
+        Osmformat.PrimitiveBlock primitiveBlock = Osmformat.PrimitiveBlock.parseFrom(inflate(blob));
+        DecodedBlock block = new DecodedBlock();
+        for (Osmformat.PrimitiveGroup group : primitiveBlock.getPrimitivegroupList()) {
+            if (group.getNodesCount() > 0 || group.hasDense())
+                block.types |= NODES;
+            if (group.getWaysCount() > 0)
+                block.types |= WAYS;
+            if (group.getRelationsCount() > 0)
+                block.types |= RELATIONS;
+        }
+        if ((block.types & types) != 0) {
+            BinaryOpenStreetMapParser parser = new BinaryOpenStreetMapParser(block, stringTable);
+            parser.setParseNodes((types & NODES) != 0);
+            parser.setParseWays((types & WAYS) != 0);
+            parser.setParseRelations((types & RELATIONS) != 0);
+            parser.parse(primitiveBlock);
+        }
+        return block;
+    }
+
+    /** @return the next blob header, or null at the end of the file. */
+    private static Fileformat.BlobHeader readHeader(DataInputStream input) throws IOException {
+        int headerSize;
+        try {
+            headerSize = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (headerSize > MAX_HEADER_SIZE)
+            throw new IOException("Unexpectedly long PBF blob header: " + headerSize + " bytes");
+        byte[] buffer = new byte[headerSize];
+        input.readFully(buffer);
+        return Fileformat.BlobHeader.parseFrom(buffer);
+    }
+
+    private static Fileformat.Blob readBlob(DataInputStream input, Fileformat.BlobHeader header)
+            throws IOException {
+        if (header.getDatasize() > MAX_BODY_SIZE)
+            throw new IOException("Unexpectedly long PBF blob: " + header.getDatasize() + " bytes");
+        byte[] buffer = new byte[header.getDatasize()];
+        input.readFully(buffer);
+        return Fileformat.Blob.parseFrom(buffer);
+    }
+
+    private static void skipFully(DataInputStream input, int n) throws IOException {
+        while (n > 0) {
+            int skipped = input.skipBytes(n);
+            if (skipped <= 0)
+                throw new EOFException("Truncated PBF file");
+            n -= skipped;
+        }
+    }
+
+    private static byte[] inflate(Fileformat.Blob blob) throws IOException {
+        if (blob.hasRaw())
+            return blob.getRaw().toByteArray();
+        if (!blob.hasZlibData())
+            throw new IOException("Unsupported PBF blob compression");
+        byte[] buffer = new byte[blob.getRawSize()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob.getZlibData().toByteArray());
+            inflater.inflate(buffer);
+            if (!inflater.finished())
+                throw new IOException("PBF blob is larger than its declared size");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+        return buffer;
+    }
+
+    /**
+     * The entities of one data block, collected on a decoding thread until the handler is ready to receive them.
+     */
+    private static class DecodedBlock implements OpenStreetMapContentHandler {
+
+        byte types = 0;
+
+        List<OSMNode> nodes = new ArrayList<OSMNode>();
+
+        List<OSMWay> ways = new ArrayList<OSMWay>();
+
+        List<OSMRelation> relations = new ArrayList<OSMRelation>();
+
+        @Override
+        public void addNode(OSMNode node) {
+            nodes.add(node);
+        }
+
+        @Override
+        public void addWay(OSMWay way) {
+            ways.add(way);
+        }
+
+        @Override
+        public void addRelation(OSMRelation relation) {
+            relations.add(relation);
+        }
+
+        @Override
+        public void doneFirstPhaseRelations() {
+        }
+
+        @Override
+        public void doneSecondPhaseWays() {
+        }
+
+        @Override
+        public void doneThirdPhaseNodes() {
+        }
+    }
+}
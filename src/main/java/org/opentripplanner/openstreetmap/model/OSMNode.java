@@ -25,6 +25,19 @@ public class OSMNode extends OSMWithTags {
         return "osm node " + id;
     }
 
+    /**
+     * Nodes are compared by ID, as several OSMNode instances may be created for the same node.
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof OSMNode && ((OSMNode) other).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
     /**
      * Returns the capacity of this node if defined, or 0.
      * 
@@ -16,12 +16,16 @@
 
 package org.opentripplanner.openstreetmap.model;
 
-import java.util.ArrayList;
+import gnu.trove.TDecorators;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+
 import java.util.List;
 
 public class OSMWay extends OSMWithTags {
 
-    private List<Long> _nodes = new ArrayList<Long>();
+    /* Kept as primitives, there are many more node references than ways. */
+    private TLongList _nodes = new TLongArrayList(4);
 
     public void addNodeRef(OSMNodeRef nodeRef) {
         _nodes.add(nodeRef.getRef());
@@ -32,11 +36,14 @@ public class OSMWay extends OSMWithTags {
     }
 
     public void addNodeRef(long nodeRef, int index) {
-        _nodes.add(index, nodeRef);
+        _nodes.insert(index, nodeRef);
     }
 
+    /**
+     * @return a live view of the node references of this way.
+     */
     public List<Long> getNodeRefs() {
-        return _nodes;
+        return TDecorators.wrap(_nodes);
     }
 
     public String toString() {
@@ -73,6 +73,13 @@ public class OSMWithTags {
         return _tags;
     }
 
+    /**
+     * Replace all the tags of an entity. The map is used as is, with keys expected in lower case.
+     */
+    public void setTags(Map<String, String> tags) {
+        _tags = tags;
+    }
+
     /**
      * Is the tag defined?
      */
@@ -0,0 +1,254 @@
+package org.opentripplanner.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.mapdb.Fun.Tuple3;
+import org.opentripplanner.graph_builder.module.osm.OSMFilter;
+import org.opentripplanner.openstreetmap.model.OSMNode;
+import org.opentripplanner.openstreetmap.model.OSMRelation;
+import org.opentripplanner.openstreetmap.model.OSMRelationMember;
+import org.opentripplanner.openstreetmap.model.OSMWay;
+import org.opentripplanner.openstreetmap.model.OSMWithTags;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import crosby.binary.Osmformat;
+
+/**
+ * An OpenStreetMapProvider reading from an OSM store on disk rather than from the PBF file itself. The first time
+ * a PBF file is used, the entities the graph builder may need are extracted into a MapDB file next to it, with ways
+ * indexed by tile. Later builds read this store directly as long as the PBF file is unchanged, so rebuilding a graph
+ * after a transit-only change skips PBF decoding entirely.
+ *
+ * The extract keeps the same entities as OSMDatabase does: all tagged relations, the ways that are routable, P+R or
+ * bike parking or members of a relation, the nodes of these ways, and the stop, bike rental and bike parking nodes.
+ * Coordinates are kept in 1e-7 degrees as in OSM itself, so the graph is the same as when reading the PBF file.
+ */
+public class CachedOpenStreetMapProviderImpl implements OpenStreetMapProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachedOpenStreetMapProviderImpl.class);
+
+    /** Change this whenever the contents of the extract change, so that existing caches are rebuilt. */
+    private static final int CACHE_VERSION = 2;
+
+    private final File pbfFile;
+
+    private final File cacheFile;
+
+    /**
+     * @param cacheFile The MapDB file holding the extract. MapDB creates a few more files with this name as prefix.
+     */
+    public CachedOpenStreetMapProviderImpl(File pbfFile, File cacheFile) {
+        this.pbfFile = pbfFile;
+        this.cacheFile = cacheFile;
+    }
+
+    @Override
+    public void readOSM(OpenStreetMapContentHandler handler) {
+        OSM osm = openCache();
+        try {
+            for (Map.Entry<Long, Relation> entry : osm.relations.entrySet()) {
+                handler.addRelation(toOSMRelation(entry.getKey(), entry.getValue()));
+            }
+            handler.doneFirstPhaseRelations();
+            for (Map.Entry<Long, Way> entry : osm.ways.entrySet()) {
+                handler.addWay(toOSMWay(entry.getKey(), entry.getValue()));
+            }
+            handler.doneSecondPhaseWays();
+            for (Map.Entry<Long, Node> entry : osm.nodes.entrySet()) {
+                handler.addNode(toOSMNode(entry.getKey(), entry.getValue()));
+            }
+            handler.doneThirdPhaseNodes();
+        } finally {
+            osm.close();
+        }
+    }
+
+    @Override
+    public void checkInputs() {
+        if (!pbfFile.canRead()) {
+            throw new RuntimeException("Can't read OSM path: " + pbfFile);
+        }
+    }
+
+    public String toString() {
+        return "CachedOpenStreetMapProviderImpl(" + pbfFile + ")";
+    }
+
+    /** Open the extract of the PBF file, building it first if it is missing or out of date. */
+    private OSM openCache() {
+        File keyFile = new File(cacheFile.getPath() + ".key");
+        String key = String.format("%d %d %d", CACHE_VERSION, pbfFile.length(), pbfFile.lastModified());
+        try {
+            if (keyFile.isFile() && Files.toString(keyFile, Charsets.UTF_8).equals(key)) {
+                LOG.info("Reusing OSM extract {} of {}", cacheFile, pbfFile);
+                return new OSM(cacheFile.getPath());
+            }
+            LOG.info("Extracting {} into {}, this is done once as long as the PBF file does not change.",
+                    pbfFile, cacheFile);
+            deleteCache();
+            OSM osm = new OSM(cacheFile.getPath());
+            new ExtractingParser(osm).extract(pbfFile.getPath());
+            osm.close();
+            // Written last, so that an interrupted extraction is never reused.
+            Files.write(key, keyFile, Charsets.UTF_8);
+            return new OSM(cacheFile.getPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Error building OSM extract " + cacheFile, e);
+        }
+    }
+
+    private void deleteCache() throws IOException {
+        File[] files = cacheFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith(cacheFile.getName()) && !file.delete()) {
+                throw new IOException("Could not delete stale OSM extract file " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the PBF file in three passes (relations, ways, nodes), keeping only what the graph builder may use.
+     */
+    private static class ExtractingParser extends Parser {
+
+        private static final int RELATIONS = 0, WAYS = 1, NODES = 2;
+
+        private int pass;
+
+        private final NodeTracker relationWays = new NodeTracker();
+
+        private final NodeTracker nodesInWays = new NodeTracker();
+
+        ExtractingParser(OSM osm) {
+            super(osm);
+        }
+
+        void extract(String pbfFile) {
+            for (pass = RELATIONS; pass <= NODES; pass++) {
+                parse(pbfFile);
+            }
+            LOG.info("Indexing {} ways by tile.", osm.ways.size());
+            for (Map.Entry<Long, Way> entry : osm.ways.entrySet()) {
+                long[] nodes = entry.getValue().nodes;
+                Node firstNode = nodes.length == 0 ? null : osm.nodes.get(nodes[0]);
+                if (firstNode != null) {
+                    VexPbfParser.WebMercatorTile tile = new VexPbfParser.WebMercatorTile(firstNode.getLat(),
+                            firstNode.getLon());
+                    osm.index.add(new Tuple3<Integer, Integer, Long>(tile.xtile, tile.ytile, entry.getKey()));
+                }
+            }
+        }
+
+        @Override
+        protected void parseRelations(List<Osmformat.Relation> rels) {
+            if (pass == RELATIONS)
+                super.parseRelations(rels);
+        }
+
+        @Override
+        protected void parseWays(List<Osmformat.Way> ways) {
+            if (pass == WAYS)
+                super.parseWays(ways);
+        }
+
+        @Override
+        protected void parseNodes(List<Osmformat.Node> nodes) {
+            if (pass == NODES)
+                super.parseNodes(nodes);
+        }
+
+        @Override
+        protected void parseDense(Osmformat.DenseNodes nodes) {
+            if (pass == NODES)
+                super.parseDense(nodes);
+        }
+
+        @Override
+        public void handleRelation(long id, Relation relation) {
+            if (relation.hasNoTags())
+                return;
+            for (Relation.Member member : relation.members) {
+                if (member.type == Relation.Type.WAY)
+                    relationWays.add(member.id);
+            }
+            osm.relations.put(id, relation);
+        }
+
+        @Override
+        public void handleWay(long id, Way way) {
+            OSMWay osmWay = toOSMWay(id, way);
+            if (!(relationWays.contains(id) || OSMFilter.isWayRoutable(osmWay) || osmWay.isParkAndRide()
+                    || osmWay.isBikeParking()))
+                return;
+            for (long node : way.nodes) {
+                nodesInWays.add(node);
+            }
+            osm.ways.put(id, way);
+        }
+
+        @Override
+        public void handleNode(long id, Node node) {
+            if (!nodesInWays.contains(id)) {
+                if (node.hasNoTags())
+                    return;
+                OSMNode osmNode = toOSMNode(id, node);
+                if (!(osmNode.isStop() || osmNode.isBikeRental() || osmNode.isBikeParking()))
+                    return;
+            }
+            osm.nodes.put(id, node);
+        }
+    }
+
+    private static OSMNode toOSMNode(long id, Node node) {
+        OSMNode osmNode = new OSMNode();
+        osmNode.setId(id);
+        osmNode.lat = node.getLat();
+        osmNode.lon = node.getLon();
+        copyTags(node, osmNode);
+        return osmNode;
+    }
+
+    private static OSMWay toOSMWay(long id, Way way) {
+        OSMWay osmWay = new OSMWay();
+        osmWay.setId(id);
+        for (long node : way.nodes) {
+            osmWay.addNodeRef(node);
+        }
+        copyTags(way, osmWay);
+        return osmWay;
+    }
+
+    private static OSMRelation toOSMRelation(long id, Relation relation) {
+        OSMRelation osmRelation = new OSMRelation();
+        osmRelation.setId(id);
+        for (Relation.Member member : relation.members) {
+            if (member.type == null)
+                continue; // unexpected type, already reported by the parser
+            OSMRelationMember osmMember = new OSMRelationMember();
+            osmMember.setRef(member.id);
+            osmMember.setRole(member.role);
+            osmMember.setType(member.type.toString().toLowerCase());
+            osmRelation.addMember(osmMember);
+        }
+        copyTags(relation, osmRelation);
+        return osmRelation;
+    }
+
+    /** Keys without a value are given an empty one, as the PBF reader does. */
+    private static void copyTags(Tagged from, OSMWithTags to) {
+        for (Tagged.Tag tag : from.getTags()) {
+            to.addTag(tag.key, tag.value == null ? "" : tag.value);
+        }
+    }
+}
@@ -4,9 +4,10 @@ import java.io.Serializable;
 
 public class Node extends Tagged implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    // Incremented when the precision changed, so that stores of the old precision are not misread.
+    private static final long serialVersionUID = 2L;
 
-    private static final double FIXED_PRECISION_FACTOR = 1e6;
+    private static final double FIXED_PRECISION_FACTOR = 1e7;
 
     public Node () { }
 
@@ -14,7 +15,8 @@ public class Node extends Tagged implements Serializable {
         setLatLon(lat, lon);
     }
 
-    /* Angles are stored as fixed precision 32 bit integers because 32 bit floats are not sufficiently precise. */
+    /* Angles are stored as fixed precision 32 bit integers because 32 bit floats are not sufficiently precise.
+     * The precision is 1e-7 degrees, the same as in the OSM database itself. */
     public int fixedLat;
     public int fixedLon;
 
@@ -23,8 +25,8 @@ public class Node extends Tagged implements Serializable {
     public double getLon() {return fixedLon / FIXED_PRECISION_FACTOR;}
 
     public void setLatLon (double lat, double lon) {
-        this.fixedLat = (int)(lat * FIXED_PRECISION_FACTOR);
-        this.fixedLon = (int)(lon * FIXED_PRECISION_FACTOR);
+        this.fixedLat = (int) Math.round(lat * FIXED_PRECISION_FACTOR);
+        this.fixedLon = (int) Math.round(lon * FIXED_PRECISION_FACTOR);
     }
 
 }
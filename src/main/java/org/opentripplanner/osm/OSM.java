@@ -29,7 +29,7 @@ public class OSM {
     public NavigableSet<Tuple3<Integer, Integer, Long>> index; // (x_tile, y_tile, wayId)
 
     /** The MapDB backing this OSM, if any. */
-    DB db = null; // db.close(); ?
+    DB db = null;
 
     // Using DB TreeMaps is observed not to be slower than memory.
     // HashMaps are both bigger and slower.
@@ -61,10 +61,15 @@ public class OSM {
         index = db.getTreeSet("spatial_index");
     }
     
+    /** Flush everything to disk and release the backing MapDB. This OSM can no longer be used afterward. */
+    public void close() {
+        db.close();
+    }
+
     // boolean filterTags
     public static OSM fromPBF(String pbfFile) {
         LOG.info("Reading entire PBF file '{}'", pbfFile);
-        Parser parser = new Parser(null);
+        Parser parser = new Parser();
         parser.parse(pbfFile);
         return parser.osm;
     }
@@ -53,6 +53,11 @@ public class Parser extends BinaryParser {
         osm = new OSM(diskPath);
     }
 
+    /** Load into an existing OSM. */
+    public Parser (OSM osm) {
+        this.osm = osm;
+    }
+
     private static final String[] retainKeys = new String[] {
         "highway", "parking", "bicycle"
     };
@@ -75,12 +80,7 @@ public class Parser extends BinaryParser {
     // move to Tagged
     private void addTag(StringBuilder sb, String key, String val) {
         if (retainTag(key)) {
-            if (sb.length() > 0) sb.append(';');
-            sb.append(key);
-            if (val != null && ! val.isEmpty()) {
-                sb.append('=');
-                sb.append(val);
-            }
+            Tagged.appendTag(sb, key, val);
         }
     }
 
@@ -9,24 +9,40 @@ public abstract class Tagged implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    // Format: key1=val1;key2=val2
+    /**
+     * Format: key1=val1;key2=val2, or a key alone when its value is empty. Semicolons, equals signs and backslashes
+     * inside keys and values are escaped with a backslash, so that any tags can be read back as they were written.
+     */
     public String tags;
 
     public static class Tag {
         String key, value;
     }
 
+    /** Append a tag to a string in the format of the tags field. */
+    public static void appendTag(StringBuilder sb, String key, String value) {
+        if (sb.length() > 0) sb.append(';');
+        escape(sb, key);
+        if (value != null && ! value.isEmpty()) {
+            sb.append('=');
+            escape(sb, value);
+        }
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ';' || c == '=' || c == '\\') sb.append('\\');
+            sb.append(c);
+        }
+    }
+
     /** Return the tag value for the given key. Returns null if the tag key is not present. */
     public String getTag(String key) {
         if (tags == null) return null;
-        for (String tag : tags.split(";")) {
-            String[] kv = tag.split("=", 2);
-            if (kv[0].equals(key)) {
-                if (kv.length == 2) {
-                    return kv[1];
-                } else {
-                    return ""; // key is present but has no value
-                }
+        for (Tag tag : getTags()) {
+            if (tag.key.equals(key)) {
+                return tag.value == null ? "" : tag.value; // key may be present with no value
             }
         }
         return null;
@@ -44,21 +60,40 @@ public abstract class Tagged implements Serializable {
         return tags == null || tags.isEmpty();
     }
 
+    /** @return the tags in the order they were written, with a null value for keys without one. */
     public List<Tag> getTags() {
         List<Tag> ret = Lists.newArrayList();
-        if (tags != null) {
-            for (String tag : tags.split(";")) {
-                String[] kv = tag.split("=");
-                if (kv.length < 1) continue;
-                Tag t = new Tag();
-                t.key = kv[0];
-                if (kv.length > 1) t.value = kv[1];
-                ret.add(t);
+        if (tags == null || tags.isEmpty()) return ret;
+        StringBuilder sb = new StringBuilder();
+        Tag tag = new Tag();
+        for (int i = 0; i < tags.length(); i++) {
+            char c = tags.charAt(i);
+            if (c == '\\' && i + 1 < tags.length()) {
+                sb.append(tags.charAt(++i));
+            } else if (c == '=' && tag.key == null) {
+                tag.key = sb.toString();
+                sb.setLength(0);
+            } else if (c == ';') {
+                ret.add(endTag(tag, sb));
+                tag = new Tag();
+            } else {
+                sb.append(c);
             }
         }
+        ret.add(endTag(tag, sb));
         return ret;
     }
 
+    private static Tag endTag(Tag tag, StringBuilder sb) {
+        if (tag.key == null) {
+            tag.key = sb.toString();
+        } else {
+            tag.value = sb.toString();
+        }
+        sb.setLength(0);
+        return tag;
+    }
+
     public boolean tagIsTrue (String key) {
         String value = getTag(key);
         return value != null && ("yes".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value) || "1".equals(value));
@@ -132,8 +132,9 @@ public class VexFormatCodec {
         // plain ints should be fine rather than longs:
         // 2**31 = 2147483648
         // 180e7 = 1800000000.0
-        long fixedLat = (long) (node.fixedLat);
-        long fixedLon = (long) (node.fixedLon);
+        // VEX coordinates are in microdegrees, whatever the precision of the nodes.
+        long fixedLat = (long) (node.getLat() * 1e6);
+        long fixedLon = (long) (node.getLon() * 1e6);
         vout.writeSInt64NoTag(prevFixedLat - fixedLat);
         vout.writeSInt64NoTag(prevFixedLon - fixedLon);
         prevFixedLat = fixedLat;
@@ -200,12 +201,7 @@ public class VexFormatCodec {
         StringBuilder sb = new StringBuilder();
         int nTags = vin.readUInt32();
         for (int i = 0; i < nTags; i++) {
-            if (i > 0) {
-                sb.append(';');
-            }
-            sb.append(vin.readString());
-            sb.append('=');
-            sb.append(vin.readString());
+            Tagged.appendTag(sb, vin.readString(), vin.readString());
         }
         if (sb.length() == 0) return null;
         return sb.toString();
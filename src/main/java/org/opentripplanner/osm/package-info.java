@@ -1,6 +1,6 @@
 /**
  * This package duplicates functionality in the data model classes in org.otp.openstreetmap, but is designed for
  * loading OSM data into disk-backed maps in a more space efficient manner so that the OSM data can be retained for
- * later use. It is not yet used by OTP.
+ * later use. The graph builder uses it through CachedOpenStreetMapProviderImpl when the cacheOsm build parameter is set.
  */
 package org.opentripplanner.osm;
\ No newline at end of file
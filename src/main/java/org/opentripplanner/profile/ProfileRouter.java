@@ -102,13 +102,7 @@ public class ProfileRouter {
 
         // Lazy-initialize profile transfers (before setting timeouts, since this is slow)
         if (graph.index.transfersFromStopCluster == null) {
-            synchronized (graph.index) {
-                // why another if statement? so that if another thread initialized this in the meantime
-                // we don't initialize it again.
-                if (graph.index.transfersFromStopCluster == null) {
-                    graph.index.initializeProfileTransfers();
-                }
-            }
+            graph.index.initializeProfileTransfersAsNeeded();
         }
         LOG.info("access modes: {}", request.accessModes);
         LOG.info("egress modes: {}", request.egressModes);
@@ -72,6 +72,11 @@ public class AStar {
         public Vertex u_vertex;
         Double foundPathWeight = null;
 
+        /* Statistics for the debug output, cheap enough to always collect */
+        long nCreated;
+        int queuePeakSize;
+        long heuristicNanos;
+
         public RunState(RoutingRequest options, SearchTerminationStrategy terminationStrategy) {
             this.options = options;
             this.terminationStrategy = terminationStrategy;
@@ -108,7 +113,9 @@ public class AStar {
                 runState.rctx.remainingWeightHeuristic;
 
         // Since initial states can be multiple, heuristic cannot depend on the initial state.
+        long heuristicStart = System.nanoTime();
         runState.heuristic.initialize(runState.options, abortTime);
+        runState.heuristicNanos += System.nanoTime() - heuristicStart;
         if (abortTime < Long.MAX_VALUE  && System.currentTimeMillis() > abortTime) {
             LOG.warn("Timeout during initialization of goal direction heuristic.");
             options.rctx.debugOutput.timedOut = true;
@@ -139,7 +146,9 @@ public class AStar {
         }
         
         // interleave some heuristic-improving work (single threaded)
+        long heuristicStart = System.nanoTime();
         runState.heuristic.doSomeWork();
+        runState.heuristicNanos += System.nanoTime() - heuristicStart;
 
         // get the lowest-weight state in the queue
         runState.u = runState.pq.extract_min();
@@ -170,6 +179,7 @@ public class AStar {
             // returning NULL), the iteration is over. TODO Use this to board multiple trips.
             for (State v = edge.traverse(runState.u); v != null; v = v.getNextResult()) {
                 // Could be: for (State v : traverseEdge...)
+                runState.nCreated += 1;
 
                 if (traverseVisitor != null) {
                     traverseVisitor.visitEdge(edge, v);
@@ -216,6 +226,8 @@ public class AStar {
                         traverseVisitor.visitEnqueue(v);
                     
                     runState.pq.insert(v, estimate);
+                    if (runState.pq.size() > runState.queuePeakSize)
+                        runState.queuePeakSize = runState.pq.size();
                 } 
             }
         }
@@ -295,6 +307,8 @@ public class AStar {
         if (runState != null) {
             runSearch(abortTime);
             spt = runState.spt;
+            runState.rctx.debugOutput.addSearch(runState.nCreated, runState.nVisited,
+                    runState.queuePeakSize, runState.heuristicNanos);
         }
         
         storeMemory();
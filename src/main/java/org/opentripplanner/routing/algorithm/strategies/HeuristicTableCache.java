@@ -0,0 +1,153 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.util.BitSet;
+
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A bounded cache of the completed backward searches of the InterleavedBidirectionalHeuristic, shared by all the
+ * requests of a Router. Many requests go to the same few places (a station, an airport, a stadium on an event day),
+ * and the weights of the backward search depend only on the target, the routing parameters and the service days, not
+ * on the origin or the time of day, so the requests after the first one to a destination read them from a table.
+ */
+public class HeuristicTableCache {
+
+    public static final int DEFAULT_SIZE = 32;
+
+    private final Cache<String, Table> tables;
+
+    public HeuristicTableCache(int size) {
+        tables = CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    public HeuristicTableCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @return the table for the target and the parameters of the request, or null if none is cached. Once the graph
+     *         was modified, for instance by the linking of a new bike rental station, all tables built before are
+     *         dropped, as the weights they hold may no longer be lower bounds.
+     */
+    public Table get(RoutingRequest options) {
+        long modificationCount = options.rctx.graph.getModificationCount();
+        Table table = tables.getIfPresent(key(options));
+        if (table != null && table.modificationCount != modificationCount) {
+            tables.invalidateAll();
+            return null;
+        }
+        return table;
+    }
+
+    public void put(RoutingRequest options, Table table) {
+        tables.put(key(options), table);
+    }
+
+    public long size() {
+        return tables.size();
+    }
+
+    /**
+     * @return a key identifying everything the backward search depends on: the target, the direction of the search,
+     *         the street costs, the walk limits and the board costs, and the service days which decide which patterns
+     *         run. Temporary targets are created anew for each request, but always linked in the same way from the
+     *         same point.
+     */
+    static String key(RoutingRequest options) {
+        StringBuilder sb = new StringBuilder();
+        Vertex target = options.rctx.target;
+        if (target instanceof TemporaryVertex)
+            sb.append(target.getLat()).append(',').append(target.getLon());
+        else
+            sb.append(target.getLabel());
+        sb.append(' ').append(options.arriveBy).append(' ').append(ContractionHierarchySet.costKey(options))
+                .append(' ').append(options.maxWalkDistance).append(' ').append(options.maxPreTransitTime)
+                .append(' ').append(options.walkBoardCost).append(' ').append(options.bikeBoardCost);
+        if (options.rctx.serviceDays != null) {
+            for (ServiceDay sd : options.rctx.serviceDays)
+                sb.append(' ').append(sd.getServiceDate());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The weights of a completed backward search, by vertex index, for the permanent vertices of the graph. Weights
+     * are rounded down to floats so that they remain lower bounds. Tables are never modified once built, so any
+     * number of searches may read them at the same time.
+     */
+    public static class Table {
+
+        /** The modification count of the graph when the search started. */
+        final long modificationCount;
+
+        private final int offset;
+
+        private final float[] weights;
+
+        /** The vertices reached by the street search from the target, rather than over transit. */
+        private final BitSet streetReached;
+
+        /** The highest weight found. */
+        final double maxFound;
+
+        Table(long modificationCount, int offset, double[] weights, BitSet streetReached, double maxFound) {
+            this.modificationCount = modificationCount;
+            this.offset = offset;
+            this.weights = new float[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                float w = (float) weights[i];
+                if (w > weights[i])
+                    w = Math.nextAfter(w, Double.NEGATIVE_INFINITY);
+                this.weights[i] = w;
+            }
+            this.streetReached = streetReached;
+            this.maxFound = maxFound;
+        }
+
+        /** @return the position of a permanent vertex in a table starting at the offset, or -1. */
+        static int index(Vertex v, int offset, int length) {
+            if (v instanceof TemporaryVertex)
+                return -1;
+            int i = v.getIndex() - offset;
+            return i >= 0 && i < length ? i : -1;
+        }
+
+        private int slot(Vertex v) {
+            return index(v, offset, weights.length);
+        }
+
+        /**
+         * @return the weight from the vertex to the target, or +INF if it was not reached. The weight of temporary
+         *         vertices and of vertices added to the graph after the search is unknown, and 0 is returned for them.
+         */
+        public double getWeight(Vertex v) {
+            int i = slot(v);
+            return i < 0 ? 0 : weights[i];
+        }
+
+        public boolean isStreetReached(Vertex v) {
+            int i = slot(v);
+            return i >= 0 && streetReached.get(i);
+        }
+    }
+}
@@ -14,6 +14,8 @@
 package org.opentripplanner.routing.algorithm.strategies;
 
 import com.google.common.collect.Lists;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TObjectDoubleIterator;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.pqueue.BinHeap;
@@ -32,6 +34,8 @@ import org.opentripplanner.routing.vertextype.TransitVertex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -47,6 +51,10 @@ import java.util.List;
  * remove any time-dependent component (e.g. by evaluating all boarding wait times as zero). This produces an
  * admissible heuristic (which always underestimates path weight) making it valid independent of the clock time.
  * This is important because you don't know precisely what time you will arrive at the destination until you get there.
+ *
+ * When given a HeuristicTableCache, the backward search is run to completion before the main search starts, and the
+ * resulting table is shared with later requests to the same target. Only the street search around the origin is then
+ * done for each request.
  */
 public class InterleavedBidirectionalHeuristic implements RemainingWeightHeuristic {
 
@@ -80,11 +88,22 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     BinHeap<Vertex> q;
 
     boolean finished = false;
+
+    /** Where completed backward searches are shared between requests, or null to interleave them with each search. */
+    HeuristicTableCache tables;
+
+    /** The completed backward search from the target, when using the cache. */
+    HeuristicTableCache.Table table;
     
     public InterleavedBidirectionalHeuristic(Graph graph) {
         this.graph = graph;
     }
 
+    public InterleavedBidirectionalHeuristic(Graph graph, HeuristicTableCache tables) {
+        this.graph = graph;
+        this.tables = tables;
+    }
+
     
     /* Implementation observations:
      * 1. filling weights array with inf is expensive (~70 msec in PDX)
@@ -122,19 +141,41 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         // make sure distance table is initialized before starting thread
         LOG.debug("initializing heuristic computation thread");
         // Forward street search first, mark street vertices around the origin so H evaluates to 0
-        List<State> search = streetSearch(options, false, abortTime); // ~30 msec
+        List<State> search = streetSearch(options, false, abortTime, weights); // ~30 msec
         if (search == null) return; // Search timed out
         LOG.debug("end foreward street search {} ms", System.currentTimeMillis() - start);
-        // create a new priority queue
-        q = new BinHeap<Vertex>();
-        // Save weight to reach street vertices around the destination.
-        // Also enqueue states for each stop within walking distance of the destination.
-        search = streetSearch(options, true, abortTime);
-        if (search == null) return; // Search timed out
-        for (State stopState : search) {
-            q.insert(stopState.getVertex(), stopState.getWeight());
+        if (tables != null) {
+            table = tables.get(options);
+            if (table == null) {
+                table = buildTable(options, abortTime);
+                if (table == null) {
+                    // Search timed out
+                    finished = true;
+                    return;
+                }
+                tables.put(options, table);
+                LOG.debug("end backward search {} ms", System.currentTimeMillis() - start);
+            }
+            // Mark the vertices near both origin and destination, as the backward street search would have.
+            for (TObjectDoubleIterator<Vertex> it = weights.iterator(); it.hasNext(); ) {
+                it.advance();
+                if (table.isStreetReached(it.key()))
+                    it.setValue(-2);
+            }
+            maxFound = table.maxFound;
+            finished = true;
+        } else {
+            // create a new priority queue
+            q = new BinHeap<Vertex>();
+            // Save weight to reach street vertices around the destination.
+            // Also enqueue states for each stop within walking distance of the destination.
+            search = streetSearch(options, true, abortTime, weights);
+            if (search == null) return; // Search timed out
+            for (State stopState : search) {
+                q.insert(stopState.getVertex(), stopState.getWeight());
+            }
+            LOG.debug("end backward street search {} ms", System.currentTimeMillis() - start);
         }
-        LOG.debug("end backward street search {} ms", System.currentTimeMillis() - start);
         // once street searches are done, raise the limits to max
         // because hard walk limiting is incorrect and is observed to cause problems 
         // for trips near the cutoff
@@ -144,6 +185,72 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         options.rctx.debugOutput.finishedPrecalculating();
     }
 
+    /**
+     * Run the backward street and transit searches from the target to completion, without the marks around the
+     * origin, which are specific to each request.
+     *
+     * @return the weights of all the vertices reached, or null if the search timed out.
+     */
+    private HeuristicTableCache.Table buildTable(RoutingRequest options, long abortTime) {
+        long modificationCount = graph.getModificationCount();
+        int minIndex = Integer.MAX_VALUE, maxIndex = -1;
+        for (Vertex v : graph.getVertices()) {
+            minIndex = Math.min(minIndex, v.getIndex());
+            maxIndex = Math.max(maxIndex, v.getIndex());
+        }
+        if (maxIndex < 0)
+            minIndex = 0;
+        double[] tableWeights = new double[maxIndex - minIndex + 1];
+        Arrays.fill(tableWeights, Double.POSITIVE_INFINITY);
+        BitSet streetReached = new BitSet(tableWeights.length);
+        TObjectDoubleHashMap<Vertex> streetWeights = new TObjectDoubleHashMap<Vertex>(
+                Constants.DEFAULT_CAPACITY, 0.5f, Double.POSITIVE_INFINITY);
+        List<State> search = streetSearch(options, true, abortTime, streetWeights);
+        if (search == null) return null;
+        for (TObjectDoubleIterator<Vertex> it = streetWeights.iterator(); it.hasNext(); ) {
+            it.advance();
+            int i = HeuristicTableCache.Table.index(it.key(), minIndex, tableWeights.length);
+            if (i >= 0) {
+                tableWeights[i] = it.value();
+                streetReached.set(i);
+            }
+        }
+        BinHeap<Vertex> q = new BinHeap<Vertex>();
+        for (State stopState : search) {
+            int i = HeuristicTableCache.Table.index(stopState.getVertex(), minIndex, tableWeights.length);
+            if (i >= 0 && stopState.getWeight() < tableWeights[i]) {
+                tableWeights[i] = stopState.getWeight();
+                q.insert(stopState.getVertex(), stopState.getWeight());
+            }
+        }
+        double maxFound = 0;
+        long steps = 0;
+        while (!q.empty()) {
+            if (abortTime < Long.MAX_VALUE && ++steps % 1000 == 0 && System.currentTimeMillis() > abortTime) {
+                return null;
+            }
+            double uw = q.peek_min_key();
+            Vertex u = q.extract_min();
+            // Skip vertices which were queued again with a lower weight
+            if (uw > tableWeights[u.getIndex() - minIndex]) continue;
+            maxFound = uw;
+            // The same traversal as doSomeWork
+            for (Edge e : options.arriveBy ? u.getOutgoing() : u.getIncoming()) {
+                if (e instanceof StreetTransitLink) continue;
+                Vertex v = options.arriveBy ? e.getToVertex() : e.getFromVertex();
+                double ew = e.weightLowerBound(options);
+                if (Double.isInfinite(ew)) continue;
+                int i = HeuristicTableCache.Table.index(v, minIndex, tableWeights.length);
+                double vw = uw + ew;
+                if (i >= 0 && vw < tableWeights[i]) {
+                    tableWeights[i] = vw;
+                    q.insert(v, vw);
+                }
+            }
+        }
+        return new HeuristicTableCache.Table(modificationCount, minIndex, tableWeights, streetReached, maxFound);
+    }
+
     /** Do up to N iterations as long as the queue is not empty */
     @Override
     public void doSomeWork() {
@@ -200,6 +307,9 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         // Temporary vertices (StreetLocations) might not be found in walk search.
         if (v instanceof StreetLocation) return 0;
         double weight = weights.get(v);
+        // Vertices near the origin keep their marks, all others are found in the completed search if there is one.
+        // Vertices the completed search did not cover, such as temporary ones, get 0 from it.
+        if (table != null && weight == Double.POSITIVE_INFINITY) weight = table.getWeight(v);
         // All valid street vertices should be explored before the main search starts,
         // but many transit vertices may not yet be explored when the search starts.
         // TODO: verify that StreetVertex includes all vertices of interest.
@@ -265,7 +375,8 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     TODO perhaps reimplement using the generic dijkstra class
     */
 
-    private List<State> streetSearch (RoutingRequest rr, boolean fromTarget, long abortTime) {
+    private List<State> streetSearch (RoutingRequest rr, boolean fromTarget, long abortTime,
+            TObjectDoubleHashMap<Vertex> weights) {
         rr = rr.clone();
         if (fromTarget)
             rr.setArriveBy( ! rr.arriveBy);
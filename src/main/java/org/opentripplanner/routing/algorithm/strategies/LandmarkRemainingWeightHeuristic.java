@@ -0,0 +1,169 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+
+/**
+ * A remaining weight heuristic for searches on the streets only, using the distances to and from the landmarks of a
+ * LandmarkSet: the distance from a vertex a to a vertex b is at least d(L, b) - d(L, a) and d(a, L) - d(b, L) for any
+ * landmark L. The largest of these bounds is converted to a weight in the same way as the Euclidean distance, and
+ * the estimate is never lower than that of the EuclideanRemainingWeightHeuristic, except for bicycles optimizing for
+ * safety: their weights may be lower than the ride times, so both estimates are scaled by the lowest factor the
+ * streets of the graph allow.
+ *
+ * In arrive-by searches the remaining path goes from the search target to the current vertex instead. Temporary
+ * vertices have no distances of their own: the target gets bounds through the temporary edges around it, and states
+ * at other temporary vertices get the Euclidean estimate.
+ */
+public class LandmarkRemainingWeightHeuristic implements RemainingWeightHeuristic {
+
+    private static final long serialVersionUID = 1L;
+
+    /** How many temporary edges are followed from the target to vertices with distances. */
+    private static final int MAX_TEMPORARY_EDGES = 3;
+
+    private final LandmarkSet landmarks;
+
+    private final EuclideanRemainingWeightHeuristic euclidean = new EuclideanRemainingWeightHeuristic();
+
+    private int mode;
+
+    private boolean arriveBy;
+
+    private double weightPerUnit;
+
+    private double euclideanFactor;
+
+    /* Per landmark, bounds of the distances between the landmark and the search target. */
+    private double[] fromLower, fromUpper, toLower, toUpper;
+
+    public LandmarkRemainingWeightHeuristic(LandmarkSet landmarks) {
+        this.landmarks = landmarks;
+    }
+
+    @Override
+    public void initialize(RoutingRequest options, long abortTime) {
+        euclidean.initialize(options, abortTime);
+        mode = LandmarkSet.modeIndex(options);
+        if (mode < 0)
+            return;
+        arriveBy = options.arriveBy;
+        // Street weights are the time multiplied by a reluctance, and distances for cars are already times
+        weightPerUnit = Math.min(options.walkReluctance, options.stairsReluctance);
+        if (mode != LandmarkSet.CAR)
+            weightPerUnit /= options.getStreetSpeedUpperBound();
+        // Safe bicycle weights may be lower than the ride times both estimates assume
+        euclideanFactor = 1;
+        if (mode == LandmarkSet.BICYCLE && !options.wheelchairAccessible)
+            euclideanFactor = Math.min(1, bicycleWeightFactor(options, landmarks.getMinBicycleSafetyFactor()));
+        weightPerUnit *= euclideanFactor;
+        int n = landmarks.getLandmarkCount();
+        fromLower = new double[n];
+        fromUpper = new double[n];
+        toLower = new double[n];
+        toUpper = new double[n];
+        Vertex target = options.rctx.target;
+        for (int l = 0; l < n; l++) {
+            fromLower[l] = bound(target, l, true, false, 0);
+            fromUpper[l] = bound(target, l, true, true, 0);
+            toLower[l] = bound(target, l, false, false, 0);
+            toUpper[l] = bound(target, l, false, true, 0);
+        }
+    }
+
+    /**
+     * @return how much lower than the time to ride a street its weight may be for the bicycle optimization of the
+     *         request, when bicycle weights are scaled by safety factors of at least the given one.
+     */
+    static double bicycleWeightFactor(RoutingRequest options, double minSafetyFactor) {
+        switch (options.optimize) {
+        case SAFE:
+            return minSafetyFactor;
+        case GREENWAYS:
+            // The safest streets may be greenways, which count as even safer
+            return minSafetyFactor * 0.66;
+        case TRIANGLE:
+            // The slope term is never negative
+            return options.triangleTimeFactor + options.triangleSafetyFactor * minSafetyFactor;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * @param from Whether the bound is of the distance from the landmark to the vertex, or from the vertex to it.
+     * @param upper Whether to bound the distance from above or from below.
+     * @return a bound of the distance between the landmark and the vertex, going through the temporary edges around
+     *         the vertex if it has no distances itself.
+     */
+    private double bound(Vertex v, int landmark, boolean from, boolean upper, int depth) {
+        int slot = landmarks.getSlot(v);
+        if (slot >= 0) {
+            if (from)
+                return upper ? landmarks.fromUpper(mode, landmark, slot) : landmarks.fromLower(mode, landmark, slot);
+            return upper ? landmarks.toUpper(mode, landmark, slot) : landmarks.toLower(mode, landmark, slot);
+        }
+        if (depth == MAX_TEMPORARY_EDGES)
+            return upper ? Double.POSITIVE_INFINITY : 0;
+        double bound = Double.POSITIVE_INFINITY;
+        for (Edge e : from ? v.getIncoming() : v.getOutgoing()) {
+            double length = LandmarkSet.length(e, mode);
+            if (length < 0)
+                continue;
+            Vertex next = from ? e.getFromVertex() : e.getToVertex();
+            bound = Math.min(bound, bound(next, landmark, from, upper, depth + 1) + length);
+        }
+        return upper ? bound : (bound == Double.POSITIVE_INFINITY ? 0 : bound);
+    }
+
+    @Override
+    public double estimateRemainingWeight(State s) {
+        double estimate = euclidean.estimateRemainingWeight(s);
+        if (mode < 0)
+            return estimate;
+        estimate *= euclideanFactor;
+        int slot = landmarks.getSlot(s.getVertex());
+        if (slot < 0)
+            return estimate;
+        double distance = 0;
+        for (int l = 0; l < fromLower.length; l++) {
+            double bound;
+            if (arriveBy) {
+                // From the target to the vertex
+                bound = Math.max(landmarks.fromLower(mode, l, slot) - fromUpper[l],
+                        toLower[l] - landmarks.toUpper(mode, l, slot));
+            } else {
+                // From the vertex to the target
+                bound = Math.max(fromLower[l] - landmarks.fromUpper(mode, l, slot),
+                        landmarks.toLower(mode, l, slot) - toUpper[l]);
+            }
+            // Differences of two infinite distances are not bounds
+            if (bound > distance && bound < Double.POSITIVE_INFINITY)
+                distance = bound;
+        }
+        return Math.max(estimate, distance * weightPerUnit);
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public void doSomeWork() {
+    }
+}
@@ -0,0 +1,378 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The distances along the streets between every street vertex and a few landmarks, in both directions, for walking,
+ * cycling and driving. By the triangle inequality, the distance from a vertex to the destination is at least the
+ * difference of their distances to or from any landmark, which gives the LandmarkRemainingWeightHeuristic a lower
+ * bound that knows about rivers, highways and one-way streets.
+ *
+ * Distances are the lengths of the street edges a mode may use, taking the shortest of the lengths that its speed
+ * applies to, or the time to drive them for cars, and 0 for the other edges a street search may traverse. They are stored as 16-bit fractions of the
+ * longest distance from each landmark, rounded down, so that a stored distance d stands for a distance between
+ * d * unit and (d + 1) * unit. Vertices which cannot be reached hold UNREACHABLE.
+ *
+ * Landmarks are chosen one after the other as the vertex farthest from all the landmarks chosen so far, walking,
+ * starting from the vertex farthest from the center of the graph.
+ */
+public class LandmarkSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(LandmarkSet.class);
+
+    public static final int DEFAULT_LANDMARKS = 16;
+
+    static final int UNREACHABLE = 0xFFFF;
+
+    /** The modes distances are computed for, indexing the tables. Bicycles may also be walked. */
+    static final int BICYCLE = 1, CAR = 2;
+
+    static final TraverseModeSet[] MODES = { new TraverseModeSet(TraverseMode.WALK),
+            new TraverseModeSet(TraverseMode.BICYCLE, TraverseMode.WALK), new TraverseModeSet(TraverseMode.CAR) };
+
+    /** The vertices with distances, indexed by slot. */
+    private final Vertex[] vertices;
+
+    private final Vertex[] landmarks;
+
+    /* Indexed by mode, landmark and slot: the distance from the landmark to the vertex, and back. */
+    private final short[][][] fromLandmark, toLandmark;
+
+    /* Indexed by mode and landmark: the distance each stored unit stands for. */
+    private final double[][] fromUnit, toUnit;
+
+    /**
+     * The lowest bicycle safety factor of the streets bicycles may use, which bicycle weights may be scaled by when
+     * optimizing for safety. Sets saved without it read 0, which only makes those bounds useless.
+     */
+    private float minBicycleSafetyFactor = 1;
+
+    /* Vertex indices are assigned again when a graph is loaded, so slots are looked up by index once it is. */
+    private transient volatile int[] slots;
+
+    private LandmarkSet(Vertex[] vertices, Vertex[] landmarks) {
+        this.vertices = vertices;
+        this.landmarks = landmarks;
+        fromLandmark = new short[MODES.length][landmarks.length][];
+        toLandmark = new short[MODES.length][landmarks.length][];
+        fromUnit = new double[MODES.length][landmarks.length];
+        toUnit = new double[MODES.length][landmarks.length];
+    }
+
+    /**
+     * @return the index of the table to use for a request on the streets only, or -1 if it may use transit or modes
+     *         no table covers.
+     */
+    public static int modeIndex(RoutingRequest options) {
+        if (options.modes.isTransit() || options.parkAndRide || options.kissAndRide)
+            return -1;
+        TraverseModeSet modes = options.modes;
+        if (modes.getCar())
+            return modes.getWalk() || modes.getBicycle() ? -1 : CAR;
+        if (modes.getBicycle())
+            return BICYCLE;
+        return modes.getWalk() ? 0 : -1;
+    }
+
+    /**
+     * @return the length of the edge for the mode, not longer than any length its traversal is computed from, or -1
+     *         if the edge cannot be traversed in a street search with that mode. Cars drive at the speed of each
+     *         street whatever the request, so their lengths are in seconds rather than meters.
+     */
+    static double length(Edge e, int mode) {
+        if (e instanceof StreetEdge) {
+            StreetEdge se = (StreetEdge) e;
+            if (!se.canTraverse(MODES[mode]))
+                return -1;
+            if (mode == CAR)
+                return se.getDistance() / se.getCarSpeed();
+            return Math.min(se.getDistance(), se.getSlopeSpeedEffectiveLength());
+        }
+        // Links, elevators and other edges between street vertices and what surrounds them
+        if (e.getFromVertex() instanceof StreetVertex || e.getToVertex() instanceof StreetVertex)
+            return 0;
+        return -1;
+    }
+
+    public static LandmarkSet build(Graph graph, int nLandmarks) {
+        TObjectIntHashMap<Vertex> slotForVertex = new TObjectIntHashMap<Vertex>(16, 0.5f, -1);
+        List<Vertex> vertices = new ArrayList<Vertex>();
+        List<Edge> edges = new ArrayList<Edge>();
+        for (Edge e : graph.getEdges()) {
+            boolean used = false;
+            for (int mode = 0; mode < MODES.length; mode++) {
+                if (length(e, mode) >= 0)
+                    used = true;
+            }
+            if (!used)
+                continue;
+            edges.add(e);
+            for (Vertex v : new Vertex[] { e.getFromVertex(), e.getToVertex() }) {
+                if (!slotForVertex.containsKey(v)) {
+                    slotForVertex.put(v, vertices.size());
+                    vertices.add(v);
+                }
+            }
+        }
+        int n = vertices.size();
+        if (n == 0) {
+            return new LandmarkSet(new Vertex[0], new Vertex[0]);
+        }
+
+        /* Adjacency of each mode, forward and backward, as arrays of edges from each slot. */
+        Adjacency[] forward = new Adjacency[MODES.length], backward = new Adjacency[MODES.length];
+        for (int mode = 0; mode < MODES.length; mode++) {
+            forward[mode] = new Adjacency(n, edges, slotForVertex, mode, false);
+            backward[mode] = new Adjacency(n, edges, slotForVertex, mode, true);
+        }
+
+        /* Choose the landmarks walking, each one farthest from those already chosen. */
+        List<double[]> walkDistances = new ArrayList<double[]>();
+        List<Integer> chosen = new ArrayList<Integer>();
+        double[] closest = new double[n];
+        Arrays.fill(closest, Double.POSITIVE_INFINITY);
+        double[] first = forward[0].dijkstra(central(vertices));
+        int landmark = farthest(first, null);
+        while (landmark >= 0 && chosen.size() < nLandmarks) {
+            chosen.add(landmark);
+            double[] distances = forward[0].dijkstra(landmark);
+            walkDistances.add(distances);
+            for (int i = 0; i < n; i++) {
+                closest[i] = Math.min(closest[i], distances[i]);
+            }
+            landmark = farthest(closest, chosen);
+        }
+
+        Vertex[] landmarkVertices = new Vertex[chosen.size()];
+        for (int l = 0; l < chosen.size(); l++) {
+            landmarkVertices[l] = vertices.get(chosen.get(l));
+        }
+        LandmarkSet set = new LandmarkSet(vertices.toArray(new Vertex[n]), landmarkVertices);
+        for (Edge e : edges) {
+            if (e instanceof StreetEdge && ((StreetEdge) e).canTraverse(MODES[BICYCLE])) {
+                set.minBicycleSafetyFactor = Math.min(set.minBicycleSafetyFactor,
+                        ((StreetEdge) e).getBicycleSafetyFactor());
+            }
+        }
+        for (int mode = 0; mode < MODES.length; mode++) {
+            for (int l = 0; l < chosen.size(); l++) {
+                double[] from = mode == 0 ? walkDistances.get(l) : forward[mode].dijkstra(chosen.get(l));
+                double[] to = backward[mode].dijkstra(chosen.get(l));
+                set.fromUnit[mode][l] = unit(from);
+                set.fromLandmark[mode][l] = quantize(from, set.fromUnit[mode][l]);
+                set.toUnit[mode][l] = unit(to);
+                set.toLandmark[mode][l] = quantize(to, set.toUnit[mode][l]);
+            }
+        }
+        LOG.info("Computed distances between {} vertices and {} landmarks", n, landmarkVertices.length);
+        return set;
+    }
+
+    /** @return the slot of the vertex closest to the mean of all coordinates. */
+    private static int central(List<Vertex> vertices) {
+        double x = 0, y = 0;
+        for (Vertex v : vertices) {
+            x += v.getX();
+            y += v.getY();
+        }
+        x /= vertices.size();
+        y /= vertices.size();
+        int central = 0;
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < vertices.size(); i++) {
+            Vertex v = vertices.get(i);
+            double d = (v.getX() - x) * (v.getX() - x) + (v.getY() - y) * (v.getY() - y);
+            if (d < best) {
+                best = d;
+                central = i;
+            }
+        }
+        return central;
+    }
+
+    /** @return the reachable slot with the highest distance, not among the given ones, or -1. */
+    private static int farthest(double[] distances, List<Integer> exclude) {
+        int farthest = -1;
+        for (int i = 0; i < distances.length; i++) {
+            if (distances[i] == Double.POSITIVE_INFINITY || (exclude != null && exclude.contains(i)))
+                continue;
+            if (farthest < 0 || distances[i] > distances[farthest])
+                farthest = i;
+        }
+        return farthest;
+    }
+
+    private static double unit(double[] distances) {
+        double max = 0;
+        for (double d : distances) {
+            if (d != Double.POSITIVE_INFINITY)
+                max = Math.max(max, d);
+        }
+        return max > 0 ? max / (UNREACHABLE - 1) : 1;
+    }
+
+    private static short[] quantize(double[] distances, double unit) {
+        short[] quantized = new short[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            int q = distances[i] == Double.POSITIVE_INFINITY ? UNREACHABLE
+                    : Math.min(UNREACHABLE - 1, (int) Math.floor(distances[i] / unit));
+            quantized[i] = (short) q;
+        }
+        return quantized;
+    }
+
+    public float getMinBicycleSafetyFactor() {
+        return minBicycleSafetyFactor;
+    }
+
+    public int getLandmarkCount() {
+        return landmarks.length;
+    }
+
+    public Vertex[] getLandmarks() {
+        return landmarks;
+    }
+
+    /** @return the slot of the vertex, or -1 if there are no distances for it, such as for temporary vertices. */
+    int getSlot(Vertex v) {
+        int[] slots = this.slots;
+        if (slots == null) {
+            synchronized (this) {
+                slots = this.slots;
+                if (slots == null) {
+                    int max = 0;
+                    for (Vertex vertex : vertices) {
+                        max = Math.max(max, vertex.getIndex() + 1);
+                    }
+                    slots = new int[max];
+                    Arrays.fill(slots, -1);
+                    for (int i = 0; i < vertices.length; i++) {
+                        slots[vertices[i].getIndex()] = i;
+                    }
+                    this.slots = slots;
+                }
+            }
+        }
+        int index = v.getIndex();
+        if (index < 0 || index >= slots.length)
+            return -1;
+        int slot = slots[index];
+        return slot >= 0 && vertices[slot] == v ? slot : -1;
+    }
+
+    /** @return a lower bound of the distance from the landmark to the vertex, or infinity if unreachable. */
+    double fromLower(int mode, int landmark, int slot) {
+        return lower(fromLandmark[mode][landmark][slot], fromUnit[mode][landmark]);
+    }
+
+    /** @return an upper bound of the distance from the landmark to the vertex, or infinity if unreachable. */
+    double fromUpper(int mode, int landmark, int slot) {
+        return upper(fromLandmark[mode][landmark][slot], fromUnit[mode][landmark]);
+    }
+
+    /** @return a lower bound of the distance from the vertex to the landmark, or infinity if unreachable. */
+    double toLower(int mode, int landmark, int slot) {
+        return lower(toLandmark[mode][landmark][slot], toUnit[mode][landmark]);
+    }
+
+    /** @return an upper bound of the distance from the vertex to the landmark, or infinity if unreachable. */
+    double toUpper(int mode, int landmark, int slot) {
+        return upper(toLandmark[mode][landmark][slot], toUnit[mode][landmark]);
+    }
+
+    private static double lower(short stored, double unit) {
+        int q = stored & 0xFFFF;
+        return q == UNREACHABLE ? Double.POSITIVE_INFINITY : q * unit;
+    }
+
+    private static double upper(short stored, double unit) {
+        int q = stored & 0xFFFF;
+        return q == UNREACHABLE ? Double.POSITIVE_INFINITY : (q + 1) * unit;
+    }
+
+    /** The edges one mode may traverse between slots, in one direction. */
+    private static class Adjacency {
+
+        final int[] start, target;
+
+        final double[] lengths;
+
+        Adjacency(int n, List<Edge> edges, TObjectIntHashMap<Vertex> slots, int mode, boolean reverse) {
+            start = new int[n + 1];
+            List<Edge> usable = new ArrayList<Edge>();
+            for (Edge e : edges) {
+                if (length(e, mode) >= 0) {
+                    usable.add(e);
+                    start[slots.get(reverse ? e.getToVertex() : e.getFromVertex()) + 1]++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                start[i + 1] += start[i];
+            }
+            target = new int[usable.size()];
+            lengths = new double[usable.size()];
+            int[] next = Arrays.copyOf(start, n);
+            for (Edge e : usable) {
+                int i = next[slots.get(reverse ? e.getToVertex() : e.getFromVertex())]++;
+                target[i] = slots.get(reverse ? e.getFromVertex() : e.getToVertex());
+                lengths[i] = length(e, mode);
+            }
+        }
+
+        /** @return the distances from the source to every slot. */
+        double[] dijkstra(int source) {
+            int n = start.length - 1;
+            double[] distances = new double[n];
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+            distances[source] = 0;
+            BinHeap<Integer> queue = new BinHeap<Integer>();
+            queue.insert(source, 0);
+            while (!queue.empty()) {
+                double distance = queue.peek_min_key();
+                int slot = queue.extract_min();
+                if (distance > distances[slot])
+                    continue;
+                for (int i = start[slot]; i < start[slot + 1]; i++) {
+                    double d = distance + lengths[i];
+                    if (d < distances[target[i]]) {
+                        distances[target[i]] = d;
+                        queue.insert(target[i], d);
+                    }
+                }
+            }
+            return distances;
+        }
+    }
+}
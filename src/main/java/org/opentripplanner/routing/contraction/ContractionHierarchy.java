@@ -0,0 +1,206 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.io.Serializable;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+
+/**
+ * A contraction hierarchy over the edges of the street graph for one set of routing parameters. Its nodes are edges,
+ * and an arc from one edge to the next has the weight of traversing the next edge after the first one, turn costs
+ * included. Each node only keeps its arcs to nodes contracted after it: the arcs leaving it in the out arrays and
+ * the arcs entering it in the in arrays. A shortcut arc has the node it was made for in its middle, -1 otherwise.
+ *
+ * Queries are thread-safe.
+ */
+public class ContractionHierarchy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The routing parameters this hierarchy was built for, see ContractionHierarchySet.costKey. */
+    final String costKey;
+
+    final int[] outStart, outNode, outMiddle;
+
+    final double[] outWeight;
+
+    final int[] inStart, inNode, inMiddle;
+
+    final double[] inWeight;
+
+    ContractionHierarchy(String costKey, int[] outStart, int[] outNode, int[] outMiddle, double[] outWeight,
+            int[] inStart, int[] inNode, int[] inMiddle, double[] inWeight) {
+        this.costKey = costKey;
+        this.outStart = outStart;
+        this.outNode = outNode;
+        this.outMiddle = outMiddle;
+        this.outWeight = outWeight;
+        this.inStart = inStart;
+        this.inNode = inNode;
+        this.inMiddle = inMiddle;
+        this.inWeight = inWeight;
+    }
+
+    public String getCostKey() {
+        return costKey;
+    }
+
+    /** @return the number of arcs, shortcuts included. */
+    public int getArcCount() {
+        return outNode.length + inNode.length;
+    }
+
+    /**
+     * Find the lightest route from any of the sources to any of the targets, searching upwards from both sides until
+     * the lightest route found so far is lighter than anything left in either queue.
+     *
+     * @param sources The weight of reaching each source node, the node itself included.
+     * @param targets The weight of reaching the destination after each target node, the node itself excluded.
+     * @return the route with its shortcuts unpacked, or null if no target can be reached.
+     */
+    public Route route(TIntDoubleHashMap sources, TIntDoubleHashMap targets) {
+        TIntDoubleHashMap forwardWeights = new TIntDoubleHashMap();
+        TIntDoubleHashMap backwardWeights = new TIntDoubleHashMap();
+        TIntIntHashMap forwardParents = new TIntIntHashMap(16, 0.5f, -1, -1);
+        TIntIntHashMap backwardParents = new TIntIntHashMap(16, 0.5f, -1, -1);
+        BinHeap<Integer> forwardQueue = new BinHeap<Integer>();
+        BinHeap<Integer> backwardQueue = new BinHeap<Integer>();
+        for (TIntDoubleIterator it = sources.iterator(); it.hasNext();) {
+            it.advance();
+            forwardWeights.put(it.key(), it.value());
+            forwardQueue.insert(it.key(), it.value());
+        }
+        for (TIntDoubleIterator it = targets.iterator(); it.hasNext();) {
+            it.advance();
+            backwardWeights.put(it.key(), it.value());
+            backwardQueue.insert(it.key(), it.value());
+        }
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        boolean forward = false;
+        while (true) {
+            boolean forwardDone = forwardQueue.empty() || forwardQueue.peek_min_key() >= best;
+            boolean backwardDone = backwardQueue.empty() || backwardQueue.peek_min_key() >= best;
+            if (forwardDone && backwardDone)
+                break;
+            forward = backwardDone || (!forwardDone && !forward);
+            BinHeap<Integer> queue = forward ? forwardQueue : backwardQueue;
+            TIntDoubleHashMap weights = forward ? forwardWeights : backwardWeights;
+            TIntDoubleHashMap otherWeights = forward ? backwardWeights : forwardWeights;
+            TIntIntHashMap parents = forward ? forwardParents : backwardParents;
+            double weight = queue.peek_min_key();
+            int node = queue.extract_min();
+            if (weight > weights.get(node))
+                continue; // already settled with a lower weight
+            if (otherWeights.containsKey(node) && weight + otherWeights.get(node) < best) {
+                best = weight + otherWeights.get(node);
+                meeting = node;
+            }
+            int[] start = forward ? outStart : inStart;
+            int[] nodes = forward ? outNode : inNode;
+            double[] arcWeights = forward ? outWeight : inWeight;
+            for (int i = start[node]; i < start[node + 1]; i++) {
+                int next = nodes[i];
+                double nextWeight = weight + arcWeights[i];
+                if (!weights.containsKey(next) || nextWeight < weights.get(next)) {
+                    weights.put(next, nextWeight);
+                    parents.put(next, node);
+                    queue.insert(next, nextWeight);
+                }
+            }
+        }
+        if (meeting < 0)
+            return null;
+
+        TIntArrayList up = new TIntArrayList();
+        for (int node = meeting; node >= 0; node = forwardParents.get(node)) {
+            up.add(node);
+        }
+        up.reverse();
+        TIntArrayList path = new TIntArrayList();
+        path.add(up.get(0));
+        for (int i = 1; i < up.size(); i++) {
+            unpack(up.get(i - 1), up.get(i), path);
+        }
+        for (int node = meeting, next; (next = backwardParents.get(node)) >= 0; node = next) {
+            unpack(node, next, path);
+        }
+        return new Route(path.toArray(), best);
+    }
+
+    /** Append the nodes after from on the arc from -> to, to included, replacing shortcuts by their arcs. */
+    private void unpack(int from, int to, TIntArrayList path) {
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = to;
+        int current = from;
+        while (size > 0) {
+            int next = stack[size - 1];
+            int middle = middle(current, next);
+            if (middle < 0) {
+                path.add(next);
+                current = next;
+                size--;
+            } else {
+                if (size == stack.length) {
+                    int[] larger = new int[size * 2];
+                    System.arraycopy(stack, 0, larger, 0, size);
+                    stack = larger;
+                }
+                stack[size++] = middle;
+            }
+        }
+    }
+
+    /** @return the middle of the lightest arc between the nodes, which is kept by whichever was contracted first. */
+    private int middle(int from, int to) {
+        int middle = -1;
+        double weight = Double.POSITIVE_INFINITY;
+        for (int i = outStart[from]; i < outStart[from + 1]; i++) {
+            if (outNode[i] == to && outWeight[i] < weight) {
+                weight = outWeight[i];
+                middle = outMiddle[i];
+            }
+        }
+        for (int i = inStart[to]; i < inStart[to + 1]; i++) {
+            if (inNode[i] == from && inWeight[i] < weight) {
+                weight = inWeight[i];
+                middle = inMiddle[i];
+            }
+        }
+        if (weight == Double.POSITIVE_INFINITY)
+            throw new IllegalStateException("No arc from node " + from + " to node " + to);
+        return middle;
+    }
+
+    /** A sequence of nodes found by a query, and its weight. */
+    public static class Route {
+
+        public final int[] nodes;
+
+        public final double weight;
+
+        Route(int[] nodes, double weight) {
+            this.nodes = nodes;
+            this.weight = weight;
+        }
+    }
+}
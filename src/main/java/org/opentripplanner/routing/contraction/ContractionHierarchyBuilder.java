@@ -0,0 +1,306 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Contracts the nodes of one hierarchy, in the order of the lazily updated edge difference: the number of shortcuts
+ * a node needs minus the number of arcs it removes, plus the number of its neighbors already contracted so that
+ * contraction spreads evenly over the graph. A shortcut is left out when a witness search finds a route around the
+ * node that is no heavier, within a limited number of settled nodes; missing a witness only costs an extra shortcut.
+ */
+class ContractionHierarchyBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchyBuilder.class);
+
+    /** Witness searches give up after settling this many nodes. */
+    private static final int WITNESS_SETTLE_LIMIT = 200;
+
+    /** Interval in seconds at which turns with a time-limited restriction are tried over a week. */
+    private static final int RESTRICTION_SAMPLE_INTERVAL = 15 * 60;
+
+    private static final int WEEK = 7 * 24 * 3600;
+
+    private final int n;
+
+    private final ArcList[] out, in;
+
+    private final int[] contractedNeighbors;
+
+    private final ArcList[] upOut, upIn;
+
+    /* Reused by the witness searches, which all run on one thread. */
+    private final TIntDoubleHashMap witnessWeights = new TIntDoubleHashMap();
+
+    private final BinHeap<Integer> witnessQueue = new BinHeap<Integer>();
+
+    private ContractionHierarchyBuilder(int n) {
+        this.n = n;
+        out = new ArcList[n];
+        in = new ArcList[n];
+        upOut = new ArcList[n];
+        upIn = new ArcList[n];
+        for (int i = 0; i < n; i++) {
+            out[i] = new ArcList();
+            in[i] = new ArcList();
+        }
+        contractedNeighbors = new int[n];
+    }
+
+    /**
+     * Build the hierarchy of one profile, whose arcs are the turns from each node to the next as traversed with the
+     * profile from a fresh state at the start of the first edge. Turns which are only restricted at some times get
+     * the lowest weight they have over a week, so that the hierarchy never misses a route; routes are checked
+     * against the actual request after each query.
+     */
+    static ContractionHierarchy build(Graph graph, ContractionHierarchySet set, String costKey, RoutingRequest profile) {
+        ContractionHierarchyBuilder builder = new ContractionHierarchyBuilder(set.edges.length);
+        int arcs = 0;
+        for (Vertex v : graph.getVertices()) {
+            for (Edge back : v.getIncoming()) {
+                int from = set.getNode(back);
+                if (from < 0)
+                    continue;
+                List<State> states = initialStates(graph, back, profile);
+                if (states.isEmpty())
+                    continue;
+                for (Edge e : v.getOutgoing()) {
+                    int to = set.getNode(e);
+                    if (to < 0 || to == from)
+                        continue;
+                    double weight = Double.POSITIVE_INFINITY;
+                    for (State s0 : states) {
+                        for (State s1 = e.traverse(s0); s1 != null; s1 = s1.getNextResult()) {
+                            weight = Math.min(weight, s1.getWeight() - s0.getWeight());
+                        }
+                    }
+                    if (weight < Double.POSITIVE_INFINITY) {
+                        builder.addArc(from, to, weight, -1);
+                        arcs++;
+                    }
+                }
+            }
+        }
+        LOG.info("Contracting {} turns between {} edges for {}", arcs, set.edges.length, profile.modes);
+        return builder.contract(costKey);
+    }
+
+    /**
+     * @return the states after traversing the edge from a fresh state, at each time in a week when it has a
+     *         time-limited turn restriction, or just once otherwise.
+     */
+    private static List<State> initialStates(Graph graph, Edge edge, RoutingRequest profile) {
+        boolean timed = false;
+        for (TurnRestriction restriction : graph.getTurnRestrictions(edge)) {
+            if (restriction.time != null)
+                timed = true;
+        }
+        List<State> states = new ArrayList<State>();
+        long start = profile.getSecondsSinceEpoch();
+        for (long t = start; t < start + (timed ? WEEK : 1); t += RESTRICTION_SAMPLE_INTERVAL) {
+            for (State s = edge.traverse(new State(edge.getFromVertex(), t, profile)); s != null;
+                    s = s.getNextResult()) {
+                states.add(s);
+            }
+        }
+        return states;
+    }
+
+    private void addArc(int from, int to, double weight, int middle) {
+        out[from].put(to, weight, middle);
+        in[to].put(from, weight, middle);
+    }
+
+    private ContractionHierarchy contract(String costKey) {
+        BinHeap<Integer> queue = new BinHeap<Integer>(n);
+        for (int node = 0; node < n; node++) {
+            queue.insert(node, priority(node));
+        }
+        int done = 0;
+        while (!queue.empty()) {
+            int node = queue.extract_min();
+            double priority = priority(node);
+            if (!queue.empty() && priority > queue.peek_min_key()) {
+                queue.insert(node, priority);
+                continue;
+            }
+            contractNode(node, false);
+            if (++done % 100000 == 0)
+                LOG.info("Contracted {} of {} edges", done, n);
+        }
+
+        int[] outStart = new int[n + 1], inStart = new int[n + 1];
+        for (int node = 0; node < n; node++) {
+            outStart[node + 1] = outStart[node] + upOut[node].size;
+            inStart[node + 1] = inStart[node] + upIn[node].size;
+        }
+        int[] outNode = new int[outStart[n]], outMiddle = new int[outStart[n]];
+        double[] outWeight = new double[outStart[n]];
+        int[] inNode = new int[inStart[n]], inMiddle = new int[inStart[n]];
+        double[] inWeight = new double[inStart[n]];
+        for (int node = 0; node < n; node++) {
+            upOut[node].copyTo(outNode, outMiddle, outWeight, outStart[node]);
+            upIn[node].copyTo(inNode, inMiddle, inWeight, inStart[node]);
+        }
+        LOG.info("Contraction hierarchy has {} arcs", outNode.length + inNode.length);
+        return new ContractionHierarchy(costKey, outStart, outNode, outMiddle, outWeight, inStart, inNode,
+                inMiddle, inWeight);
+    }
+
+    private double priority(int node) {
+        int shortcuts = contractNode(node, true);
+        return shortcuts - (out[node].size + in[node].size) + contractedNeighbors[node];
+    }
+
+    /**
+     * Add the shortcuts needed to remove the node from the remaining graph, and remove it.
+     *
+     * @param simulate Only count the shortcuts, without changing anything.
+     * @return the number of shortcuts.
+     */
+    private int contractNode(int node, boolean simulate) {
+        ArcList outArcs = out[node], inArcs = in[node];
+        double maxOut = 0;
+        for (int j = 0; j < outArcs.size; j++) {
+            maxOut = Math.max(maxOut, outArcs.weights[j]);
+        }
+        int shortcuts = 0;
+        for (int i = 0; i < inArcs.size; i++) {
+            int from = inArcs.nodes[i];
+            double inWeight = inArcs.weights[i];
+            witnessSearch(from, node, inWeight + maxOut);
+            for (int j = 0; j < outArcs.size; j++) {
+                int to = outArcs.nodes[j];
+                if (to == from)
+                    continue;
+                double weight = inWeight + outArcs.weights[j];
+                if (witnessWeights.containsKey(to) && witnessWeights.get(to) <= weight)
+                    continue;
+                shortcuts++;
+                if (!simulate)
+                    addArc(from, to, weight, node);
+            }
+        }
+        if (!simulate) {
+            upOut[node] = outArcs;
+            upIn[node] = inArcs;
+            for (int j = 0; j < outArcs.size; j++) {
+                in[outArcs.nodes[j]].remove(node);
+                contractedNeighbors[outArcs.nodes[j]]++;
+            }
+            for (int i = 0; i < inArcs.size; i++) {
+                out[inArcs.nodes[i]].remove(node);
+                contractedNeighbors[inArcs.nodes[i]]++;
+            }
+            out[node] = null;
+            in[node] = null;
+        }
+        return shortcuts;
+    }
+
+    /** Dijkstra from the source among the nodes not contracted yet, avoiding the given one, up to maxWeight. */
+    private void witnessSearch(int source, int avoid, double maxWeight) {
+        witnessWeights.clear();
+        witnessQueue.reset();
+        witnessWeights.put(source, 0);
+        witnessQueue.insert(source, 0);
+        int settled = 0;
+        while (!witnessQueue.empty() && settled < WITNESS_SETTLE_LIMIT) {
+            double weight = witnessQueue.peek_min_key();
+            if (weight > maxWeight)
+                break;
+            int node = witnessQueue.extract_min();
+            if (weight > witnessWeights.get(node))
+                continue;
+            settled++;
+            ArcList arcs = out[node];
+            for (int i = 0; i < arcs.size; i++) {
+                int next = arcs.nodes[i];
+                if (next == avoid)
+                    continue;
+                double nextWeight = weight + arcs.weights[i];
+                if (!witnessWeights.containsKey(next) || nextWeight < witnessWeights.get(next)) {
+                    witnessWeights.put(next, nextWeight);
+                    witnessQueue.insert(next, nextWeight);
+                }
+            }
+        }
+    }
+
+    /** The arcs between one node and its neighbors, keeping only the lightest arc to each neighbor. */
+    private static class ArcList {
+
+        int size;
+
+        int[] nodes = new int[4];
+
+        int[] middles = new int[4];
+
+        double[] weights = new double[4];
+
+        void put(int node, double weight, int middle) {
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] == node) {
+                    if (weight < weights[i]) {
+                        weights[i] = weight;
+                        middles[i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                middles = Arrays.copyOf(middles, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            nodes[size] = node;
+            weights[size] = weight;
+            middles[size] = middle;
+            size++;
+        }
+
+        void remove(int node) {
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] == node) {
+                    size--;
+                    nodes[i] = nodes[size];
+                    weights[i] = weights[size];
+                    middles[i] = middles[size];
+                    return;
+                }
+            }
+        }
+
+        void copyTo(int[] nodes, int[] middles, double[] weights, int offset) {
+            System.arraycopy(this.nodes, 0, nodes, offset, size);
+            System.arraycopy(this.middles, 0, middles, offset, size);
+            System.arraycopy(this.weights, 0, weights, offset, size);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.RoutingContext;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.ElevatorEdge;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Contraction hierarchies over the street network for a fixed set of routing parameters, kept with the graph as a
+ * graph service. They answer street-only requests whose parameters match one of them, and leave any other request
+ * to AStar.
+ *
+ * The hierarchies are built over the edges rather than the vertices, so that turn costs and turn restrictions are
+ * part of the arcs. Each query begins with a small search over the temporary edges around the origin, and a walk
+ * back over the temporary edges before the destination. The route found is then traversed again with the actual
+ * request, and only returned if it has exactly the weight the hierarchy expected. Otherwise, for instance when a
+ * time-limited turn restriction is in force, getPath returns null and the caller falls back to AStar.
+ *
+ * Queries are thread-safe.
+ */
+public class ContractionHierarchySet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchySet.class);
+
+    /** The search around the origin gives up after expanding this many states. */
+    private static final int MAX_ACCESS_STATES = 1000;
+
+    /** The number of temporary edges followed back from the destination. */
+    private static final int MAX_TAIL_EDGES = 3;
+
+    /** Relative tolerance between the weight of a route in the hierarchy and its weight when traversed. */
+    private static final double EPSILON = 1e-6;
+
+    /** The edges of the street graph, indexed by node. */
+    final Edge[] edges;
+
+    private final List<ContractionHierarchy> hierarchies;
+
+    /* Edges hash on their vertices, whose hash codes are only set once the whole graph is loaded. */
+    private transient volatile TObjectIntHashMap<Edge> nodes;
+
+    private ContractionHierarchySet(Edge[] edges) {
+        this.edges = edges;
+        this.hierarchies = new ArrayList<ContractionHierarchy>();
+    }
+
+    /**
+     * Build one hierarchy for each of the profiles, over the street edges that at least one of them can traverse.
+     */
+    public static ContractionHierarchySet build(Graph graph, List<RoutingRequest> profiles) {
+        List<RoutingRequest> requests = new ArrayList<RoutingRequest>();
+        for (RoutingRequest profile : profiles) {
+            RoutingRequest request = profile.clone();
+            request.setDummyRoutingContext(graph);
+            requests.add(request);
+        }
+        List<Edge> edges = new ArrayList<Edge>();
+        for (Edge e : graph.getEdges()) {
+            if (!(e instanceof StreetEdge || e instanceof ElevatorEdge || e instanceof FreeEdge))
+                continue;
+            for (RoutingRequest request : requests) {
+                if (e.traverse(new State(e.getFromVertex(), request)) != null) {
+                    edges.add(e);
+                    break;
+                }
+            }
+        }
+        ContractionHierarchySet set = new ContractionHierarchySet(edges.toArray(new Edge[edges.size()]));
+        for (RoutingRequest request : requests) {
+            set.hierarchies.add(ContractionHierarchyBuilder.build(graph, set, costKey(request), request));
+        }
+        return set;
+    }
+
+    public List<ContractionHierarchy> getHierarchies() {
+        return hierarchies;
+    }
+
+    /** @return the node of the edge, or -1 if the edge is not part of the hierarchies. */
+    int getNode(Edge edge) {
+        TObjectIntHashMap<Edge> nodes = this.nodes;
+        if (nodes == null) {
+            synchronized (this) {
+                nodes = this.nodes;
+                if (nodes == null) {
+                    nodes = new TObjectIntHashMap<Edge>(edges.length * 2, 0.5f, -1);
+                    for (int i = 0; i < edges.length; i++) {
+                        nodes.put(edges[i], i);
+                    }
+                    this.nodes = nodes;
+                }
+            }
+        }
+        return nodes.get(edge);
+    }
+
+    /** @return the hierarchy built for the same routing parameters as the request, or null. */
+    public ContractionHierarchy getHierarchy(RoutingRequest options) {
+        String key = costKey(options);
+        for (ContractionHierarchy hierarchy : hierarchies) {
+            if (hierarchy.costKey.equals(key))
+                return hierarchy;
+        }
+        return null;
+    }
+
+    /**
+     * Find the path of a depart-after request without transit, whose routing context is set.
+     *
+     * @return the lightest path, or null if the request is not one the hierarchies can answer, in which case it
+     *         should be searched with AStar.
+     */
+    public GraphPath getPath(RoutingRequest options) {
+        if (options.arriveBy || options.modes.isTransit())
+            return null;
+        ContractionHierarchy hierarchy = getHierarchy(options);
+        RoutingContext rctx = options.rctx;
+        if (hierarchy == null || rctx.origin == null || rctx.target == null || rctx.origin == rctx.target)
+            return null;
+
+        /* Search from the origin until the first edge of each branch which is in the hierarchy. */
+        TIntDoubleHashMap sources = new TIntDoubleHashMap();
+        TIntObjectHashMap<State> sourceStates = new TIntObjectHashMap<State>();
+        State direct = null;
+        BinHeap<State> queue = new BinHeap<State>();
+        Map<Vertex, Double> visited = new HashMap<Vertex, Double>();
+        queue.insert(new State(options), 0);
+        int expanded = 0;
+        while (!queue.empty()) {
+            State s = queue.extract_min();
+            if (s.getVertex() == rctx.target) {
+                if (s.isFinal() && s.allPathParsersAccept() && (direct == null || s.getWeight() < direct.getWeight()))
+                    direct = s;
+                continue;
+            }
+            if (++expanded > MAX_ACCESS_STATES)
+                return null;
+            for (Edge e : s.getVertex().getOutgoing()) {
+                int node = getNode(e);
+                for (State s1 = e.traverse(s); s1 != null; s1 = s1.getNextResult()) {
+                    if (node >= 0) {
+                        if (!sources.containsKey(node) || s1.getWeight() < sources.get(node)) {
+                            sources.put(node, s1.getWeight());
+                            sourceStates.put(node, s1);
+                        }
+                    } else {
+                        Double weight = visited.get(s1.getVertex());
+                        if (weight == null || s1.getWeight() < weight) {
+                            visited.put(s1.getVertex(), s1.getWeight());
+                            queue.insert(s1, s1.getWeight());
+                        }
+                    }
+                }
+            }
+        }
+
+        /* Walk back from the destination to the last edges which are in the hierarchy. */
+        TIntDoubleHashMap targets = new TIntDoubleHashMap();
+        TIntObjectHashMap<Edge[]> targetTails = new TIntObjectHashMap<Edge[]>();
+        collectTargets(rctx.target, new LinkedList<Edge>(), options, targets, targetTails);
+
+        State best = direct;
+        ContractionHierarchy.Route route = null;
+        if (!sources.isEmpty() && !targets.isEmpty())
+            route = hierarchy.route(sources, targets);
+        if (route != null && (direct == null || route.weight < direct.getWeight())) {
+            State s = sourceStates.get(route.nodes[0]);
+            for (int i = 1; i < route.nodes.length && s != null; i++) {
+                s = edges[route.nodes[i]].traverse(s);
+            }
+            for (Edge e : targetTails.get(route.nodes[route.nodes.length - 1])) {
+                if (s == null)
+                    break;
+                s = e.traverse(s);
+            }
+            if (s == null || s.getVertex() != rctx.target || !s.isFinal() || !s.allPathParsersAccept()
+                    || Math.abs(s.getWeight() - route.weight) > EPSILON * Math.max(1, route.weight)) {
+                LOG.debug("Route from the contraction hierarchy does not match the request, using AStar.");
+                return null;
+            }
+            best = s;
+        }
+        if (best == null || best.getWeight() > options.maxWeight || best.getTimeSeconds() > options.worstTime)
+            return null;
+        return new GraphPath(best, true);
+    }
+
+    /**
+     * Find the edges in the hierarchy from which the vertex can be reached over a few edges which are not, and the
+     * weight of these last edges when traversed after them.
+     */
+    private void collectTargets(Vertex v, LinkedList<Edge> tail, RoutingRequest options, TIntDoubleHashMap targets,
+            TIntObjectHashMap<Edge[]> targetTails) {
+        for (Edge e : v.getIncoming()) {
+            int node = getNode(e);
+            if (node >= 0) {
+                double weight = tailWeight(e, tail, options);
+                if (weight >= 0 && (!targets.containsKey(node) || weight < targets.get(node))) {
+                    targets.put(node, weight);
+                    targetTails.put(node, tail.toArray(new Edge[tail.size()]));
+                }
+            } else if (tail.size() < MAX_TAIL_EDGES) {
+                tail.addFirst(e);
+                collectTargets(e.getFromVertex(), tail, options, targets, targetTails);
+                tail.removeFirst();
+            }
+        }
+    }
+
+    /** @return the weight of the tail traversed after the edge, or -1 if it cannot be traversed. */
+    private static double tailWeight(Edge edge, List<Edge> tail, RoutingRequest options) {
+        State s = edge.traverse(new State(edge.getFromVertex(), options));
+        if (s == null)
+            return -1;
+        double weight = s.getWeight();
+        for (Edge e : tail) {
+            s = e.traverse(s);
+            if (s == null)
+                return -1;
+        }
+        return s.getWeight() - weight;
+    }
+
+    /**
+     * @return a key of all the routing parameters which the weights of street edges and turns depend on. Requests
+     *         with the same key give the same weights.
+     */
+    public static String costKey(RoutingRequest options) {
+        StringBuilder sb = new StringBuilder();
+        appendCosts(sb, options);
+        sb.append(options.optimize).append(' ').append(options.wheelchairAccessible).append(' ')
+                .append(options.maxSlope).append(' ').append(options.turnReluctance).append(' ')
+                .append(options.elevatorBoardTime).append(' ').append(options.elevatorBoardCost).append(' ')
+                .append(options.elevatorHopTime).append(' ').append(options.elevatorHopCost).append(' ')
+                .append(options.bikeSwitchTime).append(' ').append(options.bikeSwitchCost).append(' ')
+                .append(options.triangleTimeFactor).append(' ').append(options.triangleSlopeFactor).append(' ')
+                .append(options.triangleSafetyFactor).append(' ').append(options.walkingBike).append(' ')
+                .append(options.driveOnRight).append(' ').append(options.carDecelerationSpeed).append(' ')
+                .append(options.carAccelerationSpeed).append(' ')
+                .append(options.getIntersectionTraversalCostModel().getClass().getName()).append(' ')
+                .append(options.allowBikeRental).append(' ').append(options.parkAndRide).append(' ')
+                .append(options.kissAndRide).append(' ').append(options.bikeParkAndRide);
+        if (options.bikeWalkingOptions != null && options.bikeWalkingOptions != options) {
+            sb.append(" bikeWalking ");
+            appendCosts(sb, options.bikeWalkingOptions);
+        }
+        return sb.toString();
+    }
+
+    private static void appendCosts(StringBuilder sb, RoutingRequest options) {
+        sb.append(options.modes).append(' ').append(options.walkSpeed).append(' ').append(options.bikeSpeed)
+                .append(' ').append(options.carSpeed).append(' ').append(options.walkReluctance).append(' ')
+                .append(options.stairsReluctance).append(' ');
+    }
+}
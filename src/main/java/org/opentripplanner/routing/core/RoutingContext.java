@@ -27,7 +27,9 @@ import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.TemporaryPartialStreetEdge;
+import org.opentripplanner.routing.edgetype.Timetable;
 import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.edgetype.TripPattern;
 import org.opentripplanner.routing.error.GraphNotFoundException;
 import org.opentripplanner.routing.error.TransitTimesException;
 import org.opentripplanner.routing.error.VertexNotFoundException;
@@ -37,6 +39,7 @@ import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.location.TemporaryStreetLocation;
 import org.opentripplanner.routing.pathparser.PathParser;
+import org.opentripplanner.routing.pathparser.PathParserAutomaton;
 import org.opentripplanner.routing.services.OnBoardDepartService;
 import org.opentripplanner.routing.vertextype.TemporaryVertex;
 import org.opentripplanner.routing.vertextype.TransitStop;
@@ -96,6 +99,18 @@ public class RoutingContext implements Cloneable {
     /** The timetableSnapshot is a {@link TimetableSnapshot} for looking up real-time updates. */
     public final TimetableSnapshot timetableSnapshot;
 
+    /**
+     * The timetables resolved from the snapshot so far, by service day (in the order of serviceDays) and pattern
+     * index. Transit searches look up the same few patterns many times, and the snapshot does not change during a
+     * search.
+     */
+    private Timetable[][] resolvedTimetables;
+
+    /** The product automaton of the path parsers, and the parser array it was made for. */
+    private PathParserAutomaton pathParserAutomaton;
+
+    private PathParser[] pathParserAutomatonParsers;
+
     /**
      * Cache lists of which transit services run on which midnight-to-midnight periods. This ties a TraverseOptions to a particular start time for the
      * duration of a search so the same options cannot be used for multiple searches concurrently. To do so this cache would need to be moved into
@@ -219,12 +234,15 @@ public class RoutingContext implements Cloneable {
             if (timetableSnapshotSource == null) {
                 timetableSnapshot = null;
             } else {
+                long start = System.nanoTime();
                 timetableSnapshot = timetableSnapshotSource.getTimetableSnapshot();
+                debugOutput.addSnapshotResolveTime(System.nanoTime() - start);
             }
         }
         calendarService = graph.getCalendarService();
         setServiceDays();
 
+        long linkingStart = System.nanoTime();
         Edge fromBackEdge = null;
         Edge toBackEdge = null;
         if (findPlaces) {
@@ -274,6 +292,7 @@ public class RoutingContext implements Cloneable {
                 makePartialEdgeAlong(pse, fromStreetVertex, toStreetVertex);
             }
         }
+        debugOutput.addLinkingTime(System.nanoTime() - linkingStart);
         
         if (opt.startingTransitStopId != null) {
             Stop stop = graph.index.stopForId.get(opt.startingTransitStopId);
@@ -354,6 +373,54 @@ public class RoutingContext implements Cloneable {
         }
     }
 
+    /**
+     * @return the automaton combining the current path parsers, which is looked up again only when the parser array
+     *         is replaced.
+     */
+    public PathParserAutomaton getPathParserAutomaton() {
+        if (pathParserAutomatonParsers != pathParsers) {
+            pathParserAutomaton = PathParserAutomaton.forParsers(pathParsers);
+            pathParserAutomatonParsers = pathParsers;
+        }
+        return pathParserAutomaton;
+    }
+
+    /**
+     * @return the timetable of the pattern on the service day from the realtime snapshot, which must not be null,
+     *         resolving it only on the first call for that pattern and day.
+     */
+    public Timetable resolveTimetable(TripPattern pattern, ServiceDay sd) {
+        int day = serviceDays == null ? -1 : serviceDays.indexOf(sd);
+        int index = pattern.getIndex();
+        if (day < 0 || index < 0) {
+            // Service days from elsewhere, such as on-board departures, or a pattern outside the graph
+            long start = System.nanoTime();
+            Timetable timetable = timetableSnapshot.resolve(pattern, sd.getServiceDate());
+            debugOutput.addSnapshotResolveTime(System.nanoTime() - start);
+            return timetable;
+        }
+        if (resolvedTimetables == null) {
+            resolvedTimetables = new Timetable[serviceDays.size()][];
+        }
+        Timetable[] timetables = resolvedTimetables[day];
+        if (timetables == null || index >= timetables.length) {
+            // Patterns added by realtime updates after the array was made are past its end
+            Timetable[] larger = new Timetable[Math.max(index + 1, graph.getPatternCount())];
+            if (timetables != null) {
+                System.arraycopy(timetables, 0, larger, 0, timetables.length);
+            }
+            timetables = resolvedTimetables[day] = larger;
+        }
+        Timetable timetable = timetables[index];
+        if (timetable == null) {
+            long start = System.nanoTime();
+            timetable = timetableSnapshot.resolve(pattern, sd.getServiceDate());
+            debugOutput.addSnapshotResolveTime(System.nanoTime() - start);
+            timetables[index] = timetable;
+        }
+        return timetable;
+    }
+
     private static <T> void addIfNotExists(ArrayList<T> list, T item) {
         if (!list.contains(item)) {
             list.add(item);
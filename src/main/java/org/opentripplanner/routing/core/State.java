@@ -13,7 +13,6 @@
 
 package org.opentripplanner.routing.core;
 
-import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
 
@@ -21,7 +20,6 @@ import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.Trip;
 import org.opentripplanner.routing.algorithm.NegativeWeightException;
-import org.opentripplanner.routing.automata.AutomatonState;
 import org.opentripplanner.routing.edgetype.OnboardEdge;
 import org.opentripplanner.routing.edgetype.TablePatternEdge;
 import org.opentripplanner.routing.edgetype.StreetEdge;
@@ -30,6 +28,7 @@ import org.opentripplanner.routing.edgetype.TripPattern;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.pathparser.PathParser;
+import org.opentripplanner.routing.pathparser.PathParserAutomaton;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,8 +64,8 @@ public class State implements Cloneable {
     // The time traveled pre-transit, for park and ride or kiss and ride searches
     int preTransitTime;
 
-    // track the states of all path parsers -- probably changes frequently
-    protected int[] pathParserStates;
+    // the state of the automaton combining all path parsers, see PathParserAutomaton
+    protected int pathParserState = PathParserAutomaton.START;
     
     private static final Logger LOG = LoggerFactory.getLogger(State.class);
 
@@ -127,10 +126,6 @@ public class State implements Cloneable {
         this.walkDistance = 0;
         this.preTransitTime = 0;
         this.time = timeSeconds * 1000;
-        if (options.rctx != null) {
-            this.pathParserStates = new int[options.rctx.pathParsers.length];
-            Arrays.fill(this.pathParserStates, AutomatonState.START);
-        }
         stateData.routeSequence = new AgencyAndId[0];
     }
 
@@ -620,17 +615,18 @@ public class State implements Cloneable {
     }
     
     public boolean allPathParsersAccept() {
-        PathParser[] parsers = this.stateData.opt.rctx.pathParsers;
-        for (int i = 0; i < parsers.length; i++) {
-            if ( ! parsers[i].accepts(pathParserStates[i])) return false;
-        }
-        return true;
+        RoutingContext rctx = this.stateData.opt.rctx;
+        if (rctx.pathParsers.length == 0) return true;
+        return rctx.getPathParserAutomaton().accepts(pathParserState);
     }
 
     public String getPathParserStates() {
         StringBuilder sb = new StringBuilder();
         sb.append("( ");
-        for (int i : pathParserStates) {
+        RoutingContext rctx = this.stateData.opt.rctx;
+        int[] states = rctx == null || rctx.pathParsers.length == 0 ? new int[0]
+                : rctx.getPathParserAutomaton().getParserStates(pathParserState);
+        for (int i : states) {
             sb.append(String.format("%02d ", i));
         }
         sb.append(")");
@@ -20,11 +20,11 @@ import java.util.Set;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.Trip;
-import org.opentripplanner.routing.automata.AutomatonState;
 import org.opentripplanner.routing.edgetype.TripPattern;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.pathparser.PathParser;
+import org.opentripplanner.routing.pathparser.PathParserAutomaton;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -501,31 +501,12 @@ public class StateEditor {
     public boolean parsePath(State state) {
         if (state.stateData.opt.rctx == null)
             return true; // a lot of tests don't set a routing context
-        PathParser[] parsers = state.stateData.opt.rctx.pathParsers;
-        int[] parserStates = state.pathParserStates;
-        boolean accept = true;
-        boolean modified = false;
-        int i = 0;
-        for (PathParser parser : parsers) {
-            int terminal = parser.terminalFor(state);
-            int oldState = parserStates[i];
-            int newState = parser.transition(oldState, terminal);
-            if (newState != oldState) {
-                if (!modified) {
-                    // clone the state array so only the new state will see modifications
-                    parserStates = parserStates.clone();
-                    modified = true;
-                }
-                parserStates[i] = newState;
-                if (newState == AutomatonState.REJECT)
-                    accept = false;
-            }
-            i++;
-        }
-        if (modified)
-            state.pathParserStates = parserStates;
-
-        return accept;
+        RoutingContext rctx = state.stateData.opt.rctx;
+        PathParser[] parsers = rctx.pathParsers;
+        if (parsers.length == 0)
+            return true;
+        state.pathParserState = rctx.getPathParserAutomaton().transition(state.pathParserState, parsers, state);
+        return state.pathParserState != PathParserAutomaton.REJECT;
     }
 
     public void alightTransit() {
@@ -84,6 +84,11 @@ public class PartialStreetEdge extends StreetWithElevationEdge {
         return graph.getTurnRestrictions(parentEdge);
     }
 
+    @Override
+    public boolean isTurnRestricted() {
+        return parentEdge.isTurnRestricted();
+    }
+
     /**
      * This implementation makes it so that TurnRestrictions on the parent edge are applied to this edge as well.
      */
@@ -23,6 +23,8 @@ import org.opentripplanner.routing.core.StateEditor;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.opentripplanner.routing.vertextype.PatternStopVertex;
+import org.opentripplanner.util.PolylineEncoder;
+import org.opentripplanner.util.model.EncodedPolylineBean;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 
@@ -40,6 +42,9 @@ public class PatternHop extends TablePatternEdge implements OnboardEdge, HopEdge
 
     private LineString geometry = null;
 
+    /** The geometry from the shape of the trips, encoded once when the graph is built. */
+    private EncodedPolylineBean encodedGeometry = null;
+
     public PatternHop(PatternStopVertex from, PatternStopVertex to, Stop begin, Stop end, int stopIndex) {
         super(from, to);
         this.begin = begin;
@@ -117,6 +122,12 @@ public class PatternHop extends TablePatternEdge implements OnboardEdge, HopEdge
 
     public void setGeometry(LineString geometry) {
         this.geometry = geometry;
+        this.encodedGeometry = geometry == null ? null : PolylineEncoder.createEncodings(geometry);
+    }
+
+    /** @return the encoded geometry of the hop, or null if it has no shape and is a straight line. */
+    public EncodedPolylineBean getEncodedGeometry() {
+        return encodedGeometry;
     }
 
     public LineString getGeometry() {
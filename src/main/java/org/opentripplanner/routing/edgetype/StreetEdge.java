@@ -42,6 +42,8 @@ import org.slf4j.LoggerFactory;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 
+import gnu.trove.list.array.TDoubleArrayList;
+
 /**
  * This represents a street segment.
  * 
@@ -77,6 +79,7 @@ public class StreetEdge extends Edge implements Cloneable {
     private static final int STAIRS_FLAG_INDEX = 4;
     private static final int SLOPEOVERRIDE_FLAG_INDEX = 5;
     private static final int WHEELCHAIR_ACCESSIBLE_FLAG_INDEX = 6;
+    private static final int TURN_RESTRICTED_FLAG_INDEX = 7;
 
     /** back, roundabout, stairs, ... */
     private byte flags;
@@ -539,6 +542,8 @@ public class StreetEdge extends Edge implements Cloneable {
     }
     
     public boolean canTurnOnto(Edge e, State state, TraverseMode mode) {
+        if (!isTurnRestricted())
+            return true;
         for (TurnRestriction turnRestriction : getTurnRestrictions(state.getOptions().rctx.graph)) {
             /* FIXME: This is wrong for trips that end in the middle of turnRestriction.to
              */
@@ -573,6 +578,12 @@ public class StreetEdge extends Edge implements Cloneable {
 		return CompactLineString.uncompactLineString(fromv.getLon(), fromv.getLat(), tov.getLon(), tov.getLat(), compactGeometry, isBack());
 	}
 
+	@Override
+	public boolean appendCoordinates(TDoubleArrayList buffer) {
+		CompactLineString.appendCoordinates(fromv.getLon(), fromv.getLat(), tov.getLon(), tov.getLat(), compactGeometry, isBack(), buffer);
+		return true;
+	}
+
 	private void setGeometry(LineString geometry) {
 		this.compactGeometry = CompactLineString.compactLineString(fromv.getLon(), fromv.getLat(), tov.getLon(), tov.getLat(), isBack() ? (LineString)geometry.reverse() : geometry, isBack());
 	}
@@ -688,4 +699,16 @@ public class StreetEdge extends Edge implements Cloneable {
     protected List<TurnRestriction> getTurnRestrictions(Graph graph) {
         return graph.getTurnRestrictions(this);
     }
+
+    /**
+     * Whether the graph has turn restrictions from this edge, so that the edges without any need not look them up.
+     * Kept up to date by the Graph as restrictions are added and removed.
+     */
+    public boolean isTurnRestricted() {
+        return BitSetUtils.get(flags, TURN_RESTRICTED_FLAG_INDEX);
+    }
+
+    public void setTurnRestricted(boolean turnRestricted) {
+        flags = BitSetUtils.set(flags, TURN_RESTRICTED_FLAG_INDEX, turnRestricted);
+    }
 }
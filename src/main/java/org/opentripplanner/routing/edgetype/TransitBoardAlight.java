@@ -188,8 +188,8 @@ public class TransitBoardAlight extends TablePatternEdge implements OnboardEdge
 
                 s1.setLastNextArrivalDelta(Integer.MAX_VALUE);
 
+                Timetable timetable = pattern.getUpdatedTimetable(options, s0.getServiceDay());
                 for (int tripIndex = 0; tripIndex < numTrips; tripIndex++) {
-                    Timetable timetable = pattern.getUpdatedTimetable(options, s0.getServiceDay());
                     nextDeparture = timetable.getTripTimes(tripIndex).getDepartureTime(stopIndex);
         
                     if (nextDeparture > thisDeparture) {
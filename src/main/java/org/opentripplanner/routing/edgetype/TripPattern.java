@@ -159,6 +159,13 @@ public class TripPattern implements Serializable {
     // TODO MOVE codes INTO Timetable or TripTimes
     BitSet services;
 
+    /**
+     * A small number identifying this pattern among the patterns of its graph, for searches to keep per-pattern
+     * information in arrays. Assigned when the pattern is added to a graph and reassigned when the graph is loaded,
+     * -1 before that.
+     */
+    private transient int index = -1;
+
     public TripPattern(Route route, StopPattern stopPattern) {
         this.route = route;
         this.mode = GtfsLibrary.getTraverseMode(this.route);
@@ -183,6 +190,17 @@ public class TripPattern implements Serializable {
         // The Timetable must be indexed from here (rather than in its own readObject method)
         // to ensure that the stops field it uses in TripPattern is already deserialized.
         scheduledTimetable.finish();
+        index = -1;
+    }
+
+    /** @return the index of this pattern in its graph, below graph.getPatternCount(), or -1 if it is in no graph. */
+    public int getIndex() {
+        return index;
+    }
+
+    /** Give this pattern the next index of the given graph. */
+    public void setIndex(Graph graph) {
+        index = graph.nextPatternIndex();
     }
 
     // TODO verify correctness after substitution of StopPattern for ScheduledStopPattern
@@ -328,7 +346,7 @@ public class TripPattern implements Serializable {
      */
     public Timetable getUpdatedTimetable (RoutingRequest req, ServiceDay sd) {
         if (req != null && req.rctx != null && req.rctx.timetableSnapshot != null && sd != null) {
-            return req.rctx.timetableSnapshot.resolve(this, sd.getServiceDate());
+            return req.rctx.resolveTimetable(this, sd);
         }
         return scheduledTimetable;
     }
@@ -502,6 +520,7 @@ public class TripPattern implements Serializable {
      *        pattern are included in this map and refer to TransitStops
      */
     public void makePatternVerticesAndEdges(Graph graph, Map<Stop, ? extends TransitStationStop> transitStops) {
+        setIndex(graph);
 
         /* Create arrive/depart vertices and hop/dwell/board/alight edges for each hop in this pattern. */
         PatternArriveVertex pav0, pav1 = null;
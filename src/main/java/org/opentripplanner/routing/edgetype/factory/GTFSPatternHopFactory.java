@@ -20,9 +20,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.math3.util.FastMath;
 import org.onebusaway.gtfs.model.Agency;
@@ -37,6 +42,7 @@ import org.onebusaway.gtfs.model.Transfer;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.onebusaway.gtfs.services.calendar.CalendarService;
+import org.opentripplanner.common.OrderedTaskPipeline;
 import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
@@ -278,7 +284,10 @@ public class GTFSPatternHopFactory {
 
     private CalendarService _calendarService;
     
-    private Map<ShapeSegmentKey, LineString> _geometriesByShapeSegmentKey = new HashMap<ShapeSegmentKey, LineString>();
+    /* Shared by the threads building hop geometries. */
+    private ConcurrentMap<ShapeSegmentKey, LineString> _geometriesByShapeSegmentKey = new ConcurrentHashMap<ShapeSegmentKey, LineString>();
+
+    /* Filled on the calling thread before hop geometries are built, read-only while they are. */
 
     private Map<AgencyAndId, LineString> _geometriesByShapeId = new HashMap<AgencyAndId, LineString>();
 
@@ -294,6 +303,12 @@ public class GTFSPatternHopFactory {
 
     private double maxStopToShapeSnapDistance = 150;
 
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private int freqCount;
+
+    private int nonFreqCount;
+
     public GTFSPatternHopFactory(GtfsContext context) {
         this._dao = context.getDao();
         this._calendarService = context.getCalendarService();
@@ -340,8 +355,8 @@ public class GTFSPatternHopFactory {
         }
         
         /* Then loop over all trips, handling each one as a frequency-based or scheduled trip. */
-        int freqCount = 0;
-        int nonFreqCount = 0;
+        freqCount = 0;
+        nonFreqCount = 0;
         
         /* The hops don't actually exist when we build their geometries, but we have to build their geometries
          * below, before we throw away the modified stopTimes, saving only the tripTimes (which don't have enough
@@ -351,79 +366,87 @@ public class GTFSPatternHopFactory {
          *  FIXME _why_ doesn't it have a single geometry?
          */
         Map<TripPattern, LineString[]> geometriesByTripPattern = Maps.newHashMap();
-        
-        TRIP : for (Trip trip : trips) {
-            if (++tripCount % 100000 == 0) {
-                LOG.debug("loading trips {}/{}", tripCount, trips.size());
-            }
 
-            // TODO: move to a validator module
-            if ( ! _calendarService.getServiceIds().contains(trip.getServiceId())) {
-                LOG.warn(graph.addBuilderAnnotation(new TripUndefinedService(trip)));
-                continue TRIP; // Invalid trip, skip it, it will break later
-            }
+        /* The first trip with a shape of each pattern, from which the hop geometries of the pattern are built. */
+        Map<TripPattern, FilteredTrip> geometryTrips = new LinkedHashMap<TripPattern, FilteredTrip>();
 
-            /* Fetch the stop times for this trip. Copy the list since it's immutable. */
-            List<StopTime> stopTimes = new ArrayList<StopTime>(_dao.getStopTimesForTrip(trip));
+        /*
+         * Stop times are fetched and trips added to patterns on this thread, in the order of the trips. Repairing the
+         * stop times of each trip, then matching each pattern to its shape, are done on a pool of threads.
+         */
+        ExecutorService threadPool = OrderedTaskPipeline.newThreadPool(threadCount, "gtfs-patterns-%d");
+        try {
+            long startTime = System.currentTimeMillis();
+            OrderedTaskPipeline<FilteredTrip> pending = new OrderedTaskPipeline<FilteredTrip>(threadPool, threadCount);
+            try {
+                for (final Trip trip : trips) {
+                    if (++tripCount % 100000 == 0) {
+                        LOG.debug("loading trips {}/{}", tripCount, trips.size());
+                    }
 
-            /* GTFS stop times frequently contain duplicate, missing, or incorrect entries. Repair them. */
-            if (removeRepeatedStops(stopTimes)) {
-                LOG.warn(graph.addBuilderAnnotation(new RepeatedStops(trip)));
+                    // TODO: move to a validator module
+                    if ( ! _calendarService.getServiceIds().contains(trip.getServiceId())) {
+                        // Invalid trip, skip it, it will break later
+                        pending.submitResult(new FilteredTrip(trip, null));
+                    } else {
+                        /* Fetch the stop times for this trip. Copy the list since it's immutable. */
+                        final List<StopTime> stopTimes = new ArrayList<StopTime>(_dao.getStopTimesForTrip(trip));
+                        pending.submit(new Callable<FilteredTrip>() {
+                            @Override
+                            public FilteredTrip call() {
+                                return filterTrip(trip, stopTimes);
+                            }
+                        });
+                    }
+                    if (pending.isFull())
+                        addTrip(pending.next(), graph, frequenciesForTrip, geometryTrips);
+                }
+                while (!pending.isEmpty())
+                    addTrip(pending.next(), graph, frequenciesForTrip, geometryTrips);
+            } finally {
+                pending.close();
             }
-            filterStopTimes(stopTimes, graph);
-            interpolateStopTimes(stopTimes);   
-            
-            /* If after filtering this trip does not contain at least 2 stoptimes, it does not serve any purpose. */
-            if (stopTimes.size() < 2) {
-                LOG.warn(graph.addBuilderAnnotation(new TripDegenerate(trip)));
-                continue TRIP;
+            LOG.info("Added {} frequency-based and {} single-trip timetable entries.", freqCount, nonFreqCount);
+            LOG.info("Built {} trip patterns from {} trips in {} ms", tripPatterns.size(), trips.size(),
+                    System.currentTimeMillis() - startTime);
+
+            /* Load the shapes used by the patterns, so that hop geometries only read them. */
+            startTime = System.currentTimeMillis();
+            for (FilteredTrip filteredTrip : geometryTrips.values()) {
+                getLineStringForShapeId(filteredTrip.trip.getShapeId());
             }
+            LOG.info("Loaded {} shapes in {} ms", _geometriesByShapeId.size(),
+                    System.currentTimeMillis() - startTime);
 
-            /* Try to get the direction id for the trip, set to -1 if not found */
-            int directionId;
+            startTime = System.currentTimeMillis();
+            OrderedTaskPipeline<HopGeometries> pendingGeometries = new OrderedTaskPipeline<HopGeometries>(threadPool,
+                    threadCount);
             try {
-                directionId = Integer.parseInt(trip.getDirectionId());
-            } catch (NumberFormatException e) {
-                LOG.debug("Trip {} does not have direction id, defaults to -1");
-                directionId = -1;
-            }
-
-            /* Get the existing TripPattern for this filtered StopPattern, or create one. */
-            StopPattern stopPattern = new StopPattern(stopTimes);
-            TripPattern tripPattern = findOrCreateTripPattern(stopPattern, trip.getRoute(), directionId);
-
-            /* Create a TripTimes object for this list of stoptimes, which form one trip. */
-            TripTimes tripTimes = new TripTimes(trip, stopTimes, graph.deduplicator);
-
-            /* If this trip is referenced by one or more lines in frequencies.txt, wrap it in a FrequencyEntry. */
-            List<Frequency> frequencies = frequenciesForTrip.get(trip);
-            if (frequencies != null && !(frequencies.isEmpty())) {
-                for (Frequency freq : frequencies) {
-                    tripPattern.add(new FrequencyEntry(freq, tripTimes));
-                    freqCount++;
+                for (final Map.Entry<TripPattern, FilteredTrip> entry : geometryTrips.entrySet()) {
+                    pendingGeometries.submit(new Callable<HopGeometries>() {
+                        @Override
+                        public HopGeometries call() {
+                            HopGeometries hopGeometries = new HopGeometries(entry.getKey());
+                            FilteredTrip filteredTrip = entry.getValue();
+                            hopGeometries.geometries = createGeometry(hopGeometries.annotations, filteredTrip.trip,
+                                    filteredTrip.stopTimes);
+                            return hopGeometries;
+                        }
+                    });
+                    if (pendingGeometries.isFull())
+                        addGeometries(pendingGeometries.next(), graph, geometriesByTripPattern);
                 }
-                // TODO replace: createGeometry(graph, trip, stopTimes, hops);
-            }
-
-            /* This trip was not frequency-based. Add the TripTimes directly to the TripPattern's scheduled timetable. */
-            else {
-                tripPattern.add(tripTimes);
-                nonFreqCount++;
-            }
-            
-            // create geometries if they aren't already created
-            // note that this is not only done on new trip patterns, because it is possible that
-            // there would be a trip pattern with no geometry yet because it failed some of these tests
-            if (!geometriesByTripPattern.containsKey(tripPattern) && 
-                    trip.getShapeId() != null && trip.getShapeId().getId() != null &&
-                    !trip.getShapeId().getId().equals("")) {
-                // save the geometry to later be applied to the hops
-                geometriesByTripPattern.put(tripPattern,  createGeometry(graph, trip, stopTimes));
+                while (!pendingGeometries.isEmpty())
+                    addGeometries(pendingGeometries.next(), graph, geometriesByTripPattern);
+            } finally {
+                pendingGeometries.close();
             }
-
-
-        } // end foreach TRIP
-        LOG.info("Added {} frequency-based and {} single-trip timetable entries.", freqCount, nonFreqCount);
+            LOG.info("Matched {} trip patterns to shapes in {} ms", geometryTrips.size(),
+                    System.currentTimeMillis() - startTime);
+        } finally {
+            threadPool.shutdown();
+        }
+        geometryTrips.clear();
         graph.hasFrequencyService = graph.hasFrequencyService || freqCount > 0;
         graph.hasScheduledService = graph.hasScheduledService || nonFreqCount > 0;
 
@@ -434,6 +457,7 @@ public class GTFSPatternHopFactory {
         TripPattern.generateUniqueIds(tripPatterns.values());
 
         /* Loop over all new TripPatterns, creating edges, setting the service codes and geometries, etc. */
+        long startTime = System.currentTimeMillis();
         for (TripPattern tripPattern : tripPatterns.values()) {
             tripPattern.makePatternVerticesAndEdges(graph, context.stationStopNodes);
             // Add the geometries to the hop edges.
@@ -460,8 +484,13 @@ public class GTFSPatternHopFactory {
 
         }
 
+        LOG.info("Created the edges of {} trip patterns in {} ms", tripPatterns.size(),
+                System.currentTimeMillis() - startTime);
+
         /* Identify interlined trips and create the necessary edges. */
+        startTime = System.currentTimeMillis();
         interline(tripPatterns.values(), graph);
+        LOG.info("Interlined trips in {} ms", System.currentTimeMillis() - startTime);
 
         /* Interpret the transfers explicitly defined in transfers.txt. */
         loadTransfers(graph);
@@ -477,6 +506,87 @@ public class GTFSPatternHopFactory {
         graph.putService(OnBoardDepartService.class, new OnBoardDepartServiceImpl());
     }
 
+    /**
+     * Repair the stop times of one trip. Called on the worker threads: problems are recorded to be added to the graph
+     * later, in the order of the trips.
+     */
+    private FilteredTrip filterTrip(Trip trip, List<StopTime> stopTimes) {
+        FilteredTrip filteredTrip = new FilteredTrip(trip, stopTimes);
+        /* GTFS stop times frequently contain duplicate, missing, or incorrect entries. Repair them. */
+        if (removeRepeatedStops(stopTimes)) {
+            filteredTrip.annotations.warn(new RepeatedStops(trip));
+        }
+        filterStopTimes(stopTimes, filteredTrip.annotations);
+        interpolateStopTimes(stopTimes);
+        return filteredTrip;
+    }
+
+    /** Add a trip with repaired stop times to its TripPattern. Called on the calling thread, in the order of the trips. */
+    private void addTrip(FilteredTrip filteredTrip, Graph graph, ListMultimap<Trip, Frequency> frequenciesForTrip,
+            Map<TripPattern, FilteredTrip> geometryTrips) {
+        Trip trip = filteredTrip.trip;
+        List<StopTime> stopTimes = filteredTrip.stopTimes;
+        if (stopTimes == null) {
+            LOG.warn(graph.addBuilderAnnotation(new TripUndefinedService(trip)));
+            return;
+        }
+        filteredTrip.annotations.addTo(graph);
+
+        /* If after filtering this trip does not contain at least 2 stoptimes, it does not serve any purpose. */
+        if (stopTimes.size() < 2) {
+            LOG.warn(graph.addBuilderAnnotation(new TripDegenerate(trip)));
+            return;
+        }
+
+        /* Try to get the direction id for the trip, set to -1 if not found */
+        int directionId;
+        try {
+            directionId = Integer.parseInt(trip.getDirectionId());
+        } catch (NumberFormatException e) {
+            LOG.debug("Trip {} does not have direction id, defaults to -1");
+            directionId = -1;
+        }
+
+        /* Get the existing TripPattern for this filtered StopPattern, or create one. */
+        StopPattern stopPattern = new StopPattern(stopTimes);
+        TripPattern tripPattern = findOrCreateTripPattern(stopPattern, trip.getRoute(), directionId);
+
+        /* Create a TripTimes object for this list of stoptimes, which form one trip. */
+        TripTimes tripTimes = new TripTimes(trip, stopTimes, graph.deduplicator);
+
+        /* If this trip is referenced by one or more lines in frequencies.txt, wrap it in a FrequencyEntry. */
+        List<Frequency> frequencies = frequenciesForTrip.get(trip);
+        if (frequencies != null && !(frequencies.isEmpty())) {
+            for (Frequency freq : frequencies) {
+                tripPattern.add(new FrequencyEntry(freq, tripTimes));
+                freqCount++;
+            }
+            // TODO replace: createGeometry(graph, trip, stopTimes, hops);
+        }
+
+        /* This trip was not frequency-based. Add the TripTimes directly to the TripPattern's scheduled timetable. */
+        else {
+            tripPattern.add(tripTimes);
+            nonFreqCount++;
+        }
+
+        // create geometries if they aren't already created
+        // note that this is not only done on new trip patterns, because it is possible that
+        // there would be a trip pattern with no geometry yet because it failed some of these tests
+        if (!geometryTrips.containsKey(tripPattern) &&
+                trip.getShapeId() != null && trip.getShapeId().getId() != null &&
+                !trip.getShapeId().getId().equals("")) {
+            // save the trip, its geometry will later be applied to the hops
+            geometryTrips.put(tripPattern, filteredTrip);
+        }
+    }
+
+    private void addGeometries(HopGeometries hopGeometries, Graph graph,
+            Map<TripPattern, LineString[]> geometriesByTripPattern) {
+        hopGeometries.annotations.addTo(graph);
+        geometriesByTripPattern.put(hopGeometries.tripPattern, hopGeometries.geometries);
+    }
+
     private TripPattern findOrCreateTripPattern(StopPattern stopPattern, Route route, int directionId) {
         for(TripPattern tripPattern : tripPatterns.get(stopPattern)) {
             if(tripPattern.route.equals(route) && tripPattern.directionId == directionId) {
@@ -581,7 +691,7 @@ public class GTFSPatternHopFactory {
      * This geometry will in fact be used for an entire set of trips in a trip pattern. Technically one of the trips
      * with exactly the same sequence of stops could follow a different route on the streets, but that's very uncommon.
      */
-    private LineString[] createGeometry(Graph graph, Trip trip, List<StopTime> stopTimes) {
+    private LineString[] createGeometry(AnnotationBuffer annotations, Trip trip, List<StopTime> stopTimes) {
         AgencyAndId shapeId = trip.getShapeId();
         
         // One less geometry than stoptime as array indexes represetn hops not stops (fencepost problem).
@@ -595,7 +705,7 @@ public class GTFSPatternHopFactory {
             for (int i = 0; i < stopTimes.size() - 1; ++i) {
                 st0 = stopTimes.get(i);
                 StopTime st1 = stopTimes.get(i + 1);
-                geoms[i] = getHopGeometryViaShapeDistTraveled(graph, shapeId, st0, st1);
+                geoms[i] = getHopGeometryViaShapeDistTraveled(annotations, shapeId, st0, st1);
             }
             return geoms;
         }
@@ -681,7 +791,7 @@ public class GTFSPatternHopFactory {
                 LineString geometry = createSimpleGeometry(st0.getStop(), st1.getStop());
                 geoms[i] = geometry;
                 //this warning is not strictly correct, but will do
-                LOG.warn(graph.addBuilderAnnotation(new BogusShapeGeometryCaught(shapeId, st0, st1)));
+                annotations.warn(new BogusShapeGeometryCaught(shapeId, st0, st1));
             }
             return geoms;
         }
@@ -776,9 +886,9 @@ public class GTFSPatternHopFactory {
      * to the user.
      * 
      * @param stopTimes the stoptimes to be filtered (from a single trip)
-     * @param graph the graph where annotations will be registered
+     * @param annotations where the problems found are recorded
      */
-    private void filterStopTimes(List<StopTime> stopTimes, Graph graph) {
+    private void filterStopTimes(List<StopTime> stopTimes, AnnotationBuffer annotations) {
         
         if (stopTimes.size() < 2) return;
         StopTime st0 = stopTimes.get(0);
@@ -829,7 +939,7 @@ public class GTFSPatternHopFactory {
             }
             int dwellTime = st0.getDepartureTime() - st0.getArrivalTime(); 
             if (dwellTime < 0) {
-                LOG.warn(graph.addBuilderAnnotation(new NegativeDwellTime(st0)));
+                annotations.warn(new NegativeDwellTime(st0));
                 if (st0.getArrivalTime() > 23 * SECONDS_IN_HOUR && st0.getDepartureTime() < 1 * SECONDS_IN_HOUR) {
                     midnightCrossed = true;
                     st0.setDepartureTime(st0.getDepartureTime() + 24 * SECONDS_IN_HOUR);
@@ -840,7 +950,7 @@ public class GTFSPatternHopFactory {
             int runningTime = st1.getArrivalTime() - st0.getDepartureTime();
 
             if (runningTime < 0) {
-                LOG.warn(graph.addBuilderAnnotation(new NegativeHopTime(new StopTime(st0), new StopTime(st1))));
+                annotations.warn(new NegativeHopTime(new StopTime(st0), new StopTime(st1)));
                 // negative hops are usually caused by incorrect coding of midnight crossings
                 midnightCrossed = true;
                 if (st0.getDepartureTime() > 23 * SECONDS_IN_HOUR && st1.getArrivalTime() < 1 * SECONDS_IN_HOUR) {
@@ -867,8 +977,8 @@ public class GTFSPatternHopFactory {
                 st0.getDepartureTime() == st1.getDepartureTime()) {
                 LOG.trace("{} {}", st0, st1);
                 // series of identical stop times at different stops
-                LOG.trace(graph.addBuilderAnnotation(new HopZeroTime((float) hopDistance, 
-                          st1.getTrip(), st1.getStopSequence())));
+                annotations.trace(new HopZeroTime((float) hopDistance, 
+                          st1.getTrip(), st1.getStopSequence()));
                 // clear stoptimes that are obviously wrong, causing them to later be interpolated
 /* FIXME (lines commented out because they break routability in multi-feed NYC for some reason -AMB) */
 //                st1.clearArrivalTime();
@@ -877,12 +987,12 @@ public class GTFSPatternHopFactory {
             } else if (hopSpeed > 45) {
                 // 45 m/sec ~= 100 miles/hr
                 // elapsed time of 0 will give speed of +inf
-                LOG.trace(graph.addBuilderAnnotation(new HopSpeedFast((float) hopSpeed, 
-                        (float) hopDistance, st0.getTrip(), st0.getStopSequence())));
+                annotations.trace(new HopSpeedFast((float) hopSpeed, 
+                        (float) hopDistance, st0.getTrip(), st0.getStopSequence()));
             } else if (hopSpeed < 0.1) {
                 // 0.1 m/sec ~= 0.2 miles/hr
-                LOG.trace(graph.addBuilderAnnotation(new HopSpeedSlow((float) hopSpeed, 
-                        (float) hopDistance, st0.getTrip(), st0.getStopSequence())));
+                annotations.trace(new HopSpeedSlow((float) hopSpeed, 
+                        (float) hopDistance, st0.getTrip(), st0.getStopSequence()));
             }
             // st0 should reflect the last stoptime that was not clearly incorrect
             if ( ! st1bogus)  
@@ -1074,7 +1184,7 @@ public class GTFSPatternHopFactory {
     }
 
     
-    private LineString getHopGeometryViaShapeDistTraveled(Graph graph, AgencyAndId shapeId, StopTime st0, StopTime st1) {
+    private LineString getHopGeometryViaShapeDistTraveled(AnnotationBuffer annotations, AgencyAndId shapeId, StopTime st0, StopTime st1) {
 
         double startDistance = st0.getShapeDistTraveled();
         double endDistance = st1.getShapeDistTraveled();
@@ -1087,7 +1197,7 @@ public class GTFSPatternHopFactory {
         double[] distances = getDistanceForShapeId(shapeId);
 
         if (distances == null) {
-            LOG.warn(graph.addBuilderAnnotation(new BogusShapeGeometry(shapeId)));
+            annotations.warn(new BogusShapeGeometry(shapeId));
             return null;
         } else {
             LinearLocation startIndex = getSegmentFraction(distances, startDistance);
@@ -1095,13 +1205,13 @@ public class GTFSPatternHopFactory {
 
             if (equals(startIndex, endIndex)) {
                 //bogus shape_dist_traveled 
-                graph.addBuilderAnnotation(new BogusShapeDistanceTraveled(st1));
+                annotations.trace(new BogusShapeDistanceTraveled(st1));
                 return createSimpleGeometry(st0.getStop(), st1.getStop());
             }
             LineString line = getLineStringForShapeId(shapeId);
             LocationIndexedLine lol = new LocationIndexedLine(line);
 
-            geometry = getSegmentGeometry(graph, shapeId, lol, startIndex, endIndex, startDistance,
+            geometry = getSegmentGeometry(annotations, shapeId, lol, startIndex, endIndex, startDistance,
                     endDistance, st0, st1);
 
             return geometry;
@@ -1152,7 +1262,11 @@ public class GTFSPatternHopFactory {
         return true;
     }
 
-    private LineString getSegmentGeometry(Graph graph, AgencyAndId shapeId,
+    /**
+     * The geometry of a hop along a shape, cached by shape and distances. When two threads build the same segment, the
+     * first one stored in the cache is used.
+     */
+    private LineString getSegmentGeometry(AnnotationBuffer annotations, AgencyAndId shapeId,
             LocationIndexedLine locationIndexedLine, LinearLocation startIndex,
             LinearLocation endIndex, double startDistance, double endDistance, 
             StopTime st0, StopTime st1) {
@@ -1170,11 +1284,13 @@ public class GTFSPatternHopFactory {
             geometry = _geometryFactory.createLineString(sequence);
             
             if (!isValid(geometry, st0.getStop(), st1.getStop())) {
-                LOG.warn(graph.addBuilderAnnotation(new BogusShapeGeometryCaught(shapeId, st0, st1)));
+                annotations.warn(new BogusShapeGeometryCaught(shapeId, st0, st1));
                 //fall back to trivial geometry
                 geometry = createSimpleGeometry(st0.getStop(), st1.getStop());
             }
-            _geometriesByShapeSegmentKey.put(key, (LineString) geometry);
+            LineString cached = _geometriesByShapeSegmentKey.putIfAbsent(key, geometry);
+            if (cached != null)
+                geometry = cached;
         }
 
         return geometry;
@@ -1213,13 +1329,13 @@ public class GTFSPatternHopFactory {
 
     private LineString getLineStringForShapeId(AgencyAndId shapeId) {
 
-        LineString geometry = _geometriesByShapeId.get(shapeId);
-
-        if (geometry != null) 
-            return geometry;
+        // Shapes without enough points are cached as null
+        if (_geometriesByShapeId.containsKey(shapeId))
+            return _geometriesByShapeId.get(shapeId);
 
         List<ShapePoint> points = getUniqueShapePointsForShapeId(shapeId);
         if (points.size() < 2) {
+            _geometriesByShapeId.put(shapeId, null);
             return null;
         }
         Coordinate[] coordinates = new Coordinate[points.size()];
@@ -1246,7 +1362,7 @@ public class GTFSPatternHopFactory {
         }
 
         CoordinateSequence sequence = new PackedCoordinateSequence.Double(coordinates, 2);
-        geometry = _geometryFactory.createLineString(sequence);
+        LineString geometry = _geometryFactory.createLineString(sequence);
         _geometriesByShapeId.put(shapeId, geometry);
         _distancesByShapeId.put(shapeId, distances);
 
@@ -1422,6 +1538,11 @@ public class GTFSPatternHopFactory {
         }
     }
 
+    /** The number of threads repairing stop times and matching shapes to hops. */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
     public void setStopContext(GtfsStopContext context) {
         this.context = context;
     }
@@ -1436,4 +1557,65 @@ public class GTFSPatternHopFactory {
         this.maxStopToShapeSnapDistance = maxStopToShapeSnapDistance;
     }
 
+    /** The stop times of a trip after repairs, and the problems found. Null stop times mean undefined service. */
+    private static class FilteredTrip {
+
+        final Trip trip;
+
+        final List<StopTime> stopTimes;
+
+        final AnnotationBuffer annotations = new AnnotationBuffer();
+
+        FilteredTrip(Trip trip, List<StopTime> stopTimes) {
+            this.trip = trip;
+            this.stopTimes = stopTimes;
+        }
+    }
+
+    /** The hop geometries of a TripPattern, and the problems found while matching them to the shape. */
+    private static class HopGeometries {
+
+        final TripPattern tripPattern;
+
+        LineString[] geometries;
+
+        final AnnotationBuffer annotations = new AnnotationBuffer();
+
+        HopGeometries(TripPattern tripPattern) {
+            this.tripPattern = tripPattern;
+        }
+    }
+
+    /**
+     * Annotations found on a worker thread. The graph is not thread-safe, so they are added to it on the calling
+     * thread, in a fixed order whatever the number of threads.
+     */
+    private static class AnnotationBuffer {
+
+        private final List<GraphBuilderAnnotation> annotations = new ArrayList<GraphBuilderAnnotation>();
+
+        private final List<Boolean> warnings = new ArrayList<Boolean>();
+
+        void warn(GraphBuilderAnnotation annotation) {
+            annotations.add(annotation);
+            warnings.add(true);
+        }
+
+        void trace(GraphBuilderAnnotation annotation) {
+            annotations.add(annotation);
+            warnings.add(false);
+        }
+
+        void addTo(Graph graph) {
+            for (int i = 0; i < annotations.size(); i++) {
+                String message = graph.addBuilderAnnotation(annotations.get(i));
+                if (warnings.get(i))
+                    LOG.warn(message);
+                else
+                    LOG.trace(message);
+            }
+            annotations.clear();
+            warnings.clear();
+        }
+    }
 }
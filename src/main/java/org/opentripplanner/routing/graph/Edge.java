@@ -27,8 +27,11 @@ import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.util.IncrementingIdGenerator;
 import org.opentripplanner.routing.util.UniqueIdGenerator;
 
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.LineString;
 
+import gnu.trove.list.array.TDoubleArrayList;
+
 /**
  * This is the standard implementation of an edge with fixed from and to Vertex instances;
  * all standard OTP edges are subclasses of this.
@@ -190,6 +193,24 @@ public abstract class Edge implements Serializable {
         return null;
     }
 
+    /**
+     * Append the coordinates of the geometry of this edge to a buffer as x, y pairs. Edges which store their
+     * geometry in another form override this to skip building the LineString.
+     * 
+     * @return false if the edge has no geometry
+     */
+    public boolean appendCoordinates(TDoubleArrayList buffer) {
+        LineString geometry = getGeometry();
+        if (geometry == null)
+            return false;
+        CoordinateSequence coordinates = geometry.getCoordinateSequence();
+        for (int i = 0; i < coordinates.size(); i++) {
+            buffer.add(coordinates.getX(i));
+            buffer.add(coordinates.getY(i));
+        }
+        return true;
+    }
+
     /**
      * Returns the azimuth of this edge from head to tail.
      * 
@@ -26,6 +26,7 @@ import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -38,6 +39,8 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.prefs.Preferences;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -96,8 +99,15 @@ public class Graph implements Serializable {
     // TODO Remove this field, use Router.routerId ?
     public String routerId;
 
-    private final Map<Edge, Set<AlertPatch>> alertPatches = new HashMap<Edge, Set<AlertPatch>>(0);
+    private static final AlertPatch[] NO_ALERT_PATCHES = new AlertPatch[0];
 
+    /**
+     * The alert patches of each edge. The arrays are replaced rather than modified, so that they can be read without
+     * locking while patches are applied and expired.
+     */
+    private final Map<Edge, AlertPatch[]> alertPatches = new ConcurrentHashMap<Edge, AlertPatch[]>(0);
+
+    /** The turn restrictions from each edge. StreetEdges with restrictions are flagged, see addTurnRestriction. */
     private final Map<Edge, List<TurnRestriction>> turnRestrictions = Maps.newHashMap();
 
     public final StreetNotesService streetNotesService = new StreetNotesService();
@@ -125,6 +135,12 @@ public class Graph implements Serializable {
 
     private transient Map<Integer, Edge> edgeById;
 
+    /** Counts the vertices added and the vertices and edges removed, so that derived data can tell it is stale. */
+    private transient AtomicLong modificationCount = new AtomicLong();
+
+    /** Number of trip pattern indexes handed out in this graph, see TripPattern.getIndex(). */
+    private transient AtomicInteger patternCount = new AtomicInteger();
+
     public transient StreetVertexIndexService streetIndex;
 
     public transient GraphIndex index;
@@ -212,6 +228,7 @@ public class Graph implements Serializable {
      * Add the given vertex to the graph. Ideally, only vertices should add themselves to the graph, when they are constructed or deserialized.
      */
     public void addVertex(Vertex v) {
+        modificationCount.incrementAndGet();
         Vertex old = vertices.put(v.getLabel(), v);
         if (old != null) {
             if (old == v)
@@ -229,6 +246,7 @@ public class Graph implements Serializable {
      * @param v
      */
     public void removeVertex(Vertex v) {
+        modificationCount.incrementAndGet();
         if (vertices.remove(v.getLabel()) != v) {
             LOG.error(
                     "attempting to remove vertex that is not in graph (or mapping value was null): {}",
@@ -242,6 +260,7 @@ public class Graph implements Serializable {
      */
     public void removeEdge(Edge e) {
         if (e != null) {
+            modificationCount.incrementAndGet();
             synchronized (alertPatches) {   // This synchronization is somewhat silly because this
                 alertPatches.remove(e);     // method isn't thread-safe anyway, but it is consistent
             }
@@ -333,16 +352,13 @@ public class Graph implements Serializable {
     public void addAlertPatch(Edge edge, AlertPatch alertPatch) {
         if (edge == null || alertPatch == null) return;
         synchronized (alertPatches) {
-            Set<AlertPatch> alertPatches = this.alertPatches.get(edge);
+            AlertPatch[] alertPatches = this.alertPatches.get(edge);
             if (alertPatches == null) {
-                this.alertPatches.put(edge, Collections.singleton(alertPatch));
-            } else if (alertPatches instanceof HashSet) {
-                alertPatches.add(alertPatch);
-            } else {
-                alertPatches = new HashSet<AlertPatch>(alertPatches);
-                if (alertPatches.add(alertPatch)) {
-                    this.alertPatches.put(edge, alertPatches);
-                }
+                this.alertPatches.put(edge, new AlertPatch[] { alertPatch });
+            } else if (!Arrays.asList(alertPatches).contains(alertPatch)) {
+                alertPatches = Arrays.copyOf(alertPatches, alertPatches.length + 1);
+                alertPatches[alertPatches.length - 1] = alertPatch;
+                this.alertPatches.put(edge, alertPatches);
             }
         }
     }
@@ -356,37 +372,39 @@ public class Graph implements Serializable {
     public void removeAlertPatch(Edge edge, AlertPatch alertPatch) {
         if (edge == null || alertPatch == null) return;
         synchronized (alertPatches) {
-            Set<AlertPatch> alertPatches = this.alertPatches.get(edge);
-            if (alertPatches != null && alertPatches.contains(alertPatch)) {
-                if (alertPatches.size() < 2) {
+            AlertPatch[] alertPatches = this.alertPatches.get(edge);
+            if (alertPatches != null && Arrays.asList(alertPatches).contains(alertPatch)) {
+                if (alertPatches.length < 2) {
                     this.alertPatches.remove(edge);
                 } else {
-                    alertPatches.remove(alertPatch);
+                    List<AlertPatch> remaining = Lists.newArrayList(alertPatches);
+                    remaining.remove(alertPatch);
+                    this.alertPatches.put(edge, remaining.toArray(new AlertPatch[remaining.size()]));
                 }
             }
         }
     }
 
     /**
-     * Get the {@link AlertPatch} {@link Set} that belongs to an {@link Edge} and build a new array.
+     * Get the {@link AlertPatch} array that belongs to an {@link Edge}, without locking or copying. The array is
+     * shared and must not be modified; later changes to the patches of the edge replace it.
      * @param edge
      * @return The {@link AlertPatch} array that belongs to the {@link Edge}
      */
     public AlertPatch[] getAlertPatches(Edge edge) {
-        if (edge != null) {
-            synchronized (alertPatches) {
-                Set<AlertPatch> alertPatches = this.alertPatches.get(edge);
-                if (alertPatches != null) {
-                    return alertPatches.toArray(new AlertPatch[alertPatches.size()]);
-                }
+        // Most graphs have no alert patches at all
+        if (edge != null && !alertPatches.isEmpty()) {
+            AlertPatch[] alertPatches = this.alertPatches.get(edge);
+            if (alertPatches != null) {
+                return alertPatches;
             }
         }
-        return new AlertPatch[0];
+        return NO_ALERT_PATCHES;
     }
 
     /**
      * Add a {@link TurnRestriction} to the {@link TurnRestriction} {@link List} belonging to an
-     * {@link Edge}. This method is not thread-safe.
+     * {@link Edge}, and flag StreetEdges as turn restricted. This method is not thread-safe.
      * @param edge
      * @param turnRestriction
      */
@@ -398,6 +416,7 @@ public class Graph implements Serializable {
             this.turnRestrictions.put(edge, turnRestrictions);
         }
         turnRestrictions.add(turnRestriction);
+        if (edge instanceof StreetEdge) ((StreetEdge) edge).setTurnRestricted(true);
     }
 
     /**
@@ -412,6 +431,7 @@ public class Graph implements Serializable {
         if (turnRestrictions != null && turnRestrictions.contains(turnRestriction)) {
             if (turnRestrictions.size() < 2) {
                 this.turnRestrictions.remove(edge);
+                if (edge instanceof StreetEdge) ((StreetEdge) edge).setTurnRestricted(false);
             } else {
                 turnRestrictions.remove(turnRestriction);
             }
@@ -479,6 +499,7 @@ public class Graph implements Serializable {
     }
 
     public void remove(Vertex vertex) {
+        modificationCount.incrementAndGet();
         vertices.remove(vertex.getLabel());
     }
 
@@ -616,6 +637,26 @@ public class Graph implements Serializable {
     private void readObject(ObjectInputStream inputStream) throws ClassNotFoundException,
             IOException {
         inputStream.defaultReadObject();
+        modificationCount = new AtomicLong();
+        patternCount = new AtomicInteger();
+    }
+
+    /**
+     * @return a number that changes whenever a vertex is added to the graph or a vertex or an edge is removed from it,
+     *         as realtime updaters do when they link new bike rental stations.
+     */
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /** @return a trip pattern index which no other pattern of this graph has. */
+    public int nextPatternIndex() {
+        return patternCount.getAndIncrement();
+    }
+
+    /** @return the number of trip pattern indexes handed out, which the indexes of all patterns of this graph are below. */
+    public int getPatternCount() {
+        return patternCount.get();
     }
 
     /**
@@ -688,12 +729,21 @@ public class Graph implements Serializable {
         LOG.debug("street index built.");
         LOG.debug("Rebuilding edge and vertex indices.");
         rebuildVertexAndEdgeIndices();
+        // Traversals only look up the restrictions of flagged edges
+        for (Edge e : turnRestrictions.keySet()) {
+            if (e instanceof StreetEdge) ((StreetEdge) e).setTurnRestricted(true);
+        }
         Set<TripPattern> tableTripPatterns = Sets.newHashSet();
         for (PatternArriveVertex pav : Iterables.filter(this.getVertices(), PatternArriveVertex.class)) {
             tableTripPatterns.add(pav.getTripPattern());
         }
+        // Like vertex indexes, pattern indexes are reassigned from 0 when a graph is loaded
+        patternCount.set(0);
         for (TripPattern ttp : tableTripPatterns) {
-            if (ttp != null) ttp.scheduledTimetable.finish(); // skip frequency-based patterns with no table (null)
+            if (ttp != null) {
+                ttp.scheduledTimetable.finish(); // skip frequency-based patterns with no table (null)
+                ttp.setIndex(this);
+            }
         }
         // TODO: Move this ^ stuff into the graph index
         this.index = new GraphIndex(this);
@@ -185,6 +185,42 @@ public class GraphIndex {
         return tripPatterns;
     }
 
+    /** Initialize the transfers needed for profile routing unless another thread already did. */
+    public synchronized void initializeProfileTransfersAsNeeded() {
+        if (transfersFromStopCluster == null) {
+            initializeProfileTransfers();
+        }
+    }
+
+    /**
+     * Build the lazy-initialized indexes that were built in the given index of a previous graph, so that the first
+     * requests needing them after a reload do not have to wait for them.
+     */
+    public void initializeLike(GraphIndex previous) {
+        if (previous.stopClusterSpatialIndex != null) {
+            LOG.info("Clustering stops as in the previous graph.");
+            clusterStopsAsNeeded();
+        }
+        if (previous.transfersFromStopCluster != null) {
+            LOG.info("Finding profile transfers as in the previous graph.");
+            clusterStopsAsNeeded();
+            initializeProfileTransfersAsNeeded();
+        }
+        if (previous.stopTreeCache != null) {
+            LOG.info("Building stop trees as in the previous graph.");
+            getStopTreeCache();
+        }
+        LuceneIndex previousLuceneIndex = previous.luceneIndex;
+        if (previousLuceneIndex != null) {
+            synchronized (this) {
+                if (luceneIndex == null) {
+                    LOG.info("Building the Lucene index as in the previous graph.");
+                    luceneIndex = new LuceneIndex(this, previousLuceneIndex.getBasePath(), false);
+                }
+            }
+        }
+    }
+
     /**
      * Initialize transfer data needed for profile routing.
      * Find the best transfers between each pair of patterns that pass near one another.
@@ -26,10 +26,13 @@ import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.algorithm.AStar;
 import org.opentripplanner.routing.algorithm.strategies.EuclideanRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.InterleavedBidirectionalHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkRemainingWeightHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkSet;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.automata.DFA;
 import org.opentripplanner.routing.automata.Nonterminal;
+import org.opentripplanner.routing.contraction.ContractionHierarchySet;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.edgetype.*;
@@ -122,7 +125,9 @@ public class GraphPathFinder {
             heuristic = new TrivialRemainingWeightHeuristic();
         } else if (options.modes.isTransit()) {
            // Only use the BiDi heuristic for transit.
-            heuristic = new InterleavedBidirectionalHeuristic(options.rctx.graph);
+            heuristic = new InterleavedBidirectionalHeuristic(options.rctx.graph, router.heuristicTables);
+        } else if (options.rctx.graph.hasService(LandmarkSet.class)) {
+            heuristic = new LandmarkRemainingWeightHeuristic(options.rctx.graph.getService(LandmarkSet.class));
         } else {
             heuristic = new EuclideanRemainingWeightHeuristic();
         }
@@ -143,6 +148,16 @@ public class GraphPathFinder {
          * the whole graph walkable. */
         if (options.maxWalkDistance == Double.MAX_VALUE) options.maxWalkDistance = DEFAULT_MAX_WALK;
         if (options.maxWalkDistance > CLAMP_MAX_WALK) options.maxWalkDistance = CLAMP_MAX_WALK;
+
+        /* Street-only requests with the parameters of a prepared profile are answered from its contraction hierarchy. */
+        ContractionHierarchySet hierarchies = options.rctx.graph.getService(ContractionHierarchySet.class);
+        if (hierarchies != null && !options.modes.isTransit()) {
+            GraphPath path = hierarchies.getPath(options);
+            if (path != null) {
+                LOG.debug("Found path in contraction hierarchy");
+                return Lists.newArrayList(path);
+            }
+        }
         long searchBeginTime = System.currentTimeMillis();
         LOG.debug("BEGIN SEARCH");
         List<GraphPath> paths = Lists.newArrayList();
@@ -53,7 +53,12 @@ public class InputStreamGraphSource implements GraphSource {
      * */
     private static final long LOAD_DELAY_SEC = 10;
 
-    private Router router;
+    /**
+     * Maximum time given to the requests still running on a replaced router to finish before it is shut down.
+     */
+    private static final long DRAIN_TIMEOUT_SEC = 60;
+
+    private volatile Router router;
 
     private String routerId;
 
@@ -124,33 +129,46 @@ public class InputStreamGraphSource implements GraphSource {
                 return true;
             if (preEvict) {
                 synchronized (preEvictMutex) {
-                    if (router != null) {
-                        router.shutdown();
-                    }
                     /*
                      * Forcing router to null here should remove any references to the graph once
                      * all current requests are done. So the next reload is supposed to have more
-                     * memory.
+                     * memory. It is unpublished before it is shut down, which may take a while, so
+                     * that no request looks it up in the meantime.
                      */
+                    Router oldRouter = router;
                     router = null;
+                    if (oldRouter != null) {
+                        oldRouter.shutdown();
+                    }
                     router = loadGraph();
                 }
             } else {
+                /*
+                 * The current router keeps handling requests while the new one is loaded and warmed up, so both
+                 * graphs are in memory until the requests still running on the old one are done.
+                 */
                 Router newRouter = loadGraph();
                 if (newRouter != null) {
                     // Load OK
-                    if (router != null) {
-                        router.shutdown();
+                    Router oldRouter = router;
+                    if (oldRouter != null) {
+                        newRouter.warmup(oldRouter);
                     }
                     router = newRouter; // Assignment in java is atomic
+                    if (oldRouter != null) {
+                        // Requests which looked up the old router before the swap start again on the new one
+                        oldRouter.retire();
+                        shutdownWhenDrained(oldRouter);
+                    }
                 } else {
                     // Load failed
                     if (force || router == null) {
                         LOG.warn("Unable to load data for router '{}'.", routerId);
-                        if (router != null) {
-                            router.shutdown();
-                        }
+                        Router oldRouter = router;
                         router = null;
+                        if (oldRouter != null) {
+                            oldRouter.shutdown();
+                        }
                     } else {
                         // No shutdown, since we keep current one.
                         LOG.warn("Unable to load data for router '{}', keeping old data.", routerId);
@@ -192,12 +210,33 @@ public class InputStreamGraphSource implements GraphSource {
         }
     }
 
+    /**
+     * Shut down a router that is no longer given new requests once the ones it is handling are done, in a background
+     * thread so that the reload does not wait for them.
+     */
+    private void shutdownWhenDrained(final Router oldRouter) {
+        Thread drainThread = new Thread("drain-router-" + routerId) {
+            @Override
+            public void run() {
+                if (!oldRouter.awaitRequestsFinished(DRAIN_TIMEOUT_SEC * 1000)) {
+                    LOG.warn("{} requests still running on replaced router '{}', shutting it down anyway.",
+                            oldRouter.getRequestsInFlight(), routerId);
+                }
+                oldRouter.shutdown();
+            }
+        };
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
     @Override
     public void evict() {
         synchronized (this) {
-            if (router != null) {
-                router.shutdown();
-                router = null;
+            // Unpublished first, so that no request looks up the router while it is shut down
+            Router oldRouter = router;
+            router = null;
+            if (oldRouter != null) {
+                oldRouter.shutdown();
             }
         }
     }
@@ -60,9 +60,10 @@ public class MemoryGraphSource implements GraphSource {
 
     @Override
     public void evict() {
-        if (router != null) {
-            router.shutdown();
-        }
+        Router oldRouter = router;
         router = null;
+        if (oldRouter != null) {
+            oldRouter.shutdown();
+        }
     }
 }
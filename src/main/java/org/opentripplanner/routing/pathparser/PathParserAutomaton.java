@@ -0,0 +1,178 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.pathparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opentripplanner.routing.automata.AutomatonState;
+import org.opentripplanner.routing.automata.DFA;
+import org.opentripplanner.routing.core.State;
+
+/**
+ * The product of the DFAs of several path parsers, so that a search using all of them keeps a single parse state per
+ * State, and advances it with one table lookup per edge. Its input symbols are the combinations of the terminals of
+ * the parsers, and a product state accepts when every parser accepts.
+ *
+ * Products are built once for each combination of DFAs, and shared by all searches using that combination. Parsers
+ * of the same class share their DFA, so the usual combinations are few.
+ */
+public class PathParserAutomaton {
+
+    public static final int START = AutomatonState.START;
+
+    public static final int REJECT = AutomatonState.REJECT;
+
+    private static final Map<List<DFA>, PathParserAutomaton> cache =
+            new ConcurrentHashMap<List<DFA>, PathParserAutomaton>();
+
+    /** The number of terminals of each parser. */
+    private final int[] terminalCounts;
+
+    /** The position of the terminals of each parser in the combined input symbol. */
+    private final int[] strides;
+
+    /** The next state for each state and combined input symbol, or REJECT. */
+    private final int[][] table;
+
+    private final boolean[] accepts;
+
+    /** The state of each parser in each product state, for debugging. */
+    private final int[][] parserStates;
+
+    /** @return the product of the DFAs of the parsers. */
+    public static PathParserAutomaton forParsers(PathParser[] parsers) {
+        DFA[] dfas = new DFA[parsers.length];
+        for (int i = 0; i < parsers.length; i++) {
+            dfas[i] = parsers[i].getDFA();
+        }
+        List<DFA> key = Arrays.asList(dfas);
+        PathParserAutomaton automaton = cache.get(key);
+        if (automaton == null) {
+            // Building the same product twice in a race is harmless
+            automaton = new PathParserAutomaton(dfas);
+            cache.put(key, automaton);
+        }
+        return automaton;
+    }
+
+    private PathParserAutomaton(DFA[] dfas) {
+        int n = dfas.length;
+        terminalCounts = new int[n];
+        strides = new int[n];
+        int symbols = 1;
+        for (int i = 0; i < n; i++) {
+            terminalCounts[i] = dfas[i].getTerminalCount();
+            strides[i] = symbols;
+            symbols *= terminalCounts[i];
+        }
+
+        /* Explore the product states reachable from the start state of every parser. */
+        Map<List<Integer>, Integer> stateIds = new HashMap<List<Integer>, Integer>();
+        List<int[]> states = new ArrayList<int[]>();
+        List<int[]> rows = new ArrayList<int[]>();
+        Queue<Integer> queue = new LinkedList<Integer>();
+        int[] start = new int[n];
+        Arrays.fill(start, AutomatonState.START);
+        stateIds.put(asList(start), states.size());
+        states.add(start);
+        queue.add(START);
+        while (!queue.isEmpty()) {
+            int from = queue.poll();
+            int[] fromStates = states.get(from);
+            int[] row = new int[symbols];
+            for (int symbol = 0; symbol < symbols; symbol++) {
+                int[] toStates = new int[n];
+                boolean reject = false;
+                for (int i = 0; i < n && !reject; i++) {
+                    int terminal = (symbol / strides[i]) % terminalCounts[i];
+                    toStates[i] = dfas[i].transition(fromStates[i], terminal);
+                    reject = toStates[i] == AutomatonState.REJECT;
+                }
+                if (reject) {
+                    row[symbol] = REJECT;
+                    continue;
+                }
+                List<Integer> toKey = asList(toStates);
+                Integer to = stateIds.get(toKey);
+                if (to == null) {
+                    to = states.size();
+                    stateIds.put(toKey, to);
+                    states.add(toStates);
+                    queue.add(to);
+                }
+                row[symbol] = to;
+            }
+            // States are numbered in the order they are queued, so rows are added in state order
+            rows.add(row);
+        }
+        table = rows.toArray(new int[rows.size()][]);
+        parserStates = states.toArray(new int[states.size()][]);
+        accepts = new boolean[parserStates.length];
+        for (int s = 0; s < parserStates.length; s++) {
+            accepts[s] = true;
+            for (int i = 0; i < n; i++) {
+                accepts[s] &= dfas[i].accepts(parserStates[s][i]);
+            }
+        }
+    }
+
+    private static List<Integer> asList(int[] states) {
+        Integer[] boxed = new Integer[states.length];
+        for (int i = 0; i < states.length; i++) {
+            boxed[i] = states[i];
+        }
+        return Arrays.asList(boxed);
+    }
+
+    /**
+     * @return the state after the edge leading to the given State, whose parse state is the one before it, or REJECT if
+     *         some parser rejects the path.
+     */
+    public int transition(int parseState, PathParser[] parsers, State state) {
+        int symbol = 0;
+        for (int i = 0; i < parsers.length; i++) {
+            int terminal = parsers[i].terminalFor(state);
+            // No DFA has transitions on terminals above the ones it was built from
+            if (terminal >= terminalCounts[i])
+                return REJECT;
+            symbol += terminal * strides[i];
+        }
+        return table[parseState][symbol];
+    }
+
+    public boolean accepts(int parseState) {
+        return parseState != REJECT && accepts[parseState];
+    }
+
+    /** @return the state of each parser in the product state. */
+    public int[] getParserStates(int parseState) {
+        if (parseState == REJECT) {
+            int[] states = new int[terminalCounts.length];
+            Arrays.fill(states, REJECT);
+            return states;
+        }
+        return parserStates[parseState].clone();
+    }
+
+    public int getStateCount() {
+        return table.length;
+    }
+}
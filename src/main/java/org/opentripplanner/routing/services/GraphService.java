@@ -133,6 +133,26 @@ public class GraphService {
         return router;
     }
 
+    /**
+     * Get the router for a request, counted as being handled by that router until Router.requestFinished() is
+     * called, so that a reload does not shut the router down before the request is done.
+     */
+    public Router getRouterForRequest(String routerId) throws GraphNotFoundException {
+        Router retired = null;
+        while (true) {
+            Router router = getRouter(routerId);
+            if (router.requestStarted()) {
+                return router;
+            }
+            // The router was replaced since it was looked up, and the new one is current now. A router still
+            // published once retired is being shut down without a replacement.
+            if (router == retired) {
+                throw new GraphNotFoundException();
+            }
+            retired = router;
+        }
+    }
+
     /**
      * Reload all registered graphs from wherever they came from.
      * 
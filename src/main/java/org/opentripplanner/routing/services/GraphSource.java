@@ -64,7 +64,9 @@ public interface GraphSource {
      * @param force True to force a reload, false to check only.
      * @param preEvict True to evict the old version *before* loading the new one. In that case the
      *        implementation have to take care of making the getGraph() call wait while the new
-     *        graph is being loaded and not return null.
+     *        graph is being loaded and not return null. When false, the current router keeps
+     *        handling requests until the new one is loaded, and may be shut down only once the
+     *        requests it is handling are done.
      * @return False if a new graph has not been reloaded and this graph must be evicted.
      */
     public boolean reload(boolean force, boolean preEvict);
@@ -1,5 +1,6 @@
 package org.opentripplanner.standalone;
 
+import org.opentripplanner.graph_builder.module.osm.WalkableAreaBuilder;
 import org.opentripplanner.routing.impl.DefaultFareServiceFactory;
 import org.opentripplanner.routing.services.FareServiceFactory;
 
@@ -57,6 +58,36 @@ public class GraphBuilderParameters {
      */
     public final boolean streets;
 
+    /**
+     * Keep an extract of each PBF input in a MapDB store next to it, and build from this extract rather than the PBF
+     * file as long as the PBF file is unchanged.
+     */
+    public final boolean cacheOsm;
+
+    /**
+     * Keep the stops found near each stop in a file next to the graph, and only search again from the stops whose
+     * surrounding streets or patterns changed when the graph is rebuilt.
+     */
+    public final boolean cacheTransfers;
+
+    /**
+     * Keep the street graph built from OSM in the cache directory, and start later builds from it as long as the OSM
+     * files and the build config are unchanged.
+     */
+    public final boolean cacheStreetGraph;
+
+    /**
+     * Build contraction hierarchies over the street network for car, bicycle and walk requests with the default
+     * routing parameters, which answer these requests much faster than a search over the whole street graph.
+     */
+    public final boolean contractionHierarchies;
+
+    /**
+     * The number of landmarks to compute street distances to and from, for a tighter remaining weight estimate in
+     * searches without transit. 0 computes none.
+     */
+    public final int landmarks;
+
     /**
      * Embed the Router config in the graph, which allows it to be sent to a server fully configured over the wire.
      */
@@ -67,6 +98,12 @@ public class GraphBuilderParameters {
      */
     public final boolean areaVisibility;
 
+    /**
+     * The maximum number of visibility points in an OSM area. Larger areas are simplified by keeping the sharpest
+     * corners, or get no visibility edges if they have more entrances than this.
+     */
+    public final int maxAreaNodes;
+
     /**
      * Based on GTFS shape data, guess which OSM streets each bus runs on to improve stop linking.
      */
@@ -96,8 +133,14 @@ public class GraphBuilderParameters {
         stationTransfers = config.path("parentStationTransfers").asBoolean(false);
         subwayAccessTime = config.path("subwayAccessTime").asDouble(DEFAULT_SUBWAY_ACCESS_TIME);
         streets = config.path("streets").asBoolean(true);
+        cacheOsm = config.path("cacheOsm").asBoolean(false);
+        cacheTransfers = config.path("cacheTransfers").asBoolean(false);
+        cacheStreetGraph = config.path("cacheStreetGraph").asBoolean(false);
+        contractionHierarchies = config.path("contractionHierarchies").asBoolean(false);
+        landmarks = config.path("landmarks").asInt(0);
         embedRouterConfig = config.path("embedRouterConfig").asBoolean(true);
         areaVisibility = config.path("areaVisibility").asBoolean(false);
+        maxAreaNodes = config.path("maxAreaNodes").asInt(WalkableAreaBuilder.DEFAULT_MAX_AREA_NODES);
         matchBusRoutesToStreets = config.path("matchBusRoutesToStreets").asBoolean(false);
         fetchElevationUS = config.path("fetchElevationUS").asBoolean(false);
         fareServiceFactory = DefaultFareServiceFactory.fromConfig(config.path("fares"));
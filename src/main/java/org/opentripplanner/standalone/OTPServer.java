@@ -76,6 +76,11 @@ public class OTPServer {
         return graphService.getRouter(routerId);
     }
 
+    /** @see GraphService#getRouterForRequest(String) */
+    public Router getRouterForRequest(String routerId) throws GraphNotFoundException {
+        return graphService.getRouterForRequest(routerId);
+    }
+
     /**
      * Return an HK2 Binder that injects this specific OTPServer instance into Jersey web resources.
      * This should be registered in the ResourceConfig (Jersey) or Application (JAX-RS) as a singleton.
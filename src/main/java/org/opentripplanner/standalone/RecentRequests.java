@@ -0,0 +1,67 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.standalone;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opentripplanner.routing.core.RoutingRequest;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The last few routing requests made to a Router, kept so that they can be replayed on the router replacing it
+ * when its graph is reloaded. Requests are copied when recorded, before they are routed and modified, and older
+ * requests are overwritten as new ones come in. Any number of threads may record at the same time.
+ */
+public class RecentRequests {
+
+    private final AtomicReferenceArray<RoutingRequest> requests;
+
+    private final AtomicLong count = new AtomicLong();
+
+    /** @param capacity The number of requests kept. 0 keeps none. */
+    public RecentRequests(int capacity) {
+        requests = new AtomicReferenceArray<RoutingRequest>(capacity);
+    }
+
+    public void record(RoutingRequest request) {
+        int capacity = requests.length();
+        if (capacity == 0)
+            return;
+        RoutingRequest copy = request.clone();
+        copy.rctx = null;
+        requests.set((int) (count.getAndIncrement() % capacity), copy);
+    }
+
+    /** @return copies of the kept requests, from the oldest to the most recent one. */
+    public List<RoutingRequest> getRequests() {
+        int capacity = requests.length();
+        List<RoutingRequest> ret = Lists.newArrayListWithCapacity(capacity);
+        if (capacity == 0)
+            return ret;
+        long end = count.get();
+        for (long i = Math.max(0, end - capacity); i < end; i++) {
+            RoutingRequest request = requests.get((int) (i % capacity));
+            if (request != null)
+                ret.add(request.clone());
+        }
+        return ret;
+    }
+
+    public int getCapacity() {
+        return requests.length();
+    }
+}
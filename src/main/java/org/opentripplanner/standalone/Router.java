@@ -1,14 +1,20 @@
 package org.opentripplanner.standalone;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.opentripplanner.analyst.request.*;
+import org.opentripplanner.api.resource.GraphPathToTripPlanConverter;
 import org.opentripplanner.inspector.TileRendererManager;
 import org.opentripplanner.reflect.ReflectiveInitializer;
 import org.opentripplanner.routing.algorithm.TraverseVisitor;
+import org.opentripplanner.routing.algorithm.strategies.HeuristicTableCache;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.GraphPathFinder;
+import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.updater.GraphUpdaterConfigurator;
 import org.opentripplanner.visualizer.GraphVisualizer;
 import org.slf4j.Logger;
@@ -24,10 +30,29 @@ public class Router {
 
     public static final String ROUTER_CONFIG_FILENAME = "router-config.json";
 
+    public static final int DEFAULT_WARMUP_REQUESTS = 50;
+
+    private static final long DRAIN_POLL_MSEC = 50;
+
     public String id;
     public Graph graph;
     public double[] timeouts = {5, 2, 1, 0.5, 0.1};
 
+    /** Backward heuristic searches shared between transit requests to the same destinations, or null to share none. */
+    public HeuristicTableCache heuristicTables = new HeuristicTableCache();
+
+    /** Latencies and search statistics of the requests to this router. */
+    public final RouterMetrics metrics = new RouterMetrics();
+
+    /** The last requests to this router, replayed on the router replacing it to warm it up before it is used. */
+    public RecentRequests recentRequests = new RecentRequests(DEFAULT_WARMUP_REQUESTS);
+
+    /** The number of requests being handled by this router, which are allowed to finish before it is shut down. */
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+
+    /** Set once this router has been replaced or shut down, after which it accepts no new requests. */
+    private volatile boolean retired = false;
+
     /* TODO The fields for "components" are slowly disappearing... maybe at some point a router will be nothing but configuration values tied to a Graph. */
 
     // Inspector/debug services
@@ -109,13 +134,117 @@ public class Router {
         }
         LOG.info("Timeouts for router '{}': {}", this.id, this.timeouts);
 
+        /* Size the cache of heuristic tables, each of which has one float per vertex of the graph. 0 disables it. */
+        JsonNode heuristicTables = config.get("heuristicTables");
+        if (heuristicTables != null) {
+            if (heuristicTables.isInt() && heuristicTables.intValue() >= 0) {
+                int size = heuristicTables.intValue();
+                this.heuristicTables = size > 0 ? new HeuristicTableCache(size) : null;
+            } else {
+                LOG.error("The 'heuristicTables' configuration option should be a number of tables.");
+            }
+        }
+
+        /* Size the sample of recent requests replayed on the next router when this one is reloaded. 0 disables it. */
+        JsonNode warmupRequests = config.get("warmupRequests");
+        if (warmupRequests != null) {
+            if (warmupRequests.isInt() && warmupRequests.intValue() >= 0) {
+                this.recentRequests = new RecentRequests(warmupRequests.intValue());
+            } else {
+                LOG.error("The 'warmupRequests' configuration option should be a number of requests.");
+            }
+        }
+
         /* Create Graph updater modules from JSON config. */
         GraphUpdaterConfigurator.setupGraph(this.graph, config);
 
     }
 
+    /**
+     * Prepare this router to replace the given one: build the lazy indexes its graph had built, then plan the
+     * requests it handled last, so that the first requests to this router do not pay for class loading, JIT
+     * compilation and lazy initialization. Errors in the replayed requests are ignored, and they are not counted in
+     * the metrics of this router.
+     * @return the number of requests planned without errors.
+     */
+    public int warmup(Router previous) {
+        long startTime = System.currentTimeMillis();
+        if (previous.graph.index != null && this.graph.index != null) {
+            this.graph.index.initializeLike(previous.graph.index);
+        }
+        List<RoutingRequest> requests = previous.recentRequests.getRequests();
+        int failed = 0;
+        GraphPathFinder gpFinder = new GraphPathFinder(this);
+        for (RoutingRequest request : requests) {
+            try {
+                List<GraphPath> paths = gpFinder.graphPathFinderEntryPoint(request);
+                GraphPathToTripPlanConverter.generatePlan(paths, request);
+            } catch (Exception e) {
+                failed++;
+            } finally {
+                if (request.rctx != null)
+                    request.cleanup();
+            }
+        }
+        LOG.info("Warmed up router '{}' with {} requests ({} failed) in {} msec.", this.id, requests.size(),
+                failed, System.currentTimeMillis() - startTime);
+        return requests.size() - failed;
+    }
+
+    /**
+     * Count a request as being handled by this router until requestFinished() is called, unless the router has been
+     * retired in the meantime. The count is incremented before the check, so a router being drained either sees the
+     * request or the request sees that it was retired.
+     * @return false if the router was retired, in which case the request must be handled by the current router.
+     */
+    public boolean requestStarted() {
+        requestsInFlight.incrementAndGet();
+        if (retired) {
+            requestsInFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void requestFinished() {
+        requestsInFlight.decrementAndGet();
+    }
+
+    public int getRequestsInFlight() {
+        return requestsInFlight.get();
+    }
+
+    /** Stop accepting new requests, once another router has replaced this one. */
+    public void retire() {
+        retired = true;
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Wait until the requests being handled by this router have finished, once it has been retired.
+     * @return false if some requests were still running after the given number of milliseconds.
+     */
+    public boolean awaitRequestsFinished(long timeoutMillis) {
+        long endTime = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (requestsInFlight.get() > 0) {
+                if (System.currentTimeMillis() >= endTime)
+                    return false;
+                Thread.sleep(DRAIN_POLL_MSEC);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return requestsInFlight.get() <= 0;
+        }
+        return true;
+    }
+
     /** Shut down this router when evicted or (auto-)reloaded. Stop any real-time updater threads. */
     public void shutdown() {
+        retire();
         GraphUpdaterConfigurator.shutdownGraph(this.graph);
     }
 
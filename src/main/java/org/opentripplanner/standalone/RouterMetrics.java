@@ -0,0 +1,183 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.standalone;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentripplanner.api.resource.DebugOutput;
+import org.opentripplanner.util.monitoring.LatencyHistogram;
+
+/**
+ * The latencies and search statistics of the requests made to a Router, by endpoint, aggregated from the DebugOutput
+ * of each request. Recording a request takes a few atomic increments, so this is always on.
+ */
+public class RouterMetrics {
+
+    /** Names of the endpoints recorded by the planner resources. */
+    public static final String PLAN = "plan";
+
+    public static final String PLAN_STREAM = "plan/stream";
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    /**
+     * Add the timings and statistics of a finished request to those of its endpoint. Requests which failed are
+     * counted apart, with the time they ran until the error, since their timings may not have been computed: they
+     * would otherwise skew the histograms of the successful requests.
+     */
+    public void record(String endpoint, DebugOutput debugOutput, boolean failed) {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics == null) {
+            EndpointMetrics created = new EndpointMetrics();
+            metrics = endpoints.putIfAbsent(endpoint, created);
+            if (metrics == null)
+                metrics = created;
+        }
+        if (failed)
+            metrics.recordFailure(debugOutput);
+        else
+            metrics.record(debugOutput);
+    }
+
+    /** @return the metrics of the given endpoint, or null if it had no requests yet. */
+    public EndpointMetrics getEndpoint(String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    /** @return the metrics of each endpoint, by name. */
+    public SortedMap<String, EndpointMetrics> getEndpoints() {
+        return new TreeMap<String, EndpointMetrics>(endpoints);
+    }
+
+    public static class EndpointMetrics {
+
+        private final LatencyHistogram totalTime = new LatencyHistogram();
+
+        private final LatencyHistogram precalculationTime = new LatencyHistogram();
+
+        private final LatencyHistogram pathCalculationTime = new LatencyHistogram();
+
+        private final LatencyHistogram renderingTime = new LatencyHistogram();
+
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private final LatencyHistogram failureTime = new LatencyHistogram();
+
+        private final AtomicLong statesCreated = new AtomicLong();
+
+        private final AtomicLong statesVisited = new AtomicLong();
+
+        private final AtomicLong maxQueuePeakSize = new AtomicLong();
+
+        /* Summed in microseconds */
+        private final AtomicLong heuristicTime = new AtomicLong();
+
+        private final AtomicLong linkingTime = new AtomicLong();
+
+        private final AtomicLong snapshotResolveTime = new AtomicLong();
+
+        void record(DebugOutput debugOutput) {
+            totalTime.record(debugOutput.totalTime);
+            precalculationTime.record(debugOutput.precalculationTime);
+            pathCalculationTime.record(debugOutput.pathCalculationTime);
+            renderingTime.record(debugOutput.renderingTime);
+            if (debugOutput.timedOut)
+                timeouts.incrementAndGet();
+            statesCreated.addAndGet(debugOutput.statesCreated);
+            statesVisited.addAndGet(debugOutput.statesVisited);
+            long peak = maxQueuePeakSize.get();
+            while (debugOutput.queuePeakSize > peak
+                    && !maxQueuePeakSize.compareAndSet(peak, debugOutput.queuePeakSize)) {
+                peak = maxQueuePeakSize.get();
+            }
+            heuristicTime.addAndGet((long) (debugOutput.heuristicTime * 1000));
+            linkingTime.addAndGet((long) (debugOutput.linkingTime * 1000));
+            snapshotResolveTime.addAndGet((long) (debugOutput.snapshotResolveTime * 1000));
+        }
+
+        void recordFailure(DebugOutput debugOutput) {
+            failureTime.record(debugOutput.elapsedTime());
+            if (debugOutput.timedOut)
+                timeouts.incrementAndGet();
+        }
+
+        /** @return the number of successful requests, which the histograms and means are computed over. */
+        public long getRequests() {
+            return totalTime.getCount();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getFailures() {
+            return failureTime.getCount();
+        }
+
+        /** @return the time failed requests ran until their error. */
+        public LatencyHistogram getFailureTime() {
+            return failureTime;
+        }
+
+        public LatencyHistogram getTotalTime() {
+            return totalTime;
+        }
+
+        public LatencyHistogram getPrecalculationTime() {
+            return precalculationTime;
+        }
+
+        public LatencyHistogram getPathCalculationTime() {
+            return pathCalculationTime;
+        }
+
+        public LatencyHistogram getRenderingTime() {
+            return renderingTime;
+        }
+
+        public double getMeanStatesCreated() {
+            return mean(statesCreated.get());
+        }
+
+        public double getMeanStatesVisited() {
+            return mean(statesVisited.get());
+        }
+
+        public long getMaxQueuePeakSize() {
+            return maxQueuePeakSize.get();
+        }
+
+        /** @return the mean time per request in the goal direction heuristic, in milliseconds. */
+        public double getMeanHeuristicTime() {
+            return mean(heuristicTime.get()) / 1000;
+        }
+
+        public double getMeanLinkingTime() {
+            return mean(linkingTime.get()) / 1000;
+        }
+
+        public double getMeanSnapshotResolveTime() {
+            return mean(snapshotResolveTime.get()) / 1000;
+        }
+
+        private double mean(long sum) {
+            long n = getRequests();
+            return n == 0 ? 0 : sum / (double) n;
+        }
+    }
+}
@@ -17,6 +17,8 @@ import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 
+import gnu.trove.list.array.TDoubleArrayList;
+
 import org.opentripplanner.util.model.EncodedPolylineBean;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -84,9 +86,10 @@ public class PolylineEncoder {
             plat = late5;
             plng = lnge5;
 
-            encodedPoints.append(encodeSignedNumber(dlat)).append(encodeSignedNumber(dlng));
+            appendSignedNumber(dlat, encodedPoints);
+            appendSignedNumber(dlng, encodedPoints);
             if (level >= 0)
-                encodedLevels.append(encodeNumber(level));
+                appendNumber(level, encodedLevels);
             count++;
         }
 
@@ -130,11 +133,17 @@ public class PolylineEncoder {
     }
 
     public static String encodeSignedNumber(int num) {
+        StringBuilder sb = new StringBuilder();
+        appendSignedNumber(num, sb);
+        return sb.toString();
+    }
+
+    public static void appendSignedNumber(int num, StringBuilder sb) {
         int sgn_num = num << 1;
         if (num < 0) {
             sgn_num = ~(sgn_num);
         }
-        return (encodeNumber(sgn_num));
+        appendNumber(sgn_num, sb);
     }
 
     public static int decodeSignedNumber(String value) {
@@ -153,19 +162,21 @@ public class PolylineEncoder {
     }
 
     public static String encodeNumber(int num) {
+        StringBuilder sb = new StringBuilder();
+        appendNumber(num, sb);
+        return sb.toString();
+    }
 
-        StringBuffer encodeString = new StringBuffer();
+    public static void appendNumber(int num, StringBuilder sb) {
 
         while (num >= 0x20) {
             int nextValue = (0x20 | (num & 0x1f)) + 63;
-            encodeString.append((char) (nextValue));
+            sb.append((char) (nextValue));
             num >>= 5;
         }
 
         num += 63;
-        encodeString.append((char) (num));
-
-        return encodeString.toString();
+        sb.append((char) (num));
     }
 
     public static int decodeNumber(String value) {
@@ -191,6 +202,111 @@ public class PolylineEncoder {
         return new int[] { num, index };
     }
 
+    /**
+     * Encodes a polyline one point at a time into a buffer, which is reused for the next polyline after each call to
+     * build(). This avoids the coordinate lists and intermediate strings of createEncodings when a polyline is
+     * assembled from several pieces, such as the edges of a leg. Pieces may also be polylines encoded in advance,
+     * which are copied rather than decoded and encoded again.
+     */
+    public static class Builder {
+
+        private final StringBuilder points = new StringBuilder();
+
+        private int plat = 0;
+
+        private int plng = 0;
+
+        private int count = 0;
+
+        /** The position of the next number to decode in nextSignedNumber. */
+        private int cursor;
+
+        public void add(double lon, double lat) {
+            int late5 = floor1e5(lat);
+            int lnge5 = floor1e5(lon);
+            appendSignedNumber(late5 - plat, points);
+            appendSignedNumber(lnge5 - plng, points);
+            plat = late5;
+            plng = lnge5;
+            count++;
+        }
+
+        /** Add the coordinates from the given position onwards. */
+        public void add(Coordinate[] coordinates, int from) {
+            for (int i = from; i < coordinates.length; i++) {
+                add(coordinates[i].x, coordinates[i].y);
+            }
+        }
+
+        /** Add the x, y pairs in the buffer from the given point onwards. */
+        public void add(TDoubleArrayList coordinates, int from) {
+            for (int i = from * 2; i < coordinates.size(); i += 2) {
+                add(coordinates.get(i), coordinates.get(i + 1));
+            }
+        }
+
+        /**
+         * Add the points of an encoded polyline without levels. Only the first point is encoded again, relative to
+         * the last point added, and the rest of the polyline is copied.
+         * 
+         * @param skipFirst Whether to leave out the first point of the polyline, when it repeats the last one added
+         */
+        public void add(EncodedPolylineBean polyline, boolean skipFirst) {
+            String encoded = polyline.getPoints();
+            cursor = 0;
+            if (encoded.length() == 0)
+                return;
+            // The first point of a polyline is relative to zero
+            int lat = nextSignedNumber(encoded);
+            int lng = nextSignedNumber(encoded);
+            if (skipFirst) {
+                if (cursor == encoded.length())
+                    return;
+                lat += nextSignedNumber(encoded);
+                lng += nextSignedNumber(encoded);
+            }
+            appendSignedNumber(lat - plat, points);
+            appendSignedNumber(lng - plng, points);
+            count++;
+            int rest = cursor;
+            while (cursor < encoded.length()) {
+                lat += nextSignedNumber(encoded);
+                lng += nextSignedNumber(encoded);
+                count++;
+            }
+            points.append(encoded, rest, encoded.length());
+            plat = lat;
+            plng = lng;
+        }
+
+        private int nextSignedNumber(String value) {
+            int num = 0;
+            int v = 0;
+            int shift = 0;
+            do {
+                v = value.charAt(cursor++) - 63;
+                num |= (v & 0x1f) << shift;
+                shift += 5;
+            } while (v >= 0x20);
+            return (num & 0x01) > 0 ? ~num >> 1 : num >> 1;
+        }
+
+        /** @return the number of points added since the last call to build(). */
+        public int size() {
+            return count;
+        }
+
+        /** @return the polyline of the points added so far, and start a new one. */
+        public EncodedPolylineBean build() {
+            EncodedPolylineBean polyline = new EncodedPolylineBean(points.toString(), null, count);
+            points.setLength(0);
+            plat = 0;
+            plng = 0;
+            count = 0;
+            return polyline;
+        }
+    }
+
     private static class PointAdapterList extends AbstractList<Coordinate> {
 
         private double[] _lat;
@@ -168,7 +168,7 @@ public class VisibilityPolygon extends VLPolygon {
             for (int j = 0; j < polygon.n(); j++) {
                 ppoint1 = new PolarPoint(observer, polygon.get(j));
                 ppoint2 = new PolarPoint(observer, polygon.get(j + 1));
-                log.debug("contemplating " +  ppoint1 + " and " +  ppoint1);
+                log.debug("contemplating {} and {}", ppoint1, ppoint1);
 
                 // If the observer is in the relative interior of the edge.
                 if (observer.in_relative_interior_of(new LineSegment(ppoint1, ppoint2), epsilon)) {
@@ -317,7 +317,7 @@ public class VisibilityPolygon extends VLPolygon {
         // Collections.sort is a stable sort.
         Collections.sort(q1);
         for (PolarPointWithEdgeInfo q : q1) {
-            log.debug("q: " + q);
+            log.debug("q: {}", q);
         }
         //
         // -------PREPARE FOR MAIN LOOP-------
@@ -356,7 +356,7 @@ public class VisibilityPolygon extends VLPolygon {
         }
 
         vertices.add(new VLPoint(current_vertex));
-        log.debug("adding: " + current_vertex + "\n--");
+        log.debug("adding: {}\n--", current_vertex);
 
         // -------BEGIN MAIN LOOP-------//
         //
@@ -367,7 +367,7 @@ public class VisibilityPolygon extends VLPolygon {
 
             // Pop current_vertex from q1.
             current_vertex.set(q1.remove(0));
-            log.debug("cv: " + current_vertex);
+            log.debug("cv: {}", current_vertex);
 
             // ---Handle Event Point---
 
@@ -384,13 +384,13 @@ public class VisibilityPolygon extends VLPolygon {
 
                 // Push current_vertex onto visibility polygon
                 vertices.add(new VLPoint(current_vertex));
-                log.debug("adding: " + current_vertex);
+                log.debug("adding: {}", current_vertex);
 
                 chop_spikes_at_back(observer, epsilon);
 
                 while (!q2.isEmpty()) {
                     e = q2.peek();
-                    log.debug("q2: " + e);
+                    log.debug("q2: {}", e);
                     // If the current_vertex bearing has not passed, in the
                     // lex. order sense, the bearing of the second point of the
                     // edge at the front of q2.
@@ -418,7 +418,7 @@ public class VisibilityPolygon extends VLPolygon {
 
                         // Push k onto the visibility polygon.
                         vertices.add(new VLPoint(k));
-                        log.debug("adding k1: " + k);
+                        log.debug("adding k1: {}", k);
                         chop_spikes_at_back(observer, epsilon);
                         active_edge = e;
                         break;
@@ -480,13 +480,13 @@ public class VisibilityPolygon extends VLPolygon {
 
                         // Push k-point onto the visibility polygon.
                         vertices.add(new VLPoint(k));
-                        log.debug("adding k2: " + k);
+                        log.debug("adding k2: {}", k);
                         chop_spikes_at_back(observer, epsilon);
                     }
 
                     // Push current_vertex onto the visibility polygon.
                     vertices.add(new VLPoint(current_vertex));
-                    log.debug("adding: " + current_vertex);
+                    log.debug("adding: {}", current_vertex);
                     chop_spikes_at_back(observer, epsilon);
                     // Set active_edge to edge of current_vertex.
                     active_edge = e;
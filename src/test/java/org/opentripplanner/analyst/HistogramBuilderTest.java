@@ -0,0 +1,54 @@
+package org.opentripplanner.analyst;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HistogramBuilderTest extends TestCase {
+
+    /** Streaming the times into the builder must give the same histograms as binning a materialized array. */
+    public void testMatchesHistogram() {
+        int[] times = { 0, 59, 60, 61, 300, -1, Integer.MAX_VALUE, 1234, 300, 5999 };
+        int[] jobs = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        int[] workers = { 10, 20, 30, 40, 50, 60, 70, 80, 90, 100 };
+        PointSet targets = new PointSet(times.length);
+        targets.properties.put("jobs", jobs);
+        targets.properties.put("workers", workers);
+
+        HistogramBuilder builder = HistogramBuilder.forCurrentThread(targets);
+        for (int i = 0; i < times.length; i++) {
+            builder.add(i, times[i]);
+        }
+        Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+        builder.buildHistograms(histograms);
+
+        for (String property : targets.properties.keySet()) {
+            Histogram expected = new Histogram(times, targets.properties.get(property));
+            Histogram actual = histograms.get(property);
+            assertTrue(Arrays.equals(expected.counts, actual.counts));
+            assertTrue(Arrays.equals(expected.sums, actual.sums));
+        }
+    }
+
+    /** Reusing the thread's builder must not carry bins over from the previous result. */
+    public void testReset() {
+        PointSet targets = new PointSet(2);
+        targets.properties.put("jobs", new int[] { 5, 7 });
+
+        HistogramBuilder builder = HistogramBuilder.forCurrentThread(targets);
+        builder.add(0, 600);
+        builder.add(1, 900);
+
+        builder = HistogramBuilder.forCurrentThread(targets);
+        builder.add(0, 100);
+        builder.add(1, 200);
+        Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+        builder.buildHistograms(histograms);
+        Histogram jobs = histograms.get("jobs");
+        assertTrue(Arrays.equals(new int[] { 0, 1, 0 }, jobs.counts));
+        assertTrue(Arrays.equals(new int[] { 0, 5, 0 }, jobs.sums));
+    }
+
+}
@@ -0,0 +1,258 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.batch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentripplanner.analyst.batch.aggregator.ThresholdSumAggregator;
+import org.opentripplanner.analyst.core.GeometryIndex;
+import org.opentripplanner.analyst.request.SampleFactory;
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.opentripplanner.routing.impl.MemoryGraphSource;
+import org.opentripplanner.routing.services.GraphService;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+public class BatchProcessorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static GraphService graphService;
+
+    private static SampleFactory sampleFactory;
+
+    private static List<Vertex> locations;
+
+    @BeforeClass
+    public static void buildGraph() {
+        Graph graph = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(OpenStreetMapModule.class.getResource("map.osm.gz").getFile()));
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.index(new DefaultStreetVertexIndexFactory());
+        graphService = new GraphService();
+        graphService.registerGraph("test", new MemoryGraphSource("test", graph));
+        graphService.setDefaultRouterId("test");
+        sampleFactory = new SampleFactory(new GeometryIndex(graph));
+        locations = new ArrayList<Vertex>();
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof IntersectionVertex && v.getDegreeOut() > 0)
+                locations.add(v);
+        }
+    }
+
+    /** Each process loads its own copy of the population. */
+    private static Population population() {
+        BasicPopulation population = new BasicPopulation();
+        for (int i = 0; i < 10; i++) {
+            Vertex v = locations.get(i * locations.size() / 10);
+            population.addIndividual(new Individual(Integer.toString(i), v.getLon(), v.getLat(), 1));
+        }
+        return population;
+    }
+
+    private static BatchProcessor processor(String outputPath) {
+        BatchProcessor processor = new BatchProcessor();
+        processor.setGraphService(graphService);
+        processor.setSampleFactory(sampleFactory);
+        processor.setOrigins(population());
+        processor.setDestinations(population());
+        processor.setPrototypeRoutingRequest(new RoutingRequest("WALK"));
+        processor.setAggregator(new ThresholdSumAggregator());
+        processor.setNThreads(2);
+        processor.setChunkSize(3);
+        processor.setOutputPath(outputPath);
+        return processor;
+    }
+
+    private static Thread start(final BatchProcessor processor) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                processor.run();
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    /** Run a worker in its own process, as a separate machine would: args are the queue directory and output path. */
+    public static void main(String[] args) {
+        buildGraph();
+        BatchProcessor worker = processor(args[1]);
+        worker.setShardRole("worker");
+        worker.setShardDirectory(args[0]);
+        worker.run();
+    }
+
+    private static Process startWorkerProcess(File queue, File output) throws Exception {
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                BatchProcessorTest.class.getName(), queue.getPath(), output.getPath());
+        builder.inheritIO();
+        return builder.start();
+    }
+
+    /**
+     * A coordinator and two worker processes sharing a queue directory should produce the same
+     * output as a local run, even when the directory still holds the files of a previous finished
+     * run.
+     */
+    @Test
+    public void testShardedRun() throws Exception {
+        File localOutput = new File(temporaryFolder.getRoot(), "local.csv");
+        processor(localOutput.getPath()).run();
+
+        File queue = temporaryFolder.newFolder("queue");
+        BatchShardQueue previous = new BatchShardQueue(queue);
+        previous.create(4, "AGGREGATE 10 10 3");
+        previous.finish();
+
+        File shardedOutput = new File(temporaryFolder.getRoot(), "sharded.csv");
+        File workerOutput = new File(temporaryFolder.getRoot(), "worker.csv");
+        List<Process> workers = new ArrayList<Process>();
+        try {
+            for (int w = 0; w < 2; w++)
+                workers.add(startWorkerProcess(queue, workerOutput));
+            BatchProcessor coordinator = processor(shardedOutput.getPath());
+            coordinator.setShardRole("coordinator");
+            coordinator.setShardDirectory(queue.getPath());
+            Thread thread = start(coordinator);
+            thread.join(300 * 1000);
+            assertFalse("batch run did not finish", thread.isAlive());
+            for (Process worker : workers)
+                assertEquals(0, worker.waitFor());
+        } finally {
+            for (Process worker : workers)
+                worker.destroy();
+        }
+
+        List<String> expected = Files.readAllLines(localOutput.toPath(), StandardCharsets.UTF_8);
+        List<String> actual = Files.readAllLines(shardedOutput.toPath(), StandardCharsets.UTF_8);
+        assertEquals(11, expected.size());
+        assertEquals(expected, actual);
+        // Some origins reach destinations other than themselves, so the comparison is not trivial
+        int reached = 0;
+        for (String line : expected.subList(1, expected.size())) {
+            if (Double.parseDouble(line.substring(line.lastIndexOf(',') + 1).replace("\"", "")) > 1)
+                reached++;
+        }
+        assertTrue(reached > 0);
+        // Workers do not write any output themselves
+        assertFalse(workerOutput.exists());
+    }
+
+    /** Counts the origins aggregated, and can hold the worker at one of them until it is interrupted. */
+    private static class CountingAggregator extends ThresholdSumAggregator {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        private final int blockAt;
+
+        CountingAggregator(int blockAt) {
+            this.blockAt = blockAt;
+        }
+
+        @Override
+        public double computeAggregate(ResultSet rs) {
+            if (count.incrementAndGet() == blockAt) {
+                blocked.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.computeAggregate(rs);
+        }
+    }
+
+    private static BatchProcessor checkpointedProcessor(String outputPath, CountingAggregator aggregator) {
+        BatchProcessor processor = processor(outputPath);
+        processor.setAggregator(aggregator);
+        processor.setNThreads(1);
+        processor.setCheckpointIntervalMinutes(0);
+        return processor;
+    }
+
+    /**
+     * A run interrupted after some chunks resumes from its progress journal, computes only the
+     * remaining origins and produces the same output as an uninterrupted run. A run with other
+     * search parameters does not reuse the journal.
+     */
+    @Test
+    public void testCheckpointAndResume() throws Exception {
+        File expectedOutput = new File(temporaryFolder.getRoot(), "expected.csv");
+        processor(expectedOutput.getPath()).run();
+
+        File output = new File(temporaryFolder.getRoot(), "resumed.csv");
+        File journalFile = new File(output.getPath() + ".journal");
+        // Hold the run at the first origin of the third chunk of 3
+        CountingAggregator interrupted = new CountingAggregator(7);
+        Thread thread = start(checkpointedProcessor(output.getPath(), interrupted));
+        assertTrue(interrupted.blocked.await(60, TimeUnit.SECONDS));
+        // Wait for a checkpoint written after the first two chunks were complete
+        journalFile.delete();
+        for (int i = 0; i < 600 && ! journalFile.exists(); i++)
+            Thread.sleep(100);
+        assertTrue(journalFile.exists());
+        thread.interrupt();
+        thread.join(60 * 1000);
+        assertFalse(thread.isAlive());
+        assertTrue(journalFile.exists());
+        File savedJournal = temporaryFolder.newFile("saved.journal");
+        Files.copy(journalFile.toPath(), savedJournal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // Another departure time starts from scratch
+        CountingAggregator otherTime = new CountingAggregator(-1);
+        BatchProcessor processor = checkpointedProcessor(output.getPath(), otherTime);
+        processor.setTime("09:00 AM");
+        processor.run();
+        assertEquals(10, otherTime.count.get());
+
+        Files.copy(savedJournal.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        CountingAggregator resumed = new CountingAggregator(-1);
+        checkpointedProcessor(output.getPath(), resumed).run();
+        assertEquals(4, resumed.count.get());
+        assertEquals(Files.readAllLines(expectedOutput.toPath(), StandardCharsets.UTF_8),
+                Files.readAllLines(output.toPath(), StandardCharsets.UTF_8));
+        assertFalse(journalFile.exists());
+    }
+}
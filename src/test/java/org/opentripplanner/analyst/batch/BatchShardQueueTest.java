@@ -0,0 +1,123 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.batch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchShardQueueTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /** Two workers sharing a queue should each get distinct chunks, in order. */
+    @Test
+    public void testClaimAndMerge() throws Exception {
+        File dir = temporaryFolder.newFolder("queue");
+        BatchShardQueue coordinator = new BatchShardQueue(dir);
+        coordinator.create(2, "ACCUMULATE 10 2 5");
+
+        BatchShardQueue worker1 = new BatchShardQueue(dir);
+        BatchShardQueue worker2 = new BatchShardQueue(dir);
+        worker1.open("ACCUMULATE 10 2 5");
+        worker2.open("ACCUMULATE 10 2 5");
+        assertEquals(0, worker1.claim());
+        assertEquals(1, worker2.claim());
+        assertEquals(-1, worker1.claim());
+
+        assertNull(coordinator.take(0));
+        worker2.complete(1, new double[] {3, 4});
+        assertNull(coordinator.take(0));
+        worker1.complete(0, new double[] {1, 2});
+        assertArrayEquals(new double[] {1, 2}, coordinator.take(0), 0);
+        assertArrayEquals(new double[] {3, 4}, coordinator.take(1), 0);
+        assertNull(coordinator.take(1));
+
+        assertFalse(worker1.isFinished());
+        coordinator.finish();
+        assertTrue(worker1.isFinished());
+
+        // A new run must not look finished, nor accept workers, before its queue is created
+        coordinator.reset();
+        assertFalse(worker1.isFinished());
+        assertFalse(new File(dir, "manifest").exists());
+        assertEquals(-1, worker1.claim());
+    }
+
+    /** Chunks whose worker stopped making progress should be given to another worker. */
+    @Test
+    public void testRequeueStale() throws Exception {
+        File dir = temporaryFolder.newFolder("queue");
+        BatchShardQueue coordinator = new BatchShardQueue(dir);
+        coordinator.create(1, "BASIC 3 3 3");
+        BatchShardQueue worker = new BatchShardQueue(dir);
+        worker.open("BASIC 3 3 3");
+        assertEquals(0, worker.claim());
+        coordinator.requeueStale(60 * 1000);
+        assertEquals(-1, worker.claim());
+        age(new File(dir, "claimed"));
+        coordinator.requeueStale(60 * 1000);
+        assertEquals(0, worker.claim());
+        worker.complete(0, null);
+        assertEquals(0, coordinator.take(0).length);
+    }
+
+    /** A worker whose chunk was given to another one must leave the new claim alone. */
+    @Test
+    public void testCompleteRequeuedChunk() throws Exception {
+        File dir = temporaryFolder.newFolder("queue");
+        File claimedDir = new File(dir, "claimed");
+        BatchShardQueue coordinator = new BatchShardQueue(dir);
+        coordinator.create(1, "BASIC 3 3 3");
+        BatchShardQueue slowWorker = new BatchShardQueue(dir);
+        BatchShardQueue newWorker = new BatchShardQueue(dir);
+        slowWorker.open("BASIC 3 3 3");
+        newWorker.open("BASIC 3 3 3");
+        assertEquals(0, slowWorker.claim());
+        age(claimedDir);
+        coordinator.requeueStale(60 * 1000);
+        assertEquals(0, newWorker.claim());
+        File newClaim = claimedDir.listFiles()[0];
+
+        slowWorker.heartbeat(0);
+        slowWorker.complete(0, new double[] {1});
+        assertTrue(newClaim.exists());
+        assertTrue(newClaim.lastModified() < System.currentTimeMillis() - 60 * 1000);
+        newWorker.heartbeat(0);
+        assertTrue(newClaim.lastModified() > System.currentTimeMillis() - 60 * 1000);
+        assertArrayEquals(new double[] {1}, coordinator.take(0), 0);
+
+        newWorker.complete(0, new double[] {1});
+        assertEquals(0, claimedDir.list().length);
+    }
+
+    /** Make all claims in the given directory look abandoned. */
+    private static void age(File claimedDir) {
+        for (File claim : claimedDir.listFiles())
+            claim.setLastModified(System.currentTimeMillis() - 120 * 1000);
+    }
+
+    /** A worker configured for a different run must not take part. */
+    @Test(expected = IllegalStateException.class)
+    public void testManifestMismatch() throws Exception {
+        File dir = temporaryFolder.newFolder("queue");
+        new BatchShardQueue(dir).create(1, "BASIC 3 3 3");
+        new BatchShardQueue(dir).open("BASIC 4 3 3");
+    }
+
+}
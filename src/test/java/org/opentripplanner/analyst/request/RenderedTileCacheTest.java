@@ -0,0 +1,134 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opentripplanner.api.parameter.Layer;
+import org.opentripplanner.api.parameter.MIMEImageFormat;
+import org.opentripplanner.api.parameter.Style;
+
+public class RenderedTileCacheTest extends TestCase {
+
+    private final TileRequest tile = new TileRequest(
+            new Envelope2D(DefaultGeographicCRS.WGS84, -122.7, 45.5, 0.01, 0.01), 256, 256);
+
+    private final RenderRequest renderRequest = new RenderRequest(new MIMEImageFormat("image/png"),
+            Layer.TRAVELTIME, Style.COLOR30, true, false);
+
+    /** Renders a distinct image each time it is called, and counts the calls. */
+    private static class CountingRenderer implements Callable<byte[]> {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public byte[] call() throws Exception {
+            return new byte[] { (byte) calls.incrementAndGet() };
+        }
+    }
+
+    /** Concurrent requests for a tile that is not cached yet wait for a single rendering. */
+    public void testConcurrentGetsRenderOnce() throws Exception {
+        final RenderedTileCache cache = new RenderedTileCache(1024 * 1024);
+        final RenderedTileCache.Key key = new RenderedTileCache.Key(tile, 1, -1, renderRequest);
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        // Holds the rendering until all the other requests are waiting for it
+        final Callable<byte[]> slowRenderer = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                calls.incrementAndGet();
+                rendering.countDown();
+                Thread.sleep(500);
+                return new byte[] { 42 };
+            }
+        };
+        int nThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            results.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return cache.get(key, slowRenderer);
+                }
+            }));
+            assertTrue(rendering.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < nThreads; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return cache.get(new RenderedTileCache.Key(tile, 1, -1, renderRequest), slowRenderer);
+                    }
+                }));
+            }
+            byte[] first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<byte[]> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Tiles of other surfaces or rendered in another way are cached separately. */
+    public void testKeysDoNotCollide() throws Exception {
+        RenderedTileCache cache = new RenderedTileCache(1024 * 1024);
+        CountingRenderer renderer = new CountingRenderer();
+        List<RenderedTileCache.Key> keys = Arrays.asList(
+                new RenderedTileCache.Key(tile, 1, -1, renderRequest),
+                new RenderedTileCache.Key(tile, 2, -1, renderRequest),
+                new RenderedTileCache.Key(tile, 1, 2, renderRequest),
+                new RenderedTileCache.Key(tile, 2, 1, renderRequest),
+                new RenderedTileCache.Key(tile, 1, -1, new RenderRequest(new MIMEImageFormat("image/png"),
+                        Layer.TRAVELTIME, Style.GRAY, true, false)),
+                new RenderedTileCache.Key(tile, 1, -1, new RenderRequest(new MIMEImageFormat("image/png"),
+                        Layer.HAGERSTRAND, Style.COLOR30, true, false)),
+                new RenderedTileCache.Key(tile, 1, -1, new RenderRequest(new MIMEImageFormat("image/gif"),
+                        Layer.TRAVELTIME, Style.COLOR30, true, false)),
+                new RenderedTileCache.Key(tile, 1, -1, new RenderRequest(new MIMEImageFormat("image/png"),
+                        Layer.TRAVELTIME, Style.COLOR30, false, false)),
+                new RenderedTileCache.Key(new TileRequest(
+                        new Envelope2D(DefaultGeographicCRS.WGS84, -122.69, 45.5, 0.01, 0.01), 256, 256),
+                        1, -1, renderRequest));
+        List<byte[]> images = new ArrayList<byte[]>();
+        for (RenderedTileCache.Key key : keys) {
+            images.add(cache.get(key, renderer));
+        }
+        assertEquals(keys.size(), renderer.calls.get());
+        // Equal keys made separately find the tiles rendered before
+        for (int i = 0; i < keys.size(); i++) {
+            RenderedTileCache.Key key = keys.get(i);
+            RenderedTileCache.Key same = new RenderedTileCache.Key(key.tile, key.surfaceA, key.surfaceB,
+                    new RenderRequest(new MIMEImageFormat(key.format), Layer.valueOf(key.layer),
+                            Style.valueOf(key.style), key.transparent, false));
+            assertSame(images.get(i), cache.get(same, renderer));
+        }
+        assertEquals(keys.size(), renderer.calls.get());
+    }
+}
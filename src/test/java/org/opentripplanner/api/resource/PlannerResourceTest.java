@@ -0,0 +1,162 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.api.model.JSONObjectMapperProvider;
+import org.opentripplanner.api.model.error.PlannerError;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.error.TrivialPathException;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/** The streamed plan must be the same JSON as the plan of the regular planner, and stay valid when it fails. */
+public class PlannerResourceTest extends TestCase {
+
+    private final ObjectMapper mapper = new JSONObjectMapperProvider().getContext(Response.class);
+
+    private final Map<String, String> requestParameters = new HashMap<String, String>();
+
+    private static Graph graph;
+
+    private RoutingRequest request;
+
+    private GraphPath path;
+
+    /** A walk across an OSM extract, with plenty of walk steps. */
+    @Override
+    protected void setUp() {
+        if (graph == null) {
+            graph = new Graph();
+            OpenStreetMapModule loader = new OpenStreetMapModule();
+            loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+            FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+            provider.setPath(new File(OpenStreetMapModule.class.getResource("map.osm.gz").getFile()));
+            loader.setProvider(provider);
+            loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+            graph.index(new DefaultStreetVertexIndexFactory());
+        }
+        // Walk to the farthest reachable intersection
+        Vertex start = null;
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof IntersectionVertex && v.getDegreeOut() > 0) {
+                start = v;
+                break;
+            }
+        }
+        RoutingRequest batch = new RoutingRequest("WALK");
+        batch.batch = true;
+        batch.setRoutingContext(graph, start, null);
+        ShortestPathTree spt = new AStar().getShortestPathTree(batch);
+        Vertex end = null;
+        double farthest = 0;
+        for (Vertex v : graph.getVertices()) {
+            State s = spt.getState(v);
+            if (v instanceof IntersectionVertex && s != null && s.getWeight() > farthest) {
+                end = v;
+                farthest = s.getWeight();
+            }
+        }
+        batch.cleanup();
+
+        request = new RoutingRequest("WALK");
+        request.setRoutingContext(graph, start, end);
+        request.from = new GenericLocation("Start", start.getLat() + "," + start.getLon());
+        request.to = new GenericLocation("End", end.getLat() + "," + end.getLon());
+        path = new AStar().getShortestPathTree(request).getPath(end, true);
+        assertNotNull(path);
+        requestParameters.put("fromPlace", request.from.toString());
+    }
+
+    @Override
+    protected void tearDown() {
+        request.cleanup();
+    }
+
+    /** @return the JSON tree of an object serialized by the web service. */
+    private JsonNode serialize(Object object) throws IOException {
+        return mapper.readTree(mapper.writeValueAsString(object));
+    }
+
+    /** @return the JSON tree of the streamed response, which must be a complete JSON document. */
+    private JsonNode stream(List<GraphPath> paths, boolean converted) throws IOException {
+        StringWriter output = new StringWriter();
+        JsonGenerator generator = mapper.getFactory().createGenerator(output);
+        assertEquals(converted, PlannerResource.writeResponse(generator, requestParameters, paths, request));
+        generator.close();
+        return mapper.readTree(output.toString());
+    }
+
+    public void testSameAsPlan() throws IOException {
+        List<GraphPath> paths = Arrays.asList(path, path);
+        JsonNode plan = serialize(GraphPathToTripPlanConverter.generatePlan(paths, request));
+        assertEquals(2, plan.get("itineraries").size());
+        assertTrue(plan.get("itineraries").get(0).get("legs").get(0).get("steps").size() > 1);
+
+        JsonNode streamed = stream(paths, true);
+        assertEquals(plan, streamed.get("plan"));
+        assertEquals(serialize(requestParameters), streamed.get("requestParameters"));
+        assertNotNull(streamed.get("debugOutput"));
+        assertNull(streamed.get("error"));
+    }
+
+    /** An error while converting an itinerary ends the plan after the itineraries written so far. */
+    public void testErrorMidStream() throws IOException {
+        JsonNode plan = serialize(GraphPathToTripPlanConverter.generatePlan(Arrays.asList(path), request));
+        // A path with a single state has no legs, and cannot be converted
+        GraphPath trivial = new GraphPath(path.states.getFirst(), false);
+        JsonNode streamed = stream(Arrays.asList(path, trivial), false);
+
+        JsonNode streamedPlan = streamed.get("plan");
+        assertEquals(plan.get("date"), streamedPlan.get("date"));
+        assertEquals(plan.get("from"), streamedPlan.get("from"));
+        assertEquals(plan.get("to"), streamedPlan.get("to"));
+        assertEquals(plan.get("itineraries"), streamedPlan.get("itineraries"));
+        assertEquals(serialize(new PlannerError(new TrivialPathException())), streamed.get("error"));
+        assertNotNull(streamed.get("debugOutput"));
+    }
+
+    /** An error before the plan was started leaves no plan. */
+    public void testErrorBeforePlan() throws IOException {
+        request.from = null;
+        JsonNode streamed = stream(Arrays.asList(path), false);
+        assertTrue(streamed.get("plan").isNull());
+        assertNotNull(streamed.get("error"));
+        assertNotNull(streamed.get("requestParameters"));
+        assertNotNull(streamed.get("debugOutput"));
+    }
+}
@@ -0,0 +1,105 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class TestOrderedTaskPipeline extends TestCase {
+
+    /** Results come back in submission order, with a bounded number of tasks in flight. */
+    public void testOrder() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        OrderedTaskPipeline<Integer> pipeline = new OrderedTaskPipeline<Integer>(3, "test-%d");
+        List<Integer> results = new ArrayList<Integer>();
+        int nSubmitted = 0;
+        try {
+            for (int i = 0; i < 100; i++) {
+                if (pipeline.isFull())
+                    results.add(pipeline.next());
+                final int value = i;
+                if (i % 10 == 0) {
+                    pipeline.submitResult(value);
+                } else {
+                    pipeline.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            int n = running.incrementAndGet();
+                            synchronized (maxRunning) {
+                                maxRunning.set(Math.max(n, maxRunning.get()));
+                            }
+                            // Later tasks finish first
+                            Thread.sleep(10 - value % 10);
+                            running.decrementAndGet();
+                            return value;
+                        }
+                    });
+                }
+                nSubmitted++;
+                assertTrue(nSubmitted - results.size() <= 12);
+            }
+            while (!pipeline.isEmpty())
+                results.add(pipeline.next());
+        } finally {
+            pipeline.close();
+        }
+        assertEquals(100, results.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int) results.get(i));
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    /** Exceptions thrown by a task are rethrown to the caller taking its result. */
+    public void testException() {
+        OrderedTaskPipeline<Integer> pipeline = new OrderedTaskPipeline<Integer>(2, "test-%d");
+        try {
+            pipeline.submitResult(1);
+            pipeline.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new IOException("corrupt");
+                }
+            });
+            pipeline.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new IllegalStateException("invalid");
+                }
+            });
+            assertEquals(1, (int) pipeline.next());
+            try {
+                pipeline.next(IOException.class);
+                fail();
+            } catch (IOException e) {
+                assertEquals("corrupt", e.getMessage());
+            }
+            try {
+                pipeline.next();
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("invalid", e.getMessage());
+            }
+            assertTrue(pipeline.isEmpty());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+}
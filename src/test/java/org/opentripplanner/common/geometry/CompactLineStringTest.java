@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import gnu.trove.list.array.TDoubleArrayList;
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -86,6 +87,36 @@ public class CompactLineStringTest extends TestCase {
         assertTrue(lsi.equalsExact(ls2, 0.00000015));
     }
 
+    @Test
+    public final void testAppendCoordinates() {
+        GeometryFactory gf = new GeometryFactory();
+        double x0 = 1.111111111;
+        double y0 = 0.123456789;
+        double x1 = 2.0;
+        double y1 = 0.0;
+        LineString ls = gf.createLineString(new Coordinate[] { new Coordinate(x0, y0),
+                new Coordinate(1.3, 0.1), new Coordinate(1.7, 0.05), new Coordinate(x1, y1) });
+        TDoubleArrayList buffer = new TDoubleArrayList();
+        for (boolean reverse : new boolean[] { false, true }) {
+            for (int[] coords : new int[][] { null, CompactLineString.STRAIGHT_LINE,
+                    CompactLineString.compactLineString(x0, y0, x1, y1, ls, false) }) {
+                // The same coordinates as the uncompacted geometry, after what is already in the buffer
+                buffer.resetQuick();
+                buffer.add(42);
+                double xa = reverse ? x1 : x0, ya = reverse ? y1 : y0;
+                double xb = reverse ? x0 : x1, yb = reverse ? y0 : y1;
+                CompactLineString.appendCoordinates(xa, ya, xb, yb, coords, reverse, buffer);
+                Coordinate[] expected = CompactLineString.uncompactLineString(xa, ya, xb, yb, coords, reverse)
+                        .getCoordinates();
+                assertEquals(1 + expected.length * 2, buffer.size());
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i].x, buffer.get(1 + i * 2));
+                    assertEquals(expected[i].y, buffer.get(2 + i * 2));
+                }
+            }
+        }
+    }
+
     @Test
     public final void testDlugoszVarLenIntPacker() {
 
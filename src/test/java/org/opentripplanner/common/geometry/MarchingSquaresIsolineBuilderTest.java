@@ -0,0 +1,73 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class MarchingSquaresIsolineBuilderTest extends TestCase {
+
+    /** A cone of values: the isolines are circles centered on the origin, with a radius of z0. */
+    private DenseZGrid coneGrid() {
+        DenseZGrid grid = new DenseZGrid(-20, 20, -20, 20, new Coordinate(0, 0), 1.0, 1.0);
+        for (int x = -20; x <= 20; x++) {
+            for (int y = -20; y <= 20; y++) {
+                grid.set(x, y, Math.sqrt(x * x + y * y), 0);
+            }
+        }
+        return grid;
+    }
+
+    public void testCircle() {
+        MarchingSquaresIsolineBuilder builder = new MarchingSquaresIsolineBuilder(coneGrid());
+        Geometry isoline = builder.computeIsoline(10, 1);
+        assertEquals(1, isoline.getNumGeometries());
+        Polygon circle = (Polygon) isoline.getGeometryN(0);
+        assertEquals(0, circle.getNumInteriorRing());
+        assertEquals(Math.PI * 100, circle.getArea(), 5.0);
+        assertTrue(circle.contains(new GeometryFactory().createPoint(new Coordinate(0, 0))));
+    }
+
+    public void testHole() {
+        DenseZGrid grid = coneGrid();
+        // Samples too far from the road network are outside of any isoline
+        for (int x = -3; x <= 3; x++) {
+            for (int y = -3; y <= 3; y++) {
+                grid.set(x, y, 0, 10);
+            }
+        }
+        Geometry isoline = new MarchingSquaresIsolineBuilder(grid).computeIsoline(10, 1);
+        assertEquals(1, isoline.getNumGeometries());
+        Polygon ring = (Polygon) isoline.getGeometryN(0);
+        assertEquals(1, ring.getNumInteriorRing());
+        assertFalse(ring.contains(new GeometryFactory().createPoint(new Coordinate(0, 0))));
+    }
+
+    public void testParallelMatchesSequential() {
+        MarchingSquaresIsolineBuilder builder = new MarchingSquaresIsolineBuilder(coneGrid());
+        double[] cutoffs = { 3, 6, 9, 12, 15, 18 };
+        List<Geometry> isolines = builder.computeIsolines(cutoffs, 1);
+        assertEquals(cutoffs.length, isolines.size());
+        for (int i = 0; i < cutoffs.length; i++) {
+            assertTrue(isolines.get(i).equalsExact(builder.computeIsoline(cutoffs[i], 1)));
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+
+public class GraphBuilderTest extends TestCase {
+
+    /** Counts how many times the street graph was built, and how many times a later module ran. */
+    private int nStreetBuilds, nLaterBuilds;
+
+    private Graph build(File checkpointFile, String streetKey) {
+        final OpenStreetMapModule osmModule = new OpenStreetMapModule();
+        osmModule.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(getClass().getResource("module/osm/plaza_with_hole.osm").getFile()));
+        osmModule.setProvider(provider);
+
+        GraphBuilder graphBuilder = new GraphBuilder();
+        graphBuilder.serializeGraph = false;
+        graphBuilder.setCheckpointFile(checkpointFile);
+        graphBuilder.addGraphBuilder(new GraphBuilderModule() {
+            @Override
+            public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+                nStreetBuilds++;
+                osmModule.buildGraph(graph, extra);
+                extra.put(String.class, "streets");
+            }
+
+            @Override
+            public void checkInputs() {
+            }
+        }, streetKey);
+        graphBuilder.addGraphBuilder(new GraphBuilderModule() {
+            @Override
+            public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+                nLaterBuilds++;
+                assertEquals("streets", extra.get(String.class));
+            }
+
+            @Override
+            public void checkInputs() {
+            }
+        });
+        graphBuilder.run();
+        return graphBuilder.getGraph();
+    }
+
+    private static int countConnectedVertices(Graph graph) {
+        int n = 0;
+        for (Vertex v : graph.getVertices()) {
+            if (v.getDegreeOut() + v.getDegreeIn() > 0)
+                n++;
+        }
+        return n;
+    }
+
+    public void testCheckpoint() throws IOException {
+        File checkpointFile = File.createTempFile("streets", ".obj");
+        File keyFile = new File(checkpointFile.getPath() + ".key");
+        try {
+            assertTrue(checkpointFile.delete());
+            Graph graph = build(checkpointFile, "a");
+            assertTrue(graph.countEdges() > 0);
+            assertTrue(keyFile.isFile());
+            assertEquals(1, nStreetBuilds);
+
+            Graph restored = build(checkpointFile, "a");
+            assertEquals(1, nStreetBuilds);
+            assertEquals(2, nLaterBuilds);
+            // Vertices without edges are not saved
+            assertEquals(countConnectedVertices(graph), restored.countVertices());
+            assertEquals(graph.countEdges(), restored.countEdges());
+            assertEquals(graph.getBuilderAnnotations().size(), restored.getBuilderAnnotations().size());
+            assertTrue(restored.hasStreets);
+
+            // Other inputs, the street graph is built again
+            build(checkpointFile, "b");
+            assertEquals(2, nStreetBuilds);
+            assertEquals(3, nLaterBuilds);
+        } finally {
+            checkpointFile.delete();
+            keyFile.delete();
+        }
+    }
+}
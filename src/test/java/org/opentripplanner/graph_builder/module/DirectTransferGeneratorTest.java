@@ -0,0 +1,204 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.graph_builder.model.GtfsBundle;
+import org.opentripplanner.routing.edgetype.SimpleTransfer;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTransitLink;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.routing.vertextype.TransitStop;
+
+import com.google.common.collect.Iterables;
+
+public class DirectTransferGeneratorTest {
+
+    /** Build the graph of the test agency, with no streets. */
+    private static Graph buildGraph() {
+        Graph graph = new Graph();
+        GtfsModule gtfsModule = new GtfsModule(Arrays.asList(new GtfsBundle(new File(ConstantsForTests.FAKE_GTFS))));
+        gtfsModule.buildGraph(graph, new HashMap<Class<?>, Object>());
+        return graph;
+    }
+
+    /**
+     * Build the graph of the test agency with a few streets: one between stops C and D, and a dead end at stop F of
+     * the given length. Stop F is far from all other stops.
+     */
+    private static Graph buildGraphWithStreets(double deadEndLength) {
+        Graph graph = buildGraph();
+        graph.hasStreets = true;
+        IntersectionVertex c = streetAtStop(graph, "C");
+        IntersectionVertex d = streetAtStop(graph, "D");
+        makeStreet(c, d, 1000);
+        IntersectionVertex f = streetAtStop(graph, "F");
+        makeStreet(f, new IntersectionVertex(graph, "dead end", f.getX(), f.getY() + 0.001), deadEndLength);
+        return graph;
+    }
+
+    /** Make an intersection at the given stop, linked to it both ways. */
+    private static IntersectionVertex streetAtStop(Graph graph, String stopId) {
+        for (TransitStop ts : Iterables.filter(graph.getVertices(), TransitStop.class)) {
+            if (ts.getStop().getId().getId().equals(stopId)) {
+                IntersectionVertex v = new IntersectionVertex(graph, "street at " + stopId, ts.getX(), ts.getY());
+                new StreetTransitLink(v, ts, true);
+                new StreetTransitLink(ts, v, true);
+                return v;
+            }
+        }
+        throw new IllegalArgumentException(stopId);
+    }
+
+    private static void makeStreet(StreetVertex v1, StreetVertex v2, double length) {
+        new StreetEdge(v1, v2, GeometryUtils.makeLineString(v1.getX(), v1.getY(), v2.getX(), v2.getY()), "street",
+                length, StreetTraversalPermission.ALL, false);
+        new StreetEdge(v2, v1, GeometryUtils.makeLineString(v2.getX(), v2.getY(), v1.getX(), v1.getY()), "street",
+                length, StreetTraversalPermission.ALL, true);
+    }
+
+    /** A transfer generator searching long enough to walk the kilometer between stops C and D. */
+    private static DirectTransferGenerator makeTransferGenerator() {
+        DirectTransferGenerator transferGenerator = new DirectTransferGenerator();
+        transferGenerator.maxDuration = 900;
+        return transferGenerator;
+    }
+
+    /** Run the transfer generator on the graph, and return the number of stops it reused from the cache file. */
+    private static int generateTransfers(Graph graph, int threadCount, File cacheFile) {
+        DirectTransferGenerator transferGenerator = makeTransferGenerator();
+        transferGenerator.setThreadCount(threadCount);
+        transferGenerator.setCacheFile(cacheFile);
+        transferGenerator.buildGraph(graph, new HashMap<Class<?>, Object>());
+        return transferGenerator.getReusedCount();
+    }
+
+    private static int countLinkableStops(Graph graph) {
+        int n = 0;
+        for (TransitStop ts : Iterables.filter(graph.getVertices(), TransitStop.class)) {
+            if (ts.isStreetLinkable()) n++;
+        }
+        return n;
+    }
+
+    /** Transfers in the order they are found on the stops, with their distances and geometries. */
+    private static List<String> getTransfers(Graph graph) {
+        List<String> transfers = new ArrayList<String>();
+        for (Vertex v : graph.getVertices()) {
+            for (Edge e : v.getOutgoing()) {
+                if (e instanceof SimpleTransfer) {
+                    transfers.add(v.getLabel() + " " + e.getToVertex().getLabel() + " " + e.getDistance() + " "
+                            + e.getGeometry());
+                }
+            }
+        }
+        return transfers;
+    }
+
+    private static List<String> buildTransfers(int threadCount) {
+        Graph graph = buildGraph();
+        generateTransfers(graph, threadCount, null);
+        return getTransfers(graph);
+    }
+
+    @Test
+    public void testSameTransfersWithThreads() {
+        List<String> transfers = buildTransfers(1);
+        assertTrue(transfers.size() > 0);
+        assertEquals(transfers, buildTransfers(4));
+    }
+
+    @Test
+    public void testSameTransfersFromCache() throws IOException {
+        File cacheFile = File.createTempFile("transfers", ".cache");
+        try {
+            assertTrue(cacheFile.delete());
+            Graph graph = buildGraph();
+            assertEquals(0, generateTransfers(graph, 2, cacheFile));
+            assertTrue(cacheFile.isFile());
+            List<String> transfers = getTransfers(graph);
+
+            // All stops are taken from the cache in the next build
+            graph = buildGraph();
+            assertEquals(countLinkableStops(graph), generateTransfers(graph, 2, cacheFile));
+            assertEquals(transfers, getTransfers(graph));
+            assertEquals(transfers, buildTransfers(1));
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    /** Fingerprints of the linkable stops of a graph with transfers, by stop id. */
+    private static Map<String, Long> getFingerprints(Graph graph, File cacheFile) {
+        double radius = makeTransferGenerator().getReach(true);
+        TransferCache cache = new TransferCache(cacheFile, graph, true, radius);
+        Map<String, Long> fingerprints = new HashMap<String, Long>();
+        for (TransitStop ts : Iterables.filter(graph.getVertices(), TransitStop.class)) {
+            if (ts.isStreetLinkable()) fingerprints.put(ts.getStop().getId().getId(), cache.fingerprint(ts));
+        }
+        return fingerprints;
+    }
+
+    /** A street changed near one stop makes only that stop search again. */
+    @Test
+    public void testStreetChangeNearOneStop() throws IOException {
+        File cacheFile = File.createTempFile("transfers", ".cache");
+        try {
+            assertTrue(cacheFile.delete());
+            Graph graph = buildGraphWithStreets(100);
+            assertEquals(0, generateTransfers(graph, 2, cacheFile));
+            List<String> transfers = getTransfers(graph);
+            assertTrue(transfers.size() > 0);
+            Map<String, Long> fingerprints = getFingerprints(graph, cacheFile);
+
+            graph = buildGraphWithStreets(100);
+            assertEquals(fingerprints.size(), generateTransfers(graph, 2, cacheFile));
+            assertEquals(transfers, getTransfers(graph));
+
+            // A longer dead end at stop F, which is out of reach of all other stops
+            graph = buildGraphWithStreets(150);
+            assertEquals(fingerprints.size() - 1, generateTransfers(graph, 2, cacheFile));
+            assertEquals(transfers, getTransfers(graph));
+            Map<String, Long> changed = getFingerprints(graph, cacheFile);
+            assertEquals(fingerprints.keySet(), changed.keySet());
+            for (String stopId : fingerprints.keySet()) {
+                assertEquals(stopId, stopId.equals("F"), !fingerprints.get(stopId).equals(changed.get(stopId)));
+            }
+
+            // The searches from stop F were made again and saved, so nothing changed for the next build
+            graph = buildGraphWithStreets(150);
+            assertEquals(fingerprints.size(), generateTransfers(graph, 2, cacheFile));
+        } finally {
+            cacheFile.delete();
+        }
+    }
+}
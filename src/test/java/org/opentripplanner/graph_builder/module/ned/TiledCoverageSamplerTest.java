@@ -0,0 +1,184 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.ned;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import javax.media.jai.InterpolationBilinear;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.Interpolator2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.coverage.Coverage;
+
+/**
+ * Compares the tiled sampler with the bilinear Interpolator2D used when elevations are sampled point by point, on a
+ * grid spanning two tiles in each direction.
+ */
+public class TiledCoverageSamplerTest {
+
+    private static final double EPSILON = 1e-4;
+
+    /* 300x270 pixels of 0.001 degrees, so there are tile borders at column and row 256. */
+    private static final int WIDTH = 300, HEIGHT = 270;
+
+    private static final double RES = 0.001, MIN_LON = -123.0, MAX_LAT = 45.27;
+
+    private float[][] matrix;
+
+    private GridCoverage2D grid;
+
+    private GridCoverage2D interpolated;
+
+    @Before
+    public void setUp() {
+        matrix = new float[HEIGHT][WIDTH];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                matrix[row][col] = 100 + col * 0.5f + row * 0.25f + (col * 7 + row * 13) % 11;
+            }
+        }
+        // One pixel without data, and a block of four
+        matrix[10][10] = Float.NaN;
+        for (int row = 20; row <= 21; row++) {
+            Arrays.fill(matrix[row], 20, 22, Float.NaN);
+        }
+        Envelope2D envelope = new Envelope2D(DefaultGeographicCRS.WGS84, MIN_LON, MAX_LAT - HEIGHT * RES, WIDTH * RES,
+                HEIGHT * RES);
+        grid = new GridCoverageFactory().create("test", matrix, envelope);
+        interpolated = Interpolator2D.create(grid, new InterpolationBilinear());
+    }
+
+    /** Longitude of a fractional column, with whole numbers at pixel centers. */
+    private static double lon(double col) {
+        return MIN_LON + (col + 0.5) * RES;
+    }
+
+    /** Latitude of a fractional row, with whole numbers at pixel centers. */
+    private static double lat(double row) {
+        return MAX_LAT - (row + 0.5) * RES;
+    }
+
+    private static double evaluate(Coverage coverage, double lon, double lat) {
+        return coverage.evaluate(new DirectPosition2D(lon, lat), new double[1])[0];
+    }
+
+    private void assertSameAsInterpolator(TiledCoverageSampler sampler, double col, double row) {
+        double lon = lon(col), lat = lat(row);
+        assertEquals("at column " + col + ", row " + row, evaluate(interpolated, lon, lat),
+                sampler.getElevation(lon, lat), EPSILON);
+    }
+
+    @Test
+    public void testInterior() {
+        // Keep only two tiles, so that tiles are evicted and read again
+        TiledCoverageSampler sampler = TiledCoverageSampler.create(grid, 2);
+        assertNotNull(sampler);
+        for (double col = 1; col < WIDTH - 2; col += 7.37) {
+            for (double row = 30; row < HEIGHT - 2; row += 11.13) {
+                assertSameAsInterpolator(sampler, col, row);
+            }
+        }
+        assertSameAsInterpolator(sampler, 5, 5);
+        assertSameAsInterpolator(sampler, 100.5, 200.25);
+    }
+
+    @Test
+    public void testTileBorders() {
+        TiledCoverageSampler sampler = TiledCoverageSampler.create(grid, TiledCoverageSampler.DEFAULT_MAX_TILES);
+        int border = TiledCoverageSampler.TILE_SIZE;
+        for (double f = 0; f <= 1; f += 0.125) {
+            // Between the last pixel of a tile and the first one of the next, horizontally, vertically, and both
+            assertSameAsInterpolator(sampler, border - 1 + f, 100.3);
+            assertSameAsInterpolator(sampler, 150.7, border - 1 + f);
+            assertSameAsInterpolator(sampler, border - 1 + f, border - 1 + f);
+            assertSameAsInterpolator(sampler, border - 1 + f, border - f);
+        }
+    }
+
+    /** Within half a pixel of the edges of the grid, the samples are those of the outermost pixels. */
+    @Test
+    public void testGridEdges() {
+        TiledCoverageSampler sampler = TiledCoverageSampler.create(grid, TiledCoverageSampler.DEFAULT_MAX_TILES);
+        // Left and right edges, on a row of pixel centers
+        assertEquals(matrix[100][0], sampler.getElevation(lon(-0.4), lat(100)), EPSILON);
+        assertEquals(matrix[100][WIDTH - 1], sampler.getElevation(lon(WIDTH - 1 + 0.4), lat(100)), EPSILON);
+        // Top and bottom edges, between two columns
+        double top = (matrix[0][50] + matrix[0][51]) / 2;
+        assertEquals(top, sampler.getElevation(lon(50.5), lat(-0.4)), EPSILON);
+        double bottom = 0.75 * matrix[HEIGHT - 1][50] + 0.25 * matrix[HEIGHT - 1][51];
+        assertEquals(bottom, sampler.getElevation(lon(50.25), lat(HEIGHT - 1 + 0.4)), EPSILON);
+        // Corners
+        assertEquals(matrix[0][0], sampler.getElevation(lon(-0.4), lat(-0.4)), EPSILON);
+        assertEquals(matrix[HEIGHT - 1][WIDTH - 1],
+                sampler.getElevation(lon(WIDTH - 1 + 0.4), lat(HEIGHT - 1 + 0.4)), EPSILON);
+        // The outermost pixel centers
+        assertEquals(matrix[0][0], sampler.getElevation(lon(0), lat(0)), EPSILON);
+        assertEquals(matrix[HEIGHT - 1][WIDTH - 1], sampler.getElevation(lon(WIDTH - 1), lat(HEIGHT - 1)), EPSILON);
+        // Just inside the range the interpolator covers without clamping
+        assertSameAsInterpolator(sampler, 0.5, 0.5);
+        assertSameAsInterpolator(sampler, WIDTH - 1.5, HEIGHT - 1.5);
+        // Outside of the grid
+        assertEquals(0, sampler.getElevation(lon(-1), lat(100)), 0);
+        assertEquals(0, sampler.getElevation(lon(100), lat(HEIGHT)), 0);
+    }
+
+    /** Pixels without data are left out of the interpolation, and a point with none around it has no elevation. */
+    @Test
+    public void testNoData() {
+        TiledCoverageSampler sampler = TiledCoverageSampler.create(grid, TiledCoverageSampler.DEFAULT_MAX_TILES);
+        double expected = (0.1875 * matrix[10][11] + 0.1875 * matrix[11][10] + 0.0625 * matrix[11][11]) / 0.4375;
+        assertEquals(expected, sampler.getElevation(lon(10.25), lat(10.25)), EPSILON);
+        // A pixel center next to a pixel without data only depends on that center
+        assertEquals(matrix[10][11], sampler.getElevation(lon(11), lat(10)), EPSILON);
+        assertSameAsInterpolator(sampler, 12, 10);
+        // Surrounded by pixels without data
+        assertEquals(0, sampler.getElevation(lon(20.5), lat(20.5)), 0);
+    }
+
+    /** With NED regions, the vertical datum covering a point is added to its elevation, as UnifiedGridCoverage does. */
+    @Test
+    public void testDatumShift() {
+        float[][] heights = new float[20][20];
+        for (int row = 0; row < 20; row++) {
+            for (int col = 0; col < 20; col++) {
+                heights[row][col] = -20 + row * 0.15f - col * 0.1f;
+            }
+        }
+        // Covering the western half of the grid only. VerticalDatum cannot interpolate in its last row and column.
+        VerticalDatum datum = new VerticalDatum(MIN_LON, MAX_LAT - HEIGHT * RES, WIDTH * RES / 2, HEIGHT * RES,
+                heights);
+        UnifiedGridCoverage unified = new UnifiedGridCoverage("unified", interpolated, Arrays.asList(datum));
+        TiledCoverageSampler sampler = TiledCoverageSampler.create(unified, TiledCoverageSampler.DEFAULT_MAX_TILES);
+        assertNotNull(sampler);
+        for (double col = 1; col < WIDTH - 2; col += 13.7) {
+            for (double row = 30; row < HEIGHT - 2; row += 17.3) {
+                double lon = lon(col), lat = lat(row);
+                assertEquals(evaluate(unified, lon, lat), sampler.getElevation(lon, lat), EPSILON);
+            }
+        }
+        // Points outside all regions
+        assertNull(unified.evaluate(new DirectPosition2D(lon(-10), lat(10)), new double[1]));
+        assertEquals(0, sampler.getElevation(lon(-10), lat(10)), 0);
+    }
+}
@@ -0,0 +1,62 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.osm;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.openstreetmap.model.OSMNode;
+
+public class OSMNodeStoreTest extends TestCase {
+
+    private OSMNode node(long id, double lat, double lon, String... tags) {
+        OSMNode node = new OSMNode();
+        node.setId(id);
+        node.lat = lat;
+        node.lon = lon;
+        for (int i = 0; i < tags.length; i += 2)
+            node.addTag(tags[i], tags[i + 1]);
+        return node;
+    }
+
+    public void testRoundTrip() {
+        OSMNodeStore store = new OSMNodeStore();
+        for (long id = 1; id <= 5000; id++)
+            store.put(node(id * 1000000007L, 45.1234567, -122.7654321));
+        store.put(node(-3, -33.8688197, 151.2092955, "highway", "traffic_signals"));
+        assertEquals(5001, store.size());
+
+        OSMNode node = store.get(-3);
+        assertEquals(-3, node.getId());
+        assertEquals(-33.8688197, node.lat);
+        assertEquals(151.2092955, node.lon);
+        assertTrue(node.hasTrafficLight());
+        assertEquals(45.1234567, store.get(5000 * 1000000007L).lat);
+        assertNull(store.get(4));
+        assertNull(store.get(5000 * 1000000007L).getTags());
+        assertEquals(node, store.get(-3));
+    }
+
+    public void testSharedTags() {
+        OSMNodeStore store = new OSMNodeStore();
+        store.put(node(1, 0, 0, "highway", "crossing"));
+        store.put(node(2, 0, 0, "highway", "crossing"));
+        store.put(node(3, 0, 0, "highway", "crossing", "crossing", "zebra"));
+        assertSame(store.get(1).getTags(), store.get(2).getTags());
+        assertNotSame(store.get(1).getTags(), store.get(3).getTags());
+        // Nodes are not replaced
+        store.put(node(1, 1, 1));
+        assertEquals(0.0, store.get(1).lat);
+        assertEquals("crossing", store.get(1).getTag("highway"));
+    }
+}
@@ -14,8 +14,11 @@
 package org.opentripplanner.graph_builder.module.osm;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.net.URLDecoder;
 
@@ -99,6 +102,50 @@ public class TestOpenStreetMapGraphBuilder extends TestCase {
                 .getName().contains("Mariana Smoluchowskiego"));
     }
 
+    /**
+     * The ways are split into street segments on a pool of threads: the vertices and edges built must not depend on
+     * the number of threads.
+     */
+    @Test
+    public void testSameGraphWithThreads() throws Exception {
+        for (String osm : new String[] { "map.osm.gz", "NYC_small.osm.gz" }) {
+            List<String> sequential = describeGraph(osm, 1);
+            assertFalse(sequential.isEmpty());
+            for (int threads : new int[] { 2, 4, 8 }) {
+                assertEquals(osm + " with " + threads + " threads", sequential, describeGraph(osm, threads));
+            }
+        }
+    }
+
+    /** @return one sorted line per vertex and per edge of the graph built from the given OSM file. */
+    private List<String> describeGraph(String osm, int threadCount) throws Exception {
+        Graph gg = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        loader.threadCount = threadCount;
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(URLDecoder.decode(getClass().getResource(osm).getFile(), "UTF-8")));
+        loader.setProvider(provider);
+        loader.buildGraph(gg, extra);
+
+        List<String> lines = new ArrayList<String>();
+        for (Vertex v : gg.getVertices()) {
+            lines.add("vertex " + v.getLabel() + " " + v.getClass().getSimpleName() + " " + v.getX() + " "
+                    + v.getY());
+        }
+        for (Edge e : gg.getEdges()) {
+            String line = "edge " + e.getClass().getSimpleName() + " " + e.getFromVertex().getLabel() + " "
+                    + e.getToVertex().getLabel() + " " + e.getName() + " " + e.getDistance() + " " + e.getGeometry();
+            if (e instanceof StreetEdge) {
+                StreetEdge se = (StreetEdge) e;
+                line += " " + se.getPermission() + " " + se.getBicycleSafetyFactor();
+            }
+            lines.add(line);
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
     /**
      * Detailed testing of OSM graph building using a very small chunk of NYC (SOHO-ish).
      * @throws Exception
@@ -0,0 +1,100 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.osm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.edgetype.AreaEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * plaza_with_hole.osm is an octagonal pedestrian square around a square building, with four footways leading to it.
+ */
+public class TestWalkableAreaBuilder extends TestCase {
+
+    private List<AreaEdge> buildAreaEdges(int maxAreaNodes, int threadCount) {
+        Graph graph = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        loader.maxAreaNodes = maxAreaNodes;
+        loader.threadCount = threadCount;
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(getClass().getResource("plaza_with_hole.osm").getFile()));
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+
+        List<AreaEdge> areaEdges = new ArrayList<AreaEdge>();
+        for (Edge edge : graph.getEdges()) {
+            if (edge instanceof AreaEdge)
+                areaEdges.add((AreaEdge) edge);
+        }
+        return areaEdges;
+    }
+
+    /** @return the labels of the endpoints of the given edges, as "from to" strings. */
+    private static Set<String> endpoints(List<AreaEdge> edges) {
+        Set<String> endpoints = new TreeSet<String>();
+        for (AreaEdge edge : edges) {
+            endpoints.add(edge.getFromVertex().getLabel() + " " + edge.getToVertex().getLabel());
+        }
+        return endpoints;
+    }
+
+    /** No visibility edge crosses the building, and several threads build the same edges as one. */
+    public void testNoEdgesThroughHoles() {
+        Geometry building = GeometryUtils.getGeometryFactory().createPolygon(
+                GeometryUtils.getGeometryFactory().createLinearRing(new Coordinate[] {
+                        new Coordinate(-122.6008, 45.4994), new Coordinate(-122.5992, 45.4994),
+                        new Coordinate(-122.5992, 45.5006), new Coordinate(-122.6008, 45.5006),
+                        new Coordinate(-122.6008, 45.4994) }), null);
+        Geometry inside = building.buffer(-0.00001);
+
+        List<AreaEdge> areaEdges = buildAreaEdges(WalkableAreaBuilder.DEFAULT_MAX_AREA_NODES, 4);
+        assertFalse(areaEdges.isEmpty());
+        for (AreaEdge edge : areaEdges) {
+            assertFalse(edge.getGeometry().intersects(inside));
+        }
+        assertEquals(endpoints(areaEdges),
+                endpoints(buildAreaEdges(WalkableAreaBuilder.DEFAULT_MAX_AREA_NODES, 1)));
+    }
+
+    public void testSimplifiedArea() {
+        Set<String> edges = endpoints(buildAreaEdges(WalkableAreaBuilder.DEFAULT_MAX_AREA_NODES, 1));
+        // Only the four entrances are kept, each one sees the next two around the building
+        Set<String> simplifiedEdges = endpoints(buildAreaEdges(6, 1));
+        Set<String> expected = new TreeSet<String>();
+        for (String[] pair : new String[][] { { "1", "3" }, { "3", "5" }, { "5", "7" }, { "7", "1" } }) {
+            expected.add("osm:node:" + pair[0] + " osm:node:" + pair[1]);
+            expected.add("osm:node:" + pair[1] + " osm:node:" + pair[0]);
+        }
+        assertEquals(expected, simplifiedEdges);
+        assertTrue(edges.containsAll(simplifiedEdges));
+        assertTrue(edges.size() > simplifiedEdges.size());
+        // Not even the entrances can be kept
+        assertEquals(0, buildAreaEdges(3, 1).size());
+    }
+}
@@ -129,4 +129,35 @@ public class TestWayPropertySet extends TestCase {
        assertTrue(within(kmhAsMs(25), wps.getCarSpeedForWay(way, false), epsilon));
        assertTrue(within(kmhAsMs(25), wps.getCarSpeedForWay(way, true), epsilon));
     }
+
+    /**
+     * Test that results cached by tag set follow changes to the tags and to the pickers
+     */
+    @Test
+    public void testCachedResults () {
+        WayPropertySet wps = new WayPropertySet();
+        wps.addSpeedPicker(getSpeedPicker("highway=*", kmhAsMs(35)));
+        wps.defaultSpeed = kmhAsMs(25);
+        float epsilon = 0.01f;
+
+        OSMWithTags way = new OSMWithTags();
+        way.addTag("highway", "residential");
+        OSMWithTags sameTags = new OSMWithTags();
+        sameTags.addTag("highway", "residential");
+        assertTrue(within(kmhAsMs(35), wps.getCarSpeedForWay(way, false), epsilon));
+        assertSame(wps.getDataForWay(way), wps.getDataForWay(sameTags));
+
+        // The tags of a way can change after a lookup
+        way.addTag("maxspeed", "50");
+        assertTrue(within(kmhAsMs(50), wps.getCarSpeedForWay(way, false), epsilon));
+        assertTrue(within(kmhAsMs(35), wps.getCarSpeedForWay(sameTags, false), epsilon));
+
+        // Adding a picker discards the cached results
+        wps.addSpeedPicker(getSpeedPicker("highway=residential", kmhAsMs(30)));
+        assertTrue(within(kmhAsMs(30), wps.getCarSpeedForWay(sameTags, false), epsilon));
+
+        assertNull(wps.getCreativeNameForWay(sameTags));
+        wps.addCreativeNamer(new OSMSpecifier("highway=residential"), new CreativeNamer("street"));
+        assertEquals("street", wps.getCreativeNameForWay(sameTags));
+    }
 }
@@ -0,0 +1,102 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.gtfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ShapePoint;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+import org.onebusaway.gtfs.services.GtfsMutableRelationalDao;
+import org.opentripplanner.ConstantsForTests;
+
+public class CompactGtfsRelationalDaoTest {
+
+    private static <T extends GtfsMutableRelationalDao> T read(String path, T dao) throws IOException {
+        GtfsReader reader = new GtfsReader();
+        reader.setInputLocation(new File(path));
+        reader.setEntityStore(dao);
+        reader.run();
+        return dao;
+    }
+
+    @Test
+    public void testSameStopTimesAndShapes() throws IOException {
+        GtfsRelationalDaoImpl expected = read(ConstantsForTests.CALTRAIN_GTFS, new GtfsRelationalDaoImpl());
+        CompactGtfsRelationalDao actual = read(ConstantsForTests.CALTRAIN_GTFS, new CompactGtfsRelationalDao());
+
+        assertEquals(expected.getAllStopTimes().size(), actual.getAllStopTimes().size());
+        assertTrue(actual.getAllStopTimes().size() > 0);
+        for (Trip trip : actual.getAllTrips()) {
+            List<StopTime> expectedStopTimes = expected.getStopTimesForTrip(trip);
+            List<StopTime> actualStopTimes = actual.getStopTimesForTrip(trip);
+            assertEquals(expectedStopTimes.size(), actualStopTimes.size());
+            for (int i = 0; i < expectedStopTimes.size(); i++) {
+                StopTime e = expectedStopTimes.get(i), a = actualStopTimes.get(i);
+                assertEquals(e.getTrip(), a.getTrip());
+                assertEquals(e.getStop(), a.getStop());
+                assertEquals(e.getStopSequence(), a.getStopSequence());
+                assertEquals(e.getArrivalTime(), a.getArrivalTime());
+                assertEquals(e.getDepartureTime(), a.getDepartureTime());
+                assertEquals(e.isArrivalTimeSet(), a.isArrivalTimeSet());
+                assertEquals(e.getStopHeadsign(), a.getStopHeadsign());
+                assertEquals(e.getPickupType(), a.getPickupType());
+                assertEquals(e.getDropOffType(), a.getDropOffType());
+                assertEquals(e.isShapeDistTraveledSet(), a.isShapeDistTraveledSet());
+            }
+        }
+
+        assertEquals(expected.getAllShapeIds().size(), actual.getAllShapeIds().size());
+        for (AgencyAndId shapeId : expected.getAllShapeIds()) {
+            List<ShapePoint> expectedPoints = expected.getShapePointsForShapeId(shapeId);
+            List<ShapePoint> actualPoints = actual.getShapePointsForShapeId(shapeId);
+            assertEquals(expectedPoints.size(), actualPoints.size());
+            for (int i = 0; i < expectedPoints.size(); i++) {
+                assertEquals(expectedPoints.get(i).getSequence(), actualPoints.get(i).getSequence());
+                assertEquals(expectedPoints.get(i).getLat(), actualPoints.get(i).getLat(), 0);
+                assertEquals(expectedPoints.get(i).getLon(), actualPoints.get(i).getLon(), 0);
+                assertEquals(expectedPoints.get(i).getShapeId(), actualPoints.get(i).getShapeId());
+            }
+        }
+    }
+
+    @Test
+    public void testShapeAgencyId() throws IOException {
+        CompactGtfsRelationalDao dao = read(ConstantsForTests.CALTRAIN_GTFS, new CompactGtfsRelationalDao());
+        AgencyAndId shapeId = dao.getAllShapeIds().get(0);
+        int nPoints = dao.getShapePointsForShapeId(shapeId).size();
+        assertTrue(nPoints > 1);
+
+        dao.setShapeAgencyId("F1");
+        assertEquals(0, dao.getShapePointsForShapeId(shapeId).size());
+        AgencyAndId newShapeId = new AgencyAndId("F1", shapeId.getId());
+        List<ShapePoint> points = dao.getShapePointsForShapeId(newShapeId);
+        assertEquals(nPoints, points.size());
+        assertEquals(newShapeId, points.get(0).getShapeId());
+        // Points are copies, the stored shape IDs cannot be changed through them
+        assertNotSame(newShapeId, points.get(0).getShapeId());
+        points.get(0).getShapeId().setAgencyId("F2");
+        assertEquals(nPoints, dao.getShapePointsForShapeId(newShapeId).size());
+    }
+}
@@ -0,0 +1,182 @@
+package org.opentripplanner.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.BinaryFileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.openstreetmap.model.OSMNode;
+import org.opentripplanner.openstreetmap.model.OSMRelation;
+import org.opentripplanner.openstreetmap.model.OSMWay;
+import org.opentripplanner.openstreetmap.model.OSMWithTags;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapProvider;
+
+import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
+
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+
+public class CachedOpenStreetMapProviderImplTest {
+
+    /** Keeps the tags of every entity read, by type and id. */
+    private static class TagRecorder implements OpenStreetMapContentHandler {
+
+        Map<String, Map<String, String>> tags = new HashMap<String, Map<String, String>>();
+
+        private void record(String type, OSMWithTags entity) {
+            Map<String, String> entityTags = entity.getTags();
+            tags.put(type + entity.getId(),
+                    entityTags == null ? new HashMap<String, String>() : new HashMap<String, String>(entityTags));
+        }
+
+        @Override
+        public void addNode(OSMNode node) {
+            record("node", node);
+        }
+
+        @Override
+        public void addWay(OSMWay way) {
+            record("way", way);
+        }
+
+        @Override
+        public void addRelation(OSMRelation relation) {
+            record("relation", relation);
+        }
+
+        @Override
+        public void doneFirstPhaseRelations() {
+        }
+
+        @Override
+        public void doneSecondPhaseWays() {
+        }
+
+        @Override
+        public void doneThirdPhaseNodes() {
+        }
+    }
+
+    private static TagRecorder read(OpenStreetMapProvider provider) {
+        TagRecorder recorder = new TagRecorder();
+        provider.readOSM(recorder);
+        return recorder;
+    }
+
+    /**
+     * Every entity of the extract has exactly the tags the PBF reader gives it, both when the extract is built and
+     * when it is reused.
+     */
+    @Test
+    public void testSameTagsAsPbf() throws Exception {
+        for (String pbf : new String[] { "map.osm.pbf", "bridge_construction.osm.pbf" }) {
+            File pbfFile = new File(URLDecoder.decode(OpenStreetMapModule.class.getResource(pbf).getFile(), "UTF-8"));
+            assertSameTags(pbfFile, 100);
+        }
+    }
+
+    /** Tags without values, and values containing semicolons and equals signs, are kept as they are. */
+    @Test
+    public void testSameTagsWithSeparators() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File pbfFile = new File(dir, "separators.osm.pbf");
+            writePbf(pbfFile);
+            assertSameTags(pbfFile, 2);
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Write a PBF file with a few nodes and a way whose tags contain the separators of the extract's tag format.
+     */
+    private static void writePbf(File file) throws IOException {
+        String[] strings = { "", "highway", "residential", "foo", "opening_hours", "Mo-Fr 08:00-12:00;Sa 10:00-12:00",
+                "website", "http://example.com/?a=b;c=d", "route", "bus;tram", "name", "back\\slash; x=y" };
+        Osmformat.StringTable.Builder stringTable = Osmformat.StringTable.newBuilder();
+        for (String string : strings)
+            stringTable.addS(ByteString.copyFromUtf8(string));
+        Osmformat.PrimitiveGroup.Builder group = Osmformat.PrimitiveGroup.newBuilder();
+        for (int i = 1; i <= 3; i++) {
+            // Coordinates in units of 100 nanodegrees, the default granularity
+            Osmformat.Node.Builder node = Osmformat.Node.newBuilder().setId(i).setLat(450000000 + i * 1000)
+                    .setLon(-1220000000 + i * 1000);
+            if (i == 2) {
+                // A stop with an empty tag value and a value with separators
+                node.addKeys(1).addVals(0).addKeys(10).addVals(11);
+            }
+            group.addNodes(node);
+        }
+        Osmformat.Way.Builder way = Osmformat.Way.newBuilder().setId(10).addRefs(1).addRefs(1).addRefs(1);
+        way.addKeys(1).addVals(2).addKeys(3).addVals(0).addKeys(4).addVals(5).addKeys(6).addVals(7).addKeys(8)
+                .addVals(9);
+        Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.newBuilder().setStringtable(stringTable)
+                .addPrimitivegroup(group).addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().addWays(way))
+                .build();
+        Osmformat.HeaderBlock header = Osmformat.HeaderBlock.newBuilder().addRequiredFeatures("OsmSchema-V0.6")
+                .build();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            writeBlob(out, "OSMHeader", header.toByteString());
+            writeBlob(out, "OSMData", block.toByteString());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeBlob(DataOutputStream out, String type, ByteString data) throws IOException {
+        Fileformat.Blob blob = Fileformat.Blob.newBuilder().setRaw(data).setRawSize(data.size()).build();
+        Fileformat.BlobHeader header = Fileformat.BlobHeader.newBuilder().setType(type)
+                .setDatasize(blob.getSerializedSize()).build();
+        out.writeInt(header.getSerializedSize());
+        header.writeTo(out);
+        blob.writeTo(out);
+    }
+
+    private static void assertSameTags(File pbfFile, int minTagged) {
+        BinaryFileBasedOpenStreetMapProviderImpl pbfProvider = new BinaryFileBasedOpenStreetMapProviderImpl();
+        pbfProvider.setPath(pbfFile);
+        pbfProvider.setThreadCount(1);
+        Map<String, Map<String, String>> expected = read(pbfProvider).tags;
+        String pbf = pbfFile.getName();
+
+        File dir = Files.createTempDir();
+        try {
+            CachedOpenStreetMapProviderImpl cached = new CachedOpenStreetMapProviderImpl(pbfFile,
+                    new File(dir, "extract.db"));
+            for (int build = 0; build < 2; build++) {
+                Map<String, Map<String, String>> actual = read(cached).tags;
+                assertFalse(actual.isEmpty());
+                int tagged = 0;
+                for (Map.Entry<String, Map<String, String>> entry : actual.entrySet()) {
+                    Map<String, String> expectedTags = expected.get(entry.getKey());
+                    assertNotNull(entry.getKey(), expectedTags);
+                    assertEquals(pbf + " " + entry.getKey(), expectedTags, entry.getValue());
+                    if (!expectedTags.isEmpty())
+                        tagged++;
+                }
+                assertTrue(tagged >= minTagged);
+            }
+        } finally {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+}
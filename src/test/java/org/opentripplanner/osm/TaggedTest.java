@@ -0,0 +1,59 @@
+package org.opentripplanner.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TaggedTest {
+
+    /** Tags read back are exactly those written, whatever characters their keys and values contain. */
+    @Test
+    public void testRoundTrip() {
+        String[][] written = {
+                { "highway", "residential" },
+                { "foo", "" },
+                { "route", "bus;tram" },
+                { "website", "http://example.com/?a=b;c=d" },
+                { "opening_hours", "Mo-Fr 08:00-12:00;Sa 10:00-12:00" },
+                { "note", "back\\slash; x=y" },
+                { "odd=key;", "value" },
+                { "bare", null } };
+        StringBuilder sb = new StringBuilder();
+        for (String[] tag : written) {
+            Tagged.appendTag(sb, tag[0], tag[1]);
+        }
+        Way way = new Way();
+        way.tags = sb.toString();
+
+        List<Tagged.Tag> tags = way.getTags();
+        assertEquals(written.length, tags.size());
+        for (int i = 0; i < written.length; i++) {
+            assertEquals(written[i][0], tags.get(i).key);
+            String value = written[i][1];
+            if (value == null || value.isEmpty()) {
+                assertNull(tags.get(i).value);
+                assertEquals("", way.getTag(written[i][0]));
+            } else {
+                assertEquals(value, tags.get(i).value);
+                assertEquals(value, way.getTag(written[i][0]));
+            }
+        }
+        assertTrue(way.hasTag("foo"));
+        assertFalse(way.hasTag("x"));
+        assertNull(way.getTag("c"));
+    }
+
+    @Test
+    public void testNoTags() {
+        Way way = new Way();
+        assertTrue(way.getTags().isEmpty());
+        assertNull(way.getTag("highway"));
+        way.tags = "";
+        assertTrue(way.getTags().isEmpty());
+    }
+}
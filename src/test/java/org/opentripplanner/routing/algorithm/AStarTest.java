@@ -23,6 +23,7 @@ import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.opentripplanner.api.resource.DebugOutput;
 import org.opentripplanner.routing.algorithm.strategies.MultiTargetTerminationStrategy;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
 import org.opentripplanner.routing.core.State;
@@ -115,6 +116,30 @@ public class AStarTest {
         assertEquals("leary_20th", states.get(6).getVertex().getLabel());
     }
 
+    /** The work done by a search is reported in the debug output of its request. */
+    @Test
+    public void testSearchStatistics() {
+        RoutingRequest options = new RoutingRequest();
+        options.walkSpeed = 1.0;
+        options.setRoutingContext(_graph, _graph.getVertex("56th_24th"), _graph.getVertex("leary_20th"));
+        ShortestPathTree tree = new AStar().getShortestPathTree(options);
+        assertNotNull(tree.getPath(_graph.getVertex("leary_20th"), false));
+
+        DebugOutput debugOutput = options.rctx.debugOutput;
+        assertTrue(debugOutput.statesVisited > 0);
+        // Every state visited but the initial one was created by traversing an edge
+        assertTrue(debugOutput.statesCreated >= debugOutput.statesVisited - 1);
+        assertTrue(debugOutput.statesCreated >= tree.getAllStates().size() - 1);
+        assertTrue(debugOutput.queuePeakSize > 0);
+        assertTrue(debugOutput.queuePeakSize <= debugOutput.statesCreated + 1);
+        assertTrue(debugOutput.heuristicTime >= 0);
+
+        // A second search for the same request adds to the statistics
+        long statesVisited = debugOutput.statesVisited;
+        new AStar().getShortestPathTree(options);
+        assertEquals(2 * statesVisited, debugOutput.statesVisited);
+    }
+
     @Test
     public void testBack() {
 
@@ -103,6 +103,14 @@ public class TurnRestrictionTest {
         assertFalse(_graph.getTurnRestrictions(maple_main1).isEmpty());
         assertTrue(_graph.getTurnRestrictions(broad1_2).isEmpty());
     }
+
+    @Test
+    public void testTurnRestrictedFlag() {
+        assertTrue(maple_main1.isTurnRestricted());
+        assertFalse(broad1_2.isTurnRestricted());
+        _graph.removeTurnRestriction(maple_main1, _graph.getTurnRestrictions(maple_main1).get(0));
+        assertFalse(maple_main1.isTurnRestricted());
+    }
     
     @Test
     public void testForwardDefault() {
@@ -0,0 +1,133 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.util.TestUtils;
+
+public class HeuristicTableCacheTest extends TestCase {
+
+    private static final String[] PLACES = { "Caltrain:San Francisco Caltrain", "Caltrain:Millbrae Caltrain",
+            "Caltrain:Palo Alto Caltrain", "Caltrain:San Jose Caltrain" };
+
+    private static final String TARGET = "Caltrain:Mountain View Caltrain";
+
+    private Graph graph;
+
+    public void setUp() throws Exception {
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+        graph = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(graph);
+        graph.putService(CalendarServiceData.class, GtfsLibrary.createCalendarServiceData(context.getDao()));
+    }
+
+    private RoutingRequest request(String from, String to, boolean arriveBy) {
+        RoutingRequest options = new RoutingRequest();
+        options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 8, 7, arriveBy ? 18 : 12, 0, 0);
+        options.setArriveBy(arriveBy);
+        options.setRoutingContext(graph, from, to);
+        return options;
+    }
+
+    private GraphPath path(String from, String to, boolean arriveBy, HeuristicTableCache tables) {
+        RoutingRequest options = request(from, to, arriveBy);
+        options.rctx.remainingWeightHeuristic = new InterleavedBidirectionalHeuristic(graph, tables);
+        GraphPath path = new AStar().getShortestPathTree(options)
+                .getPath(graph.getVertex(arriveBy ? from : to), true);
+        options.cleanup();
+        return path;
+    }
+
+    /**
+     * Requests with the same search target share one table and find the same paths as with the interleaved search.
+     * The target of arrive-by searches is the origin of the trip.
+     */
+    public void testSamePathsFromSharedTable() {
+        HeuristicTableCache tables = new HeuristicTableCache();
+        for (boolean arriveBy : new boolean[] { false, true }) {
+            for (String place : PLACES) {
+                String from = arriveBy ? TARGET : place;
+                String to = arriveBy ? place : TARGET;
+                GraphPath expected = path(from, to, arriveBy, null);
+                GraphPath actual = path(from, to, arriveBy, tables);
+                assertNotNull(expected);
+                assertNotNull(actual);
+                assertEquals(expected.getWeight(), actual.getWeight(), 1e-6);
+                assertEquals(expected.getStartTime(), actual.getStartTime());
+                assertEquals(expected.getEndTime(), actual.getEndTime());
+            }
+        }
+        // One table for each direction
+        assertEquals(2, tables.size());
+        path(PLACES[0], "Caltrain:Gilroy Caltrain", false, tables);
+        assertEquals(3, tables.size());
+    }
+
+    /** The cache keeps no more tables than it was sized for. */
+    public void testBounded() {
+        HeuristicTableCache tables = new HeuristicTableCache(1);
+        path(PLACES[0], TARGET, false, tables);
+        path(PLACES[0], "Caltrain:Gilroy Caltrain", false, tables);
+        assertEquals(1, tables.size());
+    }
+
+    /**
+     * Adding a vertex to the graph, as the bike rental updater does, drops the tables built before. A table still in
+     * use has no weight for the new vertex, and gives it 0 rather than treating it as unreachable.
+     */
+    public void testGraphModified() {
+        HeuristicTableCache tables = new HeuristicTableCache();
+        assertNotNull(path(PLACES[0], TARGET, false, tables));
+        RoutingRequest options = request(PLACES[0], TARGET, false);
+        HeuristicTableCache.Table table = tables.get(options);
+        options.cleanup();
+        assertNotNull(table);
+        Vertex stop = graph.getVertex(PLACES[1]);
+        assertTrue(table.getWeight(stop) > 0);
+
+        Vertex added = new IntersectionVertex(graph, "added", stop.getX(), stop.getY());
+        assertEquals(0.0, table.getWeight(added));
+        options = request(PLACES[0], TARGET, false);
+        assertNull(tables.get(options));
+        options.cleanup();
+        assertEquals(0, tables.size());
+
+        // The table is built again, and covers the new vertex, which is not linked to anything
+        GraphPath expected = path(PLACES[1], TARGET, false, null);
+        GraphPath actual = path(PLACES[1], TARGET, false, tables);
+        assertEquals(expected.getWeight(), actual.getWeight(), 1e-6);
+        options = request(PLACES[0], TARGET, false);
+        HeuristicTableCache.Table rebuilt = tables.get(options);
+        options.cleanup();
+        assertNotNull(rebuilt);
+        assertNotSame(table, rebuilt);
+        assertEquals(Double.POSITIVE_INFINITY, rebuilt.getWeight(added));
+        assertEquals(table.getWeight(stop), rebuilt.getWeight(stop));
+    }
+}
@@ -0,0 +1,178 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.DominanceFunction;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+public class LandmarkRemainingWeightHeuristicTest {
+
+    private static Graph graph;
+
+    private static LandmarkSet landmarks;
+
+    private static List<Vertex> vertices = new ArrayList<Vertex>();
+
+    @BeforeClass
+    public static void buildGraph() throws Exception {
+        graph = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(URLDecoder.decode(OpenStreetMapModule.class.getResource("map.osm.gz").getFile(),
+                "UTF-8"));
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        landmarks = LandmarkSet.build(graph, 8);
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof StreetVertex)
+                vertices.add(v);
+        }
+    }
+
+    private static ShortestPathTree search(RoutingRequest options, RemainingWeightHeuristic heuristic) {
+        options.rctx.remainingWeightHeuristic = heuristic;
+        return new AStar().getShortestPathTree(options);
+    }
+
+    /**
+     * Searches with landmarks find paths of the same weight as with the Euclidean heuristic, which they estimate
+     * from below, while reaching fewer vertices.
+     */
+    @Test
+    public void testSameWeightsFewerVertices() {
+        assertEquals(8, landmarks.getLandmarkCount());
+        for (TraverseMode mode : new TraverseMode[] { TraverseMode.WALK, TraverseMode.BICYCLE, TraverseMode.CAR }) {
+            compareSearches(new RoutingRequest(mode), landmarks, new EuclideanRemainingWeightHeuristic(), true);
+        }
+    }
+
+    /** Bicycle weights scaled by the safety of the streets are bounded as well. */
+    @Test
+    public void testSafeBicycles() {
+        for (RoutingRequest options : safeBicycleRequests()) {
+            compareSearches(options, landmarks, new EuclideanRemainingWeightHeuristic(), false);
+        }
+    }
+
+    /**
+     * Streets safer than the time to ride them weigh less than that time, which the bounds must account for. The
+     * Euclidean heuristic does not, so the weights are compared with searches without any heuristic.
+     */
+    @Test
+    public void testSaferThanQuick() {
+        Random random = new Random(42);
+        Map<StreetEdge, Float> safetyFactors = new HashMap<StreetEdge, Float>();
+        for (StreetEdge e : graph.getStreetEdges()) {
+            safetyFactors.put(e, e.getBicycleSafetyFactor());
+            e.setBicycleSafetyFactor(0.05f + 0.95f * random.nextFloat());
+        }
+        try {
+            LandmarkSet saferLandmarks = LandmarkSet.build(graph, 8);
+            assertTrue(saferLandmarks.getMinBicycleSafetyFactor() < 0.1);
+            for (RoutingRequest options : safeBicycleRequests()) {
+                compareSearches(options, saferLandmarks, new TrivialRemainingWeightHeuristic(), false);
+            }
+        } finally {
+            for (Map.Entry<StreetEdge, Float> entry : safetyFactors.entrySet()) {
+                entry.getKey().setBicycleSafetyFactor(entry.getValue());
+            }
+        }
+    }
+
+    private static List<RoutingRequest> safeBicycleRequests() {
+        List<RoutingRequest> requests = new ArrayList<RoutingRequest>();
+        for (OptimizeType optimize : new OptimizeType[] { OptimizeType.SAFE, OptimizeType.GREENWAYS,
+                OptimizeType.TRIANGLE }) {
+            RoutingRequest options = new RoutingRequest(TraverseMode.BICYCLE);
+            options.setOptimize(optimize);
+            if (optimize == OptimizeType.TRIANGLE) {
+                options.setTriangleTimeFactor(0.2);
+                options.setTriangleSlopeFactor(0.1);
+                options.setTriangleSafetyFactor(0.7);
+            }
+            requests.add(options);
+        }
+        return requests;
+    }
+
+    /**
+     * Search between random vertices with the given heuristic and with landmarks, and check that the paths found
+     * weigh the same, and that the landmark estimate at the origin is not above the weight of the path.
+     */
+    private void compareSearches(RoutingRequest template, LandmarkSet landmarks, RemainingWeightHeuristic reference,
+            boolean fewerVertices) {
+        Random random = new Random(7);
+        int found = 0, referenceVertices = 0, landmarkVertices = 0;
+        for (int i = 0; i < 40; i++) {
+            Vertex from = vertices.get(random.nextInt(vertices.size()));
+            Vertex to = vertices.get(random.nextInt(vertices.size()));
+            for (boolean arriveBy : new boolean[] { false, true }) {
+                RoutingRequest options = template.clone();
+                options.setArriveBy(arriveBy);
+                options.dominanceFunction = new DominanceFunction.MinimumWeight();
+                options.setRoutingContext(graph, from, to);
+                ShortestPathTree expected = search(options, reference);
+                GraphPath expectedPath = expected.getPath(arriveBy ? from : to, false);
+                RoutingRequest landmarkOptions = options.clone();
+                landmarkOptions.setRoutingContext(graph, from, to);
+                LandmarkRemainingWeightHeuristic heuristic = new LandmarkRemainingWeightHeuristic(landmarks);
+                ShortestPathTree actual = search(landmarkOptions, heuristic);
+                GraphPath actualPath = actual.getPath(arriveBy ? from : to, false);
+                if (expectedPath == null)
+                    continue;
+                found++;
+                String message = template.modes + " " + template.optimize;
+                assertNotNull(message, actualPath);
+                assertEquals(message, expectedPath.getWeight(), actualPath.getWeight(), 1e-6);
+                State origin = actualPath.states.getFirst();
+                assertTrue(message, heuristic.estimateRemainingWeight(arriveBy ? actualPath.states.getLast()
+                        : origin) <= actualPath.getWeight() + 1e-6);
+                referenceVertices += expected.getVertexCount();
+                landmarkVertices += actual.getVertexCount();
+            }
+        }
+        assertTrue(found > 10);
+        if (fewerVertices)
+            assertTrue(landmarkVertices < referenceVertices);
+    }
+}
@@ -0,0 +1,148 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.graph_builder.module.ContractionHierarchyModule;
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
+import org.opentripplanner.routing.spt.DominanceFunction;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+
+public class ContractionHierarchyTest {
+
+    private static Graph graph;
+
+    private static List<RoutingRequest> profiles;
+
+    private static ContractionHierarchySet hierarchies;
+
+    @BeforeClass
+    public static void buildGraph() throws Exception {
+        graph = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(URLDecoder.decode(OpenStreetMapModule.class.getResource("NYC_small.osm.gz").getFile(),
+                "UTF-8"));
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.rebuildVertexAndEdgeIndices();
+        graph.streetIndex = new StreetVertexIndexServiceImpl(graph);
+
+        profiles = new ContractionHierarchyModule(null).getProfiles();
+        hierarchies = ContractionHierarchySet.build(graph, profiles);
+    }
+
+    private static GraphPath aStarPath(RoutingRequest options, Vertex target) {
+        ShortestPathTree tree = new AStar().getShortestPathTree(options);
+        return tree.getPath(target, false);
+    }
+
+    /** Paths from the hierarchies are never heavier than the ones found by AStar between the same vertices. */
+    @Test
+    public void testSameWeightsAsAStar() {
+        List<Vertex> vertices = new ArrayList<Vertex>();
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof StreetVertex)
+                vertices.add(v);
+        }
+        Random random = new Random(42);
+        for (RoutingRequest profile : profiles) {
+            assertNotNull(hierarchies.getHierarchy(profile));
+            int found = 0, answered = 0;
+            for (int i = 0; i < 50; i++) {
+                Vertex from = vertices.get(random.nextInt(vertices.size()));
+                Vertex to = vertices.get(random.nextInt(vertices.size()));
+                if (from == to)
+                    continue;
+                RoutingRequest options = profile.clone();
+                options.dominanceFunction = new DominanceFunction.MinimumWeight();
+                options.setRoutingContext(graph, from, to);
+                GraphPath expected = aStarPath(options, to);
+                GraphPath actual = hierarchies.getPath(options);
+                if (expected == null)
+                    continue;
+                found++;
+                if (actual == null)
+                    continue;
+                answered++;
+                assertEquals(from, actual.states.getFirst().getVertex());
+                assertEquals(to, actual.states.getLast().getVertex());
+                assertTrue(actual.getWeight() <= expected.getWeight() + 1e-6);
+            }
+            assertTrue(found > 10);
+            assertTrue(answered * 10 >= found * 9);
+        }
+    }
+
+    /** Requests from and to points along the streets go over temporary edges at both ends. */
+    @Test
+    public void testTemporaryEndpoints() {
+        RoutingRequest options = profiles.get(0).clone();
+        options.dominanceFunction = new DominanceFunction.MinimumWeight();
+        options.from = new GenericLocation(40.7240, -74.0040);
+        options.to = new GenericLocation(40.7255, -73.9975);
+        options.setRoutingContext(graph);
+        GraphPath actual = hierarchies.getPath(options);
+        GraphPath expected = aStarPath(options, options.rctx.target);
+        options.cleanup();
+        assertNotNull(expected);
+        assertNotNull(actual);
+        assertEquals(expected.getWeight(), actual.getWeight(), 1e-6);
+    }
+
+    /** Requests which do not match a profile are left to AStar. */
+    @Test
+    public void testOtherRequests() {
+        Vertex from = graph.getVertex("osm:node:1919595913");
+        Vertex to = graph.getVertex("osm:node:42448554");
+        RoutingRequest options = profiles.get(2).clone();
+        options.walkSpeed *= 2;
+        options.setRoutingContext(graph, from, to);
+        assertNull(hierarchies.getPath(options));
+
+        options = profiles.get(2).clone();
+        options.setArriveBy(true);
+        options.setRoutingContext(graph, from, to);
+        assertNull(hierarchies.getPath(options));
+
+        options = profiles.get(2).clone();
+        options.setRoutingContext(graph, from, to);
+        assertNotNull(hierarchies.getPath(options));
+    }
+}
@@ -18,12 +18,15 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import com.google.common.collect.Iterables;
@@ -37,10 +40,14 @@ import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.opentripplanner.ConstantsForTests;
 import org.opentripplanner.gtfs.GtfsContext;
 import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
 import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
 import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.opentripplanner.routing.vertextype.TransitStopDepart;
+import org.opentripplanner.updater.stoptime.TimetableSnapshotSource;
 
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
@@ -127,6 +134,66 @@ public class TimetableSnapshotTest {
         assertEquals(scheduled, resolver.resolve(pattern, null));
     }
 
+    /** Searches resolve each pattern and service day once, to the same timetable as the snapshot. */
+    @Test
+    public void testResolveFromRoutingContext() {
+        ServiceDate today = new ServiceDate();
+        TripPattern pattern = patternIndex.get(new AgencyAndId("agency", "1.1"));
+        TimetableSnapshot resolver = new TimetableSnapshot();
+
+        TripDescriptor.Builder tripDescriptorBuilder = TripDescriptor.newBuilder();
+        tripDescriptorBuilder.setTripId("1.1");
+        tripDescriptorBuilder.setScheduleRelationship(ScheduleRelationship.CANCELED);
+        TripUpdate.Builder tripUpdateBuilder = TripUpdate.newBuilder();
+        tripUpdateBuilder.setTrip(tripDescriptorBuilder);
+        updateResolver(resolver, pattern, tripUpdateBuilder.build(), "agency", today);
+        final TimetableSnapshot snapshot = resolver.commit();
+
+        graph.timetableSnapshotSource = new TimetableSnapshotSource(graph) {
+            @Override
+            public TimetableSnapshot getTimetableSnapshot() {
+                return snapshot;
+            }
+        };
+        try {
+            RoutingRequest options = new RoutingRequest();
+            options.setRoutingContext(graph, pattern.departVertices[0],
+                    pattern.arriveVertices[pattern.arriveVertices.length - 1]);
+            boolean updated = false;
+            for (ServiceDay sd : options.rctx.serviceDays) {
+                Timetable timetable = pattern.getUpdatedTimetable(options, sd);
+                assertSame(snapshot.resolve(pattern, sd.getServiceDate()), timetable);
+                assertSame(timetable, pattern.getUpdatedTimetable(options, sd));
+                updated |= timetable != pattern.scheduledTimetable;
+            }
+            assertTrue(updated);
+        } finally {
+            graph.timetableSnapshotSource = null;
+        }
+    }
+
+    /** Pattern indexes are numbered from 0 in each graph, whatever the number of graphs built or loaded. */
+    @Test
+    public void testPatternIndexes() {
+        assertPatternIndexes(graph);
+        Graph other = new Graph();
+        new GTFSPatternHopFactory(context).run(other);
+        assertPatternIndexes(other);
+        other.index(new DefaultStreetVertexIndexFactory());
+        assertPatternIndexes(other);
+        assertEquals(graph.getPatternCount(), other.getPatternCount());
+    }
+
+    private static void assertPatternIndexes(Graph graph) {
+        Set<Integer> indexes = new HashSet<Integer>();
+        for (TransitBoardAlight tba : Iterables.filter(graph.getEdges(), TransitBoardAlight.class)) {
+            int index = tba.getPattern().getIndex();
+            assertTrue(index >= 0 && index < graph.getPatternCount());
+            indexes.add(index);
+        }
+        assertEquals(graph.getPatternCount(), indexes.size());
+    }
+
     @Test(expected=ConcurrentModificationException.class)
     public void testUpdate() {
         ServiceDate today = new ServiceDate();
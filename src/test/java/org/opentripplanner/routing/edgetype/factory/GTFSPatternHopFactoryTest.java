@@ -13,13 +13,20 @@
 
 package org.opentripplanner.routing.edgetype.factory;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.Test;
 import org.onebusaway.gtfs.services.MockGtfs;
+import org.opentripplanner.ConstantsForTests;
 import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.edgetype.PatternHop;
 import org.opentripplanner.routing.edgetype.TransitBoardAlight;
 import org.opentripplanner.routing.edgetype.TripPattern;
 import org.opentripplanner.routing.graph.Edge;
@@ -52,4 +59,29 @@ public class GTFSPatternHopFactoryTest {
         }
     }
 
+    /** Hops and their geometries along the shapes do not depend on the number of threads building them. */
+    @Test
+    public void testSameHopsWithThreads() throws IOException {
+        List<String> hops = buildHops(1);
+        assertTrue(hops.size() > 0);
+        assertEquals(hops, buildHops(4));
+    }
+
+    private List<String> buildHops(int threadCount) throws IOException {
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(GtfsLibrary.readGtfs(new File(
+                ConstantsForTests.CALTRAIN_GTFS)));
+        factory.setThreadCount(threadCount);
+        Graph graph = new Graph();
+        factory.run(graph);
+
+        List<String> hops = new ArrayList<String>();
+        for (Edge edge : graph.getEdges()) {
+            if (edge instanceof PatternHop) {
+                hops.add(edge.getFromVertex().getLabel() + " " + edge.getToVertex().getLabel() + " "
+                        + edge.getGeometry());
+            }
+        }
+        Collections.sort(hops);
+        return hops;
+    }
 }
@@ -30,6 +30,11 @@ import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.vertextype.IntersectionVertex;
 import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.standalone.Router;
+import org.opentripplanner.updater.GraphUpdater;
+import org.opentripplanner.updater.GraphUpdaterManager;
+
+import com.fasterxml.jackson.databind.JsonNode;
 
 public class GraphServiceTest extends TestCase {
 
@@ -244,4 +249,86 @@ public class GraphServiceTest extends TestCase {
         assertEquals("A", graphService.getRouter("A").graph.routerId);
 
     }
+
+    /** A request looking up a router retired in the meantime is handed the router replacing it. */
+    @Test
+    public final void testRouterForRequestAfterSwap() {
+        final Router retired = new Router("A", emptyGraph);
+        final Router current = new Router("A", smallGraph);
+        final int[] lookups = { 0 };
+        GraphService graphService = new GraphService();
+        graphService.registerGraph("A", new MemoryGraphSource("A", emptyGraph) {
+            @Override
+            public Router getRouter() {
+                // The first lookup races with the swap and gets the replaced router
+                return lookups[0]++ == 0 ? retired : current;
+            }
+        });
+        retired.retire();
+        lookups[0] = 0;
+        Router router = graphService.getRouterForRequest("A");
+        assertSame(current, router);
+        assertEquals(1, current.getRequestsInFlight());
+        assertEquals(0, retired.getRequestsInFlight());
+        assertEquals(2, lookups[0]);
+    }
+
+    /** A retired router that is still published is being shut down, and requests fail instead of waiting for it. */
+    @Test
+    public final void testRouterForRequestWhileShutDown() {
+        final Router retired = new Router("A", emptyGraph);
+        final int[] lookups = { 0 };
+        GraphService graphService = new GraphService();
+        graphService.registerGraph("A", new MemoryGraphSource("A", emptyGraph) {
+            @Override
+            public Router getRouter() {
+                lookups[0]++;
+                return retired;
+            }
+        });
+        retired.retire();
+        lookups[0] = 0;
+        try {
+            graphService.getRouterForRequest("A");
+            fail("expected GraphNotFoundException");
+        } catch (GraphNotFoundException e) {
+            // Expected
+        }
+        assertEquals(2, lookups[0]);
+        assertEquals(0, retired.getRequestsInFlight());
+    }
+
+    /** An evicted router is no longer published while it is shut down. */
+    @Test
+    public final void testEvictUnpublishesBeforeShutdown() {
+        final MemoryGraphSource source = new MemoryGraphSource("A", smallGraph);
+        assertTrue(source.reload(true, false));
+        final Router[] publishedOnTeardown = { source.getRouter() };
+        smallGraph.updaterManager = new GraphUpdaterManager(smallGraph);
+        smallGraph.updaterManager.addUpdater(new GraphUpdater() {
+            @Override
+            public void configure(Graph graph, JsonNode jsonNode) {
+            }
+
+            @Override
+            public void setGraphUpdaterManager(GraphUpdaterManager updaterManager) {
+            }
+
+            @Override
+            public void setup() {
+            }
+
+            @Override
+            public void run() {
+            }
+
+            @Override
+            public void teardown() {
+                publishedOnTeardown[0] = source.getRouter();
+            }
+        });
+        source.evict();
+        assertNull(publishedOnTeardown[0]);
+        assertNull(source.getRouter());
+    }
 }
@@ -0,0 +1,166 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.standalone.Router;
+import org.opentripplanner.updater.GraphUpdater;
+import org.opentripplanner.updater.GraphUpdaterManager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+public class InputStreamGraphSourceTest extends TestCase {
+
+    private File basePath;
+
+    private RoutingRequest validRequest;
+
+    private RoutingRequest invalidRequest;
+
+    @Override
+    protected void setUp() throws IOException {
+        basePath = File.createTempFile("graphs", "");
+        basePath.delete();
+        basePath.mkdir();
+
+        Graph graph = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(OpenStreetMapModule.class.getResource("map.osm.gz").getFile()));
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.save(new File(basePath, InputStreamGraphSource.GRAPH_FILENAME));
+
+        // A walk along a single street, which routes on any graph built from this extract
+        StreetEdge street = null;
+        for (Edge e : graph.getEdges()) {
+            if (e instanceof StreetEdge && ((StreetEdge) e).canTraverse(new TraverseModeSet("WALK"))
+                    && e.getDistance() > 50) {
+                street = (StreetEdge) e;
+                break;
+            }
+        }
+        assertNotNull(street);
+        validRequest = new RoutingRequest("WALK");
+        validRequest.routerId = "test";
+        validRequest.from = new GenericLocation(street.getFromVertex().getLat(), street.getFromVertex().getLon());
+        validRequest.to = new GenericLocation(street.getToVertex().getLat(), street.getToVertex().getLon());
+        // Far outside of the extract
+        invalidRequest = new RoutingRequest("WALK");
+        invalidRequest.routerId = "test";
+        invalidRequest.from = new GenericLocation(0, 0);
+        invalidRequest.to = new GenericLocation(0.01, 0.01);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        GraphServiceTest.deleteRecursive(basePath);
+    }
+
+    /** Only the replayed requests that route on the new graph are counted as warming it up. */
+    public void testWarmup() {
+        InputStreamGraphSource source = InputStreamGraphSource.newFileGraphSource("test", basePath,
+                LoadLevel.FULL);
+        assertTrue(source.reload(true, false));
+        Router previous = source.getRouter();
+        previous.recentRequests.record(validRequest);
+        previous.recentRequests.record(invalidRequest);
+        previous.graph.index.clusterStopsAsNeeded();
+        previous.graph.index.initializeProfileTransfersAsNeeded();
+
+        Graph graph = source.getRouter().graph;
+        Router router = new Router("test", graph);
+        router.startup(MissingNode.getInstance());
+        assertEquals(1, router.warmup(previous));
+    }
+
+    /**
+     * A reload swaps in a warmed up router, which takes the new requests, while the replaced one is shut down once
+     * its requests are done.
+     */
+    public void testReloadSwap() throws InterruptedException {
+        InputStreamGraphSource source = InputStreamGraphSource.newFileGraphSource("test", basePath,
+                LoadLevel.FULL);
+        assertTrue(source.reload(true, false));
+        Router first = source.getRouter();
+        first.recentRequests.record(validRequest);
+        first.graph.index.clusterStopsAsNeeded();
+        first.graph.index.initializeProfileTransfersAsNeeded();
+        TestUpdater updater = new TestUpdater();
+        first.graph.updaterManager = new GraphUpdaterManager(first.graph);
+        first.graph.updaterManager.addUpdater(updater);
+        assertTrue(first.requestStarted());
+
+        assertTrue(source.reload(true, false));
+        Router second = source.getRouter();
+        assertNotSame(first, second);
+        assertNotNull(second.graph.index.transfersFromStopCluster);
+        assertFalse(second.isRetired());
+        assertTrue(first.isRetired());
+        // Requests looking up the router from now on must go to the new one
+        assertFalse(first.requestStarted());
+        assertEquals(1, first.getRequestsInFlight());
+
+        // The replaced router is not shut down while a request is running on it
+        assertFalse(updater.tornDown.await(200, TimeUnit.MILLISECONDS));
+        first.requestFinished();
+        assertTrue(updater.tornDown.await(10, TimeUnit.SECONDS));
+        source.evict();
+    }
+
+    private static class TestUpdater implements GraphUpdater {
+
+        final CountDownLatch tornDown = new CountDownLatch(1);
+
+        @Override
+        public void configure(Graph graph, JsonNode jsonNode) {
+        }
+
+        @Override
+        public void setGraphUpdaterManager(GraphUpdaterManager updaterManager) {
+        }
+
+        @Override
+        public void setup() {
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public void teardown() {
+            tornDown.countDown();
+        }
+    }
+}
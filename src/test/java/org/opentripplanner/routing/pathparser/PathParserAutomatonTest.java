@@ -0,0 +1,108 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.pathparser;
+
+import static org.opentripplanner.routing.automata.Nonterminal.*;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.routing.automata.AutomatonState;
+import org.opentripplanner.routing.automata.DFA;
+import org.opentripplanner.routing.core.State;
+
+public class PathParserAutomatonTest extends TestCase {
+
+    static final int WALK = 0;
+    static final int STATION = 1;
+    static final int TRANSIT = 2;
+
+    /** A parser reading its terminals from a field instead of from the State. */
+    private static class FixedParser extends PathParser {
+
+        private final DFA dfa;
+
+        int terminal;
+
+        FixedParser(DFA dfa) {
+            this.dfa = dfa;
+        }
+
+        @Override
+        public int terminalFor(State state) {
+            return terminal;
+        }
+
+        @Override
+        protected DFA getDFA() {
+            return dfa;
+        }
+    }
+
+    private static final DFA ITINERARY = seq(plus(WALK),
+            star(plus(STATION), plus(TRANSIT), plus(STATION), plus(WALK))).toDFA().minimize();
+
+    private static final DFA AT_MOST_ONE_TRANSIT_RUN = seq(star(choice(0, 1)), star(2), star(choice(0, 1)))
+            .toDFA().minimize();
+
+    /** The product accepts and rejects exactly the paths that all its parsers accept. */
+    public void testSameAsParsers() {
+        FixedParser first = new FixedParser(ITINERARY);
+        FixedParser second = new FixedParser(AT_MOST_ONE_TRANSIT_RUN);
+        FixedParser[] parsers = { first, second };
+        PathParserAutomaton automaton = PathParserAutomaton.forParsers(parsers);
+        Random random = new Random(46);
+        int accepted = 0;
+        for (int path = 0; path < 2000; path++) {
+            int length = 1 + random.nextInt(10);
+            int state = PathParserAutomaton.START;
+            int firstState = AutomatonState.START, secondState = AutomatonState.START;
+            for (int i = 0; i < length; i++) {
+                first.terminal = random.nextInt(3);
+                second.terminal = random.nextInt(3);
+                state = automaton.transition(state, parsers, null);
+                if (firstState != AutomatonState.REJECT)
+                    firstState = first.transition(firstState, first.terminal);
+                if (secondState != AutomatonState.REJECT)
+                    secondState = second.transition(secondState, second.terminal);
+                boolean rejected = firstState == AutomatonState.REJECT
+                        || secondState == AutomatonState.REJECT;
+                assertEquals(rejected, state == PathParserAutomaton.REJECT);
+                if (rejected)
+                    break;
+                int[] states = automaton.getParserStates(state);
+                assertEquals(firstState, states[0]);
+                assertEquals(secondState, states[1]);
+                assertEquals(first.accepts(firstState) && second.accepts(secondState),
+                        automaton.accepts(state));
+            }
+            if (automaton.accepts(state))
+                accepted++;
+        }
+        assertTrue(accepted > 0);
+    }
+
+    /** Parsers with the same DFAs share one product, and terminals outside a grammar reject the path. */
+    public void testShared() {
+        FixedParser[] parsers = { new FixedParser(ITINERARY) };
+        PathParserAutomaton automaton = PathParserAutomaton.forParsers(parsers);
+        assertSame(automaton, PathParserAutomaton.forParsers(new PathParser[] { new FixedParser(ITINERARY) }));
+        assertNotSame(automaton, PathParserAutomaton.forParsers(new PathParser[] {
+                new FixedParser(ITINERARY), new FixedParser(ITINERARY) }));
+        parsers[0].terminal = 7;
+        assertEquals(PathParserAutomaton.REJECT,
+                automaton.transition(PathParserAutomaton.START, parsers, null));
+    }
+}
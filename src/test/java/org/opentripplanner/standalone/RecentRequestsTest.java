@@ -0,0 +1,87 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.standalone;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.routing.core.RoutingRequest;
+
+public class RecentRequestsTest extends TestCase {
+
+    private static RoutingRequest request(int i) {
+        RoutingRequest request = new RoutingRequest();
+        request.dateTime = i;
+        return request;
+    }
+
+    /** The most recent requests are kept in order, as copies of the recorded ones. */
+    public void testKeepsMostRecent() {
+        RecentRequests recentRequests = new RecentRequests(3);
+        assertTrue(recentRequests.getRequests().isEmpty());
+        RoutingRequest first = request(1);
+        recentRequests.record(first);
+        first.dateTime = 100;
+        List<RoutingRequest> requests = recentRequests.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals(1, requests.get(0).dateTime);
+        assertNotSame(first, requests.get(0));
+
+        for (int i = 2; i <= 5; i++) {
+            recentRequests.record(request(i));
+        }
+        requests = recentRequests.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals(3, requests.get(0).dateTime);
+        assertEquals(4, requests.get(1).dateTime);
+        assertEquals(5, requests.get(2).dateTime);
+    }
+
+    public void testDisabled() {
+        RecentRequests recentRequests = new RecentRequests(0);
+        recentRequests.record(request(1));
+        assertTrue(recentRequests.getRequests().isEmpty());
+    }
+
+    /** A router is drained once every request started on it has finished. */
+    public void testRouterDrain() throws InterruptedException {
+        final Router router = new Router("test", null);
+        assertTrue(router.awaitRequestsFinished(0));
+        router.requestStarted();
+        assertFalse(router.awaitRequestsFinished(10));
+        Thread request = new Thread() {
+            @Override
+            public void run() {
+                router.requestFinished();
+            }
+        };
+        request.start();
+        assertTrue(router.awaitRequestsFinished(10000));
+        request.join();
+        assertEquals(0, router.getRequestsInFlight());
+    }
+
+    /** A retired router refuses new requests, but keeps counting the ones it already accepted. */
+    public void testRetiredRouter() {
+        Router router = new Router("test", null);
+        assertTrue(router.requestStarted());
+        router.retire();
+        assertTrue(router.isRetired());
+        assertFalse(router.requestStarted());
+        assertEquals(1, router.getRequestsInFlight());
+        router.requestFinished();
+        assertTrue(router.awaitRequestsFinished(0));
+    }
+}
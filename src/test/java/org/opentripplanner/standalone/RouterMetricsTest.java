@@ -0,0 +1,74 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.standalone;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.api.resource.DebugOutput;
+
+public class RouterMetricsTest extends TestCase {
+
+    private static DebugOutput finished(long statesCreated, long statesVisited, int queuePeakSize) {
+        DebugOutput debugOutput = new DebugOutput();
+        debugOutput.startedCalculating();
+        debugOutput.addSearch(statesCreated, statesVisited, queuePeakSize, 2000000);
+        debugOutput.addLinkingTime(1000000);
+        debugOutput.finishedCalculating();
+        debugOutput.finishedRendering();
+        return debugOutput;
+    }
+
+    /** Statistics are summed and averaged per endpoint over the successful requests. */
+    public void testRecord() {
+        RouterMetrics metrics = new RouterMetrics();
+        assertNull(metrics.getEndpoint(RouterMetrics.PLAN));
+        metrics.record(RouterMetrics.PLAN, finished(100, 50, 10), false);
+        metrics.record(RouterMetrics.PLAN, finished(300, 150, 30), false);
+        metrics.record(RouterMetrics.PLAN_STREAM, finished(10, 5, 1), false);
+
+        RouterMetrics.EndpointMetrics plan = metrics.getEndpoint(RouterMetrics.PLAN);
+        assertEquals(2, plan.getRequests());
+        assertEquals(0, plan.getFailures());
+        assertEquals(2, plan.getTotalTime().getCount());
+        assertEquals(200.0, plan.getMeanStatesCreated(), 1e-9);
+        assertEquals(100.0, plan.getMeanStatesVisited(), 1e-9);
+        assertEquals(30, plan.getMaxQueuePeakSize());
+        assertEquals(2.0, plan.getMeanHeuristicTime(), 1e-9);
+        assertEquals(1.0, plan.getMeanLinkingTime(), 1e-9);
+        assertEquals(1, metrics.getEndpoint(RouterMetrics.PLAN_STREAM).getRequests());
+        assertEquals(2, metrics.getEndpoints().size());
+    }
+
+    /**
+     * Failed requests, whose timings were never summarized, are counted apart with the time they ran, and do not
+     * change the histograms of the successful ones.
+     */
+    public void testFailures() throws InterruptedException {
+        RouterMetrics metrics = new RouterMetrics();
+        metrics.record(RouterMetrics.PLAN, finished(100, 50, 10), false);
+        DebugOutput failed = new DebugOutput();
+        failed.startedCalculating();
+        failed.timedOut = true;
+        Thread.sleep(20);
+        metrics.record(RouterMetrics.PLAN, failed, true);
+
+        RouterMetrics.EndpointMetrics plan = metrics.getEndpoint(RouterMetrics.PLAN);
+        assertEquals(1, plan.getRequests());
+        assertEquals(1, plan.getTotalTime().getCount());
+        assertEquals(100.0, plan.getMeanStatesCreated(), 1e-9);
+        assertEquals(1, plan.getFailures());
+        assertEquals(1, plan.getTimeouts());
+        assertTrue(plan.getFailureTime().getMax() >= 20);
+    }
+}
@@ -16,6 +16,8 @@ package org.opentripplanner.util;
 import java.util.ArrayList;
 import java.util.List;
 
+import gnu.trove.list.array.TDoubleArrayList;
+
 import org.opentripplanner.util.model.EncodedPolylineBean;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -35,4 +37,50 @@ public class TestPolylineEncoder extends TestCase {
         assertEquals(3, eplb.getLength());
         assertNull(eplb.getLevels());
     }
+
+    public void testBuilder() {
+        PolylineEncoder.Builder builder = new PolylineEncoder.Builder();
+        for (int i = 0; i < 2; i++) {
+            // The second polyline is encoded from the start, in the buffer of the first
+            builder.add(-73.85062, 40.903125);
+            builder.add(new Coordinate[] { new Coordinate(0, 0), new Coordinate(-73.85136, 40.902261),
+                    new Coordinate(-73.85151, 40.902066) }, 1);
+            assertEquals(3, builder.size());
+            EncodedPolylineBean eplb = builder.build();
+            assertEquals("o{sxFl}vaMjDpCf@\\", eplb.getPoints());
+            assertEquals(3, eplb.getLength());
+            assertNull(eplb.getLevels());
+        }
+    }
+
+    public void testBuilderFromEncoded() {
+        List<Coordinate> first = new ArrayList<Coordinate>();
+        first.add(new Coordinate(-73.85062, 40.903125));
+        first.add(new Coordinate(-73.85136, 40.902261));
+        List<Coordinate> second = new ArrayList<Coordinate>();
+        second.add(new Coordinate(-73.85136, 40.902261));
+        second.add(new Coordinate(-73.85151, 40.902066));
+        second.add(new Coordinate(-73.85302, 40.90014));
+        List<Coordinate> all = new ArrayList<Coordinate>(first);
+        all.addAll(second.subList(1, second.size()));
+
+        // Joined polylines are the same as the polyline of all their points
+        PolylineEncoder.Builder builder = new PolylineEncoder.Builder();
+        builder.add(PolylineEncoder.createEncodings(first), false);
+        builder.add(PolylineEncoder.createEncodings(second), true);
+        EncodedPolylineBean expected = PolylineEncoder.createEncodings(all);
+        EncodedPolylineBean eplb = builder.build();
+        assertEquals(expected.getPoints(), eplb.getPoints());
+        assertEquals(4, eplb.getLength());
+
+        // Also when mixed with coordinates
+        TDoubleArrayList coordinates = new TDoubleArrayList();
+        for (Coordinate c : first) {
+            coordinates.add(c.x);
+            coordinates.add(c.y);
+        }
+        builder.add(coordinates, 0);
+        builder.add(PolylineEncoder.createEncodings(second), true);
+        assertEquals(expected.getPoints(), builder.build().getPoints());
+    }
 }